@@ -0,0 +1,334 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava;
+
+import android.app.Application;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import com.sample.android.classytaxijava.billing.BillingClientLifecycle;
+import com.sample.android.classytaxijava.data.DataRepository;
+import com.sample.android.classytaxijava.data.RefreshPolicy;
+import com.sample.android.classytaxijava.data.RefreshScheduler;
+import com.sample.android.classytaxijava.data.disk.AppDatabase;
+import com.sample.android.classytaxijava.data.disk.LocalDataSource;
+import com.sample.android.classytaxijava.data.network.OutboxDrainer;
+import com.sample.android.classytaxijava.data.network.WebDataSource;
+import com.sample.android.classytaxijava.data.network.firebase.FakeBackend;
+import com.sample.android.classytaxijava.data.network.firebase.FakeServerFunctions;
+import com.sample.android.classytaxijava.data.network.firebase.ServerFunctions;
+import com.sample.android.classytaxijava.data.network.retrofit.ServerFunctionImpl;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the application's components and holds on to them.
+ * <p>
+ * {@link #start()} initializes components that do not depend on each other in parallel on
+ * background threads, and opens the database so that migrations do not run on the main
+ * thread. Once its dependencies are ready, the {@link DataRepository} is created on the main
+ * thread, since it observes LiveData. The repository is handed out with a callback, so the
+ * main thread never waits for it. Other components are still created lazily: a component
+ * that is needed before its background initialization has started is created on the calling
+ * thread, and one that is being created on another thread is waited for.
+ * <p>
+ * The container records when and where each component was created, and how long the main
+ * thread spent waiting for it or creating it. See {@link #getStartupReport()}.
+ */
+public class AppContainer {
+    private static final String TAG = "AppContainer";
+
+    /**
+     * Threads used to initialize components at startup.
+     */
+    private static final int STARTUP_THREADS = 3;
+
+    /**
+     * Receives the {@link DataRepository} on the main thread once it has been created.
+     */
+    public interface RepositoryCallback {
+        void onRepositoryReady(DataRepository repository);
+    }
+
+    private final Application app;
+    private final AppExecutors executors;
+    private final Clock clock;
+    private final long createdAtMillis;
+    private final List<StartupComponent<?>> components = new ArrayList<>();
+    /**
+     * Reads {@link #clock} when it is used, since the components are created before the
+     * constructor assigns it.
+     */
+    private final Clock componentClock = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return clock.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return clock.elapsedRealtime();
+        }
+    };
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Executor mainThread = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            mainHandler.post(runnable);
+        }
+    };
+
+    private final OutboxDrainer.UserIdSource userIdSource = new OutboxDrainer.UserIdSource() {
+        @Nullable
+        @Override
+        public String getUserId() {
+            return getCurrentUserId();
+        }
+    };
+
+    private final StartupComponent<AppDatabase> database = add("database",
+            new Callable<AppDatabase>() {
+                @Override
+                public AppDatabase call() {
+                    AppDatabase database = AppDatabase.getInstance(app);
+                    // Open the database now, so that it is created or migrated off the main
+                    // thread.
+                    database.getOpenHelper().getWritableDatabase();
+                    return database;
+                }
+            });
+
+    private final StartupComponent<ServerFunctions> serverFunctions = add("serverFunctions",
+            new Callable<ServerFunctions>() {
+                @Override
+                public ServerFunctions call() {
+                    if (Constants.USE_FAKE_SERVER) {
+                        return FakeServerFunctions.getInstance(
+                                new FakeBackend.Config.Builder().build(), userIdSource);
+                    } else {
+                        return ServerFunctionImpl.getInstance(app.getCacheDir(),
+                                executors.scheduler);
+                    }
+                }
+            });
+
+    private final StartupComponent<BillingClientLifecycle> billingClientLifecycle = add(
+            "billingClientLifecycle", new Callable<BillingClientLifecycle>() {
+                @Override
+                public BillingClientLifecycle call() {
+                    return BillingClientLifecycle.getInstance(app, executors);
+                }
+            });
+
+    private final StartupComponent<LocalDataSource> localDataSource = add("localDataSource",
+            new Callable<LocalDataSource>() {
+                @Override
+                public LocalDataSource call() {
+                    LocalDataSource source = LocalDataSource.getInstance(executors,
+                            database.get());
+                    // Stored data is read for the user who is signed in at startup.
+                    source.setUser(getCurrentUserId());
+                    return source;
+                }
+            });
+
+    private final StartupComponent<WebDataSource> webDataSource = add("webDataSource",
+            new Callable<WebDataSource>() {
+                @Override
+                public WebDataSource call() {
+                    return WebDataSource.getInstance(executors, serverFunctions.get());
+                }
+            });
+
+    private final StartupComponent<OutboxDrainer> outboxDrainer = add("outboxDrainer",
+            new Callable<OutboxDrainer>() {
+                @Override
+                public OutboxDrainer call() {
+                    return OutboxDrainer.getInstance(executors, localDataSource.get(),
+                            webDataSource.get(),
+                            (ConnectivityManager) app.getSystemService(
+                                    Context.CONNECTIVITY_SERVICE),
+                            userIdSource);
+                }
+            });
+
+    private final StartupComponent<RefreshScheduler> refreshScheduler = add("refreshScheduler",
+            new Callable<RefreshScheduler>() {
+                @Override
+                public RefreshScheduler call() {
+                    return new RefreshScheduler(clock, new RefreshPolicy(),
+                            SubscriptionRefreshWorker.workScheduler(app));
+                }
+            });
+
+    /**
+     * Created on the main thread once its dependencies are ready. See {@link #start()}.
+     */
+    private final StartupComponent<DataRepository> repository = add("repository",
+            new Callable<DataRepository>() {
+                @Override
+                public DataRepository call() {
+                    final DataRepository repository = DataRepository.getInstance(
+                            localDataSource.get(), webDataSource.get(), outboxDrainer.get(),
+                            billingClientLifecycle.get(), executors.scheduler,
+                            refreshScheduler.get());
+                    // Switch to the data of the user whenever the user signs in or out.
+                    FirebaseAuth.getInstance().addAuthStateListener(
+                            new FirebaseAuth.AuthStateListener() {
+                                @Override
+                                public void onAuthStateChanged(@NonNull FirebaseAuth auth) {
+                                    repository.setUser(getCurrentUserId());
+                                }
+                            });
+                    return repository;
+                }
+            });
+
+    public AppContainer(Application app, AppExecutors executors, Clock clock) {
+        this.app = app;
+        this.executors = executors;
+        this.clock = clock;
+        this.createdAtMillis = clock.elapsedRealtime();
+    }
+
+    /**
+     * Initialize the components in the background. Call this from
+     * {@link Application#onCreate()}.
+     */
+    public void start() {
+        ExecutorService startupExecutor = Executors.newFixedThreadPool(STARTUP_THREADS);
+        // Dependencies come before the components that need them, so a waiting component
+        // never holds a thread that its dependency is queued for.
+        startupExecutor.execute(database.task);
+        startupExecutor.execute(serverFunctions.task);
+        startupExecutor.execute(billingClientLifecycle.task);
+        startupExecutor.execute(localDataSource.task);
+        startupExecutor.execute(webDataSource.task);
+        startupExecutor.execute(outboxDrainer.task);
+        startupExecutor.execute(refreshScheduler.task);
+        startupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                outboxDrainer.get();
+                billingClientLifecycle.get();
+                refreshScheduler.get();
+                // Only posted once nothing is left to wait for, so the main thread does not
+                // block on it.
+                mainThread.execute(repository.task);
+            }
+        });
+        startupExecutor.shutdown();
+        repository.whenReady(mainThread, new StartupComponent.Callback<DataRepository>() {
+            @Override
+            public void onReady(DataRepository repository) {
+                Log.i(TAG, getStartupReport());
+            }
+        });
+    }
+
+    public AppDatabase getDatabase() {
+        return database.get();
+    }
+
+    public ServerFunctions getServerFunctions() {
+        return serverFunctions.get();
+    }
+
+    public BillingClientLifecycle getBillingClientLifecycle() {
+        return billingClientLifecycle.get();
+    }
+
+    public LocalDataSource getLocalDataSource() {
+        return localDataSource.get();
+    }
+
+    public WebDataSource getWebDataSource() {
+        return webDataSource.get();
+    }
+
+    public OutboxDrainer getOutboxDrainer() {
+        return outboxDrainer.get();
+    }
+
+    public RefreshScheduler getRefreshScheduler() {
+        return refreshScheduler.get();
+    }
+
+    /**
+     * Run the callback on the main thread once the repository has been created, which happens
+     * after {@link #start()} has initialized its dependencies. Never waits, so this can be
+     * called from any thread. Callbacks run in the order in which they were passed in.
+     */
+    public void getRepository(final RepositoryCallback callback) {
+        repository.whenReady(mainThread, new StartupComponent.Callback<DataRepository>() {
+            @Override
+            public void onReady(DataRepository repository) {
+                callback.onRepositoryReady(repository);
+            }
+        });
+    }
+
+    /**
+     * For each component, the thread that created it, when creation started and how long it
+     * took, relative to the creation of the container, and how long the main thread spent
+     * waiting for it or creating it. As text, for debugging.
+     */
+    public String getStartupReport() {
+        StringBuilder sb = new StringBuilder("startup");
+        for (StartupComponent<?> component : components) {
+            sb.append('\n').append(component.name);
+            if (component.startedAtMillis < 0) {
+                sb.append(" not created");
+                continue;
+            }
+            sb.append(" thread=").append(component.threadName)
+                    .append(" startMs=").append(component.startedAtMillis - createdAtMillis);
+            if (component.finishedAtMillis >= 0) {
+                sb.append(" durationMs=")
+                        .append(component.finishedAtMillis - component.startedAtMillis);
+            }
+            sb.append(" mainThreadWaitMs=").append(component.mainThreadWaitMillis);
+        }
+        return sb.toString();
+    }
+
+    @Nullable
+    private static String getCurrentUserId() {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        return user == null ? null : user.getUid();
+    }
+
+    private <T> StartupComponent<T> add(String name, Callable<T> factory) {
+        StartupComponent<T> component = new StartupComponent<>(name, factory, componentClock);
+        components.add(component);
+        return component;
+    }
+}
@@ -16,16 +16,53 @@
 
 package com.sample.android.classytaxijava;
 
-import java.util.concurrent.Executor;
+import com.sample.android.classytaxijava.PriorityExecutor.Priority;
+import com.sample.android.classytaxijava.PriorityExecutor.RejectionPolicy;
+import com.sample.android.classytaxijava.utils.Clock;
+
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * Global executor pools for the whole application.
  *
  * Grouping tasks like this avoids the effects of task starvation (e.g. disk reads don't wait behind
- * webservice requests).
+ * webservice requests). Within each pool, tasks run by {@link Priority}, so that work the user
+ * is waiting for does not queue behind background refreshes.
  */
 public class AppExecutors {
-    public Executor diskIO = Executors.newSingleThreadExecutor();
-    public Executor networkIO = Executors.newFixedThreadPool(3);
+    /**
+     * Database work. A single thread keeps writes within a lane in order.
+     */
+    public PriorityExecutor diskIO = new PriorityExecutor("disk", 1, Clock.SYSTEM);
+    /**
+     * Server requests. Background requests may occupy at most two of the three threads, so
+     * that one is always free for requests the user is waiting for.
+     */
+    public PriorityExecutor networkIO = new PriorityExecutor("network", 3, Clock.SYSTEM);
+    /**
+     * Short CPU-bound work that must stay off the main thread, such as computing view state.
+     */
+    public PriorityExecutor computation = new PriorityExecutor("computation", 1, Clock.SYSTEM);
+    /**
+     * Timer for delayed work. Scheduled tasks should hand off to another pool instead of
+     * blocking this thread.
+     */
+    public ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    public AppExecutors() {
+        // The disk lanes stay unbounded. Database writes must not be lost, and they are
+        // submitted from the main thread, where a rejection would crash the app.
+        networkIO.setLaneLimits(Priority.USER_BLOCKING, 64, RejectionPolicy.ABORT, 3);
+        networkIO.setLaneLimits(Priority.USER_VISIBLE, 64, RejectionPolicy.ABORT, 3);
+        // Background requests are refreshes. A rejected one is retried by its next trigger.
+        networkIO.setLaneLimits(Priority.BACKGROUND, 16, RejectionPolicy.ABORT, 2);
+    }
+
+    /**
+     * Queue and run time statistics of the pools, for debugging.
+     */
+    public String dump() {
+        return diskIO.dump() + "\n\n" + networkIO.dump() + "\n\n" + computation.dump();
+    }
 }
@@ -17,6 +17,7 @@
 package com.sample.android.classytaxijava;
 
 import com.google.firebase.messaging.FirebaseMessagingService;
+import com.sample.android.classytaxijava.data.DataRepository;
 
 import androidx.annotation.NonNull;
 
@@ -30,13 +31,18 @@ public class FcmRegistrationTokenService extends FirebaseMessagingService {
      * is initially generated so this is where you would retrieve the token.
      */
     @Override
-    public void onNewToken(@NonNull String token) {
+    public void onNewToken(@NonNull final String token) {
 
         // If you want to send messages to this application instance or
         // manage this apps subscriptions on the server side, send the
         // FCM registration token to your app server.
         // Persists it to the server.
-        ((SubApp) getApplication()).getRepository().registerInstanceId(token);
+        ((SubApp) getApplication()).getRepository(new AppContainer.RepositoryCallback() {
+            @Override
+            public void onRepositoryReady(DataRepository repository) {
+                repository.registerInstanceId(token);
+            }
+        });
 
     }
 }
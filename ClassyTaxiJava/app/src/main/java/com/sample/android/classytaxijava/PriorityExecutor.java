@@ -0,0 +1,349 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava;
+
+import android.util.Log;
+
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thread pool that runs tasks by priority.
+ * <p>
+ * Each {@link Priority} has its own lane. A lane has a bounded queue, a policy for tasks that
+ * arrive when its queue is full, and a limit on the threads it may occupy at once, so that
+ * background work always leaves a thread for user-initiated work. Idle threads take the
+ * oldest task from the most urgent lane that may run. Tasks in the same lane start in the
+ * order they were submitted.
+ * <p>
+ * For each task tag, the executor measures how long tasks waited in the queue and how long
+ * they ran, and counts the tasks that threw. A task that throws is logged with its stack
+ * trace, and its thread goes on with the next task.
+ */
+public class PriorityExecutor implements Executor {
+    private static final String TAG = "PriorityExecutor";
+
+    public enum Priority {
+        /**
+         * Work the user is waiting for, such as registering a purchase.
+         */
+        USER_BLOCKING,
+        /**
+         * Work whose result the user sees, such as loading subscriptions.
+         */
+        USER_VISIBLE,
+        /**
+         * Work the user does not wait for, such as prefetching content.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * What to do with a task that arrives when its lane is full.
+     */
+    public enum RejectionPolicy {
+        /**
+         * Throw a {@link RejectedExecutionException}.
+         */
+        ABORT,
+        /**
+         * Run the task on the calling thread. Only use this for lanes that are never fed from
+         * the main thread.
+         */
+        CALLER_RUNS
+    }
+
+    private final String name;
+    private final Clock clock;
+    private final Lane[] lanes = new Lane[Priority.values().length];
+    private final Map<String, TaskStats> stats = new TreeMap<>();
+    private final Object lock = new Object();
+    private boolean shutdown;
+
+    /**
+     * Create an executor whose lanes are unbounded and may use every thread. Configure them
+     * with {@link #setLaneLimits}.
+     *
+     * @param name        prefix of the thread names
+     * @param threadCount number of threads
+     */
+    public PriorityExecutor(String name, int threadCount, Clock clock) {
+        this.name = name;
+        this.clock = clock;
+        for (Priority priority : Priority.values()) {
+            lanes[priority.ordinal()] = new Lane(Integer.MAX_VALUE, RejectionPolicy.ABORT,
+                    threadCount);
+        }
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, name + "-" + i);
+            thread.start();
+        }
+    }
+
+    /**
+     * @param capacity   maximum number of queued tasks
+     * @param policy     what to do with tasks that arrive when the queue is full
+     * @param maxRunning maximum number of threads running tasks of the lane at once
+     */
+    public void setLaneLimits(Priority priority, int capacity, RejectionPolicy policy,
+                              int maxRunning) {
+        if (capacity < 1 || maxRunning < 1) {
+            throw new IllegalArgumentException("Lane limits must be positive");
+        }
+        synchronized (lock) {
+            Lane lane = lanes[priority.ordinal()];
+            lane.capacity = capacity;
+            lane.policy = policy;
+            lane.maxRunning = maxRunning;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Run a task in the {@link Priority#USER_VISIBLE} lane, without a tag.
+     */
+    @Override
+    public void execute(Runnable command) {
+        execute(Priority.USER_VISIBLE, "untagged", command);
+    }
+
+    /**
+     * Run a task in the lane of the priority.
+     *
+     * @param tag groups the task in the statistics, e.g. an endpoint or a DAO operation
+     * @throws RejectedExecutionException if the lane is full and its policy is
+     *                                    {@link RejectionPolicy#ABORT}, or after shutdown
+     */
+    public void execute(Priority priority, String tag, Runnable command) {
+        Task task = new Task(priority, tag, command, clock.elapsedRealtime());
+        synchronized (lock) {
+            if (shutdown) {
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+            Lane lane = lanes[priority.ordinal()];
+            if (lane.queue.size() < lane.capacity) {
+                lane.queue.addLast(task);
+                lock.notify();
+                return;
+            }
+            lane.rejected++;
+            getStatsLocked(tag).rejected++;
+            if (lane.policy != RejectionPolicy.CALLER_RUNS) {
+                throw new RejectedExecutionException(name + ": " + priority
+                        + " lane is full, rejecting " + tag);
+            }
+            Log.w(TAG, name + ": " + priority + " lane is full, running " + tag
+                    + " on the caller");
+        }
+        runTask(task);
+    }
+
+    /**
+     * Returns an executor that runs tasks in the lane of the priority, under the tag.
+     */
+    public Executor forPriority(final Priority priority, final String tag) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                PriorityExecutor.this.execute(priority, tag, command);
+            }
+        };
+    }
+
+    /**
+     * Stop the threads once queued tasks have run. New tasks are rejected.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queue sizes, rejections and, for each tag, the task count with the mean and maximum
+     * queue wait and run time, as text for debugging.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder(name);
+        synchronized (lock) {
+            for (Priority priority : Priority.values()) {
+                Lane lane = lanes[priority.ordinal()];
+                sb.append('\n').append(priority)
+                        .append(" queued=").append(lane.queue.size())
+                        .append(" running=").append(lane.running)
+                        .append(" rejected=").append(lane.rejected);
+            }
+            for (Map.Entry<String, TaskStats> entry : stats.entrySet()) {
+                TaskStats taskStats = entry.getValue();
+                sb.append('\n').append(entry.getKey())
+                        .append(" count=").append(taskStats.count)
+                        .append(" waitMs(mean=").append(taskStats.meanWaitMillis())
+                        .append(" max=").append(taskStats.maxWaitMillis)
+                        .append(") runMs(mean=").append(taskStats.meanRunMillis())
+                        .append(" max=").append(taskStats.maxRunMillis)
+                        .append(") rejected=").append(taskStats.rejected)
+                        .append(" failed=").append(taskStats.failed);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void runWorker() {
+        while (true) {
+            Task task;
+            synchronized (lock) {
+                while ((task = pollLocked()) == null) {
+                    if (shutdown && isIdleLocked()) {
+                        return;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            try {
+                runTask(task);
+            } finally {
+                synchronized (lock) {
+                    lanes[task.priority.ordinal()].running--;
+                    // A lane at its running limit may have queued tasks that can now start.
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the oldest task from the most urgent lane that is below its running limit.
+     */
+    private Task pollLocked() {
+        for (Lane lane : lanes) {
+            if (!lane.queue.isEmpty() && lane.running < lane.maxRunning) {
+                lane.running++;
+                return lane.queue.pollFirst();
+            }
+        }
+        return null;
+    }
+
+    private boolean isIdleLocked() {
+        for (Lane lane : lanes) {
+            if (!lane.queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void runTask(Task task) {
+        long startedAtMillis = clock.elapsedRealtime();
+        boolean failed = false;
+        try {
+            task.runnable.run();
+        } catch (RuntimeException e) {
+            failed = true;
+            Log.e(TAG, name + ": " + task.tag + " threw " + e, e);
+        } finally {
+            long finishedAtMillis = clock.elapsedRealtime();
+            synchronized (lock) {
+                TaskStats taskStats = getStatsLocked(task.tag);
+                taskStats.record(startedAtMillis - task.queuedAtMillis,
+                        finishedAtMillis - startedAtMillis);
+                if (failed) {
+                    taskStats.failed++;
+                }
+            }
+        }
+    }
+
+    private TaskStats getStatsLocked(String tag) {
+        TaskStats taskStats = stats.get(tag);
+        if (taskStats == null) {
+            taskStats = new TaskStats();
+            stats.put(tag, taskStats);
+        }
+        return taskStats;
+    }
+
+    private static class Lane {
+        final ArrayDeque<Task> queue = new ArrayDeque<>();
+        int capacity;
+        RejectionPolicy policy;
+        int maxRunning;
+        int running;
+        long rejected;
+
+        Lane(int capacity, RejectionPolicy policy, int maxRunning) {
+            this.capacity = capacity;
+            this.policy = policy;
+            this.maxRunning = maxRunning;
+        }
+    }
+
+    private static class Task {
+        final Priority priority;
+        final String tag;
+        final Runnable runnable;
+        final long queuedAtMillis;
+
+        Task(Priority priority, String tag, Runnable runnable, long queuedAtMillis) {
+            this.priority = priority;
+            this.tag = tag;
+            this.runnable = runnable;
+            this.queuedAtMillis = queuedAtMillis;
+        }
+    }
+
+    private static class TaskStats {
+        long count;
+        long totalWaitMillis;
+        long maxWaitMillis;
+        long totalRunMillis;
+        long maxRunMillis;
+        long rejected;
+        long failed;
+
+        void record(long waitMillis, long runMillis) {
+            count++;
+            totalWaitMillis += waitMillis;
+            maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+            totalRunMillis += runMillis;
+            maxRunMillis = Math.max(maxRunMillis, runMillis);
+        }
+
+        long meanWaitMillis() {
+            return count == 0 ? 0 : totalWaitMillis / count;
+        }
+
+        long meanRunMillis() {
+            return count == 0 ? 0 : totalRunMillis / count;
+        }
+    }
+}
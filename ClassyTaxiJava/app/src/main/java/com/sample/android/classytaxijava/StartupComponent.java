@@ -0,0 +1,141 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava;
+
+import android.os.Looper;
+
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A component of the {@link AppContainer} that is created once, by running {@link #task}.
+ * <p>
+ * Records when and on which thread it was created, and how long the main thread spent
+ * waiting for it or creating it.
+ */
+class StartupComponent<T> {
+
+    /**
+     * Receives the component once it has been created.
+     */
+    interface Callback<T> {
+        void onReady(T component);
+    }
+
+    final String name;
+    final FutureTask<T> task;
+    volatile String threadName;
+    volatile long startedAtMillis = -1;
+    volatile long finishedAtMillis = -1;
+    volatile long mainThreadWaitMillis;
+
+    private final Clock clock;
+    private final Object lock = new Object();
+    /**
+     * Callbacks that asked for the component before it was created. Guarded by lock.
+     */
+    private final List<Runnable> pending = new ArrayList<>();
+    /**
+     * True once the pending callbacks have been handed to their executors. Guarded by lock.
+     */
+    private boolean ready;
+
+    StartupComponent(String name, final Callable<T> factory, Clock clock) {
+        this.name = name;
+        this.clock = clock;
+        this.task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                threadName = Thread.currentThread().getName();
+                startedAtMillis = StartupComponent.this.clock.elapsedRealtime();
+                try {
+                    return factory.call();
+                } finally {
+                    finishedAtMillis = StartupComponent.this.clock.elapsedRealtime();
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                synchronized (lock) {
+                    ready = true;
+                    // Hand the callbacks over while holding the lock, so that a callback
+                    // added after them cannot overtake them.
+                    for (Runnable callback : pending) {
+                        callback.run();
+                    }
+                    pending.clear();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the component, creating it on this thread if creation has not started yet.
+     */
+    T get() {
+        boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+        long waitStartMillis = clock.elapsedRealtime();
+        // Does nothing if the task has already run or is running on another thread.
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while creating " + name, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to create " + name, e.getCause());
+        } finally {
+            if (mainThread) {
+                mainThreadWaitMillis += clock.elapsedRealtime() - waitStartMillis;
+            }
+        }
+    }
+
+    /**
+     * Run the callback on the executor once the component has been created. Does not create
+     * the component and does not wait for it. Callbacks for the same executor run in the
+     * order in which they were added.
+     */
+    void whenReady(final Executor executor, final Callback<T> callback) {
+        Runnable handOver = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Created by now, so this does not wait.
+                        callback.onReady(get());
+                    }
+                });
+            }
+        };
+        synchronized (lock) {
+            if (!ready) {
+                pending.add(handOver);
+                return;
+            }
+            handOver.run();
+        }
+    }
+}
@@ -19,46 +19,87 @@ package com.sample.android.classytaxijava;
 import android.app.Application;
 
 import com.sample.android.classytaxijava.billing.BillingClientLifecycle;
-import com.sample.android.classytaxijava.data.DataRepository;
+import com.sample.android.classytaxijava.data.RefreshScheduler;
 import com.sample.android.classytaxijava.data.disk.LocalDataSource;
 import com.sample.android.classytaxijava.data.disk.AppDatabase;
+import com.sample.android.classytaxijava.data.network.OutboxDrainer;
 import com.sample.android.classytaxijava.data.network.WebDataSource;
-import com.sample.android.classytaxijava.data.network.firebase.FakeServerFunctions;
 import com.sample.android.classytaxijava.data.network.firebase.ServerFunctions;
+import com.sample.android.classytaxijava.data.network.retrofit.HttpStack;
 import com.sample.android.classytaxijava.data.network.retrofit.ServerFunctionImpl;
+import com.sample.android.classytaxijava.utils.Clock;
 
 /**
- * Android Application class. Used for accessing singletons.
+ * Android Application class. Used for accessing singletons, which are held by the
+ * {@link AppContainer}.
  */
 public class SubApp extends Application {
     private final AppExecutors executors = new AppExecutors();
+    private final AppContainer container = new AppContainer(this, executors, Clock.SYSTEM);
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        container.start();
+    }
+
+    public AppExecutors getExecutors() {
+        return executors;
+    }
 
     public AppDatabase getDatabase() {
-        return AppDatabase.getInstance(this);
+        return container.getDatabase();
     }
 
     public LocalDataSource getLocalDataSource() {
-        return LocalDataSource.getInstance(executors, getDatabase());
+        return container.getLocalDataSource();
     }
 
     public ServerFunctions getServerFunctions() {
-        if (Constants.USE_FAKE_SERVER) {
-            return FakeServerFunctions.getInstance();
-        } else {
-            return ServerFunctionImpl.getInstance();
-        }
+        return container.getServerFunctions();
     }
 
     public WebDataSource getWebDataSource() {
-        return WebDataSource.getInstance(executors, getServerFunctions());
+        return container.getWebDataSource();
+    }
+
+    public OutboxDrainer getOutboxDrainer() {
+        return container.getOutboxDrainer();
+    }
+
+    public RefreshScheduler getRefreshScheduler() {
+        return container.getRefreshScheduler();
+    }
+
+    /**
+     * Connection statistics, phase timings, request latency, retry counters, executor queues,
+     * the billing connection and startup timings as text, for debugging.
+     */
+    public String getNetworkStats() {
+        HttpStack httpStack = HttpStack.getInstance(getCacheDir());
+        StringBuilder sb = new StringBuilder()
+                .append(httpStack.getStats()).append("\n\n")
+                .append(httpStack.getTimings().dump());
+        ServerFunctions serverFunctions = getServerFunctions();
+        if (serverFunctions instanceof ServerFunctionImpl) {
+            ServerFunctionImpl serverFunctionImpl = (ServerFunctionImpl) serverFunctions;
+            sb.append('\n').append(serverFunctionImpl.getPendingRequestCounter().dump())
+                    .append('\n').append(serverFunctionImpl.getResilienceMetrics().dump());
+        }
+        sb.append("\n\n").append(executors.dump());
+        sb.append("\n\n").append(getBillingClientLifecycle().getConnectionStats());
+        sb.append("\n\n").append(container.getStartupReport());
+        return sb.toString();
     }
 
     public BillingClientLifecycle getBillingClientLifecycle() {
-        return BillingClientLifecycle.getInstance(this);
+        return container.getBillingClientLifecycle();
     }
 
-    public DataRepository getRepository() {
-        return DataRepository
-                .getInstance(getLocalDataSource(), getWebDataSource(), getBillingClientLifecycle());
+    /**
+     * Run the callback on the main thread once the repository is ready. Never waits.
+     */
+    public void getRepository(AppContainer.RepositoryCallback callback) {
+        container.getRepository(callback);
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.Observer;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.sample.android.classytaxijava.data.DataRepository;
+import com.sample.android.classytaxijava.data.RefreshScheduler;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.network.RequestCoalescer;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes the subscription status in the background, when scheduled by the
+ * {@link RefreshScheduler}.
+ * <p>
+ * The refresh only runs with a network connection and when the battery is not low. It joins
+ * a refresh that is already in flight and is skipped if the status was fetched moments ago.
+ */
+public class SubscriptionRefreshWorker extends Worker {
+    private static final String TAG = "RefreshWorker";
+
+    private static final String WORK_NAME = "subscription_refresh";
+
+    /**
+     * Maximum time to wait for the server.
+     */
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final long BACKOFF_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    public SubscriptionRefreshWorker(@NonNull Context context,
+                                     @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Returns a {@link RefreshScheduler.WorkScheduler} that runs this worker through
+     * WorkManager.
+     */
+    public static RefreshScheduler.WorkScheduler workScheduler(final Context context) {
+        final Context appContext = context.getApplicationContext();
+        return new RefreshScheduler.WorkScheduler() {
+            @Override
+            public void schedule(long delayMillis) {
+                Constraints constraints = new Constraints.Builder()
+                        .setRequiredNetworkType(NetworkType.CONNECTED)
+                        .setRequiresBatteryNotLow(true)
+                        .build();
+                OneTimeWorkRequest request =
+                        new OneTimeWorkRequest.Builder(SubscriptionRefreshWorker.class)
+                                .setInitialDelay(delayMillis, TimeUnit.MILLISECONDS)
+                                .setConstraints(constraints)
+                                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL,
+                                        BACKOFF_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+                                .build();
+                WorkManager.getInstance(appContext)
+                        .enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.REPLACE, request);
+            }
+
+            @Override
+            public void cancel() {
+                WorkManager.getInstance(appContext).cancelUniqueWork(WORK_NAME);
+            }
+        };
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        final SubApp app = (SubApp) getApplicationContext();
+        RefreshScheduler refreshScheduler = app.getRefreshScheduler();
+        refreshScheduler.onWorkStarted();
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] success = {false};
+        // The repository stores server results while its subscriptions are observed, so
+        // observe them until the result has been delivered.
+        final Observer<List<SubscriptionStatus>> observer =
+                new Observer<List<SubscriptionStatus>>() {
+                    @Override
+                    public void onChanged(List<SubscriptionStatus> subscriptionStatuses) {
+                    }
+                };
+        try {
+            app.getRepository(new AppContainer.RepositoryCallback() {
+                @Override
+                public void onRepositoryReady(DataRepository repository) {
+                    repository.getSubscriptions().observeForever(observer);
+                    repository.fetchSubscriptions(new RequestCoalescer.Callback() {
+                        @Override
+                        public void onComplete(boolean result) {
+                            success[0] = result;
+                            done.countDown();
+                        }
+                    });
+                }
+            });
+            if (!done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Subscription refresh timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Runs after the callback above, also when the repository was not ready in time,
+            // and after the result has been delivered.
+            app.getRepository(new AppContainer.RepositoryCallback() {
+                @Override
+                public void onRepositoryReady(DataRepository repository) {
+                    repository.getSubscriptions().removeObserver(observer);
+                }
+            });
+            refreshScheduler.onWorkFinished(success[0]);
+        }
+        Log.d(TAG, "Subscription refresh finished: " + success[0]);
+        return success[0] ? Result.success() : Result.retry();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.billing;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acknowledges purchase tokens once, with bounded parallelism and retries.
+ * <p>
+ * The tracker remembers which tokens are acknowledged, from {@link Purchase#isAcknowledged()}
+ * and from successful responses, and which are being acknowledged. Only the other tokens are
+ * sent to Google Play. At most a fixed number of acknowledgements are in flight; the rest wait
+ * in a queue. Transient failures are retried with a growing delay. Tokens that still fail are
+ * forgotten, so that a later update can try them again. A lost connection to Google Play does
+ * not use up an attempt: the acknowledgement is simply sent again.
+ */
+public class AcknowledgementTracker {
+    private static final String TAG = "AcknowledgementTracker";
+
+    /**
+     * Sends one acknowledgement, e.g. through the {@link BillingClient}.
+     */
+    public interface Acknowledger {
+        /**
+         * The listener must be called exactly once.
+         */
+        void acknowledge(String purchaseToken, ResultListener listener);
+    }
+
+    public interface ResultListener {
+        /**
+         * @param responseCode one of {@link BillingClient.BillingResponseCode}
+         */
+        void onResult(int responseCode);
+    }
+
+    private enum State {
+        QUEUED, IN_FLIGHT, ACKNOWLEDGED
+    }
+
+    private final Acknowledger acknowledger;
+    private final ScheduledExecutorService scheduler;
+    private final int maxParallel;
+    private final int maxAttempts;
+    private final long initialRetryDelayMillis;
+
+    private final Map<String, State> states = new HashMap<>();
+    /**
+     * Tokens waiting for a free slot, with the number of the attempt they wait for.
+     */
+    private final Queue<Map.Entry<String, Integer>> queue = new ArrayDeque<>();
+    private int inFlight;
+
+    /**
+     * @param maxParallel             acknowledgements that may be in flight at the same time
+     * @param maxAttempts             attempts per token, including the first
+     * @param initialRetryDelayMillis delay before the first retry, doubled for each further one
+     */
+    public AcknowledgementTracker(Acknowledger acknowledger, ScheduledExecutorService scheduler,
+                                  int maxParallel, int maxAttempts,
+                                  long initialRetryDelayMillis) {
+        this.acknowledger = acknowledger;
+        this.scheduler = scheduler;
+        this.maxParallel = maxParallel;
+        this.maxAttempts = maxAttempts;
+        this.initialRetryDelayMillis = initialRetryDelayMillis;
+    }
+
+    /**
+     * Record the purchases Google Play reports as acknowledged.
+     */
+    public synchronized void onPurchasesUpdated(@Nullable List<Purchase> purchases) {
+        if (purchases == null) {
+            return;
+        }
+        for (Purchase purchase : purchases) {
+            if (purchase.isAcknowledged()) {
+                states.put(purchase.getPurchaseToken(), State.ACKNOWLEDGED);
+            }
+        }
+    }
+
+    /**
+     * Acknowledge the tokens that are not acknowledged or being acknowledged yet.
+     */
+    public void acknowledge(Collection<String> purchaseTokens) {
+        List<Map.Entry<String, Integer>> toSend;
+        synchronized (this) {
+            for (String purchaseToken : purchaseTokens) {
+                if (purchaseToken != null && !states.containsKey(purchaseToken)) {
+                    states.put(purchaseToken, State.QUEUED);
+                    queue.add(new AbstractMap.SimpleImmutableEntry<>(purchaseToken, 1));
+                }
+            }
+            toSend = takeSendableLocked();
+        }
+        send(toSend);
+    }
+
+    public synchronized boolean isAcknowledged(String purchaseToken) {
+        return states.get(purchaseToken) == State.ACKNOWLEDGED;
+    }
+
+    private List<Map.Entry<String, Integer>> takeSendableLocked() {
+        List<Map.Entry<String, Integer>> toSend = new ArrayList<>();
+        while (inFlight < maxParallel && !queue.isEmpty()) {
+            Map.Entry<String, Integer> next = queue.remove();
+            states.put(next.getKey(), State.IN_FLIGHT);
+            inFlight++;
+            toSend.add(next);
+        }
+        return toSend;
+    }
+
+    private void send(List<Map.Entry<String, Integer>> toSend) {
+        for (Map.Entry<String, Integer> entry : toSend) {
+            final String purchaseToken = entry.getKey();
+            final int attempt = entry.getValue();
+            Log.d(TAG, "Acknowledging purchase, attempt " + attempt);
+            acknowledger.acknowledge(purchaseToken, new ResultListener() {
+                @Override
+                public void onResult(int responseCode) {
+                    onAcknowledgeResult(purchaseToken, attempt, responseCode);
+                }
+            });
+        }
+    }
+
+    private void onAcknowledgeResult(final String purchaseToken, final int attempt,
+                                     int responseCode) {
+        List<Map.Entry<String, Integer>> toSend;
+        synchronized (this) {
+            inFlight--;
+            if (responseCode == BillingClient.BillingResponseCode.OK) {
+                states.put(purchaseToken, State.ACKNOWLEDGED);
+            } else if (responseCode == BillingClient.BillingResponseCode.SERVICE_DISCONNECTED) {
+                // Not sent at all. The acknowledger holds it until the connection is back.
+                Log.i(TAG, "Acknowledgement not sent, connection lost; sending again");
+                scheduleRetryLocked(purchaseToken, attempt, initialRetryDelayMillis);
+            } else if (isTransient(responseCode) && attempt < maxAttempts) {
+                long delay = initialRetryDelayMillis << (attempt - 1);
+                Log.i(TAG, "Acknowledgement failed with " + responseCode
+                        + ", retrying in " + delay + " ms");
+                scheduleRetryLocked(purchaseToken, attempt + 1, delay);
+            } else {
+                Log.w(TAG, "Acknowledgement failed with " + responseCode);
+                if (states.get(purchaseToken) == State.IN_FLIGHT) {
+                    states.remove(purchaseToken);
+                }
+            }
+            toSend = takeSendableLocked();
+        }
+        send(toSend);
+    }
+
+    private void scheduleRetryLocked(final String purchaseToken, final int attempt,
+                                     long delayMillis) {
+        states.put(purchaseToken, State.QUEUED);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retry(purchaseToken, attempt);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void retry(String purchaseToken, int attempt) {
+        List<Map.Entry<String, Integer>> toSend;
+        synchronized (this) {
+            if (states.get(purchaseToken) != State.QUEUED) {
+                // Reported as acknowledged by a purchase update in the meantime.
+                return;
+            }
+            queue.add(new AbstractMap.SimpleImmutableEntry<>(purchaseToken, attempt));
+            toSend = takeSendableLocked();
+        }
+        send(toSend);
+    }
+
+    private static boolean isTransient(int responseCode) {
+        switch (responseCode) {
+            case BillingClient.BillingResponseCode.SERVICE_TIMEOUT:
+            case BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE:
+            case BillingClient.BillingResponseCode.ERROR:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
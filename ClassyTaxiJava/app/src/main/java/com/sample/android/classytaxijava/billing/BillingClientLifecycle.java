@@ -38,14 +38,18 @@ import com.android.billingclient.api.PurchasesUpdatedListener;
 import com.android.billingclient.api.SkuDetails;
 import com.android.billingclient.api.SkuDetailsParams;
 import com.android.billingclient.api.SkuDetailsResponseListener;
+import com.sample.android.classytaxijava.AppExecutors;
 import com.sample.android.classytaxijava.Constants;
 import com.sample.android.classytaxijava.ui.SingleLiveEvent;
+import com.sample.android.classytaxijava.utils.Clock;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdatedListener,
         BillingClientStateListener, SkuDetailsResponseListener, PurchasesResponseListener {
@@ -58,6 +62,23 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
                 add(Constants.PREMIUM_SKU);
             }});
 
+    /**
+     * Acknowledgements sent to Google Play at the same time.
+     */
+    private static final int MAX_PARALLEL_ACKNOWLEDGEMENTS = 2;
+    private static final int MAX_ACKNOWLEDGEMENT_ATTEMPTS = 3;
+    private static final long ACKNOWLEDGEMENT_RETRY_DELAY_MILLIS = 1_000;
+
+    /**
+     * Keys of the billing operations held while the connection is not ready. Requesting an
+     * operation that is already queued does not queue it again.
+     */
+    private static final String OPERATION_QUERY_PURCHASES = "queryPurchases";
+    private static final String OPERATION_QUERY_SKU_DETAILS = "querySkuDetails";
+    private static final String OPERATION_ACKNOWLEDGE_PREFIX = "acknowledge:";
+    private static final long INITIAL_RECONNECT_DELAY_MILLIS = 1_000;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 60_000;
+
     /**
      * The purchase event is observable. Only one observer will be notified.
      */
@@ -77,17 +98,36 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
     private static volatile BillingClientLifecycle INSTANCE;
 
     private Application app;
-    private BillingClient billingClient;
+    private volatile BillingClient billingClient;
+    private final AcknowledgementTracker acknowledgementTracker;
+    private final BillingConnectionSupervisor connectionSupervisor;
 
-    private BillingClientLifecycle(Application app) {
+    private BillingClientLifecycle(Application app, AppExecutors executors) {
         this.app = app;
+        this.connectionSupervisor = new BillingConnectionSupervisor(
+                new BillingConnectionSupervisor.Connector() {
+                    @Override
+                    public void connect() {
+                        startConnection();
+                    }
+                }, executors.scheduler, Clock.SYSTEM, new Random(),
+                INITIAL_RECONNECT_DELAY_MILLIS, MAX_RECONNECT_DELAY_MILLIS);
+        this.acknowledgementTracker = new AcknowledgementTracker(
+                new AcknowledgementTracker.Acknowledger() {
+                    @Override
+                    public void acknowledge(String purchaseToken,
+                                            AcknowledgementTracker.ResultListener listener) {
+                        sendAcknowledgement(purchaseToken, listener);
+                    }
+                }, executors.scheduler, MAX_PARALLEL_ACKNOWLEDGEMENTS,
+                MAX_ACKNOWLEDGEMENT_ATTEMPTS, ACKNOWLEDGEMENT_RETRY_DELAY_MILLIS);
     }
 
-    public static BillingClientLifecycle getInstance(Application app) {
+    public static BillingClientLifecycle getInstance(Application app, AppExecutors executors) {
         if (INSTANCE == null) {
             synchronized (BillingClientLifecycle.class) {
                 if (INSTANCE == null) {
-                    INSTANCE = new BillingClientLifecycle(app);
+                    INSTANCE = new BillingClientLifecycle(app, executors);
                 }
             }
         }
@@ -104,15 +144,24 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
                 .setListener(this)
                 .enablePendingPurchases() // Not used for subscriptions.
                 .build();
-        if (!billingClient.isReady()) {
+        // Query SKU details and purchases as soon as the connection is ready.
+        querySkuDetails();
+        queryPurchases();
+        connectionSupervisor.start();
+    }
+
+    private void startConnection() {
+        BillingClient client = billingClient;
+        if (client != null && !client.isReady()) {
             Log.d(TAG, "BillingClient: Start connection...");
-            billingClient.startConnection(this);
+            client.startConnection(this);
         }
     }
 
     @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
     public void destroy() {
         Log.d(TAG, "ON_DESTROY");
+        connectionSupervisor.stop();
         if (billingClient.isReady()) {
             Log.d(TAG, "BillingClient can only be used once -- closing connection");
             // BillingClient can only be used once.
@@ -126,17 +175,25 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
         int responseCode = billingResult.getResponseCode();
         String debugMessage = billingResult.getDebugMessage();
         Log.d(TAG, "onBillingSetupFinished: " + responseCode + " " + debugMessage);
-        if (responseCode == BillingClient.BillingResponseCode.OK) {
-            // The billing client is ready. You can query purchases here.
-            querySkuDetails();
-            queryPurchases();
-        }
+        // When the billing client is ready, the supervisor runs the queued operations.
+        connectionSupervisor.onSetupFinished(responseCode);
     }
 
+    /**
+     * The supervisor connects again with exponential backoff. Operations requested in the
+     * meantime are queued until the connection is ready.
+     */
     @Override
     public void onBillingServiceDisconnected() {
         Log.d(TAG, "onBillingServiceDisconnected");
-        // TODO: Try connecting again with exponential backoff.
+        connectionSupervisor.onDisconnected();
+    }
+
+    /**
+     * Connection uptime, time-to-ready and queue statistics, for debugging.
+     */
+    public String getConnectionStats() {
+        return connectionSupervisor.dump();
     }
 
     /**
@@ -208,13 +265,21 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
      * <p>
      * New purchases will be provided to the PurchasesUpdatedListener.
      * You still need to check the Google Play Billing API to know when purchase tokens are removed.
+     * <p>
+     * If the BillingClient is not ready, the query runs once it is.
      */
     public void queryPurchases() {
-        if (!billingClient.isReady()) {
-            Log.e(TAG, "queryPurchases: BillingClient is not ready");
+        boolean ready = connectionSupervisor.execute(OPERATION_QUERY_PURCHASES, new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "queryPurchases: SUBS");
+                billingClient.queryPurchasesAsync(BillingClient.SkuType.SUBS,
+                        BillingClientLifecycle.this);
+            }
+        });
+        if (!ready) {
+            Log.d(TAG, "queryPurchases: BillingClient is not ready, query queued");
         }
-        Log.d(TAG, "queryPurchases: SUBS");
-        billingClient.queryPurchasesAsync(BillingClient.SkuType.SUBS, this);
     }
 
     /**
@@ -279,6 +344,7 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
             Log.d(TAG, "processPurchases: Purchase list has not changed");
             return;
         }
+        acknowledgementTracker.onPurchasesUpdated(purchasesList);
         purchaseUpdateEvent.postValue(purchasesList);
         purchases.postValue(purchasesList);
         if (purchasesList != null) {
@@ -321,25 +387,38 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
     /**
      * In order to make purchases, you need the {@link SkuDetails} for the item or subscription.
      * This is an asynchronous call that will receive a result in {@link #onSkuDetailsResponse}.
+     * <p>
+     * If the BillingClient is not ready, the query runs once it is.
      */
     public void querySkuDetails() {
         Log.d(TAG, "querySkuDetails");
-        SkuDetailsParams params = SkuDetailsParams.newBuilder()
+        final SkuDetailsParams params = SkuDetailsParams.newBuilder()
                 .setType(BillingClient.SkuType.SUBS)
                 .setSkusList(LIST_OF_SKUS)
                 .build();
-        Log.i(TAG, "querySkuDetailsAsync");
-        billingClient.querySkuDetailsAsync(params, this);
+        connectionSupervisor.execute(OPERATION_QUERY_SKU_DETAILS, new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, "querySkuDetailsAsync");
+                billingClient.querySkuDetailsAsync(params, BillingClientLifecycle.this);
+            }
+        });
     }
 
     /**
      * Launching the billing flow.
      * <p>
      * Launching the UI to make a purchase requires a reference to the Activity.
+     * <p>
+     * The flow is never queued: if the BillingClient is not ready, a reconnect is started and
+     * {@link BillingClient.BillingResponseCode#SERVICE_DISCONNECTED} is returned, so that the
+     * UI can ask the user to try again.
      */
     public int launchBillingFlow(Activity activity, BillingFlowParams params) {
-        if (!billingClient.isReady()) {
+        if (!connectionSupervisor.isReady()) {
             Log.e(TAG, "launchBillingFlow: BillingClient is not ready");
+            connectionSupervisor.reconnectNow();
+            return BillingClient.BillingResponseCode.SERVICE_DISCONNECTED;
         }
         BillingResult billingResult = billingClient.launchBillingFlow(activity, params);
         int responseCode = billingResult.getResponseCode();
@@ -349,7 +428,7 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
     }
 
     /**
-     * Acknowledge a purchase.
+     * Acknowledge purchases.
      * <p>
      * https://developer.android.com/google/play/billing/billing_library_releases_notes#2_0_acknowledge
      * <p>
@@ -368,19 +447,43 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
      * user has successfully received access to the content.
      * This eliminates a category of issues where users complain to developers
      * that they paid for something that the app is not giving to them.
+     * <p>
+     * Tokens that are already acknowledged, or being acknowledged, are skipped. See
+     * {@link AcknowledgementTracker}.
+     */
+    public void acknowledgePurchases(Collection<String> purchaseTokens) {
+        acknowledgementTracker.acknowledge(purchaseTokens);
+    }
+
+    /**
+     * Sent through the connection supervisor, so that an acknowledgement requested while the
+     * BillingClient is not ready waits for the connection instead of failing.
      */
-    public void acknowledgePurchase(String purchaseToken) {
-        Log.d(TAG, "acknowledgePurchase");
-        AcknowledgePurchaseParams params = AcknowledgePurchaseParams.newBuilder()
+    private void sendAcknowledgement(String purchaseToken,
+                                     final AcknowledgementTracker.ResultListener listener) {
+        final AcknowledgePurchaseParams params = AcknowledgePurchaseParams.newBuilder()
                 .setPurchaseToken(purchaseToken)
                 .build();
-        billingClient.acknowledgePurchase(params, new AcknowledgePurchaseResponseListener() {
-            @Override
-            public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
-                int responseCode = billingResult.getResponseCode();
-                String debugMessage = billingResult.getDebugMessage();
-                Log.d(TAG, "acknowledgePurchase: " + responseCode + " " + debugMessage);
-            }
-        });
+        final AcknowledgePurchaseResponseListener responseListener =
+                new AcknowledgePurchaseResponseListener() {
+                    @Override
+                    public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
+                        int responseCode = billingResult.getResponseCode();
+                        String debugMessage = billingResult.getDebugMessage();
+                        Log.d(TAG, "acknowledgePurchase: " + responseCode + " " + debugMessage);
+                        listener.onResult(responseCode);
+                    }
+                };
+        boolean ready = connectionSupervisor.execute(OPERATION_ACKNOWLEDGE_PREFIX + purchaseToken,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d(TAG, "acknowledgePurchase");
+                        billingClient.acknowledgePurchase(params, responseListener);
+                    }
+                });
+        if (!ready) {
+            Log.d(TAG, "acknowledgePurchase: BillingClient is not ready, queued");
+        }
     }
 }
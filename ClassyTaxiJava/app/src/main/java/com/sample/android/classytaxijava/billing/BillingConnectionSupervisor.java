@@ -0,0 +1,286 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.billing;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the connection to Google Play Billing up.
+ * <p>
+ * When the connection is lost or cannot be set up, the supervisor reconnects after a delay
+ * that grows exponentially, with random jitter so that clients do not reconnect in lockstep.
+ * Operations that need the connection are held in a queue until it is ready. Each operation
+ * has a key, and an operation queued under a key that is already queued replaces the earlier
+ * one, so repeated requests for the same work collapse into one. The supervisor also
+ * measures how long connections stay up and how long it takes to get ready.
+ */
+public class BillingConnectionSupervisor {
+    private static final String TAG = "BillingSupervisor";
+
+    /**
+     * Starts a connection. The result must be reported with
+     * {@link #onSetupFinished(int)} and {@link #onDisconnected()}.
+     */
+    public interface Connector {
+        void connect();
+    }
+
+    private enum State {
+        STOPPED, CONNECTING, READY, WAITING
+    }
+
+    private final Connector connector;
+    private final ScheduledExecutorService scheduler;
+    private final Clock clock;
+    private final Random random;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+
+    /**
+     * Operations waiting for the connection, by key, in the order in which they were first
+     * queued.
+     */
+    private final Map<String, Runnable> operations = new LinkedHashMap<>();
+    private State state = State.STOPPED;
+    private int failedAttempts;
+    @Nullable
+    private ScheduledFuture<?> scheduledReconnect;
+
+    private long connectingSinceMillis;
+    private long readySinceMillis;
+    private int connections;
+    private int disconnects;
+    private int failedSetups;
+    private int collapsedOperations;
+    private long totalUptimeMillis;
+    private long lastTimeToReadyMillis = -1;
+    private long maxTimeToReadyMillis;
+
+    private final Runnable reconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean connect;
+            synchronized (BillingConnectionSupervisor.this) {
+                connect = state == State.WAITING;
+                if (connect) {
+                    state = State.CONNECTING;
+                }
+            }
+            if (connect) {
+                Log.d(TAG, "Reconnecting");
+                connector.connect();
+            }
+        }
+    };
+
+    /**
+     * @param initialDelayMillis maximum delay before the first reconnect attempt
+     * @param maxDelayMillis     maximum delay before any reconnect attempt
+     */
+    public BillingConnectionSupervisor(Connector connector, ScheduledExecutorService scheduler,
+                                       Clock clock, Random random,
+                                       long initialDelayMillis, long maxDelayMillis) {
+        this.connector = connector;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.random = random;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Connect now. Queued operations run once the connection is ready.
+     */
+    public void start() {
+        synchronized (this) {
+            if (state != State.STOPPED) {
+                return;
+            }
+            state = State.CONNECTING;
+            failedAttempts = 0;
+            connectingSinceMillis = clock.elapsedRealtime();
+        }
+        connector.connect();
+    }
+
+    /**
+     * Stop reconnecting and drop queued operations, e.g. before the client is closed.
+     */
+    public synchronized void stop() {
+        if (state == State.READY) {
+            totalUptimeMillis += clock.elapsedRealtime() - readySinceMillis;
+        }
+        state = State.STOPPED;
+        cancelReconnectLocked();
+        operations.clear();
+    }
+
+    /**
+     * Run the operation now if the connection is ready, otherwise when it becomes ready.
+     * <p>
+     * If an operation with the same key is already queued, this operation takes its place
+     * and the earlier one does not run.
+     *
+     * @param key names the work the operation does
+     * @return true if the operation ran now
+     */
+    public boolean execute(String key, Runnable operation) {
+        synchronized (this) {
+            if (state != State.READY) {
+                // Replacing a value keeps the key's place in the queue.
+                if (operations.put(key, operation) != null) {
+                    collapsedOperations++;
+                    Log.d(TAG, "Operation " + key + " is already queued, collapsing");
+                }
+                return false;
+            }
+        }
+        operation.run();
+        return true;
+    }
+
+    public synchronized boolean isReady() {
+        return state == State.READY;
+    }
+
+    /**
+     * The connector finished setting up.
+     *
+     * @param responseCode one of {@link BillingClient.BillingResponseCode}
+     */
+    public void onSetupFinished(int responseCode) {
+        List<Runnable> ready;
+        synchronized (this) {
+            if (state == State.STOPPED) {
+                return;
+            }
+            if (responseCode != BillingClient.BillingResponseCode.OK) {
+                failedSetups++;
+                scheduleReconnectLocked();
+                return;
+            }
+            long now = clock.elapsedRealtime();
+            if (state != State.READY) {
+                lastTimeToReadyMillis = now - connectingSinceMillis;
+                maxTimeToReadyMillis = Math.max(maxTimeToReadyMillis, lastTimeToReadyMillis);
+                readySinceMillis = now;
+                connections++;
+            }
+            state = State.READY;
+            failedAttempts = 0;
+            cancelReconnectLocked();
+            ready = new ArrayList<>(operations.values());
+            operations.clear();
+        }
+        Log.d(TAG, "Connection ready, running " + ready.size() + " queued operation(s)");
+        for (Runnable operation : ready) {
+            operation.run();
+        }
+    }
+
+    /**
+     * The connection was lost.
+     */
+    public synchronized void onDisconnected() {
+        if (state == State.STOPPED) {
+            return;
+        }
+        long now = clock.elapsedRealtime();
+        if (state == State.READY) {
+            disconnects++;
+            totalUptimeMillis += now - readySinceMillis;
+            connectingSinceMillis = now;
+        }
+        scheduleReconnectLocked();
+    }
+
+    /**
+     * Reconnect now if the connection is waiting for a delayed attempt, e.g. when the app
+     * returns to the foreground.
+     */
+    public void reconnectNow() {
+        synchronized (this) {
+            if (state != State.WAITING) {
+                return;
+            }
+            cancelReconnectLocked();
+        }
+        reconnectRunnable.run();
+    }
+
+    /**
+     * Connection statistics as text, for debugging.
+     */
+    public synchronized String dump() {
+        long uptime = totalUptimeMillis;
+        if (state == State.READY) {
+            uptime += clock.elapsedRealtime() - readySinceMillis;
+        }
+        return "billing state=" + state
+                + " connections=" + connections
+                + " disconnects=" + disconnects
+                + " failedSetups=" + failedSetups
+                + " uptimeMs=" + uptime
+                + " lastTimeToReadyMs=" + lastTimeToReadyMillis
+                + " maxTimeToReadyMs=" + maxTimeToReadyMillis
+                + " queued=" + operations.size()
+                + " collapsed=" + collapsedOperations;
+    }
+
+    private void scheduleReconnectLocked() {
+        state = State.WAITING;
+        cancelReconnectLocked();
+        failedAttempts++;
+        long delay = getDelayMillis(failedAttempts);
+        Log.i(TAG, "Billing connection lost, reconnecting in " + delay + " ms");
+        scheduledReconnect = scheduler.schedule(reconnectRunnable, delay,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelReconnectLocked() {
+        if (scheduledReconnect != null) {
+            scheduledReconnect.cancel(false);
+            scheduledReconnect = null;
+        }
+    }
+
+    /**
+     * Full jitter: a random delay up to a cap that doubles with each failed attempt.
+     */
+    private long getDelayMillis(int attempt) {
+        long cap = initialDelayMillis;
+        for (int i = 1; i < attempt && cap < maxDelayMillis; i++) {
+            cap *= 2;
+        }
+        cap = Math.min(cap, maxDelayMillis);
+        return (long) (random.nextDouble() * cap);
+    }
+}
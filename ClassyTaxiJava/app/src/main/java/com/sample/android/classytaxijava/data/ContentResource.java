@@ -28,8 +28,19 @@ public class ContentResource {
 
     public final String url;
 
+    /**
+     * The user the content was requested for, or null if unknown. Not part of the JSON.
+     */
+    @Nullable
+    public final transient String userId;
+
     public ContentResource(String url) {
+        this(url, null);
+    }
+
+    public ContentResource(String url, @Nullable String userId) {
         this.url = url;
+        this.userId = userId;
     }
 
     @Nullable
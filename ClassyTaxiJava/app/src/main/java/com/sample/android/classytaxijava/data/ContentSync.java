@@ -0,0 +1,169 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.sample.android.classytaxijava.billing.BillingUtilities;
+import com.sample.android.classytaxijava.data.disk.ContentRecord;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Decides when subscription content is fetched.
+ * <p>
+ * Content of a tier is fetched when the user is entitled to it and there is no stored content,
+ * or the stored content is older than the maximum age. Subscription updates that leave the
+ * entitlements unchanged reuse the stored content. Content of a tier the user is no longer
+ * entitled to is cleared.
+ */
+class ContentSync {
+
+    /**
+     * Fetches and clears content, e.g. through the network and the database.
+     */
+    interface Fetcher {
+        /**
+         * Request the content of a tier. {@link #onFetchCompleted(String)} must be called
+         * when the request ends, successful or not.
+         */
+        void fetch(String tier);
+
+        void clear(String tier);
+    }
+
+    private static final List<String> TIERS =
+            Arrays.asList(ContentRecord.BASIC, ContentRecord.PREMIUM);
+
+    private final Clock clock;
+    private final long maxAgeMillis;
+    private final long retryMillis;
+    private final Fetcher fetcher;
+
+    /**
+     * Fetch time of the stored content of each tier, wall clock.
+     */
+    private final Map<String, Long> fetchedAtMillis = new HashMap<>();
+    /**
+     * Start of the request in flight for each tier, monotonic clock.
+     */
+    private final Map<String, Long> requestedAtMillis = new HashMap<>();
+    private final Set<String> entitledTiers = new HashSet<>();
+    private boolean entitlementsKnown;
+
+    /**
+     * @param maxAgeMillis age after which stored content is fetched again
+     * @param retryMillis  time after which a request that did not complete no longer blocks
+     *                     a new one
+     */
+    ContentSync(Clock clock, long maxAgeMillis, long retryMillis, Fetcher fetcher) {
+        this.clock = clock;
+        this.maxAgeMillis = maxAgeMillis;
+        this.retryMillis = retryMillis;
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * The stored content of a tier was loaded or changed.
+     *
+     * @param fetchedAt wall clock time the content was fetched, or null if none is stored
+     */
+    synchronized void onContentStored(String tier, @Nullable Long fetchedAt) {
+        if (fetchedAt == null) {
+            fetchedAtMillis.remove(tier);
+        } else {
+            fetchedAtMillis.put(tier, fetchedAt);
+        }
+    }
+
+    synchronized void onFetchCompleted(String tier) {
+        requestedAtMillis.remove(tier);
+    }
+
+    /**
+     * Fetch or clear content for the entitlements of the new subscriptions.
+     */
+    void onSubscriptionsChanged(List<SubscriptionStatus> subscriptions) {
+        Set<String> entitled = getEntitledTiers(subscriptions);
+        List<String> toFetch = new ArrayList<>();
+        List<String> toClear = new ArrayList<>();
+        synchronized (this) {
+            long now = clock.currentTimeMillis();
+            long elapsed = clock.elapsedRealtime();
+            for (String tier : TIERS) {
+                if (entitled.contains(tier)) {
+                    Long requestedAt = requestedAtMillis.get(tier);
+                    if (requestedAt != null && elapsed - requestedAt < retryMillis) {
+                        continue;
+                    }
+                    Long fetchedAt = fetchedAtMillis.get(tier);
+                    if (fetchedAt == null || now - fetchedAt >= maxAgeMillis) {
+                        requestedAtMillis.put(tier, elapsed);
+                        toFetch.add(tier);
+                    }
+                } else if (!entitlementsKnown || entitledTiers.contains(tier)
+                        || fetchedAtMillis.containsKey(tier)) {
+                    fetchedAtMillis.remove(tier);
+                    toClear.add(tier);
+                }
+            }
+            entitledTiers.clear();
+            entitledTiers.addAll(entitled);
+            entitlementsKnown = true;
+        }
+        for (String tier : toClear) {
+            fetcher.clear(tier);
+        }
+        for (String tier : toFetch) {
+            fetcher.fetch(tier);
+        }
+    }
+
+    /**
+     * Forget the entitlements and stored content, e.g. when the user signs out.
+     */
+    synchronized void reset() {
+        fetchedAtMillis.clear();
+        requestedAtMillis.clear();
+        entitledTiers.clear();
+        entitlementsKnown = false;
+    }
+
+    /**
+     * Returns the tiers the subscriptions give access to. Premium subscriptions also give
+     * access to basic content.
+     */
+    static Set<String> getEntitledTiers(List<SubscriptionStatus> subscriptions) {
+        Set<String> tiers = new HashSet<>();
+        for (SubscriptionStatus subscription : subscriptions) {
+            if (BillingUtilities.isPremiumContent(subscription)) {
+                tiers.add(ContentRecord.PREMIUM);
+                tiers.add(ContentRecord.BASIC);
+            } else if (BillingUtilities.isBasicContent(subscription)) {
+                tiers.add(ContentRecord.BASIC);
+            }
+        }
+        return tiers;
+    }
+}
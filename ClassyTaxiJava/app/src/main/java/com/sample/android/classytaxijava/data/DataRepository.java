@@ -20,25 +20,51 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.billingclient.api.Purchase;
-import com.sample.android.classytaxijava.Constants;
 import com.sample.android.classytaxijava.billing.BillingClientLifecycle;
+import com.sample.android.classytaxijava.data.disk.ContentRecord;
 import com.sample.android.classytaxijava.data.disk.LocalDataSource;
+import com.sample.android.classytaxijava.data.network.OutboxDrainer;
+import com.sample.android.classytaxijava.data.network.RequestCoalescer;
 import com.sample.android.classytaxijava.data.network.WebDataSource;
+import com.sample.android.classytaxijava.utils.Clock;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MediatorLiveData;
 import androidx.lifecycle.Observer;
 
 public class DataRepository {
+    /**
+     * Age after which content is fetched again even if the entitlements did not change.
+     */
+    private static final long CONTENT_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Time after which a content request that did not complete no longer blocks a new one.
+     */
+    private static final long CONTENT_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
     private static volatile DataRepository INSTANCE = null;
 
     private final LocalDataSource localDataSource;
     private final WebDataSource webDataSource;
+    private final OutboxDrainer outboxDrainer;
     private final BillingClientLifecycle billingClientLifecycle;
+    private final Clock clock = Clock.SYSTEM;
+    private final ContentSync contentSync;
+    private final EntitlementTimeline entitlementTimeline;
+    private final RefreshScheduler refreshScheduler;
+    private final SubscriptionPushFilter pushFilter = new SubscriptionPushFilter();
 
     /**
      * {@link MediatorLiveData} to coordinate updates from the database and the network.
@@ -62,29 +88,61 @@ public class DataRepository {
     private MediatorLiveData<ContentResource> premiumContent = new MediatorLiveData<>();
 
     private DataRepository(final LocalDataSource localDataSource,
-                           WebDataSource webDataSource,
-                           BillingClientLifecycle billingClientLifecycle) {
+                           final WebDataSource webDataSource,
+                           OutboxDrainer outboxDrainer,
+                           BillingClientLifecycle billingClientLifecycle,
+                           ScheduledExecutorService scheduler,
+                           RefreshScheduler refreshScheduler) {
         this.localDataSource = localDataSource;
+        this.refreshScheduler = refreshScheduler;
         this.webDataSource = webDataSource;
+        this.outboxDrainer = outboxDrainer;
         this.billingClientLifecycle = billingClientLifecycle;
 
-        // Update content from the web.
-        // We are using a MediatorLiveData so that we can clear the data immediately
-        // when the subscription changes.
-        basicContent.addSource(webDataSource.getBasicContent(), new Observer<ContentResource>() {
-            @Override
-            public void onChanged(ContentResource contentResource) {
-                basicContent.postValue(contentResource);
-            }
-        });
-        premiumContent.addSource(webDataSource.getPremiumContent(),
-                new Observer<ContentResource>() {
+        // Content is fetched when the entitlements change or the stored content expires.
+        contentSync = new ContentSync(clock, CONTENT_MAX_AGE_MILLIS, CONTENT_RETRY_MILLIS,
+                new ContentSync.Fetcher() {
                     @Override
-                    public void onChanged(ContentResource contentResource) {
-                        premiumContent.postValue(contentResource);
+                    public void fetch(String tier) {
+                        fetchContent(tier);
+                    }
+
+                    @Override
+                    public void clear(String tier) {
+                        // If we no longer own this content, clear it from the UI.
+                        getContent(tier).postValue(null);
+                        localDataSource.deleteContent(tier);
                     }
                 });
 
+        // Entitlements end when they expire, and the server is asked to confirm expiries
+        // and auto-resumes when they are due.
+        entitlementTimeline = new EntitlementTimeline(clock, scheduler,
+                new EntitlementTimeline.Listener() {
+                    @Override
+                    public void onEntitlementsChanged(List<SubscriptionStatus> subscriptions) {
+                        pushFilter.reset();
+                        // The subscriptions were read from the database, so they carry their
+                        // user, and the write is dropped if another user signed in meanwhile.
+                        // Clearing the sync cursor makes the confirmation a full sync, which
+                        // corrects the local state even if the server state did not change,
+                        // e.g. when the device clock is ahead.
+                        localDataSource.replaceSubscriptions(subscriptions.get(0).getUserId(),
+                                subscriptions, null);
+                        contentSync.onSubscriptionsChanged(subscriptions);
+                    }
+
+                    @Override
+                    public void onConfirmationNeeded() {
+                        webDataSource.updateSubscriptionStatus(true, null);
+                    }
+                });
+
+        // Content is shown from the database, so it is available right after a restart.
+        // Fetched content is stored in the database, which will eventually be exposed.
+        addContentSources(ContentRecord.BASIC, webDataSource.getBasicContent());
+        addContentSources(ContentRecord.PREMIUM, webDataSource.getPremiumContent());
+
         // Database changes are observed by the ViewModel.
         subscriptions.addSource(localDataSource.subscriptions,
                 new Observer<List<SubscriptionStatus>>() {
@@ -95,6 +153,8 @@ public class DataRepository {
                         Log.d("Repository", "Subscriptions updated: "
                                 + numOfSubscriptions);
                         subscriptions.postValue(subscriptionStatuses);
+                        entitlementTimeline.onSubscriptionsChanged(subscriptionStatuses);
+                        refreshScheduler.onSubscriptionsChanged(subscriptionStatuses);
                     }
                 });
 
@@ -110,6 +170,40 @@ public class DataRepository {
                     }
                 });
 
+        // Requests are issued for the current user, and their results are dropped if the user
+        // changed before they arrived.
+        webDataSource.setUserIdSource(new OutboxDrainer.UserIdSource() {
+            @Override
+            public String getUserId() {
+                return localDataSource.getUserId();
+            }
+        });
+
+        // Subscription status requests send the stored cursor and return a full list or
+        // only the changes since.
+        webDataSource.setSyncCursorSource(new WebDataSource.SyncCursorSource() {
+            @Override
+            public String getSyncCursor(String userId) {
+                return localDataSource.getSyncCursor(userId);
+            }
+        });
+        subscriptions.addSource(webDataSource.getSubscriptionSync(),
+                new Observer<SubscriptionStatusList>() {
+                    @Override
+                    public void onChanged(SubscriptionStatusList result) {
+                        if (result == null || !isCurrentUser(result.getUserId())) {
+                            return;
+                        }
+                        refreshScheduler.onRefreshed();
+                        if (result.isDelta()) {
+                            applySubscriptionDelta(result.getUserId(), result);
+                        } else {
+                            updateSubscriptionsFromNetwork(result.getUserId(),
+                                    result.getSubscriptions(), result.getCursor());
+                        }
+                    }
+                });
+
         // When the list of purchases changes, we need to update the subscription status
         // to indicate whether the subscription is local or not. It is local if the
         // the Google Play Billing APIs return a Purchase record for the SKU. It is not
@@ -128,14 +222,22 @@ public class DataRepository {
         });
     }
 
+    /**
+     * @param scheduler        timer for entitlement transitions
+     * @param refreshScheduler schedules background refreshes of the subscription status
+     */
     public static DataRepository getInstance(LocalDataSource localDataSource,
                                              WebDataSource webDataSource,
-                                             BillingClientLifecycle billingClientLifecycle) {
+                                             OutboxDrainer outboxDrainer,
+                                             BillingClientLifecycle billingClientLifecycle,
+                                             ScheduledExecutorService scheduler,
+                                             RefreshScheduler refreshScheduler) {
         if (INSTANCE == null) {
             synchronized (DataRepository.class) {
                 if (INSTANCE == null) {
                     INSTANCE = new DataRepository(localDataSource, webDataSource,
-                            billingClientLifecycle);
+                            outboxDrainer, billingClientLifecycle, scheduler,
+                            refreshScheduler);
                 }
             }
         }
@@ -158,8 +260,43 @@ public class DataRepository {
         return premiumContent;
     }
 
+    /**
+     * Replace the stored subscriptions with a list pushed by the server, unless it repeats the
+     * last list stored from the server for the current user.
+     * <p>
+     * Push messages often arrive while the app is in the background, so the check does not
+     * use {@link #getSubscriptions()}, which is stale or null while nothing observes it.
+     */
+    public void updateSubscriptionsFromPush(List<SubscriptionStatus> remoteSubscriptions) {
+        if (pushFilter.isRepeat(localDataSource.getUserId(), remoteSubscriptions)) {
+            Log.i("Repository", "Subscription status unchanged");
+            refreshScheduler.onRefreshed();
+            return;
+        }
+        updateSubscriptionsFromNetwork(remoteSubscriptions);
+    }
+
+    /**
+     * Replace the stored subscriptions with a full list from the server. The list does not come
+     * with a sync cursor, so the next subscription status request fetches the full list.
+     */
     public void updateSubscriptionsFromNetwork(
             @Nullable List<SubscriptionStatus> remoteSubscriptions) {
+        refreshScheduler.onRefreshed();
+        String userId = localDataSource.getUserId();
+        if (userId != null) {
+            updateSubscriptionsFromNetwork(userId, remoteSubscriptions, null);
+        }
+    }
+
+    /**
+     * Replace the stored subscriptions with a full list from the server.
+     *
+     * @param userId the user the list was requested for
+     * @param cursor the sync cursor of the list, or null if it does not have one
+     */
+    private void updateSubscriptionsFromNetwork(String userId,
+            @Nullable List<SubscriptionStatus> remoteSubscriptions, @Nullable String cursor) {
         List<SubscriptionStatus> oldSubscriptions = subscriptions.getValue();
         List<Purchase> purchases = billingClientLifecycle.purchases.getValue();
         List<SubscriptionStatus> subscriptions =
@@ -168,48 +305,165 @@ public class DataRepository {
             acknowledgeRegisteredPurchaseTokens(remoteSubscriptions);
         }
         // Store the subscription information when it changes.
-        localDataSource.updateSubscriptions(subscriptions);
+        localDataSource.replaceSubscriptions(userId, subscriptions, cursor);
+        pushFilter.onStored(userId, remoteSubscriptions);
 
         // Update the content when the subscription changes.
         if (remoteSubscriptions != null) {
-            // Figure out which content we need to fetch.
-            boolean updateBasic = false;
-            boolean updatePremium = false;
-            for (SubscriptionStatus subscription : remoteSubscriptions) {
-                if (Constants.BASIC_SKU.equals(subscription.getSku())) {
-                    updateBasic = true;
-                } else {
-                    // Premium subscribers get access to basic content as well.
-                    updateBasic = true;
-                    updatePremium = true;
+            contentSync.onSubscriptionsChanged(remoteSubscriptions);
+        }
+    }
+
+    /**
+     * Apply the changes since the stored cursor. Only the changed subscriptions are merged
+     * with local purchases and acknowledged, and content is only fetched again if a
+     * subscription changed or was removed.
+     */
+    private void applySubscriptionDelta(String userId, SubscriptionStatusList delta) {
+        List<SubscriptionStatus> changed = delta.getSubscriptions() == null
+                ? Collections.<SubscriptionStatus>emptyList() : delta.getSubscriptions();
+        List<String> removed = delta.getRemoved() == null
+                ? Collections.<String>emptyList() : delta.getRemoved();
+        Log.d("Repository", "Subscription delta: " + changed.size() + " changed, "
+                + removed.size() + " removed");
+        updateLocalPurchaseTokens(changed, billingClientLifecycle.purchases.getValue());
+        acknowledgeRegisteredPurchaseTokens(changed);
+        localDataSource.applySubscriptionChanges(userId, changed, removed, delta.getCursor());
+        pushFilter.reset();
+        if (changed.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+
+        // The database applies the delta asynchronously, so work out the new list here to
+        // decide which content is needed.
+        Set<String> replacedIds = new HashSet<>(removed);
+        for (SubscriptionStatus subscription : changed) {
+            if (subscription.getPurchaseToken() != null) {
+                replacedIds.add(SyncCursor.tokenId(subscription.getPurchaseToken()));
+            }
+        }
+        List<SubscriptionStatus> remoteSubscriptions = new ArrayList<>(changed);
+        List<SubscriptionStatus> oldSubscriptions = subscriptions.getValue();
+        if (oldSubscriptions != null) {
+            for (SubscriptionStatus subscription : oldSubscriptions) {
+                String purchaseToken = subscription.getPurchaseToken();
+                if (purchaseToken == null
+                        || !replacedIds.contains(SyncCursor.tokenId(purchaseToken))) {
+                    remoteSubscriptions.add(subscription);
                 }
             }
+        }
+        contentSync.onSubscriptionsChanged(remoteSubscriptions);
+    }
 
-            if (updateBasic) {
-                // Fetch the basic content.
-                webDataSource.updateBasicContent();
-            } else {
-                // If we no longer own this content, clear it from the UI.
-                basicContent.postValue(null);
+    /**
+     * Show stored content of a tier, keep track of when it was fetched, and store newly
+     * fetched content.
+     */
+    private void addContentSources(final String tier, LiveData<ContentResource> remoteContent) {
+        final MediatorLiveData<ContentResource> content = getContent(tier);
+        LiveData<ContentRecord> storedContent = localDataSource.getContent(tier);
+        content.addSource(storedContent, new Observer<ContentRecord>() {
+            @Override
+            public void onChanged(ContentRecord record) {
+                ContentResource current = content.getValue();
+                if (record == null) {
+                    if (current != null) {
+                        content.postValue(null);
+                    }
+                } else if (current == null || !TextUtils.equals(current.url, record.getUrl())) {
+                    content.postValue(new ContentResource(record.getUrl()));
+                }
             }
-            if (updatePremium) {
-                // Fetch the premium content.
-                webDataSource.updatePremiumContent();
-            } else {
-                // If we no longer own this content, clear it from the UI.
-                premiumContent.postValue(null);
+        });
+        // Fetch times and fetched content are needed whether or not the content is shown,
+        // so they are handled while the subscriptions are observed.
+        subscriptions.addSource(storedContent, new Observer<ContentRecord>() {
+            @Override
+            public void onChanged(ContentRecord record) {
+                contentSync.onContentStored(tier,
+                        record == null ? null : record.getFetchedAtMillis());
+            }
+        });
+        subscriptions.addSource(remoteContent, new Observer<ContentResource>() {
+            @Override
+            public void onChanged(ContentResource contentResource) {
+                if (contentResource != null && contentResource.url != null
+                        && isCurrentUser(contentResource.userId)) {
+                    localDataSource.saveContent(contentResource.userId, tier,
+                            contentResource.url, clock.currentTimeMillis());
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns true if a result was requested for the current user. Results that arrive after
+     * the user changed belong to another user and are dropped.
+     */
+    private boolean isCurrentUser(@Nullable String userId) {
+        if (userId != null && userId.equals(localDataSource.getUserId())) {
+            return true;
+        }
+        Log.d("Repository", "Dropping a response for a previous user");
+        return false;
+    }
+
+    private MediatorLiveData<ContentResource> getContent(String tier) {
+        return ContentRecord.PREMIUM.equals(tier) ? premiumContent : basicContent;
+    }
+
+    /**
+     * Fetch the content of a tier. A "not modified" answer renews the fetch time of the
+     * content, and restores content that was cleared earlier.
+     */
+    private void fetchContent(final String tier) {
+        final String userId = localDataSource.getUserId();
+        if (userId == null) {
+            return;
+        }
+        final LiveData<ContentResource> remoteContent = ContentRecord.PREMIUM.equals(tier)
+                ? webDataSource.getPremiumContent() : webDataSource.getBasicContent();
+        RequestCoalescer.Callback callback = new RequestCoalescer.Callback() {
+            @Override
+            public void onComplete(boolean success) {
+                // The content state was reset when the user changed.
+                if (!userId.equals(localDataSource.getUserId())) {
+                    return;
+                }
+                contentSync.onFetchCompleted(tier);
+                if (!success) {
+                    return;
+                }
+                ContentResource contentResource = remoteContent.getValue();
+                if (contentResource != null && contentResource.url != null
+                        && userId.equals(contentResource.userId)) {
+                    // New content is stored again once it is posted.
+                    localDataSource.saveContent(userId, tier, contentResource.url,
+                            clock.currentTimeMillis());
+                } else {
+                    localDataSource.markContentFetched(userId, tier,
+                            clock.currentTimeMillis());
+                }
             }
+        };
+        if (ContentRecord.PREMIUM.equals(tier)) {
+            webDataSource.updatePremiumContent(callback);
+        } else {
+            webDataSource.updateBasicContent(callback);
         }
     }
 
     /**
      * Acknowledge subscriptions that have been registered by the server.
+     * Tokens that are already acknowledged are skipped.
      */
     private void acknowledgeRegisteredPurchaseTokens(List<SubscriptionStatus> remoteSubscriptions) {
+        List<String> purchaseTokens = new ArrayList<>();
         for (SubscriptionStatus remoteSubscription : remoteSubscriptions) {
-            String purchaseTkn = remoteSubscription.getPurchaseToken();
-            billingClientLifecycle.acknowledgePurchase(purchaseTkn);
+            purchaseTokens.add(remoteSubscription.getPurchaseToken());
         }
+        billingClientLifecycle.acknowledgePurchases(purchaseTokens);
     }
 
 
@@ -222,7 +476,8 @@ public class DataRepository {
      * Old subscriptions should be retained if they are owned by someone else (subAlreadyOwned)
      * and the purchase token for the subscription is still on this device.
      */
-    private List<SubscriptionStatus> mergeSubscriptionsAndPurchases(
+    @VisibleForTesting
+    static List<SubscriptionStatus> mergeSubscriptionsAndPurchases(
             @Nullable List<SubscriptionStatus> oldSubscriptions,
             @Nullable List<SubscriptionStatus> newSubscriptions,
             @Nullable List<Purchase> purchases) {
@@ -250,7 +505,7 @@ public class DataRepository {
                             boolean foundNewSubscription = false;
                             if (newSubscriptions != null) {
                                 for (SubscriptionStatus newSubscription : newSubscriptions) {
-                                    if (TextUtils.equals(newSubscription.getSku(),
+                                    if (Objects.equals(newSubscription.getSku(),
                                             oldSubscription.getSku())) {
                                         foundNewSubscription = true;
                                     }
@@ -273,7 +528,8 @@ public class DataRepository {
      * Modify the subscriptions isLocalPurchase field based on the list of local purchases.
      * Return true if any of the values changed.
      */
-    private boolean updateLocalPurchaseTokens(
+    @VisibleForTesting
+    static boolean updateLocalPurchaseTokens(
             @Nullable List<SubscriptionStatus> subscriptions,
             @Nullable List<Purchase> purchases) {
         boolean hasChanged = false;
@@ -283,7 +539,7 @@ public class DataRepository {
                 String purchaseToken = subscription.getPurchaseToken();
                 if (purchases != null) {
                     for (Purchase purchase : purchases) {
-                        if (TextUtils.equals(subscription.getSku(), purchase.getSkus().get(0))) {
+                        if (Objects.equals(subscription.getSku(), purchase.getSkus().get(0))) {
                             isLocalPurchase = true;
                             purchaseToken = purchase.getPurchaseToken();
                         }
@@ -301,45 +557,103 @@ public class DataRepository {
 
     /**
      * Fetch subscriptions from the server and update local data source.
+     * <p>
+     * Skipped if the subscriptions were fetched recently.
      */
     public void fetchSubscriptions() {
         webDataSource.updateSubscriptionStatus();
     }
 
+    /**
+     * Fetch subscriptions from the server and update local data source.
+     * <p>
+     * Skipped if the subscriptions were fetched recently, and joins a fetch that is in flight.
+     *
+     * @param callback told whether the fetch succeeded
+     */
+    public void fetchSubscriptions(RequestCoalescer.Callback callback) {
+        webDataSource.updateSubscriptionStatus(false, callback);
+    }
+
+    /**
+     * Fetch subscriptions from the server even if they were fetched recently.
+     * Used when the user explicitly asks for fresh data.
+     */
+    public void refreshSubscriptions() {
+        webDataSource.updateSubscriptionStatus(true, null);
+    }
+
     /**
      * Register subscription to this account and update local data source.
+     * The request is kept in the outbox until the server has processed it.
      */
     public void registerSubscription(String sku, String purchaseToken) {
-        webDataSource.registerSubscription(sku, purchaseToken);
+        outboxDrainer.registerSubscription(sku, purchaseToken);
+    }
+
+    /**
+     * Register several subscriptions to this account with one request.
+     */
+    public void registerSubscriptions(List<SubscriptionStatus> subscriptions) {
+        outboxDrainer.registerSubscriptions(subscriptions);
     }
 
     /**
      * Transfer subscription to this account and update local data source.
+     * The request is kept in the outbox until the server has processed it.
      */
     public void transferSubscription(String sku, String purchaseToken) {
-        webDataSource.postTransferSubscriptionSync(sku, purchaseToken);
+        outboxDrainer.transferSubscription(sku, purchaseToken);
+    }
+
+    /**
+     * Transfer several subscriptions to this account with one request.
+     */
+    public void transferSubscriptions(List<SubscriptionStatus> subscriptions) {
+        outboxDrainer.transferSubscriptions(subscriptions);
     }
 
     /**
      * Register Instance ID.
      */
     public void registerInstanceId(String instanceId) {
-        webDataSource.postRegisterInstanceId(instanceId);
+        outboxDrainer.registerInstanceId(instanceId);
     }
 
     /**
-     * Unregister Instance ID.
+     * Unregister Instance ID. The request is sent right away with the signed-in user's ID
+     * token, so do not sign out before onComplete runs.
+     *
+     * @param onComplete runs on a worker thread once the request has completed or failed
      */
-    public void unregisterInstanceId(String instanceId) {
-        webDataSource.postUnregisterInstanceId(instanceId);
+    public void unregisterInstanceId(String instanceId, Runnable onComplete) {
+        outboxDrainer.unregisterInstanceId(instanceId, onComplete);
     }
 
     /**
-     * Delete local user data when the user signs out.
+     * Switch to the data of the signed-in user when the user signs in, out, or changes.
+     * <p>
+     * The last known subscriptions and content of the new user are shown from the database
+     * right away, while a refresh from the server revalidates them. Responses fetched for the
+     * previous user are no longer used, and requests the new user left in the outbox are
+     * sent.
+     *
+     * @param userId the signed-in user, or null when no user is signed in
      */
-    public void deleteLocalUserData() {
-        localDataSource.deleteLocalUserData();
-        basicContent.postValue(null);
-        premiumContent.postValue(null);
+    public void setUser(@Nullable String userId) {
+        if (TextUtils.equals(userId, localDataSource.getUserId())) {
+            return;
+        }
+        webDataSource.invalidateSubscriptionStatus();
+        webDataSource.clearCachedResponses();
+        contentSync.reset();
+        entitlementTimeline.reset();
+        refreshScheduler.reset();
+        pushFilter.reset();
+        localDataSource.setUser(userId);
+        if (userId != null) {
+            // Deliver requests that the user made before signing out.
+            outboxDrainer.drain();
+        }
     }
 }
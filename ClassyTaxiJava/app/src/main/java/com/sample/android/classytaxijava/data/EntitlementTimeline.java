@@ -0,0 +1,203 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import android.util.Log;
+
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Applies entitlement transitions when they are due, instead of waiting for the server.
+ * <p>
+ * The stored subscriptions say when each entitlement ends ({@code activeUntilMillisec}) and
+ * when a paused subscription resumes ({@code autoResumeTimeMillis}). The timeline keeps one
+ * timer for the earliest of these times. When it fires, entitlements of subscriptions that
+ * will not renew are ended locally, and the server is asked to confirm the new state, e.g.
+ * that a subscription renewed or resumed. Each transition is handled once, so a device clock
+ * that disagrees with the server does not cause repeated confirmations.
+ */
+class EntitlementTimeline {
+    private static final String TAG = "EntitlementTimeline";
+
+    interface Listener {
+        /**
+         * Entitlements ended. Called on the timer thread with all subscriptions, as copies
+         * that are not shared with anyone else.
+         */
+        void onEntitlementsChanged(List<SubscriptionStatus> subscriptions);
+
+        /**
+         * A transition is due and the server should confirm the subscription state.
+         * Called on the timer thread.
+         */
+        void onConfirmationNeeded();
+    }
+
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler;
+    private final Listener listener;
+
+    private List<SubscriptionStatus> subscriptions = Collections.emptyList();
+    /**
+     * Transitions that were already handled, see {@link #transitionKey}.
+     */
+    private final Set<String> handled = new HashSet<>();
+    @Nullable
+    private ScheduledFuture<?> timer;
+    @Nullable
+    private Long nextTransitionMillis;
+
+    private final Runnable timerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            applyDueTransitions();
+        }
+    };
+
+    EntitlementTimeline(Clock clock, ScheduledExecutorService scheduler, Listener listener) {
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    /**
+     * The stored subscriptions changed. Schedules the timer for their next transition.
+     */
+    synchronized void onSubscriptionsChanged(@Nullable List<SubscriptionStatus> subscriptions) {
+        this.subscriptions = subscriptions == null
+                ? Collections.<SubscriptionStatus>emptyList()
+                : new ArrayList<>(subscriptions);
+        scheduleLocked();
+    }
+
+    /**
+     * Wall clock time of the next transition, or null if there is none.
+     */
+    @Nullable
+    synchronized Long getNextTransitionMillis() {
+        return nextTransitionMillis;
+    }
+
+    /**
+     * Stop the timer and forget the subscriptions, e.g. when the user signs out.
+     */
+    synchronized void reset() {
+        cancelLocked();
+        subscriptions = Collections.emptyList();
+        handled.clear();
+    }
+
+    /**
+     * Apply the transitions that are due and schedule the timer for the next one.
+     */
+    void applyDueTransitions() {
+        List<SubscriptionStatus> changed = null;
+        boolean confirm = false;
+        synchronized (this) {
+            long now = clock.currentTimeMillis();
+            // The stored subscriptions are shown while this runs, so entitlements are ended on
+            // copies.
+            List<SubscriptionStatus> updated = copy(subscriptions);
+            boolean ended = false;
+            for (SubscriptionStatus subscription : updated) {
+                Long activeUntil = subscription.getActiveUntilMillisec();
+                if (subscription.isEntitlementActive() && activeUntil != null
+                        && activeUntil <= now
+                        && handled.add(transitionKey(subscription, activeUntil))) {
+                    confirm = true;
+                    // A subscription that renews keeps its entitlement until the server
+                    // says otherwise.
+                    if (!subscription.isWillRenew()) {
+                        Log.i(TAG, "Entitlement ended: " + subscription.getSku());
+                        subscription.setEntitlementActive(false);
+                        ended = true;
+                    }
+                }
+                Long autoResume = subscription.getAutoResumeTimeMillis();
+                if (subscription.isPaused() && autoResume != null && autoResume <= now
+                        && handled.add(transitionKey(subscription, autoResume))) {
+                    confirm = true;
+                }
+            }
+            if (ended) {
+                subscriptions = updated;
+                changed = copy(updated);
+            }
+            scheduleLocked();
+        }
+        if (changed != null) {
+            listener.onEntitlementsChanged(changed);
+        }
+        if (confirm) {
+            listener.onConfirmationNeeded();
+        }
+    }
+
+    private void scheduleLocked() {
+        cancelLocked();
+        Long next = null;
+        for (SubscriptionStatus subscription : subscriptions) {
+            Long activeUntil = subscription.getActiveUntilMillisec();
+            if (subscription.isEntitlementActive() && activeUntil != null
+                    && !handled.contains(transitionKey(subscription, activeUntil))) {
+                next = next == null ? activeUntil : Math.min(next, activeUntil);
+            }
+            Long autoResume = subscription.getAutoResumeTimeMillis();
+            if (subscription.isPaused() && autoResume != null
+                    && !handled.contains(transitionKey(subscription, autoResume))) {
+                next = next == null ? autoResume : Math.min(next, autoResume);
+            }
+        }
+        nextTransitionMillis = next;
+        if (next != null) {
+            long delay = Math.max(0, next - clock.currentTimeMillis());
+            Log.d(TAG, "Next entitlement transition in " + delay + " ms");
+            timer = scheduler.schedule(timerRunnable, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelLocked() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        nextTransitionMillis = null;
+    }
+
+    private static List<SubscriptionStatus> copy(List<SubscriptionStatus> subscriptions) {
+        List<SubscriptionStatus> copies = new ArrayList<>(subscriptions.size());
+        for (SubscriptionStatus subscription : subscriptions) {
+            copies.add(subscription.copy());
+        }
+        return copies;
+    }
+
+    private static String transitionKey(SubscriptionStatus subscription, long atMillis) {
+        return subscription.getSku() + ":" + subscription.getPurchaseToken() + "@" + atMillis;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.sample.android.classytaxijava.billing.BillingUtilities;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Picks how long to wait before the next background refresh of the subscription status.
+ * <p>
+ * Subscriptions whose state is likely to change soon, such as account hold and grace period,
+ * are refreshed sooner. Stable subscriptions that renew automatically are refreshed rarely,
+ * since the server also notifies the app of changes. Expiry and auto-resume times are
+ * handled by the {@link EntitlementTimeline}, not by refreshes.
+ */
+public class RefreshPolicy {
+    public static final long ACCOUNT_HOLD_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    public static final long GRACE_PERIOD_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final long NOT_RENEWING_MILLIS = TimeUnit.HOURS.toMillis(6);
+    public static final long PAUSED_MILLIS = TimeUnit.HOURS.toMillis(12);
+    public static final long STABLE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    /**
+     * Returns the delay for the most urgent of the subscriptions.
+     */
+    public long getRefreshDelayMillis(@Nullable List<SubscriptionStatus> subscriptions) {
+        long delay = STABLE_MILLIS;
+        if (subscriptions != null) {
+            for (SubscriptionStatus subscription : subscriptions) {
+                delay = Math.min(delay, getRefreshDelayMillis(subscription));
+            }
+        }
+        return delay;
+    }
+
+    private long getRefreshDelayMillis(SubscriptionStatus subscription) {
+        if (BillingUtilities.isAccountHold(subscription)) {
+            return ACCOUNT_HOLD_MILLIS;
+        } else if (BillingUtilities.isGracePeriod(subscription)) {
+            return GRACE_PERIOD_MILLIS;
+        } else if (BillingUtilities.isPaused(subscription)) {
+            return PAUSED_MILLIS;
+        } else if (BillingUtilities.isSubscriptionRestore(subscription)) {
+            // The user may restore the subscription on another device.
+            return NOT_RENEWING_MILLIS;
+        }
+        return STABLE_MILLIS;
+    }
+}
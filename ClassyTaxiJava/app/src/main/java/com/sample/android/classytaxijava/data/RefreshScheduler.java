@@ -0,0 +1,147 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import android.util.Log;
+
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.util.List;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Schedules background refreshes of the subscription status.
+ * <p>
+ * The next refresh is due one {@link RefreshPolicy} delay after the last time the app received
+ * the subscription status from the server, whether from a scheduled refresh, a manual refresh
+ * or a push message. So a manual refresh pushes the next background refresh back instead of
+ * adding another one. The work is only rescheduled when the due time moves noticeably, and
+ * not while a refresh is running, so that the running refresh is not replaced.
+ */
+public class RefreshScheduler {
+    private static final String TAG = "RefreshScheduler";
+
+    /**
+     * Runs the refresh after a delay, e.g. through WorkManager. Scheduling replaces the
+     * previously scheduled refresh.
+     */
+    public interface WorkScheduler {
+        void schedule(long delayMillis);
+
+        void cancel();
+    }
+
+    /**
+     * Changes of the due time smaller than this do not reschedule the work.
+     */
+    static final long RESCHEDULE_TOLERANCE_MILLIS = 60_000;
+
+    private static final long NONE = -1;
+
+    private final Clock clock;
+    private final RefreshPolicy policy;
+    private final WorkScheduler workScheduler;
+
+    private long delayMillis = NONE;
+    private long lastRefreshMillis = NONE;
+    private long scheduledAtMillis = NONE;
+    private boolean running;
+
+    public RefreshScheduler(Clock clock, RefreshPolicy policy, WorkScheduler workScheduler) {
+        this.clock = clock;
+        this.policy = policy;
+        this.workScheduler = workScheduler;
+    }
+
+    /**
+     * The stored subscriptions changed, which may change the refresh delay.
+     */
+    public synchronized void onSubscriptionsChanged(
+            @Nullable List<SubscriptionStatus> subscriptions) {
+        delayMillis = policy.getRefreshDelayMillis(subscriptions);
+        updateLocked();
+    }
+
+    /**
+     * The subscription status was received from the server.
+     */
+    public synchronized void onRefreshed() {
+        lastRefreshMillis = clock.elapsedRealtime();
+        updateLocked();
+    }
+
+    /**
+     * A scheduled refresh started. Rescheduling waits until it finishes.
+     */
+    public synchronized void onWorkStarted() {
+        running = true;
+    }
+
+    /**
+     * A scheduled refresh finished. After a success the next refresh is scheduled. After a
+     * failure the work retries with its own backoff, so nothing is scheduled.
+     */
+    public synchronized void onWorkFinished(boolean success) {
+        running = false;
+        if (success) {
+            scheduledAtMillis = NONE;
+            updateLocked();
+        }
+    }
+
+    /**
+     * Cancel the scheduled refresh and forget the state, e.g. when the user signs out.
+     */
+    public synchronized void reset() {
+        delayMillis = NONE;
+        lastRefreshMillis = NONE;
+        scheduledAtMillis = NONE;
+        workScheduler.cancel();
+    }
+
+    /**
+     * Time the next refresh is due according to {@link Clock#elapsedRealtime()}, or -1 if the
+     * subscriptions are not known yet.
+     */
+    public synchronized long getNextRefreshMillis() {
+        return getDueMillisLocked();
+    }
+
+    private long getDueMillisLocked() {
+        if (delayMillis == NONE) {
+            return NONE;
+        }
+        long base = lastRefreshMillis == NONE ? clock.elapsedRealtime() : lastRefreshMillis;
+        return base + delayMillis;
+    }
+
+    private void updateLocked() {
+        long dueMillis = getDueMillisLocked();
+        if (dueMillis == NONE || running) {
+            return;
+        }
+        if (scheduledAtMillis != NONE
+                && Math.abs(dueMillis - scheduledAtMillis) < RESCHEDULE_TOLERANCE_MILLIS) {
+            return;
+        }
+        scheduledAtMillis = dueMillis;
+        long delay = Math.max(0, dueMillis - clock.elapsedRealtime());
+        Log.d(TAG, "Next subscription refresh in " + delay + " ms");
+        workScheduler.schedule(delay);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request body that registers or transfers several purchases in one HTTP request.
+ */
+public class SubscriptionBatchRequest {
+    @SerializedName("purchases")
+    private final List<Purchase> purchases = new ArrayList<>();
+
+    /**
+     * Add a purchase. Results are returned in the order the purchases were added.
+     *
+     * @param transfer true to transfer the subscription from another account
+     */
+    public void add(String sku, String purchaseToken, boolean transfer) {
+        purchases.add(new Purchase(sku, purchaseToken, transfer));
+    }
+
+    public List<Purchase> getPurchases() {
+        return purchases;
+    }
+
+    public int size() {
+        return purchases.size();
+    }
+
+    public static class Purchase {
+        @SerializedName("sku")
+        private final String sku;
+        @SerializedName("purchaseToken")
+        private final String purchaseToken;
+        @SerializedName("transfer")
+        private final boolean transfer;
+
+        Purchase(String sku, String purchaseToken, boolean transfer) {
+            this.sku = sku;
+            this.purchaseToken = purchaseToken;
+            this.transfer = transfer;
+        }
+
+        public String getSku() {
+            return sku;
+        }
+
+        public String getPurchaseToken() {
+            return purchaseToken;
+        }
+
+        public boolean isTransfer() {
+            return transfer;
+        }
+    }
+}
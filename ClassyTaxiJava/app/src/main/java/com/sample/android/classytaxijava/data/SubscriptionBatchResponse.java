@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.List;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Used to parse the response to a {@link SubscriptionBatchRequest}.
+ * <p>
+ * There is one result per purchase, in request order, and the subscription list of the user
+ * after all purchases were processed.
+ */
+public class SubscriptionBatchResponse {
+    @Nullable
+    @SerializedName("results")
+    private List<Result> results;
+
+    @Nullable
+    @SerializedName("subscriptions")
+    private List<SubscriptionStatus> subscriptionStatuses;
+
+    @Nullable
+    public List<Result> getResults() {
+        return results;
+    }
+
+    public void setResults(@Nullable List<Result> results) {
+        this.results = results;
+    }
+
+    @Nullable
+    public List<SubscriptionStatus> getSubscriptions() {
+        return subscriptionStatuses;
+    }
+
+    public void setSubscriptions(@Nullable List<SubscriptionStatus> subscriptionStatuses) {
+        this.subscriptionStatuses = subscriptionStatuses;
+    }
+
+    /**
+     * The outcome of one purchase, as the HTTP status code the single purchase endpoint
+     * would have returned.
+     */
+    public static class Result {
+        @Nullable
+        @SerializedName("sku")
+        private String sku;
+        @Nullable
+        @SerializedName("purchaseToken")
+        private String purchaseToken;
+        @SerializedName("status")
+        private int status;
+
+        @Nullable
+        public String getSku() {
+            return sku;
+        }
+
+        public void setSku(@Nullable String sku) {
+            this.sku = sku;
+        }
+
+        @Nullable
+        public String getPurchaseToken() {
+            return purchaseToken;
+        }
+
+        public void setPurchaseToken(@Nullable String purchaseToken) {
+            this.purchaseToken = purchaseToken;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void setStatus(int status) {
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Recognizes subscription status push messages that repeat the last list stored from the
+ * server, so that they can be skipped without a database write.
+ * <p>
+ * The list observed by the UI cannot be used for this: while the app is in the background
+ * nothing observes it, so it is stale or null when a push arrives. Instead, this remembers the
+ * remote fields of the last full list that was stored, however it arrived, and forgets them
+ * when the stored list may no longer match, e.g. after a delta or when the user changes.
+ */
+public class SubscriptionPushFilter {
+    @Nullable
+    private String userId;
+    @Nullable
+    private List<SubscriptionStatus> lastStored;
+
+    /**
+     * A full list from the server was stored for a user.
+     */
+    public synchronized void onStored(@Nullable String userId,
+                                      @Nullable List<SubscriptionStatus> subscriptions) {
+        if (userId == null || subscriptions == null) {
+            reset();
+            return;
+        }
+        this.userId = userId;
+        this.lastStored = new ArrayList<>(subscriptions);
+    }
+
+    /**
+     * The stored list changed in a way that is not tracked here.
+     */
+    public synchronized void reset() {
+        userId = null;
+        lastStored = null;
+    }
+
+    /**
+     * Returns true if a list pushed for a user has the same remote fields as the last list
+     * stored for that user.
+     */
+    public synchronized boolean isRepeat(@Nullable String userId,
+                                         @Nullable List<SubscriptionStatus> subscriptions) {
+        return lastStored != null && subscriptions != null
+                && Objects.equals(this.userId, userId)
+                && SubscriptionStatus.haveSameRemoteFields(lastStored, subscriptions);
+    }
+}
@@ -16,19 +16,34 @@
 
 package com.sample.android.classytaxijava.data;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
+import com.google.gson.annotations.JsonAdapter;
+
+import java.util.List;
+import java.util.Objects;
+
 /**
  * Local subscription data. This is stored on disk in a database.
+ * <p>
+ * JSON is read and written by {@link SubscriptionStatusTypeAdapter}.
  */
-@Entity(tableName = "subscriptions")
+@Entity(tableName = "subscriptions", indices = @Index("userId"))
+@JsonAdapter(SubscriptionStatusTypeAdapter.class)
 public class SubscriptionStatus {
 
     // Local fields
     @PrimaryKey(autoGenerate = true)
     private int primaryKey = 0;
+    /**
+     * The user the subscription is cached for. Set by the local data source when it is stored.
+     */
+    @NonNull
+    private String userId = "";
     @Nullable
     private String subscriptionStatusJson;
     private boolean subAlreadyOwned;
@@ -130,6 +145,15 @@ public class SubscriptionStatus {
         this.autoResumeTimeMillis = autoResumeTimeMillis;
     }
 
+    @NonNull
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(@NonNull String userId) {
+        this.userId = userId;
+    }
+
     public int getPrimaryKey() {
         return primaryKey;
     }
@@ -178,6 +202,66 @@ public class SubscriptionStatus {
         return subscriptionStatus;
     }
 
+    /**
+     * Returns a copy that can be changed without affecting this subscription, e.g. while this
+     * one is shown.
+     */
+    public SubscriptionStatus copy() {
+        SubscriptionStatus copy = new SubscriptionStatus();
+        copy.primaryKey = primaryKey;
+        copy.userId = userId;
+        copy.subscriptionStatusJson = subscriptionStatusJson;
+        copy.subAlreadyOwned = subAlreadyOwned;
+        copy.isLocalPurchase = isLocalPurchase;
+        copy.sku = sku;
+        copy.purchaseToken = purchaseToken;
+        copy.isEntitlementActive = isEntitlementActive;
+        copy.willRenew = willRenew;
+        copy.activeUntilMillisec = activeUntilMillisec;
+        copy.isFreeTrial = isFreeTrial;
+        copy.isGracePeriod = isGracePeriod;
+        copy.isAccountHold = isAccountHold;
+        copy.isPaused = isPaused;
+        copy.autoResumeTimeMillis = autoResumeTimeMillis;
+        return copy;
+    }
+
+    /**
+     * Returns true if both subscriptions have the same values for the fields sent by the server.
+     */
+    public boolean hasSameRemoteFields(SubscriptionStatus other) {
+        return isEntitlementActive == other.isEntitlementActive
+                && willRenew == other.willRenew
+                && isFreeTrial == other.isFreeTrial
+                && isGracePeriod == other.isGracePeriod
+                && isAccountHold == other.isAccountHold
+                && isPaused == other.isPaused
+                && Objects.equals(sku, other.sku)
+                && Objects.equals(purchaseToken, other.purchaseToken)
+                && Objects.equals(activeUntilMillisec, other.activeUntilMillisec)
+                && Objects.equals(autoResumeTimeMillis, other.autoResumeTimeMillis);
+    }
+
+    /**
+     * Returns true if both lists contain subscriptions with the same remote fields, in the
+     * same order.
+     */
+    public static boolean haveSameRemoteFields(@Nullable List<SubscriptionStatus> first,
+                                               @Nullable List<SubscriptionStatus> second) {
+        if (first == null || second == null) {
+            return first == second;
+        }
+        if (first.size() != second.size()) {
+            return false;
+        }
+        for (int i = 0; i < first.size(); i++) {
+            if (!first.get(i).hasSameRemoteFields(second.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public String toString() {
         return "SubscriptionStatus{" +
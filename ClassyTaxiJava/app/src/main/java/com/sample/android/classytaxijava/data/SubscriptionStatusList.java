@@ -16,20 +16,46 @@
 
 package com.sample.android.classytaxijava.data;
 
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.annotations.SerializedName;
 
+import java.io.IOException;
 import java.util.List;
 
 import androidx.annotation.Nullable;
 
 /**
  * Used to parse through a list of {@link SubscriptionStatus} HTTP response objects.
+ * <p>
+ * JSON is read and written by {@link SubscriptionStatusListTypeAdapter}.
  */
+@JsonAdapter(SubscriptionStatusListTypeAdapter.class)
 public class SubscriptionStatusList {
+    private static final SubscriptionStatusListTypeAdapter ADAPTER =
+            new SubscriptionStatusListTypeAdapter();
+
     @Nullable
     @SerializedName("subscriptions")
     private List<SubscriptionStatus> subscriptionStatuses;
 
+    @Nullable
+    @SerializedName("cursor")
+    private String cursor;
+
+    @SerializedName("delta")
+    private boolean delta;
+
+    @Nullable
+    @SerializedName("removed")
+    private List<String> removed;
+
+    /**
+     * The user the request was issued for, set by the client. Not part of the JSON.
+     */
+    @Nullable
+    private transient String userId;
+
     public List<SubscriptionStatus> getSubscriptions() {
         return subscriptionStatuses;
     }
@@ -37,4 +63,73 @@ public class SubscriptionStatusList {
     public void setSubscriptions(List<SubscriptionStatus> subscriptionStatuses) {
         this.subscriptionStatuses = subscriptionStatuses;
     }
+
+    /**
+     * Sync cursor describing the subscriptions after this response, or null if the response
+     * does not support delta sync. See {@link SyncCursor}.
+     */
+    @Nullable
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(@Nullable String cursor) {
+        this.cursor = cursor;
+    }
+
+    /**
+     * True if this is a delta: {@link #getSubscriptions()} only contains the subscriptions that
+     * changed since the requested cursor, and {@link #getRemoved()} the removed ones.
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * Token IDs of the subscriptions removed since the requested cursor.
+     * See {@link SyncCursor#tokenId(String)}.
+     */
+    @Nullable
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(@Nullable List<String> removed) {
+        this.removed = removed;
+    }
+
+    /**
+     * The user the request was issued for, or null if unknown. A result for a user who is no
+     * longer signed in must not be stored.
+     */
+    @Nullable
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(@Nullable String userId) {
+        this.userId = userId;
+    }
+
+    /**
+     * Parse a JSON string without reflection.
+     *
+     * @return the parsed list, or null if the JSON is malformed
+     */
+    @Nullable
+    public static SubscriptionStatusList fromJsonString(@Nullable String dataString) {
+        if (dataString == null) {
+            return null;
+        }
+        try {
+            return ADAPTER.fromJson(dataString);
+        } catch (IOException | JsonParseException | IllegalStateException
+                | NumberFormatException e) {
+            return null;
+        }
+    }
 }
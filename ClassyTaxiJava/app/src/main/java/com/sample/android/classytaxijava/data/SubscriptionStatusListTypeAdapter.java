@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Streaming JSON adapter for {@link SubscriptionStatusList}, without reflection.
+ */
+public class SubscriptionStatusListTypeAdapter extends TypeAdapter<SubscriptionStatusList> {
+    private static final String SUBSCRIPTIONS = "subscriptions";
+    private static final String CURSOR = "cursor";
+    private static final String DELTA = "delta";
+    private static final String REMOVED = "removed";
+
+    private final SubscriptionStatusTypeAdapter subscriptionAdapter =
+            new SubscriptionStatusTypeAdapter();
+
+    @Override
+    public void write(JsonWriter out, @Nullable SubscriptionStatusList value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        List<SubscriptionStatus> subscriptions = value.getSubscriptions();
+        if (subscriptions != null) {
+            out.name(SUBSCRIPTIONS);
+            out.beginArray();
+            for (SubscriptionStatus subscription : subscriptions) {
+                subscriptionAdapter.write(out, subscription);
+            }
+            out.endArray();
+        }
+        if (value.getCursor() != null) {
+            out.name(CURSOR).value(value.getCursor());
+        }
+        if (value.isDelta()) {
+            out.name(DELTA).value(true);
+        }
+        List<String> removed = value.getRemoved();
+        if (removed != null) {
+            out.name(REMOVED);
+            out.beginArray();
+            for (String tokenId : removed) {
+                out.value(tokenId);
+            }
+            out.endArray();
+        }
+        out.endObject();
+    }
+
+    @Nullable
+    @Override
+    public SubscriptionStatusList read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        SubscriptionStatusList list = new SubscriptionStatusList();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            JsonToken token = in.peek();
+            if (SUBSCRIPTIONS.equals(name) && token == JsonToken.BEGIN_ARRAY) {
+                List<SubscriptionStatus> subscriptions = new ArrayList<>();
+                in.beginArray();
+                while (in.hasNext()) {
+                    SubscriptionStatus subscription = subscriptionAdapter.read(in);
+                    if (subscription != null) {
+                        subscriptions.add(subscription);
+                    }
+                }
+                in.endArray();
+                list.setSubscriptions(subscriptions);
+            } else if (CURSOR.equals(name) && token == JsonToken.STRING) {
+                list.setCursor(in.nextString());
+            } else if (DELTA.equals(name) && token == JsonToken.BOOLEAN) {
+                list.setDelta(in.nextBoolean());
+            } else if (REMOVED.equals(name) && token == JsonToken.BEGIN_ARRAY) {
+                List<String> removed = new ArrayList<>();
+                in.beginArray();
+                while (in.hasNext()) {
+                    if (in.peek() == JsonToken.STRING) {
+                        removed.add(in.nextString());
+                    } else {
+                        in.skipValue();
+                    }
+                }
+                in.endArray();
+                list.setRemoved(removed);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return list;
+    }
+}
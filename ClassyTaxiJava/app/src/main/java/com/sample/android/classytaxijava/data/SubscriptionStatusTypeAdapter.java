@@ -0,0 +1,141 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Streaming JSON adapter for the remote fields of {@link SubscriptionStatus}.
+ * <p>
+ * Reads and writes the fields one token at a time, without reflection. Local fields are not
+ * part of the JSON, and unknown fields are skipped.
+ */
+public class SubscriptionStatusTypeAdapter extends TypeAdapter<SubscriptionStatus> {
+    private static final String SKU = "sku";
+    private static final String PURCHASE_TOKEN = "purchaseToken";
+    private static final String IS_ENTITLEMENT_ACTIVE = "isEntitlementActive";
+    private static final String WILL_RENEW = "willRenew";
+    private static final String ACTIVE_UNTIL_MILLISEC = "activeUntilMillisec";
+    private static final String IS_FREE_TRIAL = "isFreeTrial";
+    private static final String IS_GRACE_PERIOD = "isGracePeriod";
+    private static final String IS_ACCOUNT_HOLD = "isAccountHold";
+    private static final String IS_PAUSED = "isPaused";
+    private static final String AUTO_RESUME_TIME_MILLIS = "autoResumeTimeMillis";
+
+    @Override
+    public void write(JsonWriter out, @Nullable SubscriptionStatus value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name(SKU).value(value.getSku());
+        out.name(PURCHASE_TOKEN).value(value.getPurchaseToken());
+        out.name(IS_ENTITLEMENT_ACTIVE).value(value.isEntitlementActive());
+        out.name(WILL_RENEW).value(value.isWillRenew());
+        out.name(ACTIVE_UNTIL_MILLISEC).value(value.getActiveUntilMillisec());
+        out.name(IS_FREE_TRIAL).value(value.isFreeTrial());
+        out.name(IS_GRACE_PERIOD).value(value.isGracePeriod());
+        out.name(IS_ACCOUNT_HOLD).value(value.isAccountHold());
+        out.name(IS_PAUSED).value(value.isPaused());
+        out.name(AUTO_RESUME_TIME_MILLIS).value(value.getAutoResumeTimeMillis());
+        out.endObject();
+    }
+
+    @Nullable
+    @Override
+    public SubscriptionStatus read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case SKU:
+                    subscription.setSku(nextStringOrNull(in));
+                    break;
+                case PURCHASE_TOKEN:
+                    subscription.setPurchaseToken(nextStringOrNull(in));
+                    break;
+                case IS_ENTITLEMENT_ACTIVE:
+                    subscription.setEntitlementActive(nextBoolean(in));
+                    break;
+                case WILL_RENEW:
+                    subscription.setWillRenew(nextBoolean(in));
+                    break;
+                case ACTIVE_UNTIL_MILLISEC:
+                    subscription.setActiveUntilMillisec(nextLongOrNull(in));
+                    break;
+                case IS_FREE_TRIAL:
+                    subscription.setFreeTrial(nextBoolean(in));
+                    break;
+                case IS_GRACE_PERIOD:
+                    subscription.setGracePeriod(nextBoolean(in));
+                    break;
+                case IS_ACCOUNT_HOLD:
+                    subscription.setAccountHold(nextBoolean(in));
+                    break;
+                case IS_PAUSED:
+                    subscription.setPaused(nextBoolean(in));
+                    break;
+                case AUTO_RESUME_TIME_MILLIS:
+                    subscription.setAutoResumeTimeMillis(nextLongOrNull(in));
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        return subscription;
+    }
+
+    @Nullable
+    private static String nextStringOrNull(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static boolean nextBoolean(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return false;
+        }
+        return in.nextBoolean();
+    }
+
+    @Nullable
+    private static Long nextLongOrNull(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextLong();
+    }
+}
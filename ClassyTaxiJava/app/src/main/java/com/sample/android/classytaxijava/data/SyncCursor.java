@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Cursor of the subscription status delta sync.
+ * <p>
+ * A cursor is opaque to clients and has a fixed size, however many subscriptions the user
+ * has: "2:" followed by a hash of the sorted "tokenId=stateHash" pairs of the subscriptions
+ * the client has. The server remembers the pairs behind the cursors it hands out, see
+ * {@link SyncSnapshotStore}, and computes the delta from them. The token ID is derived from
+ * the purchase token with {@link #tokenId(String)}, the same way the server derives it, so
+ * that clients can match removed entries to their local subscriptions. The state hash changes
+ * whenever a remote field of the subscription changes. Only the server computes state hashes,
+ * so the fake server and the real server may compute them differently.
+ */
+public final class SyncCursor {
+    /**
+     * Version prefix. Cursors with another version are ignored and answered with a full list.
+     */
+    private static final String VERSION = "2:";
+    private static final int ID_LENGTH = 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private SyncCursor() {
+    }
+
+    /**
+     * Short, stable ID of a purchase token: the first 16 hex digits of its SHA-256 hash.
+     */
+    public static String tokenId(String purchaseToken) {
+        return sha256Prefix(purchaseToken);
+    }
+
+    /**
+     * Returns the cursor for a list of subscriptions.
+     */
+    public static String create(List<SubscriptionStatus> subscriptions) {
+        return create(entries(subscriptions));
+    }
+
+    /**
+     * Returns the cursor for the token IDs and state hashes of a list of subscriptions.
+     */
+    static String create(Map<String, String> entries) {
+        List<String> pairs = new ArrayList<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            pairs.add(entry.getKey() + "=" + entry.getValue());
+        }
+        Collections.sort(pairs);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pairs.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(pairs.get(i));
+        }
+        return VERSION + sha256Prefix(sb.toString());
+    }
+
+    /**
+     * Returns the state hashes of a list of subscriptions, by token ID.
+     */
+    static Map<String, String> entries(List<SubscriptionStatus> subscriptions) {
+        Map<String, String> entries = new HashMap<>();
+        for (SubscriptionStatus subscription : subscriptions) {
+            entries.put(tokenId(nonNull(subscription.getPurchaseToken())),
+                    stateHash(subscription));
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the token ID of a subscription, as in {@link #entries(List)}.
+     */
+    static String tokenId(SubscriptionStatus subscription) {
+        return tokenId(nonNull(subscription.getPurchaseToken()));
+    }
+
+    private static String stateHash(SubscriptionStatus subscription) {
+        return sha256Prefix(subscription.getSku()
+                + "|" + subscription.isEntitlementActive()
+                + "|" + subscription.isWillRenew()
+                + "|" + subscription.getActiveUntilMillisec()
+                + "|" + subscription.isFreeTrial()
+                + "|" + subscription.isGracePeriod()
+                + "|" + subscription.isAccountHold()
+                + "|" + subscription.isPaused()
+                + "|" + subscription.getAutoResumeTimeMillis());
+    }
+
+    private static String sha256Prefix(String value) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java and Android platform provides SHA-256.
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder(ID_LENGTH);
+        for (int i = 0; i < ID_LENGTH / 2; i++) {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16))
+                    .append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String nonNull(@Nullable String value) {
+        return value == null ? "" : value;
+    }
+}
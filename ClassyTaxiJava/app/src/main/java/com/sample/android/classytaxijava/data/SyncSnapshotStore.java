@@ -0,0 +1,95 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Server side of the subscription status delta sync, for the fake servers.
+ * <p>
+ * Remembers the token IDs and state hashes behind the {@link SyncCursor}s recently handed out
+ * to each user, and answers a client that sends one of them with only what changed since. The
+ * real server keeps the same snapshots in Firestore.
+ */
+public class SyncSnapshotStore {
+    /**
+     * Snapshots kept per user. A client whose cursor has been evicted gets the full list.
+     */
+    private static final int MAX_SNAPSHOTS_PER_USER = 4;
+
+    private final Map<String, Map<String, Map<String, String>>> snapshots = new HashMap<>();
+
+    /**
+     * Compute the response to a client that last synced at the given cursor, and remember
+     * the new cursor.
+     *
+     * @param since   the cursor of the client, or null for a full sync
+     * @param current the subscriptions of the user now
+     * @return a delta with the changed subscriptions and the token IDs of removed ones, or the
+     * full list if the cursor is missing or unknown. Both include the new cursor.
+     */
+    public synchronized SubscriptionStatusList diff(@Nullable String userId,
+                                                    @Nullable String since,
+                                                    List<SubscriptionStatus> current) {
+        Map<String, Map<String, String>> userSnapshots = snapshots.get(userId);
+        if (userSnapshots == null) {
+            userSnapshots = new LinkedHashMap<String, Map<String, String>>(
+                    MAX_SNAPSHOTS_PER_USER + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Map<String, String>> eldest) {
+                    return size() > MAX_SNAPSHOTS_PER_USER;
+                }
+            };
+            snapshots.put(userId, userSnapshots);
+        }
+        Map<String, String> previous = since == null ? null : userSnapshots.get(since);
+        Map<String, String> entries = SyncCursor.entries(current);
+        String cursor = SyncCursor.create(entries);
+        userSnapshots.put(cursor, entries);
+
+        SubscriptionStatusList result = new SubscriptionStatusList();
+        result.setCursor(cursor);
+        if (previous == null) {
+            result.setSubscriptions(new ArrayList<>(current));
+            return result;
+        }
+        List<SubscriptionStatus> changed = new ArrayList<>();
+        for (SubscriptionStatus subscription : current) {
+            String id = SyncCursor.tokenId(subscription);
+            if (!entries.get(id).equals(previous.get(id))) {
+                changed.add(subscription);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String id : previous.keySet()) {
+            if (!entries.containsKey(id)) {
+                removed.add(id);
+            }
+        }
+        result.setDelta(true);
+        result.setSubscriptions(changed);
+        result.setRemoved(removed);
+        return result;
+    }
+}
@@ -18,21 +18,128 @@ package com.sample.android.classytaxijava.data.disk;
 
 import android.content.Context;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 
-@Database(entities = SubscriptionStatus.class, version = 1)
+@Database(entities = {SubscriptionStatus.class, OutboxEntry.class, SyncState.class,
+        ContentRecord.class, UserPartition.class}, version = 6)
 public abstract class AppDatabase extends RoomDatabase {
 
     private static volatile AppDatabase INSTANCE = null;
 
     private static final String DATABASE_NAME = "subscriptions-db";
 
+    /**
+     * Adds the outbox. Pending mutations must survive app updates, so this is not left to
+     * the destructive fallback.
+     */
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `outbox` ("
+                    + "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`operation` TEXT NOT NULL, "
+                    + "`sku` TEXT NOT NULL, "
+                    + "`purchaseToken` TEXT NOT NULL, "
+                    + "`userId` TEXT NOT NULL, "
+                    + "`createdAtMillis` INTEGER NOT NULL)");
+            database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS "
+                    + "`index_outbox_operation_sku_purchaseToken` "
+                    + "ON `outbox` (`operation`, `sku`, `purchaseToken`)");
+        }
+    };
+
+    /**
+     * Adds the sync state, which holds the subscription status sync cursor.
+     */
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `sync_state` ("
+                    + "`name` TEXT NOT NULL, "
+                    + "`cursor` TEXT, "
+                    + "PRIMARY KEY(`name`))");
+        }
+    };
+
+    /**
+     * Adds the content records, so that content is shown before it is fetched again.
+     */
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `content` ("
+                    + "`tier` TEXT NOT NULL, "
+                    + "`url` TEXT NOT NULL, "
+                    + "`fetchedAtMillis` INTEGER NOT NULL, "
+                    + "PRIMARY KEY(`tier`))");
+        }
+    };
+
+    /**
+     * Partitions subscriptions, sync state and content by user. The data cached so far
+     * belongs to no known user, so it is dropped and fetched again; the outbox already
+     * records its user and is kept.
+     */
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("DELETE FROM `subscriptions`");
+            database.execSQL("ALTER TABLE `subscriptions` "
+                    + "ADD COLUMN `userId` TEXT NOT NULL DEFAULT ''");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_subscriptions_userId` "
+                    + "ON `subscriptions` (`userId`)");
+            database.execSQL("DROP TABLE IF EXISTS `sync_state`");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `sync_state` ("
+                    + "`userId` TEXT NOT NULL, "
+                    + "`name` TEXT NOT NULL, "
+                    + "`cursor` TEXT, "
+                    + "PRIMARY KEY(`userId`, `name`))");
+            database.execSQL("DROP TABLE IF EXISTS `content`");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `content` ("
+                    + "`userId` TEXT NOT NULL, "
+                    + "`tier` TEXT NOT NULL, "
+                    + "`url` TEXT NOT NULL, "
+                    + "`fetchedAtMillis` INTEGER NOT NULL, "
+                    + "PRIMARY KEY(`userId`, `tier`))");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `user_partitions` ("
+                    + "`userId` TEXT NOT NULL, "
+                    + "`lastActiveMillis` INTEGER NOT NULL, "
+                    + "PRIMARY KEY(`userId`))");
+        }
+    };
+
+    /**
+     * Adds the user to the unique index of the outbox, so that an entry of one user no longer
+     * replaces the same pending entry of another user. The index also serves the query for
+     * a user's pending entries.
+     */
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("DROP INDEX IF EXISTS `index_outbox_operation_sku_purchaseToken`");
+            database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS "
+                    + "`index_outbox_userId_operation_sku_purchaseToken` "
+                    + "ON `outbox` (`userId`, `operation`, `sku`, `purchaseToken`)");
+        }
+    };
+
     public abstract SubscriptionStatusDao subscriptionStatusDao();
 
+    abstract OutboxDao outboxDao();
+
+    abstract SyncStateDao syncStateDao();
+
+    abstract ContentRecordDao contentRecordDao();
+
+    abstract UserPartitionDao userPartitionDao();
+
     public static AppDatabase getInstance(Context context) {
         if (INSTANCE == null) {
             synchronized (AppDatabase.class) {
@@ -50,6 +157,8 @@ public abstract class AppDatabase extends RoomDatabase {
      */
     private static AppDatabase buildDatabase(Context context) {
         return Room.databaseBuilder(context, AppDatabase.class, DATABASE_NAME)
+                .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5,
+                        MIGRATION_5_6)
                 .fallbackToDestructiveMigration()
                 .build();
     }
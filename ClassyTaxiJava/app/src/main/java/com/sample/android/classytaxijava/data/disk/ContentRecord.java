@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.disk;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+/**
+ * The last content fetched for a subscription tier. This is stored on disk in a database,
+ * so that content can be shown right after the app starts. Each user has their own content.
+ */
+@Entity(tableName = "content", primaryKeys = {"userId", "tier"})
+public class ContentRecord {
+    public static final String BASIC = "basic";
+    public static final String PREMIUM = "premium";
+
+    @NonNull
+    private String userId = "";
+    @NonNull
+    private String tier = "";
+    @NonNull
+    private String url = "";
+    /**
+     * Wall clock time of the last successful fetch, including "not modified" answers.
+     */
+    private long fetchedAtMillis;
+
+    public static ContentRecord create(String userId, String tier, String url,
+                                       long fetchedAtMillis) {
+        ContentRecord record = new ContentRecord();
+        record.setUserId(userId);
+        record.setTier(tier);
+        record.setUrl(url);
+        record.setFetchedAtMillis(fetchedAtMillis);
+        return record;
+    }
+
+    @NonNull
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(@NonNull String userId) {
+        this.userId = userId;
+    }
+
+    @NonNull
+    public String getTier() {
+        return tier;
+    }
+
+    public void setTier(@NonNull String tier) {
+        this.tier = tier;
+    }
+
+    @NonNull
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(@NonNull String url) {
+        this.url = url;
+    }
+
+    public long getFetchedAtMillis() {
+        return fetchedAtMillis;
+    }
+
+    public void setFetchedAtMillis(long fetchedAtMillis) {
+        this.fetchedAtMillis = fetchedAtMillis;
+    }
+}
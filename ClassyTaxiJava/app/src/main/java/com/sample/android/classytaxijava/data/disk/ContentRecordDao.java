@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.disk;
+
+import java.util.List;
+
+import androidx.lifecycle.LiveData;
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+@Dao
+interface ContentRecordDao {
+    @Query("SELECT * FROM content WHERE userId = :userId AND tier = :tier")
+    LiveData<ContentRecord> get(String userId, String tier);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(ContentRecord record);
+
+    @Query("UPDATE content SET fetchedAtMillis = :fetchedAtMillis "
+            + "WHERE userId = :userId AND tier = :tier")
+    void setFetchedAt(String userId, String tier, long fetchedAtMillis);
+
+    @Query("DELETE FROM content WHERE userId = :userId AND tier = :tier")
+    void delete(String userId, String tier);
+
+    @Query("DELETE FROM content WHERE userId IN (:userIds)")
+    void deleteUsers(List<String> userIds);
+}
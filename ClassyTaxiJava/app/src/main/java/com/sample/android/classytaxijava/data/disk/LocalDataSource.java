@@ -16,55 +16,243 @@
 
 package com.sample.android.classytaxijava.data.disk;
 
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import androidx.arch.core.util.Function;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Transformations;
 
 import com.sample.android.classytaxijava.AppExecutors;
+import com.sample.android.classytaxijava.PriorityExecutor;
+import com.sample.android.classytaxijava.PriorityExecutor.Priority;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.SyncCursor;
+import com.sample.android.classytaxijava.utils.Clock;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.Executor;
+import java.util.Set;
 
+/**
+ * Reads and writes the database on the disk executor.
+ * <p>
+ * Writes run by priority: outbox entries first, since the user is waiting for the purchase to
+ * be registered, then subscriptions, then content. Each kind of write uses a single lane, so
+ * that writes to the same tables stay in order.
+ * <p>
+ * Data is stored per user. Reads follow the current user, so switching accounts shows the
+ * last known state of the new user right away. Writes of server data name the user the
+ * request was issued for, and are dropped if that user is no longer the current user when
+ * they run, so that a late response never lands in another user's data or recreates evicted
+ * data. The data of the users who were active least recently is evicted, so that at most
+ * {@link #MAX_CACHED_USERS} users are kept on disk. Outbox entries are never evicted.
+ */
 public class LocalDataSource {
+    private static final String TAG = "LocalDataSource";
+
+    private static final String SUBSCRIPTIONS = "subscriptions";
+    private static final String CONTENT = "content";
+    private static final String OUTBOX = "outbox";
+
+    /**
+     * Number of users whose data is kept on disk, including the current user.
+     */
+    static final int MAX_CACHED_USERS = 3;
+
     private static volatile LocalDataSource INSTANCE = null;
 
-    private final Executor executor;
+    private final PriorityExecutor executor;
     private final AppDatabase appDatabase;
+    private final Clock clock;
+
+    private final MutableLiveData<String> user = new MutableLiveData<>();
+    @Nullable
+    private volatile String userId;
 
     /**
      * Get the list of subscriptions from the localDataSource and get notified when the data changes.
+     * The list belongs to the current user, and is empty when no user is signed in.
      */
     public LiveData<List<SubscriptionStatus>> subscriptions;
 
-    private LocalDataSource(Executor executor, AppDatabase appDatabase) {
+    @VisibleForTesting
+    LocalDataSource(PriorityExecutor executor, final AppDatabase appDatabase, Clock clock) {
         this.executor = executor;
         this.appDatabase = appDatabase;
+        this.clock = clock;
 
-        subscriptions = appDatabase.subscriptionStatusDao().getAll();
+        subscriptions = Transformations.switchMap(user,
+                new Function<String, LiveData<List<SubscriptionStatus>>>() {
+                    @Override
+                    public LiveData<List<SubscriptionStatus>> apply(String userId) {
+                        if (userId == null) {
+                            return absent(Collections.<SubscriptionStatus>emptyList());
+                        }
+                        return appDatabase.subscriptionStatusDao().getAll(userId);
+                    }
+                });
     }
 
     public static LocalDataSource getInstance(AppExecutors executors, AppDatabase database) {
         if (INSTANCE == null) {
             synchronized (LocalDataSource.class) {
                 if (INSTANCE == null) {
-                    INSTANCE = new LocalDataSource(executors.diskIO, database);
+                    INSTANCE = new LocalDataSource(executors.diskIO, database, Clock.SYSTEM);
                 }
             }
         }
         return INSTANCE;
     }
 
+    /**
+     * Switch reads and writes to the data of a user. The user is marked as the most recently
+     * active one, and the data of users beyond {@link #MAX_CACHED_USERS} is evicted.
+     * <p>
+     * Eviction runs in the subscription lane, after the subscription writes queued before the
+     * switch. Writes queued later for other users, including content writes, are dropped.
+     *
+     * @param userId the signed-in user, or null when no user is signed in
+     */
+    public void setUser(@Nullable final String userId) {
+        this.userId = userId;
+        user.postValue(userId);
+        if (userId == null) {
+            return;
+        }
+        final long now = clock.currentTimeMillis();
+        executor.execute(Priority.USER_VISIBLE, SUBSCRIPTIONS, new Runnable() {
+            @Override
+            public void run() {
+                appDatabase.runInTransaction(new Runnable() {
+                    @Override
+                    public void run() {
+                        UserPartitionDao dao = appDatabase.userPartitionDao();
+                        dao.insert(UserPartition.create(userId, now));
+                        List<String> evicted = dao.getLeastRecentlyActive(MAX_CACHED_USERS);
+                        if (evicted.isEmpty()) {
+                            return;
+                        }
+                        Log.d(TAG, "Evicting the data of " + evicted.size() + " users");
+                        appDatabase.subscriptionStatusDao().deleteUsers(evicted);
+                        appDatabase.syncStateDao().deleteUsers(evicted);
+                        appDatabase.contentRecordDao().deleteUsers(evicted);
+                        dao.delete(evicted);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the current user, or null when no user is signed in.
+     */
+    @Nullable
+    public String getUserId() {
+        return userId;
+    }
+
     public void updateSubscriptions(final List<SubscriptionStatus> subscriptions) {
-        executor.execute(new Runnable() {
+        final String userId = this.userId;
+        if (userId == null) {
+            return;
+        }
+        executor.execute(Priority.USER_VISIBLE, SUBSCRIPTIONS, new Runnable() {
             @Override
             public void run() {
+                if (!isCurrentUser(userId)) {
+                    return;
+                }
                 appDatabase.runInTransaction(new Runnable() {
                     @Override
                     public void run() {
                         // Delete existing subscriptions.
-                        appDatabase.subscriptionStatusDao().deleteAll();
+                        appDatabase.subscriptionStatusDao().deleteAll(userId);
                         // Put new subscriptions data into localDataSource.
-                        appDatabase.subscriptionStatusDao().insertAll(subscriptions);
+                        appDatabase.subscriptionStatusDao().insertAll(
+                                forUser(userId, subscriptions));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Replace all subscriptions with a full list from the server, and store the sync cursor
+     * that describes it in the same transaction.
+     *
+     * @param userId the user the list was requested for
+     * @param cursor the cursor of the list, or null if the list did not come with one. The
+     *               stored cursor is then cleared, so that the next sync is a full sync.
+     */
+    public void replaceSubscriptions(final String userId,
+                                     final List<SubscriptionStatus> subscriptions,
+                                     @Nullable final String cursor) {
+        executor.execute(Priority.USER_VISIBLE, SUBSCRIPTIONS, new Runnable() {
+            @Override
+            public void run() {
+                if (!isCurrentUser(userId)) {
+                    return;
+                }
+                appDatabase.runInTransaction(new Runnable() {
+                    @Override
+                    public void run() {
+                        appDatabase.subscriptionStatusDao().deleteAll(userId);
+                        appDatabase.subscriptionStatusDao().insertAll(
+                                forUser(userId, subscriptions));
+                        setSyncCursor(userId, cursor);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Apply a delta from the server and store its cursor in the same transaction.
+     * Subscriptions that changed replace the stored ones with the same purchase token.
+     *
+     * @param userId          the user the delta was requested for
+     * @param removedTokenIds token IDs of the removed subscriptions,
+     *                        see {@link SyncCursor#tokenId(String)}
+     */
+    public void applySubscriptionChanges(final String userId,
+                                         final List<SubscriptionStatus> changed,
+                                         final List<String> removedTokenIds,
+                                         @Nullable final String cursor) {
+        executor.execute(Priority.USER_VISIBLE, SUBSCRIPTIONS, new Runnable() {
+            @Override
+            public void run() {
+                if (!isCurrentUser(userId)) {
+                    return;
+                }
+                appDatabase.runInTransaction(new Runnable() {
+                    @Override
+                    public void run() {
+                        SubscriptionStatusDao dao = appDatabase.subscriptionStatusDao();
+                        Set<String> removedIds = new HashSet<>(removedTokenIds);
+                        List<String> purchaseTokens = new ArrayList<>();
+                        for (SubscriptionStatus subscription : dao.loadAll(userId)) {
+                            String purchaseToken = subscription.getPurchaseToken();
+                            if (purchaseToken != null
+                                    && removedIds.contains(SyncCursor.tokenId(purchaseToken))) {
+                                purchaseTokens.add(purchaseToken);
+                            }
+                        }
+                        for (SubscriptionStatus subscription : changed) {
+                            if (subscription.getPurchaseToken() != null) {
+                                purchaseTokens.add(subscription.getPurchaseToken());
+                            }
+                        }
+                        if (!purchaseTokens.isEmpty()) {
+                            dao.deleteByPurchaseTokens(userId, purchaseTokens);
+                        }
+                        dao.insertAll(forUser(userId, changed));
+                        setSyncCursor(userId, cursor);
                     }
                 });
             }
@@ -72,9 +260,158 @@ public class LocalDataSource {
     }
 
     /**
-     * Delete local user data when the user signs out.
+     * Returns the cursor of a user's stored subscriptions, or null if the next sync must be a
+     * full sync.
+     */
+    @WorkerThread
+    @Nullable
+    public String getSyncCursor(@Nullable String userId) {
+        if (userId == null) {
+            return null;
+        }
+        return appDatabase.syncStateDao().getCursor(userId, SyncState.SUBSCRIPTIONS);
+    }
+
+    @WorkerThread
+    private void setSyncCursor(String userId, @Nullable String cursor) {
+        if (cursor == null) {
+            appDatabase.syncStateDao().delete(userId, SyncState.SUBSCRIPTIONS);
+        } else {
+            appDatabase.syncStateDao().insert(
+                    SyncState.create(userId, SyncState.SUBSCRIPTIONS, cursor));
+        }
+    }
+
+    /**
+     * Get the current user's stored content of a tier and get notified when it changes.
+     *
+     * @param tier {@link ContentRecord#BASIC} or {@link ContentRecord#PREMIUM}
+     */
+    public LiveData<ContentRecord> getContent(final String tier) {
+        return Transformations.switchMap(user, new Function<String, LiveData<ContentRecord>>() {
+            @Override
+            public LiveData<ContentRecord> apply(String userId) {
+                if (userId == null) {
+                    return absent(null);
+                }
+                return appDatabase.contentRecordDao().get(userId, tier);
+            }
+        });
+    }
+
+    /**
+     * Store content fetched from the server.
+     *
+     * @param userId the user the content was requested for
+     */
+    public void saveContent(final String userId, final String tier, final String url,
+                            final long fetchedAtMillis) {
+        executor.execute(Priority.BACKGROUND, CONTENT, new Runnable() {
+            @Override
+            public void run() {
+                if (!isCurrentUser(userId)) {
+                    return;
+                }
+                appDatabase.contentRecordDao().insert(
+                        ContentRecord.create(userId, tier, url, fetchedAtMillis));
+            }
+        });
+    }
+
+    /**
+     * Record that the server confirmed the stored content of a tier is still current.
+     *
+     * @param userId the user the content was requested for
+     */
+    public void markContentFetched(final String userId, final String tier,
+                                   final long fetchedAtMillis) {
+        executor.execute(Priority.BACKGROUND, CONTENT, new Runnable() {
+            @Override
+            public void run() {
+                if (!isCurrentUser(userId)) {
+                    return;
+                }
+                appDatabase.contentRecordDao().setFetchedAt(userId, tier, fetchedAtMillis);
+            }
+        });
+    }
+
+    /**
+     * Delete the stored content of a tier the user is no longer entitled to.
+     */
+    public void deleteContent(final String tier) {
+        final String userId = this.userId;
+        if (userId == null) {
+            return;
+        }
+        executor.execute(Priority.BACKGROUND, CONTENT, new Runnable() {
+            @Override
+            public void run() {
+                appDatabase.contentRecordDao().delete(userId, tier);
+            }
+        });
+    }
+
+    /**
+     * Add mutations to the outbox, in order, in one transaction.
+     *
+     * @param onAdded optional callback, run on the disk thread once the entries are stored
+     */
+    public void addToOutbox(final List<OutboxEntry> entries, @Nullable final Runnable onAdded) {
+        executor.execute(Priority.USER_BLOCKING, OUTBOX, new Runnable() {
+            @Override
+            public void run() {
+                appDatabase.outboxDao().insert(entries);
+                if (onAdded != null) {
+                    onAdded.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the oldest pending outbox entries of the user, in delivery order.
+     */
+    @WorkerThread
+    public List<OutboxEntry> getOutboxEntries(String userId, int limit) {
+        return appDatabase.outboxDao().getPending(userId, limit);
+    }
+
+    /**
+     * Remove delivered entries from the outbox.
+     */
+    @WorkerThread
+    public void removeFromOutbox(List<OutboxEntry> entries) {
+        appDatabase.outboxDao().delete(entries);
+    }
+
+    /**
+     * Returns true if writes for the user may run. The disk executor has a single thread, so
+     * a write that passes this check completes before the eviction queued by a user switch.
+     */
+    @WorkerThread
+    private boolean isCurrentUser(String userId) {
+        if (userId.equals(this.userId)) {
+            return true;
+        }
+        Log.d(TAG, "Dropping a write for a previous user");
+        return false;
+    }
+
+    private static List<SubscriptionStatus> forUser(String userId,
+                                                    List<SubscriptionStatus> subscriptions) {
+        for (SubscriptionStatus subscription : subscriptions) {
+            subscription.setUserId(userId);
+        }
+        return subscriptions;
+    }
+
+    /**
+     * Returns live data that holds a value which never changes.
      */
-    public void deleteLocalUserData() {
-        updateSubscriptions(new ArrayList<SubscriptionStatus>());
+    private static <T> LiveData<T> absent(@Nullable T value) {
+        MutableLiveData<T> data = new MutableLiveData<>();
+        data.setValue(value);
+        return data;
     }
 }
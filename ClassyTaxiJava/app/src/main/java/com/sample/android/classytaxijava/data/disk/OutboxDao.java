@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.disk;
+
+import java.util.List;
+
+import androidx.room.Dao;
+import androidx.room.Delete;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+@Dao
+interface OutboxDao {
+    /**
+     * Add entries in order. A pending entry with the same operation, SKU and purchase token is
+     * replaced, which moves the change to the end of the queue.
+     */
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(List<OutboxEntry> entries);
+
+    @Query("SELECT * FROM outbox WHERE userId = :userId ORDER BY id LIMIT :limit")
+    List<OutboxEntry> getPending(String userId, int limit);
+
+    @Delete
+    void delete(List<OutboxEntry> entries);
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.disk;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * A server mutation waiting to be delivered. This is stored on disk in a database.
+ * <p>
+ * Entries are delivered in the order of their ID. Adding an entry with the same user,
+ * operation, SKU and purchase token as a pending entry replaces it, and the new entry is
+ * delivered after everything that is already pending. Entries of different users never
+ * replace each other.
+ * <p>
+ * Instance ID operations have an empty SKU and store the Instance ID as the purchase token.
+ */
+@Entity(tableName = "outbox",
+        indices = @Index(value = {"userId", "operation", "sku", "purchaseToken"},
+                unique = true))
+public class OutboxEntry {
+    public static final String REGISTER_SUBSCRIPTION = "register_subscription";
+    public static final String TRANSFER_SUBSCRIPTION = "transfer_subscription";
+    public static final String REGISTER_INSTANCE_ID = "register_instance_id";
+    public static final String UNREGISTER_INSTANCE_ID = "unregister_instance_id";
+
+    @PrimaryKey(autoGenerate = true)
+    private long id = 0;
+    @NonNull
+    private String operation = "";
+    @NonNull
+    private String sku = "";
+    @NonNull
+    private String purchaseToken = "";
+    /**
+     * The user who made the change. Only this user's ID token may be used to deliver it.
+     */
+    @NonNull
+    private String userId = "";
+    private long createdAtMillis;
+
+    public static OutboxEntry create(String operation, String sku, String purchaseToken,
+                                     String userId, long createdAtMillis) {
+        OutboxEntry entry = new OutboxEntry();
+        entry.setOperation(operation);
+        entry.setSku(sku);
+        entry.setPurchaseToken(purchaseToken);
+        entry.setUserId(userId);
+        entry.setCreatedAtMillis(createdAtMillis);
+        return entry;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    @NonNull
+    public String getOperation() {
+        return operation;
+    }
+
+    public void setOperation(@NonNull String operation) {
+        this.operation = operation;
+    }
+
+    @NonNull
+    public String getSku() {
+        return sku;
+    }
+
+    public void setSku(@NonNull String sku) {
+        this.sku = sku;
+    }
+
+    @NonNull
+    public String getPurchaseToken() {
+        return purchaseToken;
+    }
+
+    public void setPurchaseToken(@NonNull String purchaseToken) {
+        this.purchaseToken = purchaseToken;
+    }
+
+    @NonNull
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(@NonNull String userId) {
+        this.userId = userId;
+    }
+
+    public long getCreatedAtMillis() {
+        return createdAtMillis;
+    }
+
+    public void setCreatedAtMillis(long createdAtMillis) {
+        this.createdAtMillis = createdAtMillis;
+    }
+
+    @Override
+    public String toString() {
+        return operation + "(" + sku + ")#" + id;
+    }
+}
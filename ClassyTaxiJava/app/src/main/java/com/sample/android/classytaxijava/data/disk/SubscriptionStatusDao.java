@@ -28,12 +28,22 @@ import androidx.room.Query;
 
 @Dao
 interface SubscriptionStatusDao {
-    @Query("SELECT * FROM subscriptions")
-    LiveData<List<SubscriptionStatus>> getAll();
+    @Query("SELECT * FROM subscriptions WHERE userId = :userId")
+    LiveData<List<SubscriptionStatus>> getAll(String userId);
+
+    @Query("SELECT * FROM subscriptions WHERE userId = :userId")
+    List<SubscriptionStatus> loadAll(String userId);
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     void insertAll(List<SubscriptionStatus> comments);
 
-    @Query("DELETE FROM subscriptions")
-    void deleteAll();
+    @Query("DELETE FROM subscriptions WHERE userId = :userId")
+    void deleteAll(String userId);
+
+    @Query("DELETE FROM subscriptions "
+            + "WHERE userId = :userId AND purchaseToken IN (:purchaseTokens)")
+    void deleteByPurchaseTokens(String userId, List<String> purchaseTokens);
+
+    @Query("DELETE FROM subscriptions WHERE userId IN (:userIds)")
+    void deleteUsers(List<String> userIds);
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.disk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.Entity;
+
+/**
+ * A sync cursor stored next to the data it describes. This is stored on disk in a database.
+ * Each user has their own cursors.
+ */
+@Entity(tableName = "sync_state", primaryKeys = {"userId", "name"})
+public class SyncState {
+    /**
+     * Cursor of the subscription status delta sync.
+     */
+    public static final String SUBSCRIPTIONS = "subscriptions";
+
+    @NonNull
+    private String userId = "";
+    @NonNull
+    private String name = "";
+    @Nullable
+    private String cursor;
+
+    public static SyncState create(String userId, String name, String cursor) {
+        SyncState state = new SyncState();
+        state.setUserId(userId);
+        state.setName(name);
+        state.setCursor(cursor);
+        return state;
+    }
+
+    @NonNull
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(@NonNull String userId) {
+        this.userId = userId;
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    public void setName(@NonNull String name) {
+        this.name = name;
+    }
+
+    @Nullable
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(@Nullable String cursor) {
+        this.cursor = cursor;
+    }
+}
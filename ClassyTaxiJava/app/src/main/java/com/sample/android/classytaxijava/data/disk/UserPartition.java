@@ -0,0 +1,63 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.disk;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * A user whose data is cached in the database. This is stored on disk in a database.
+ * <p>
+ * Subscriptions, sync state and content are stored per user, so that switching back to a
+ * previous account shows its last known state right away. The partitions of the users who
+ * were active least recently are evicted.
+ */
+@Entity(tableName = "user_partitions")
+public class UserPartition {
+    @PrimaryKey
+    @NonNull
+    private String userId = "";
+    /**
+     * Wall clock time the user last became the current user.
+     */
+    private long lastActiveMillis;
+
+    public static UserPartition create(String userId, long lastActiveMillis) {
+        UserPartition partition = new UserPartition();
+        partition.setUserId(userId);
+        partition.setLastActiveMillis(lastActiveMillis);
+        return partition;
+    }
+
+    @NonNull
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(@NonNull String userId) {
+        this.userId = userId;
+    }
+
+    public long getLastActiveMillis() {
+        return lastActiveMillis;
+    }
+
+    public void setLastActiveMillis(long lastActiveMillis) {
+        this.lastActiveMillis = lastActiveMillis;
+    }
+}
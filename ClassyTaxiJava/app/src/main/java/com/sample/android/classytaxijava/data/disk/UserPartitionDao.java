@@ -0,0 +1,42 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.disk;
+
+import java.util.List;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+@Dao
+interface UserPartitionDao {
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(UserPartition partition);
+
+    /**
+     * Returns the users beyond the most recently active ones.
+     *
+     * @param keep number of most recently active users to skip
+     */
+    @Query("SELECT userId FROM user_partitions ORDER BY lastActiveMillis DESC "
+            + "LIMIT -1 OFFSET :keep")
+    List<String> getLeastRecentlyActive(int keep);
+
+    @Query("DELETE FROM user_partitions WHERE userId IN (:userIds)")
+    void delete(List<String> userIds);
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on a shared {@link Executor} while keeping tasks with the same key in order.
+ * <p>
+ * Tasks that share a key run one at a time, in the order they were submitted. Tasks with
+ * different keys run in parallel, up to a concurrency limit configured for each endpoint.
+ * This replaces a single global lock, so that unrelated requests such as an Instance ID
+ * registration and a subscription status refresh no longer wait for each other.
+ */
+public class KeyedExecutor {
+    private static final String TAG = "KeyedExecutor";
+
+    /**
+     * Limit used for endpoints that do not have an explicit limit.
+     */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final Executor executor;
+    private final Object lock = new Object();
+
+    /**
+     * Maximum number of concurrent tasks for each endpoint.
+     */
+    private final Map<String, Integer> endpointLimits = new HashMap<>();
+
+    /**
+     * Executor for each endpoint that does not use the default executor.
+     */
+    private final Map<String, Executor> endpointExecutors = new HashMap<>();
+
+    /**
+     * Tasks for each key. The head of the queue is running or waiting for an endpoint permit.
+     * A key is removed once its queue is empty.
+     */
+    private final Map<String, ArrayDeque<Task>> queues = new HashMap<>();
+
+    /**
+     * Keys whose next task is waiting for a permit on the given endpoint.
+     */
+    private final Map<String, ArrayDeque<String>> waitingKeys = new HashMap<>();
+
+    /**
+     * Number of running tasks for each endpoint.
+     */
+    private final Map<String, Integer> inFlight = new HashMap<>();
+
+    public KeyedExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public KeyedExecutor(Executor executor, Map<String, Integer> endpointLimits) {
+        this(executor);
+        for (Map.Entry<String, Integer> entry : endpointLimits.entrySet()) {
+            setEndpointLimit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Set the maximum number of tasks that may run at the same time for the endpoint.
+     * Raising the limit immediately starts tasks that were waiting for a permit.
+     */
+    public void setEndpointLimit(String endpoint, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Endpoint limit must be positive: " + limit);
+        }
+        List<Task> ready = new ArrayList<>();
+        synchronized (lock) {
+            endpointLimits.put(endpoint, limit);
+            startWaitingLocked(endpoint, ready);
+        }
+        dispatch(ready);
+    }
+
+    /**
+     * Run the tasks of the endpoint on the executor, e.g. one with a different priority.
+     */
+    public void setEndpointExecutor(String endpoint, Executor executor) {
+        synchronized (lock) {
+            endpointExecutors.put(endpoint, executor);
+        }
+    }
+
+    /**
+     * Run the task after all previously submitted tasks with the same key have completed.
+     * If the executor refuses the task, it is logged and dropped; use
+     * {@link #execute(String, String, Runnable, Runnable)} to handle the rejection.
+     *
+     * @param endpoint the endpoint used for concurrency limits
+     * @param key      the ordering key, for example the operation and SKU of a request
+     * @param runnable the work to run
+     */
+    public void execute(String endpoint, String key, Runnable runnable) {
+        execute(endpoint, key, runnable, null);
+    }
+
+    /**
+     * Run the task after all previously submitted tasks with the same key have completed.
+     * <p>
+     * The executor may refuse the task when it is started, which can be after this method
+     * returned, e.g. when its lane is full. The task then does not run; onRejected runs
+     * instead, on the thread that tried to start it, and the tasks behind it continue.
+     *
+     * @param endpoint   the endpoint used for concurrency limits
+     * @param key        the ordering key, for example the operation and SKU of a request
+     * @param runnable   the work to run
+     * @param onRejected optional handler for a task that the executor refused
+     */
+    public void execute(String endpoint, String key, Runnable runnable,
+                        @Nullable Runnable onRejected) {
+        Task task = new Task(endpoint, key, runnable, onRejected);
+        List<Task> ready = new ArrayList<>();
+        synchronized (lock) {
+            ArrayDeque<Task> queue = queues.get(key);
+            if (queue != null) {
+                // The key is busy. This task runs when the previous tasks finish.
+                queue.addLast(task);
+                return;
+            }
+            queue = new ArrayDeque<>();
+            queue.addLast(task);
+            queues.put(key, queue);
+            startOrWaitLocked(task, ready);
+        }
+        dispatch(ready);
+    }
+
+    /**
+     * Number of tasks that are currently running for the endpoint.
+     */
+    public int getInFlightCount(String endpoint) {
+        synchronized (lock) {
+            return getInFlightLocked(endpoint);
+        }
+    }
+
+    private void onTaskFinished(Task task) {
+        List<Task> ready = new ArrayList<>();
+        synchronized (lock) {
+            inFlight.put(task.endpoint, getInFlightLocked(task.endpoint) - 1);
+            ArrayDeque<Task> queue = queues.get(task.key);
+            queue.pollFirst();
+            // Let keys that were already waiting on this endpoint go first.
+            startWaitingLocked(task.endpoint, ready);
+            Task next = queue.peekFirst();
+            if (next == null) {
+                queues.remove(task.key);
+            } else {
+                startOrWaitLocked(next, ready);
+            }
+        }
+        dispatch(ready);
+    }
+
+    private void startOrWaitLocked(Task task, List<Task> ready) {
+        if (getInFlightLocked(task.endpoint) < getLimitLocked(task.endpoint)) {
+            inFlight.put(task.endpoint, getInFlightLocked(task.endpoint) + 1);
+            ready.add(task);
+        } else {
+            ArrayDeque<String> waiting = waitingKeys.get(task.endpoint);
+            if (waiting == null) {
+                waiting = new ArrayDeque<>();
+                waitingKeys.put(task.endpoint, waiting);
+            }
+            waiting.addLast(task.key);
+        }
+    }
+
+    private void startWaitingLocked(String endpoint, List<Task> ready) {
+        ArrayDeque<String> waiting = waitingKeys.get(endpoint);
+        while (waiting != null && !waiting.isEmpty()
+                && getInFlightLocked(endpoint) < getLimitLocked(endpoint)) {
+            Task next = queues.get(waiting.pollFirst()).peekFirst();
+            inFlight.put(endpoint, getInFlightLocked(endpoint) + 1);
+            ready.add(next);
+        }
+    }
+
+    private int getInFlightLocked(String endpoint) {
+        Integer count = inFlight.get(endpoint);
+        return count == null ? 0 : count;
+    }
+
+    private int getLimitLocked(String endpoint) {
+        Integer limit = endpointLimits.get(endpoint);
+        return limit == null ? UNLIMITED : limit;
+    }
+
+    private void dispatch(List<Task> ready) {
+        for (final Task task : ready) {
+            Executor target;
+            synchronized (lock) {
+                target = endpointExecutors.get(task.endpoint);
+            }
+            try {
+                (target == null ? executor : target).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.runnable.run();
+                        } finally {
+                            onTaskFinished(task);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Tell the owner of the task, and let the tasks behind it run.
+                try {
+                    if (task.onRejected != null) {
+                        Log.w(TAG, "Rejected task for " + task.key + ": " + e.getMessage());
+                        task.onRejected.run();
+                    } else {
+                        Log.e(TAG, "Dropping task for " + task.key + ": " + e.getMessage());
+                    }
+                } finally {
+                    onTaskFinished(task);
+                }
+            }
+        }
+    }
+
+    private static class Task {
+        final String endpoint;
+        final String key;
+        final Runnable runnable;
+        @Nullable
+        final Runnable onRejected;
+
+        Task(String endpoint, String key, Runnable runnable, @Nullable Runnable onRejected) {
+            this.endpoint = endpoint;
+            this.key = key;
+            this.runnable = runnable;
+            this.onRejected = onRejected;
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network;
+
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import com.sample.android.classytaxijava.AppExecutors;
+import com.sample.android.classytaxijava.PriorityExecutor.Priority;
+import com.sample.android.classytaxijava.data.SubscriptionBatchRequest;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.disk.LocalDataSource;
+import com.sample.android.classytaxijava.data.disk.OutboxEntry;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers server mutations durably.
+ * <p>
+ * Subscription registrations, transfers and Instance ID registrations are stored in the
+ * outbox before they are sent. The drainer replays pending entries in order, in batches read
+ * from the database, and removes each one once the server has processed it. Consecutive
+ * subscription entries are sent together in one batch request. When delivery fails,
+ * the drainer stops so that later entries do not overtake earlier ones, and tries again when
+ * connectivity returns or after a backoff delay.
+ * <p>
+ * The user waits for a purchase to be registered, so delivery runs in the
+ * {@link Priority#USER_BLOCKING} lane of the network executor.
+ */
+public class OutboxDrainer {
+    private static final String TAG = "OutboxDrainer";
+
+    /**
+     * Identifies the signed-in user, whose ID token is used to deliver the entries.
+     */
+    public interface UserIdSource {
+        @Nullable
+        String getUserId();
+    }
+
+    /**
+     * Stores the entries until they are delivered.
+     */
+    public interface Store {
+        /**
+         * Add entries in order.
+         *
+         * @param onAdded callback to run once the entries are stored
+         */
+        void add(List<OutboxEntry> entries, Runnable onAdded);
+
+        /**
+         * Returns the oldest pending entries of the user, in delivery order.
+         */
+        @WorkerThread
+        List<OutboxEntry> getPending(String userId, int limit);
+
+        @WorkerThread
+        void remove(List<OutboxEntry> entries);
+    }
+
+    /**
+     * Sends the entries to the server. Each call returns true, or one flag per purchase, if
+     * the server processed the request, and false if it should be sent again.
+     */
+    public interface Transport {
+        @WorkerThread
+        boolean registerSubscriptionSync(String sku, String purchaseToken);
+
+        @WorkerThread
+        boolean transferSubscriptionSync(String sku, String purchaseToken);
+
+        @WorkerThread
+        boolean[] registerSubscriptionsSync(SubscriptionBatchRequest request);
+
+        @WorkerThread
+        boolean registerInstanceIdSync(String instanceId);
+
+        @WorkerThread
+        boolean unregisterInstanceIdSync(String instanceId);
+    }
+
+    /**
+     * Number of entries read from the database at a time.
+     */
+    private static final int BATCH_SIZE = 20;
+
+    private static final long INITIAL_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private static volatile OutboxDrainer INSTANCE = null;
+
+    private final Store store;
+    private final Transport transport;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    private final Clock clock;
+    private final UserIdSource userIdSource;
+
+    private final Object lock = new Object();
+    private boolean running;
+    private boolean rerun;
+    private long retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+    @Nullable
+    private ScheduledFuture<?> scheduledRetry;
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public static OutboxDrainer getInstance(AppExecutors executors,
+                                            final LocalDataSource localDataSource,
+                                            WebDataSource webDataSource,
+                                            ConnectivityManager connectivityManager,
+                                            UserIdSource userIdSource) {
+        if (INSTANCE == null) {
+            synchronized (OutboxDrainer.class) {
+                if (INSTANCE == null) {
+                    Store store = new Store() {
+                        @Override
+                        public void add(List<OutboxEntry> entries, Runnable onAdded) {
+                            localDataSource.addToOutbox(entries, onAdded);
+                        }
+
+                        @Override
+                        public List<OutboxEntry> getPending(String userId, int limit) {
+                            return localDataSource.getOutboxEntries(userId, limit);
+                        }
+
+                        @Override
+                        public void remove(List<OutboxEntry> entries) {
+                            localDataSource.removeFromOutbox(entries);
+                        }
+                    };
+                    INSTANCE = new OutboxDrainer(store, webDataSource,
+                            executors.networkIO.forPriority(Priority.USER_BLOCKING, "outbox"),
+                            executors.scheduler, Clock.SYSTEM,
+                            userIdSource);
+                    INSTANCE.start(connectivityManager);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    @VisibleForTesting
+    OutboxDrainer(Store store, Transport transport, Executor executor,
+                  ScheduledExecutorService scheduler, Clock clock, UserIdSource userIdSource) {
+        this.store = store;
+        this.transport = transport;
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.userIdSource = userIdSource;
+    }
+
+    /**
+     * Deliver entries left over from earlier runs, and again whenever a network connects.
+     */
+    private void start(ConnectivityManager connectivityManager) {
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        connectivityManager.registerNetworkCallback(request,
+                new ConnectivityManager.NetworkCallback() {
+                    @Override
+                    public void onAvailable(Network network) {
+                        onNetworkAvailable();
+                    }
+                });
+        drain();
+    }
+
+    /**
+     * A network connected: start the backoff over and deliver right away.
+     */
+    @VisibleForTesting
+    void onNetworkAvailable() {
+        synchronized (lock) {
+            retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+        }
+        drain();
+    }
+
+    public void registerSubscription(String sku, String purchaseToken) {
+        enqueue(OutboxEntry.REGISTER_SUBSCRIPTION, sku, purchaseToken);
+    }
+
+    /**
+     * Register several subscriptions. They are stored together, so that they are delivered
+     * in one batch request.
+     */
+    public void registerSubscriptions(List<SubscriptionStatus> subscriptions) {
+        enqueueSubscriptions(OutboxEntry.REGISTER_SUBSCRIPTION, subscriptions);
+    }
+
+    public void transferSubscription(String sku, String purchaseToken) {
+        enqueue(OutboxEntry.TRANSFER_SUBSCRIPTION, sku, purchaseToken);
+    }
+
+    /**
+     * Transfer several subscriptions. They are stored together, so that they are delivered
+     * in one batch request.
+     */
+    public void transferSubscriptions(List<SubscriptionStatus> subscriptions) {
+        enqueueSubscriptions(OutboxEntry.TRANSFER_SUBSCRIPTION, subscriptions);
+    }
+
+    public void registerInstanceId(String instanceId) {
+        enqueue(OutboxEntry.REGISTER_INSTANCE_ID, "", instanceId);
+    }
+
+    /**
+     * Unregister the Instance ID right away. Unlike the other requests it is not kept in the
+     * outbox: it needs the ID token of the signed-in user, who is about to sign out, so it
+     * could not be delivered later.
+     *
+     * @param onComplete runs on a worker thread once the server answered or the request
+     *                   failed, after which the user can be signed out
+     */
+    public void unregisterInstanceId(final String instanceId, final Runnable onComplete) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!transport.unregisterInstanceIdSync(instanceId)) {
+                            Log.w(TAG, "Failed to unregister the Instance ID");
+                        }
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Failed to unregister the Instance ID", e);
+                    } finally {
+                        onComplete.run();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Unregister rejected: " + e.getMessage());
+            onComplete.run();
+        }
+    }
+
+    /**
+     * Deliver pending entries. If a pass is already running, another pass follows it.
+     * If the executor refuses the pass, it is retried after the backoff delay.
+     */
+    public void drain() {
+        synchronized (lock) {
+            if (running) {
+                rerun = true;
+                return;
+            }
+            running = true;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runDrain();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Drain rejected: " + e.getMessage());
+            synchronized (lock) {
+                running = false;
+                rerun = false;
+                scheduleRetryLocked();
+            }
+        }
+    }
+
+    private void enqueue(String operation, String sku, String purchaseToken) {
+        String userId = userIdSource.getUserId();
+        if (userId == null) {
+            Log.w(TAG, "No signed-in user, dropping " + operation);
+            return;
+        }
+        store.add(Collections.singletonList(OutboxEntry.create(operation,
+                sku, purchaseToken, userId, clock.currentTimeMillis())), drainRunnable);
+    }
+
+    private void enqueueSubscriptions(String operation, List<SubscriptionStatus> subscriptions) {
+        String userId = userIdSource.getUserId();
+        if (userId == null) {
+            Log.w(TAG, "No signed-in user, dropping " + operation);
+            return;
+        }
+        long now = clock.currentTimeMillis();
+        List<OutboxEntry> entries = new ArrayList<>();
+        for (SubscriptionStatus subscription : subscriptions) {
+            String sku = subscription.getSku();
+            String purchaseToken = subscription.getPurchaseToken();
+            if (sku != null && purchaseToken != null) {
+                entries.add(OutboxEntry.create(operation, sku, purchaseToken, userId, now));
+            }
+        }
+        if (!entries.isEmpty()) {
+            store.add(entries, drainRunnable);
+        }
+    }
+
+    private void runDrain() {
+        while (true) {
+            boolean complete;
+            try {
+                complete = drainPending();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to drain the outbox", e);
+                complete = false;
+            }
+            synchronized (lock) {
+                if (complete) {
+                    retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+                } else {
+                    scheduleRetryLocked();
+                }
+                if (!rerun) {
+                    running = false;
+                    return;
+                }
+                rerun = false;
+            }
+        }
+    }
+
+    /**
+     * Deliver the signed-in user's entries in order.
+     *
+     * @return true if the outbox is empty, false if delivery stopped at a failed entry
+     */
+    @WorkerThread
+    private boolean drainPending() {
+        String userId = userIdSource.getUserId();
+        if (userId == null) {
+            // Entries are delivered when their user signs in again, which starts a drain.
+            return true;
+        }
+        while (true) {
+            List<OutboxEntry> batch = store.getPending(userId, BATCH_SIZE);
+            if (batch.isEmpty()) {
+                return true;
+            }
+            List<OutboxEntry> delivered = new ArrayList<>();
+            boolean stopped = false;
+            int start = 0;
+            while (start < batch.size() && !stopped) {
+                int end = start + 1;
+                if (isSubscriptionEntry(batch.get(start))) {
+                    while (end < batch.size() && isSubscriptionEntry(batch.get(end))) {
+                        end++;
+                    }
+                }
+                List<OutboxEntry> run = batch.subList(start, end);
+                boolean[] processed = run.size() == 1
+                        ? new boolean[]{deliver(run.get(0))}
+                        : deliverSubscriptions(run);
+                for (int i = 0; i < run.size(); i++) {
+                    if (!processed[i]) {
+                        stopped = true;
+                        break;
+                    }
+                    delivered.add(run.get(i));
+                }
+                start = end;
+            }
+            if (!delivered.isEmpty()) {
+                store.remove(delivered);
+            }
+            if (stopped) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return true if the server processed the entry
+     */
+    @WorkerThread
+    private boolean deliver(OutboxEntry entry) {
+        Log.d(TAG, "Delivering " + entry);
+        switch (entry.getOperation()) {
+            case OutboxEntry.REGISTER_SUBSCRIPTION:
+                return transport.registerSubscriptionSync(
+                        entry.getSku(), entry.getPurchaseToken());
+            case OutboxEntry.TRANSFER_SUBSCRIPTION:
+                return transport.transferSubscriptionSync(
+                        entry.getSku(), entry.getPurchaseToken());
+            case OutboxEntry.REGISTER_INSTANCE_ID:
+                return transport.registerInstanceIdSync(entry.getPurchaseToken());
+            case OutboxEntry.UNREGISTER_INSTANCE_ID:
+                return transport.unregisterInstanceIdSync(entry.getPurchaseToken());
+            default:
+                Log.w(TAG, "Dropping unknown operation " + entry);
+                return true;
+        }
+    }
+
+    /**
+     * Send subscription entries in one request.
+     *
+     * @return one flag per entry, true if the server processed it
+     */
+    @WorkerThread
+    private boolean[] deliverSubscriptions(List<OutboxEntry> entries) {
+        Log.d(TAG, "Delivering " + entries.size() + " subscriptions");
+        SubscriptionBatchRequest request = new SubscriptionBatchRequest();
+        for (OutboxEntry entry : entries) {
+            request.add(entry.getSku(), entry.getPurchaseToken(),
+                    OutboxEntry.TRANSFER_SUBSCRIPTION.equals(entry.getOperation()));
+        }
+        return transport.registerSubscriptionsSync(request);
+    }
+
+    private static boolean isSubscriptionEntry(OutboxEntry entry) {
+        return OutboxEntry.REGISTER_SUBSCRIPTION.equals(entry.getOperation())
+                || OutboxEntry.TRANSFER_SUBSCRIPTION.equals(entry.getOperation());
+    }
+
+    private void scheduleRetryLocked() {
+        if (scheduledRetry != null && !scheduledRetry.isDone()) {
+            return;
+        }
+        Log.i(TAG, "Delivery failed, retrying in " + retryDelayMillis + " ms");
+        scheduledRetry = scheduler.schedule(drainRunnable, retryDelayMillis,
+                TimeUnit.MILLISECONDS);
+        retryDelayMillis = Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+    }
+}
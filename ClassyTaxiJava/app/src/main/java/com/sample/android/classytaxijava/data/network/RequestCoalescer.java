@@ -0,0 +1,255 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network;
+
+import androidx.annotation.Nullable;
+
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses repeated triggers for the same request into a single request.
+ * <p>
+ * Triggers that arrive within the debounce window are sent as one request. Triggers that
+ * arrive while the request is in flight join it instead of starting another one. Non-forced
+ * triggers are dropped while the last successful result is still fresh. Every caller is told
+ * the result of the request it was collapsed into.
+ */
+public class RequestCoalescer {
+
+    /**
+     * The request to send. Runs on the executor given to the coalescer.
+     */
+    public interface Request {
+        /**
+         * @return true if the request succeeded
+         */
+        boolean run();
+    }
+
+    /**
+     * Receives the result of the request that a trigger was collapsed into.
+     */
+    public interface Callback {
+        void onComplete(boolean success);
+    }
+
+    /**
+     * Sends the request on another thread. Unlike an {@link Executor}, it can report a request
+     * that it refuses after returning, e.g. one that was queued behind other tasks.
+     */
+    public interface Dispatcher {
+        /**
+         * @param task       sends the request
+         * @param onRejected runs instead of the task if the task is refused
+         */
+        void dispatch(Runnable task, Runnable onRejected);
+    }
+
+    private static final long NEVER = -1;
+
+    private final ScheduledExecutorService scheduler;
+    private final Dispatcher dispatcher;
+    private final Clock clock;
+    private final long debounceMillis;
+    private final long freshnessMillis;
+    private final Request request;
+
+    private final Object lock = new Object();
+    private boolean scheduled;
+    private boolean inFlight;
+    /**
+     * False when the in-flight request was invalidated and new triggers must not join it.
+     */
+    private boolean inFlightJoinable;
+    private List<Callback> scheduledCallbacks = new ArrayList<>();
+    private List<Callback> inFlightCallbacks = new ArrayList<>();
+    private long lastSuccessMillis = NEVER;
+
+    /**
+     * @param scheduler       timer used to wait for the debounce window
+     * @param executor        executor that sends the request. If it throws
+     *                        {@link RejectedExecutionException}, the request fails.
+     * @param clock           time source for the freshness window
+     * @param debounceMillis  time to wait for more triggers before sending the request
+     * @param freshnessMillis time after a successful request during which non-forced triggers
+     *                        are dropped
+     * @param request         the request to send
+     */
+    public RequestCoalescer(ScheduledExecutorService scheduler, final Executor executor,
+                            Clock clock, long debounceMillis, long freshnessMillis,
+                            Request request) {
+        this(scheduler, new Dispatcher() {
+            @Override
+            public void dispatch(Runnable task, Runnable onRejected) {
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    onRejected.run();
+                }
+            }
+        }, clock, debounceMillis, freshnessMillis, request);
+    }
+
+    /**
+     * @param scheduler       timer used to wait for the debounce window
+     * @param dispatcher      sends the request. A refused request fails.
+     * @param clock           time source for the freshness window
+     * @param debounceMillis  time to wait for more triggers before sending the request
+     * @param freshnessMillis time after a successful request during which non-forced triggers
+     *                        are dropped
+     * @param request         the request to send
+     */
+    public RequestCoalescer(ScheduledExecutorService scheduler, Dispatcher dispatcher,
+                            Clock clock, long debounceMillis, long freshnessMillis,
+                            Request request) {
+        this.scheduler = scheduler;
+        this.dispatcher = dispatcher;
+        this.clock = clock;
+        this.debounceMillis = debounceMillis;
+        this.freshnessMillis = freshnessMillis;
+        this.request = request;
+    }
+
+    /**
+     * Trigger the request.
+     *
+     * @param force    send the request even if the last result is still fresh
+     * @param callback optional callback for the result
+     */
+    public void request(boolean force, @Nullable Callback callback) {
+        boolean fresh = false;
+        boolean schedule = false;
+        synchronized (lock) {
+            if (inFlight && inFlightJoinable) {
+                // Join the request that is already on its way.
+                addCallback(inFlightCallbacks, callback);
+            } else if (scheduled) {
+                addCallback(scheduledCallbacks, callback);
+            } else if (!force && !inFlight && isFreshLocked()) {
+                fresh = true;
+            } else {
+                scheduled = true;
+                schedule = true;
+                addCallback(scheduledCallbacks, callback);
+            }
+        }
+        if (fresh) {
+            if (callback != null) {
+                callback.onComplete(true);
+            }
+        } else if (schedule) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    send();
+                }
+            }, debounceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Forget the last result. The next trigger sends a new request, even if a request is
+     * in flight. Use this when the previous result no longer applies, e.g. the user changed.
+     */
+    public void invalidate() {
+        synchronized (lock) {
+            lastSuccessMillis = NEVER;
+            inFlightJoinable = false;
+        }
+    }
+
+    /**
+     * Returns true if a request is waiting for its debounce window or is in flight.
+     */
+    public boolean isPending() {
+        synchronized (lock) {
+            return scheduled || inFlight;
+        }
+    }
+
+    /**
+     * Time of the last successful request according to {@link Clock#elapsedRealtime()},
+     * or -1 if there was none since the last {@link #invalidate()}.
+     */
+    public long getLastSuccessMillis() {
+        synchronized (lock) {
+            return lastSuccessMillis;
+        }
+    }
+
+    private void send() {
+        final List<Callback> callbacks;
+        synchronized (lock) {
+            scheduled = false;
+            inFlight = true;
+            inFlightJoinable = true;
+            callbacks = scheduledCallbacks;
+            scheduledCallbacks = new ArrayList<>();
+            inFlightCallbacks = callbacks;
+        }
+        dispatcher.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                try {
+                    success = request.run();
+                } finally {
+                    finish(callbacks, success);
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                // Fail the callers, so that the next trigger sends a new request.
+                finish(callbacks, false);
+            }
+        });
+    }
+
+    private void finish(List<Callback> callbacks, boolean success) {
+        synchronized (lock) {
+            if (inFlightCallbacks == callbacks) {
+                inFlight = false;
+                inFlightCallbacks = new ArrayList<>();
+                if (success && inFlightJoinable) {
+                    lastSuccessMillis = clock.elapsedRealtime();
+                }
+            }
+        }
+        for (Callback callback : callbacks) {
+            callback.onComplete(success);
+        }
+    }
+
+    private boolean isFreshLocked() {
+        return lastSuccessMillis != NEVER
+                && clock.elapsedRealtime() - lastSuccessMillis < freshnessMillis;
+    }
+
+    private static void addCallback(List<Callback> callbacks, @Nullable Callback callback) {
+        if (callback != null) {
+            callbacks.add(callback);
+        }
+    }
+}
@@ -16,40 +16,149 @@
 
 package com.sample.android.classytaxijava.data.network;
 
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.lifecycle.LiveData;
 
 import com.sample.android.classytaxijava.AppExecutors;
+import com.sample.android.classytaxijava.PriorityExecutor;
+import com.sample.android.classytaxijava.PriorityExecutor.Priority;
 import com.sample.android.classytaxijava.data.ContentResource;
+import com.sample.android.classytaxijava.data.SubscriptionBatchRequest;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.SubscriptionStatusList;
 import com.sample.android.classytaxijava.data.network.firebase.ServerFunctions;
+import com.sample.android.classytaxijava.data.network.retrofit.SubscriptionStatusApiCall;
+import com.sample.android.classytaxijava.utils.Clock;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Executor;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * Execute network requests on the network thread.
  * Fetch data from a {@link ServerFunctions} object and expose with {@link #getSubscriptions()}.
+ * <p>
+ * Fetches are ordered by a {@link KeyedExecutor}, so that unrelated requests run in parallel.
+ * Each endpoint runs in a lane of the network executor, see {@link #ENDPOINT_PRIORITIES}.
+ * Mutations such as subscription registration run synchronously; they are queued and
+ * delivered in order by the {@link OutboxDrainer}.
  */
-public class WebDataSource {
+public class WebDataSource implements OutboxDrainer.Transport {
+    /**
+     * Provides the cursor of the stored subscriptions for delta sync.
+     */
+    public interface SyncCursorSource {
+        /**
+         * @param userId the user the request is issued for
+         * @return the cursor of the user, or null to request the full list
+         */
+        @WorkerThread
+        @Nullable
+        String getSyncCursor(@Nullable String userId);
+    }
+
+    /**
+     * Default number of concurrent requests for each endpoint.
+     * Endpoints that are not listed are limited only by the network thread pool.
+     */
+    public static final Map<String, Integer> DEFAULT_ENDPOINT_LIMITS;
+
+    static {
+        Map<String, Integer> limits = new HashMap<>();
+        limits.put(SubscriptionStatusApiCall.SUBSCRIPTION_STATUS, 1);
+        limits.put(SubscriptionStatusApiCall.BASIC_CONTENT, 1);
+        limits.put(SubscriptionStatusApiCall.PREMIUM_CONTENT, 1);
+        DEFAULT_ENDPOINT_LIMITS = Collections.unmodifiableMap(limits);
+    }
+
+    /**
+     * Priority of the requests to each endpoint. Content is fetched ahead of time, so it
+     * yields to subscription status, which the user sees. Endpoints that are not listed run
+     * as {@link Priority#USER_VISIBLE}.
+     */
+    public static final Map<String, Priority> ENDPOINT_PRIORITIES;
+
+    static {
+        Map<String, Priority> priorities = new HashMap<>();
+        priorities.put(SubscriptionStatusApiCall.SUBSCRIPTION_STATUS, Priority.USER_VISIBLE);
+        priorities.put(SubscriptionStatusApiCall.BASIC_CONTENT, Priority.BACKGROUND);
+        priorities.put(SubscriptionStatusApiCall.PREMIUM_CONTENT, Priority.BACKGROUND);
+        ENDPOINT_PRIORITIES = Collections.unmodifiableMap(priorities);
+    }
+
+    /**
+     * Time to wait for more subscription status triggers before sending the request.
+     */
+    private static final long SUBSCRIPTION_STATUS_DEBOUNCE_MILLIS = 300;
+
+    /**
+     * Time after a successful subscription status request during which
+     * non-forced refreshes are skipped.
+     */
+    private static final long SUBSCRIPTION_STATUS_FRESHNESS_MILLIS = 30_000;
+
     private static volatile WebDataSource INSTANCE = null;
-    private Executor executor;
+    private final KeyedExecutor executor;
     private ServerFunctions serverFunctions;
+    private final RequestCoalescer subscriptionStatusRequest;
+    @Nullable
+    private volatile SyncCursorSource syncCursorSource;
+    @Nullable
+    private volatile OutboxDrainer.UserIdSource userIdSource;
 
     public static WebDataSource getInstance(AppExecutors executors,
                                             ServerFunctions callableFunctions) {
         if (INSTANCE == null) {
             synchronized (WebDataSource.class) {
                 if (INSTANCE == null) {
-                    INSTANCE = new WebDataSource(executors.networkIO, callableFunctions);
+                    INSTANCE = new WebDataSource(executors.networkIO, executors.scheduler,
+                            callableFunctions);
                 }
             }
         }
         return INSTANCE;
     }
 
-    private WebDataSource(Executor executor, ServerFunctions serverFunctions) {
-        this.executor = executor;
+    private WebDataSource(PriorityExecutor executor, ScheduledExecutorService scheduler,
+                          ServerFunctions serverFunctions) {
+        this.executor = new KeyedExecutor(executor, DEFAULT_ENDPOINT_LIMITS);
+        for (Map.Entry<String, Priority> entry : ENDPOINT_PRIORITIES.entrySet()) {
+            this.executor.setEndpointExecutor(entry.getKey(),
+                    executor.forPriority(entry.getValue(), entry.getKey()));
+        }
         this.serverFunctions = serverFunctions;
+        final String endpoint = SubscriptionStatusApiCall.SUBSCRIPTION_STATUS;
+        this.subscriptionStatusRequest = new RequestCoalescer(scheduler,
+                new RequestCoalescer.Dispatcher() {
+                    @Override
+                    public void dispatch(Runnable task, Runnable onRejected) {
+                        WebDataSource.this.executor.execute(endpoint, endpoint, task,
+                                onRejected);
+                    }
+                }, Clock.SYSTEM, SUBSCRIPTION_STATUS_DEBOUNCE_MILLIS,
+                SUBSCRIPTION_STATUS_FRESHNESS_MILLIS,
+                new RequestCoalescer.Request() {
+                    @Override
+                    public boolean run() {
+                        String userId = getUserId();
+                        SyncCursorSource source = syncCursorSource;
+                        return WebDataSource.this.serverFunctions.updateSubscriptionStatus(
+                                userId, source == null ? null : source.getSyncCursor(userId));
+                    }
+                });
+    }
+
+    /**
+     * Change the number of concurrent requests allowed for an endpoint.
+     *
+     * @param endpoint one of the endpoints in {@link SubscriptionStatusApiCall}
+     * @param limit    maximum number of concurrent requests
+     */
+    public void setEndpointLimit(String endpoint, int limit) {
+        executor.setEndpointLimit(endpoint, limit);
     }
 
     /**
@@ -63,6 +172,35 @@ public class WebDataSource {
         return serverFunctions.getSubscriptions();
     }
 
+    /**
+     * Results of subscription status requests, either full lists or deltas.
+     */
+    public LiveData<SubscriptionStatusList> getSubscriptionSync() {
+        return serverFunctions.getSubscriptionSync();
+    }
+
+    /**
+     * Set the source of the cursor sent with subscription status requests.
+     * Without a source, every request fetches the full list.
+     */
+    public void setSyncCursorSource(@Nullable SyncCursorSource source) {
+        this.syncCursorSource = source;
+    }
+
+    /**
+     * Set the source of the user that requests are issued for. Results carry this user, so
+     * that results that arrive after the user changed can be dropped.
+     */
+    public void setUserIdSource(@Nullable OutboxDrainer.UserIdSource source) {
+        this.userIdSource = source;
+    }
+
+    @Nullable
+    private String getUserId() {
+        OutboxDrainer.UserIdSource source = userIdSource;
+        return source == null ? null : source.getUserId();
+    }
+
     public LiveData<ContentResource> getBasicContent() {
         return serverFunctions.getBasicContent();
     }
@@ -71,81 +209,168 @@ public class WebDataSource {
         return serverFunctions.getPremiumContent();
     }
 
+    /**
+     * GET request for basic content.
+     */
     public void updateBasicContent() {
-        serverFunctions.updateBasicContent();
-    }
-
-    public void updatePremiumContent() {
-        serverFunctions.updatePremiumContent();
+        updateBasicContent(null);
     }
 
     /**
-     * GET request for subscription status.
+     * GET request for basic content.
+     *
+     * @param callback optional callback, run on the network thread. Succeeds if the server
+     *                 returned the content or reported it unchanged.
      */
-    public void updateSubscriptionStatus() {
-        executor.execute(new Runnable() {
+    public void updateBasicContent(@Nullable final RequestCoalescer.Callback callback) {
+        final String endpoint = SubscriptionStatusApiCall.BASIC_CONTENT;
+        executor.execute(endpoint, endpoint, new Runnable() {
             @Override
             public void run() {
-                synchronized (WebDataSource.class) {
-                    serverFunctions.updateSubscriptionStatus();
+                boolean success = serverFunctions.updateBasicContent(getUserId());
+                if (callback != null) {
+                    callback.onComplete(success);
                 }
             }
-        });
+        }, rejectionCallback(callback));
     }
 
     /**
-     * POST request to register subscription.
+     * GET request for premium content.
      */
-    public void registerSubscription(final String sku, final String purchaseToken) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (WebDataSource.class) {
-                    serverFunctions.registerSubscription(sku, purchaseToken);
-                }
-            }
-        });
+    public void updatePremiumContent() {
+        updatePremiumContent(null);
     }
 
     /**
-     * POST request to transfer a subscription that is owned by someone else.
+     * GET request for premium content.
+     *
+     * @param callback optional callback, run on the network thread. Succeeds if the server
+     *                 returned the content or reported it unchanged.
      */
-    public void postTransferSubscriptionSync(final String sku, final String purchaseToken) {
-        executor.execute(new Runnable() {
+    public void updatePremiumContent(@Nullable final RequestCoalescer.Callback callback) {
+        final String endpoint = SubscriptionStatusApiCall.PREMIUM_CONTENT;
+        executor.execute(endpoint, endpoint, new Runnable() {
             @Override
             public void run() {
-                synchronized (WebDataSource.class) {
-                    serverFunctions.transferSubscription(sku, purchaseToken);
+                boolean success = serverFunctions.updatePremiumContent(getUserId());
+                if (callback != null) {
+                    callback.onComplete(success);
                 }
             }
-        });
+        }, rejectionCallback(callback));
     }
 
     /**
-     * POST request to register an Instance ID.
+     * Fails the callback of a request that the network executor refused.
      */
-    public void postRegisterInstanceId(final String instanceId) {
-        executor.execute(new Runnable() {
+    private static Runnable rejectionCallback(@Nullable final RequestCoalescer.Callback callback) {
+        return new Runnable() {
             @Override
             public void run() {
-                synchronized (WebDataSource.class) {
-                    serverFunctions.registerInstanceId(instanceId);
+                if (callback != null) {
+                    callback.onComplete(false);
                 }
             }
-        });
+        };
     }
 
     /**
-     * POST request to unregister an Instance ID.
+     * GET request for subscription status.
+     * <p>
+     * Skipped if the last successful result is still fresh.
      */
-    public void postUnregisterInstanceId(final String instanceId) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (WebDataSource.class) {
-                    serverFunctions.unregisterInstanceId(instanceId);
-                }
-            }
-        });
+    public void updateSubscriptionStatus() {
+        updateSubscriptionStatus(false, null);
+    }
+
+    /**
+     * GET request for subscription status.
+     * <p>
+     * Triggers that arrive close together, or while a request is in flight, share a single
+     * request. The result is posted to {@link #getSubscriptionSync()}. If a
+     * {@link SyncCursorSource} is set, only the changes since its cursor are requested.
+     *
+     * @param force    send the request even if the last successful result is still fresh
+     * @param callback optional callback for the result of the shared request
+     */
+    public void updateSubscriptionStatus(boolean force,
+                                         @Nullable RequestCoalescer.Callback callback) {
+        subscriptionStatusRequest.request(force, callback);
+    }
+
+    /**
+     * Forget the last subscription status result, e.g. when the user changes.
+     * The next refresh goes to the server and does not join a request that is in flight.
+     * Results of requests in flight carry the user they were issued for, so the caller can
+     * drop them.
+     */
+    public void invalidateSubscriptionStatus() {
+        subscriptionStatusRequest.invalidate();
+    }
+
+    /**
+     * Forget cached server responses, e.g. when the user changes.
+     */
+    public void clearCachedResponses() {
+        serverFunctions.clearCachedResponses();
+    }
+
+    /**
+     * PUT request to register a subscription. Runs on the calling thread.
+     *
+     * @return true if the server processed the request, false if it should be sent again
+     */
+    @WorkerThread
+    @Override
+    public boolean registerSubscriptionSync(String sku, String purchaseToken) {
+        return serverFunctions.registerSubscription(sku, purchaseToken);
+    }
+
+    /**
+     * PUT request to transfer a subscription that is owned by someone else.
+     * Runs on the calling thread.
+     *
+     * @return true if the server processed the request, false if it should be sent again
+     */
+    @WorkerThread
+    @Override
+    public boolean transferSubscriptionSync(String sku, String purchaseToken) {
+        return serverFunctions.transferSubscription(sku, purchaseToken);
+    }
+
+    /**
+     * PUT request to register or transfer several subscriptions at once.
+     * Runs on the calling thread.
+     *
+     * @return one flag per purchase, in request order: true if the server processed the
+     * purchase, false if it should be sent again
+     */
+    @WorkerThread
+    @Override
+    public boolean[] registerSubscriptionsSync(SubscriptionBatchRequest request) {
+        return serverFunctions.registerSubscriptions(request);
+    }
+
+    /**
+     * PUT request to register an Instance ID. Runs on the calling thread.
+     *
+     * @return true if the server processed the request, false if it should be sent again
+     */
+    @WorkerThread
+    @Override
+    public boolean registerInstanceIdSync(String instanceId) {
+        return serverFunctions.registerInstanceId(instanceId);
+    }
+
+    /**
+     * PUT request to unregister an Instance ID. Runs on the calling thread.
+     *
+     * @return true if the server processed the request, false if it should be sent again
+     */
+    @WorkerThread
+    @Override
+    public boolean unregisterInstanceIdSync(String instanceId) {
+        return serverFunctions.unregisterInstanceId(instanceId);
     }
 }
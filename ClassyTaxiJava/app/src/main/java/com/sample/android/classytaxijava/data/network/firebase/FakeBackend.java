@@ -0,0 +1,638 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.firebase;
+
+import com.sample.android.classytaxijava.Constants;
+import com.sample.android.classytaxijava.data.SubscriptionBatchRequest;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.network.retrofit.ResilientCallExecutor;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Simulated subscription backend behind {@link FakeServerFunctions}.
+ * <p>
+ * The backend has {@link Config#getUserCount()} users, each created on first use with
+ * {@link Config#getSubscriptionsPerUser()} subscriptions in a mix of states. Every request
+ * waits for a simulated latency, and may fail or, for registrations, be answered with
+ * HTTP 409 CONFLICT. Between status requests, subscriptions change state at the configured
+ * churn rate, so that delta syncs have changes to return.
+ * <p>
+ * All randomness derives from the seed. Each user has their own random sequence, so a user
+ * sees the same states, latencies, errors and conflicts no matter how requests of different
+ * users interleave. Requests of the same user must be made in the same order to be
+ * reproduced.
+ */
+public class FakeBackend {
+    /**
+     * Prefix of the IDs of simulated users, see {@link #userId(int)}.
+     */
+    private static final String USER_PREFIX = "fake-user-";
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * States a simulated subscription can be in.
+     */
+    public enum State {
+        /**
+         * Entitled and renewing.
+         */
+        ACTIVE,
+        /**
+         * Canceled, but entitled until the end of the period.
+         */
+        NOT_RENEWING,
+        /**
+         * Payment failed, still entitled for a few days.
+         */
+        GRACE_PERIOD,
+        /**
+         * Payment failed, not entitled until the payment is fixed.
+         */
+        ACCOUNT_HOLD,
+        /**
+         * Paused by the user until the auto-resume time.
+         */
+        PAUSED,
+        /**
+         * Ended. Not entitled and not renewing.
+         */
+        EXPIRED
+    }
+
+    /**
+     * Immutable configuration of the simulated backend. Create one with {@link Builder}.
+     */
+    public static class Config {
+        private final long seed;
+        private final int userCount;
+        private final int subscriptionsPerUser;
+        private final Map<State, Integer> stateWeights;
+        private final long minLatencyMillis;
+        private final long maxLatencyMillis;
+        private final double errorRate;
+        private final double conflictRate;
+        private final double churnRate;
+
+        private Config(Builder builder) {
+            this.seed = builder.seed;
+            this.userCount = builder.userCount;
+            this.subscriptionsPerUser = builder.subscriptionsPerUser;
+            this.stateWeights = new EnumMap<>(builder.stateWeights);
+            this.minLatencyMillis = builder.minLatencyMillis;
+            this.maxLatencyMillis = builder.maxLatencyMillis;
+            this.errorRate = builder.errorRate;
+            this.conflictRate = builder.conflictRate;
+            this.churnRate = builder.churnRate;
+        }
+
+        public long getSeed() {
+            return seed;
+        }
+
+        public int getUserCount() {
+            return userCount;
+        }
+
+        public int getSubscriptionsPerUser() {
+            return subscriptionsPerUser;
+        }
+
+        public long getMinLatencyMillis() {
+            return minLatencyMillis;
+        }
+
+        public long getMaxLatencyMillis() {
+            return maxLatencyMillis;
+        }
+
+        public double getErrorRate() {
+            return errorRate;
+        }
+
+        public double getConflictRate() {
+            return conflictRate;
+        }
+
+        public double getChurnRate() {
+            return churnRate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "seed=%d users=%d subscriptions=%d states=%s "
+                            + "latencyMs=%d-%d errorRate=%.3f conflictRate=%.3f churnRate=%.3f",
+                    seed, userCount, subscriptionsPerUser, stateWeights, minLatencyMillis,
+                    maxLatencyMillis, errorRate, conflictRate, churnRate);
+        }
+
+        /**
+         * Builds a {@link Config}. The defaults describe a single user with one subscription
+         * that changes on every status request, answered instantly and without errors.
+         */
+        public static class Builder {
+            private long seed = 0;
+            private int userCount = 1;
+            private int subscriptionsPerUser = 1;
+            private final Map<State, Integer> stateWeights = new EnumMap<>(State.class);
+            private long minLatencyMillis = 0;
+            private long maxLatencyMillis = 0;
+            private double errorRate = 0;
+            private double conflictRate = 0;
+            private double churnRate = 1;
+
+            public Builder() {
+                stateWeights.put(State.ACTIVE, 60);
+                stateWeights.put(State.NOT_RENEWING, 12);
+                stateWeights.put(State.GRACE_PERIOD, 6);
+                stateWeights.put(State.ACCOUNT_HOLD, 6);
+                stateWeights.put(State.PAUSED, 6);
+                stateWeights.put(State.EXPIRED, 10);
+            }
+
+            public Builder setSeed(long seed) {
+                this.seed = seed;
+                return this;
+            }
+
+            public Builder setUserCount(int userCount) {
+                if (userCount < 1) {
+                    throw new IllegalArgumentException("userCount must be positive");
+                }
+                this.userCount = userCount;
+                return this;
+            }
+
+            public Builder setSubscriptionsPerUser(int subscriptionsPerUser) {
+                if (subscriptionsPerUser < 0) {
+                    throw new IllegalArgumentException("Negative subscriptionsPerUser");
+                }
+                this.subscriptionsPerUser = subscriptionsPerUser;
+                return this;
+            }
+
+            /**
+             * Set how often a state is picked, relative to the weights of the other states.
+             */
+            public Builder setStateWeight(State state, int weight) {
+                if (weight < 0) {
+                    throw new IllegalArgumentException("weight must not be negative");
+                }
+                stateWeights.put(state, weight);
+                return this;
+            }
+
+            /**
+             * Latencies are picked uniformly between the minimum and the maximum.
+             */
+            public Builder setLatencyMillis(long minLatencyMillis, long maxLatencyMillis) {
+                if (minLatencyMillis < 0 || maxLatencyMillis < minLatencyMillis) {
+                    throw new IllegalArgumentException("Invalid latency range");
+                }
+                this.minLatencyMillis = minLatencyMillis;
+                this.maxLatencyMillis = maxLatencyMillis;
+                return this;
+            }
+
+            /**
+             * Fraction of requests that fail as if the server or the network were down.
+             */
+            public Builder setErrorRate(double errorRate) {
+                this.errorRate = checkRate(errorRate);
+                return this;
+            }
+
+            /**
+             * Fraction of registrations answered with HTTP 409 CONFLICT, in addition to
+             * registrations of purchases that another user owns.
+             */
+            public Builder setConflictRate(double conflictRate) {
+                this.conflictRate = checkRate(conflictRate);
+                return this;
+            }
+
+            /**
+             * Probability that one of the user's subscriptions changes state before a status
+             * request is answered.
+             */
+            public Builder setChurnRate(double churnRate) {
+                this.churnRate = checkRate(churnRate);
+                return this;
+            }
+
+            public Config build() {
+                int totalWeight = 0;
+                for (int weight : stateWeights.values()) {
+                    totalWeight += weight;
+                }
+                if (totalWeight == 0) {
+                    throw new IllegalArgumentException("At least one state needs a weight");
+                }
+                return new Config(this);
+            }
+
+            private static double checkRate(double rate) {
+                if (rate < 0 || rate > 1) {
+                    throw new IllegalArgumentException("Rates must be between 0 and 1");
+                }
+                return rate;
+            }
+        }
+    }
+
+    private final Config config;
+    private final Clock clock;
+    private final ResilientCallExecutor.Sleeper sleeper;
+
+    private final Map<Integer, SimulatedUser> users = new HashMap<>();
+    /**
+     * User index of the owner of each purchase token.
+     */
+    private final Map<String, Integer> owners = new HashMap<>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong conflictCount = new AtomicLong();
+    private final AtomicLong changeCount = new AtomicLong();
+    private final AtomicLong latencyMillis = new AtomicLong();
+
+    public FakeBackend(Config config) {
+        this(config, Clock.SYSTEM, ResilientCallExecutor.Sleeper.THREAD);
+    }
+
+    public FakeBackend(Config config, Clock clock, ResilientCallExecutor.Sleeper sleeper) {
+        this.config = config;
+        this.clock = clock;
+        this.sleeper = sleeper;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns the ID of a simulated user. Other user IDs, such as Firebase UIDs, are mapped to
+     * a simulated user by their hash.
+     */
+    public static String userId(int index) {
+        return USER_PREFIX + index;
+    }
+
+    /**
+     * Fetch the subscriptions of a user.
+     *
+     * @param changes true if subscriptions may change state first, as they do between status
+     *                requests
+     * @return a copy of the subscriptions, or null if the request failed
+     */
+    @Nullable
+    public List<SubscriptionStatus> fetchSubscriptions(String userId, boolean changes) {
+        SimulatedUser user = getUser(userId);
+        List<SubscriptionStatus> result;
+        Request request;
+        synchronized (user) {
+            request = newRequest(user);
+            if (request.failed) {
+                result = null;
+            } else {
+                if (changes && user.random.nextDouble() < config.churnRate
+                        && !user.subscriptions.isEmpty()) {
+                    SubscriptionStatus subscription = user.subscriptions.get(
+                            user.random.nextInt(user.subscriptions.size()));
+                    applyState(user.random, subscription, pickState(user.random));
+                    changeCount.incrementAndGet();
+                }
+                result = copy(user.subscriptions);
+            }
+        }
+        await(request);
+        return result;
+    }
+
+    /**
+     * Returns a copy of the current subscriptions of a user, the way the server reads them
+     * while it answers a request. No latency, errors or changes are simulated.
+     */
+    public List<SubscriptionStatus> getSubscriptions(String userId) {
+        SimulatedUser user = getUser(userId);
+        synchronized (user) {
+            return copy(user.subscriptions);
+        }
+    }
+
+    /**
+     * Register or transfer purchases to a user. A registration is answered with an already
+     * owned subscription if another user owns the purchase, or at the configured conflict
+     * rate. A transfer always moves the purchase to the user.
+     *
+     * @return one subscription per purchase, in request order, or null if the request failed
+     */
+    @Nullable
+    public List<SubscriptionStatus> register(String userId, SubscriptionBatchRequest request) {
+        SimulatedUser user = getUser(userId);
+        List<SubscriptionStatus> results = new ArrayList<>();
+        // Purchases taken over from other users, removed once this user's lock is released.
+        Map<String, Integer> previousOwners = new HashMap<>();
+        Request simulated;
+        synchronized (user) {
+            simulated = newRequest(user);
+            if (!simulated.failed) {
+                for (SubscriptionBatchRequest.Purchase purchase : request.getPurchases()) {
+                    results.add(registerLocked(user, purchase, previousOwners));
+                }
+            }
+        }
+        for (Map.Entry<String, Integer> entry : previousOwners.entrySet()) {
+            SimulatedUser previous = getUser(entry.getValue());
+            synchronized (previous) {
+                removeByToken(previous.subscriptions, entry.getKey());
+            }
+        }
+        await(simulated);
+        return simulated.failed ? null : results;
+    }
+
+    /**
+     * A request without a result, such as an Instance ID registration.
+     *
+     * @return false if the request failed
+     */
+    public boolean call(String userId) {
+        SimulatedUser user = getUser(userId);
+        Request request;
+        synchronized (user) {
+            request = newRequest(user);
+        }
+        await(request);
+        return !request.failed;
+    }
+
+    /**
+     * Counts of simulated requests and their outcomes. As text, for debugging.
+     */
+    public String dump() {
+        long requests = requestCount.get();
+        return String.format(Locale.US, "fake backend: %s%nrequests=%d errors=%d "
+                        + "conflicts=%d changes=%d meanLatencyMs=%.1f",
+                config, requests, errorCount.get(), conflictCount.get(), changeCount.get(),
+                requests == 0 ? 0.0 : (double) latencyMillis.get() / requests);
+    }
+
+    private SubscriptionStatus registerLocked(SimulatedUser user,
+                                              SubscriptionBatchRequest.Purchase purchase,
+                                              Map<String, Integer> previousOwners) {
+        String purchaseToken = purchase.getPurchaseToken();
+        Integer owner;
+        synchronized (owners) {
+            owner = owners.get(purchaseToken);
+            boolean conflict = !purchase.isTransfer()
+                    && ((owner != null && owner != user.index)
+                    || user.random.nextDouble() < config.conflictRate);
+            if (conflict) {
+                conflictCount.incrementAndGet();
+                return createAlreadyOwnedSubscription(purchase.getSku(), purchaseToken);
+            }
+            owners.put(purchaseToken, user.index);
+        }
+        if (owner != null && owner != user.index) {
+            previousOwners.put(purchaseToken, owner);
+        }
+        removeByToken(user.subscriptions, purchaseToken);
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        subscription.setSku(purchase.getSku());
+        subscription.setPurchaseToken(purchaseToken);
+        applyState(user.random, subscription, State.ACTIVE);
+        user.subscriptions.add(subscription);
+        return copy(subscription);
+    }
+
+    private SimulatedUser getUser(String userId) {
+        int index = -1;
+        if (userId.startsWith(USER_PREFIX)) {
+            try {
+                index = Integer.parseInt(userId.substring(USER_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                index = -1;
+            }
+        }
+        if (index < 0 || index >= config.userCount) {
+            index = (userId.hashCode() & Integer.MAX_VALUE) % config.userCount;
+        }
+        return getUser(index);
+    }
+
+    private SimulatedUser getUser(int index) {
+        SimulatedUser user;
+        synchronized (users) {
+            user = users.get(index);
+            if (user == null) {
+                user = new SimulatedUser(index);
+                users.put(index, user);
+            }
+        }
+        return user;
+    }
+
+    private Request newRequest(SimulatedUser user) {
+        long latency = config.minLatencyMillis;
+        if (config.maxLatencyMillis > config.minLatencyMillis) {
+            latency += (long) (user.random.nextDouble()
+                    * (config.maxLatencyMillis - config.minLatencyMillis + 1));
+        }
+        boolean failed = user.random.nextDouble() < config.errorRate;
+        requestCount.incrementAndGet();
+        latencyMillis.addAndGet(latency);
+        if (failed) {
+            errorCount.incrementAndGet();
+        }
+        return new Request(latency, failed);
+    }
+
+    /**
+     * Wait for the simulated latency, outside of the user's lock so that concurrent requests
+     * of the same user overlap like real requests do.
+     */
+    private void await(Request request) {
+        if (request.latencyMillis <= 0) {
+            return;
+        }
+        try {
+            sleeper.sleep(request.latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private State pickState(Random random) {
+        int totalWeight = 0;
+        for (int weight : config.stateWeights.values()) {
+            totalWeight += weight;
+        }
+        int value = random.nextInt(totalWeight);
+        for (Map.Entry<State, Integer> entry : config.stateWeights.entrySet()) {
+            value -= entry.getValue();
+            if (value < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("No state picked");
+    }
+
+    /**
+     * Set the fields of a subscription for a state, the way the server reports it.
+     */
+    private void applyState(Random random, SubscriptionStatus subscription, State state) {
+        long now = clock.currentTimeMillis();
+        long days = 1 + random.nextInt(30);
+        subscription.setSubAlreadyOwned(false);
+        subscription.setEntitlementActive(false);
+        subscription.setWillRenew(true);
+        subscription.setGracePeriod(false);
+        subscription.setAccountHold(false);
+        subscription.setPaused(false);
+        subscription.setAutoResumeTimeMillis(null);
+        switch (state) {
+            case ACTIVE:
+                subscription.setEntitlementActive(true);
+                subscription.setActiveUntilMillisec(now + days * DAY_MILLIS);
+                break;
+            case NOT_RENEWING:
+                subscription.setEntitlementActive(true);
+                subscription.setWillRenew(false);
+                subscription.setActiveUntilMillisec(now + days * DAY_MILLIS);
+                break;
+            case GRACE_PERIOD:
+                subscription.setEntitlementActive(true);
+                subscription.setGracePeriod(true);
+                subscription.setActiveUntilMillisec(now + (days % 7 + 1) * DAY_MILLIS);
+                break;
+            case ACCOUNT_HOLD:
+                subscription.setAccountHold(true);
+                subscription.setActiveUntilMillisec(now - days * DAY_MILLIS);
+                break;
+            case PAUSED:
+                subscription.setPaused(true);
+                subscription.setActiveUntilMillisec(now - DAY_MILLIS);
+                subscription.setAutoResumeTimeMillis(now + days * DAY_MILLIS);
+                break;
+            case EXPIRED:
+                subscription.setWillRenew(false);
+                subscription.setActiveUntilMillisec(now - days * DAY_MILLIS);
+                break;
+        }
+    }
+
+    /**
+     * Create a local record of a subscription that is already owned by someone else.
+     * Created when the server returns HTTP 409 CONFLICT after a subscription registration request.
+     */
+    private static SubscriptionStatus createAlreadyOwnedSubscription(String sku,
+                                                                     String purchaseToken) {
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        subscription.setSku(sku);
+        subscription.setPurchaseToken(purchaseToken);
+        subscription.setEntitlementActive(false);
+        subscription.setSubAlreadyOwned(true);
+        return subscription;
+    }
+
+    private static void removeByToken(List<SubscriptionStatus> subscriptions,
+                                      String purchaseToken) {
+        for (int i = subscriptions.size() - 1; i >= 0; i--) {
+            if (purchaseToken.equals(subscriptions.get(i).getPurchaseToken())) {
+                subscriptions.remove(i);
+            }
+        }
+    }
+
+    private static List<SubscriptionStatus> copy(List<SubscriptionStatus> subscriptions) {
+        List<SubscriptionStatus> copies = new ArrayList<>();
+        for (SubscriptionStatus subscription : subscriptions) {
+            copies.add(copy(subscription));
+        }
+        return copies;
+    }
+
+    /**
+     * Responses must not share objects with the backend, since the app modifies them.
+     */
+    private static SubscriptionStatus copy(SubscriptionStatus subscription) {
+        SubscriptionStatus copy = new SubscriptionStatus();
+        copy.setSku(subscription.getSku());
+        copy.setPurchaseToken(subscription.getPurchaseToken());
+        copy.setEntitlementActive(subscription.isEntitlementActive());
+        copy.setWillRenew(subscription.isWillRenew());
+        copy.setActiveUntilMillisec(subscription.getActiveUntilMillisec());
+        copy.setFreeTrial(subscription.isFreeTrial());
+        copy.setGracePeriod(subscription.isGracePeriod());
+        copy.setAccountHold(subscription.isAccountHold());
+        copy.setPaused(subscription.isPaused());
+        copy.setAutoResumeTimeMillis(subscription.getAutoResumeTimeMillis());
+        copy.setSubAlreadyOwned(subscription.isSubAlreadyOwned());
+        return copy;
+    }
+
+    private static class Request {
+        final long latencyMillis;
+        final boolean failed;
+
+        Request(long latencyMillis, boolean failed) {
+            this.latencyMillis = latencyMillis;
+            this.failed = failed;
+        }
+    }
+
+    /**
+     * A user of the backend and their own random sequence.
+     */
+    private class SimulatedUser {
+        final int index;
+        final Random random;
+        final List<SubscriptionStatus> subscriptions = new ArrayList<>();
+
+        SimulatedUser(int index) {
+            this.index = index;
+            // Mix the index into the seed, so that neighboring users are not correlated.
+            this.random = new Random(config.seed * 0x9E3779B97F4A7C15L + index);
+            for (int i = 0; i < config.subscriptionsPerUser; i++) {
+                String purchaseToken = String.format(Locale.US, "fake-token-%d-%d-%d",
+                        config.seed, index, i);
+                SubscriptionStatus subscription = new SubscriptionStatus();
+                subscription.setSku(random.nextBoolean()
+                        ? Constants.BASIC_SKU : Constants.PREMIUM_SKU);
+                subscription.setPurchaseToken(purchaseToken);
+                applyState(random, subscription, pickState(random));
+                subscriptions.add(subscription);
+                synchronized (owners) {
+                    owners.put(purchaseToken, index);
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2020 Google LLC. All rights reserved.
+ * Copyright 2021 Google LLC. All rights reserved.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,13 +16,15 @@
 
 package com.sample.android.classytaxijava.data.network.firebase;
 
-import com.sample.android.classytaxijava.Constants;
 import com.sample.android.classytaxijava.billing.BillingUtilities;
 import com.sample.android.classytaxijava.data.ContentResource;
+import com.sample.android.classytaxijava.data.SubscriptionBatchRequest;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.SubscriptionStatusList;
+import com.sample.android.classytaxijava.data.SyncSnapshotStore;
+import com.sample.android.classytaxijava.data.network.OutboxDrainer;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 
 import androidx.annotation.Nullable;
@@ -31,9 +33,17 @@ import androidx.lifecycle.MutableLiveData;
 
 /**
  * Fake implementation of ServerFunctions
+ * <p>
+ * Requests are answered by a {@link FakeBackend}, which simulates many users with
+ * subscriptions in different states, latency, errors and conflicts from a seed. The signed-in
+ * user is mapped to one of the simulated users. This reproduces load and latency scenarios
+ * against the repository without a network.
  */
 public class FakeServerFunctions implements ServerFunctions {
 
+    private static final String BASIC_CONTENT_URL = "https://example.com/basic.jpg";
+    private static final String PREMIUM_CONTENT_URL = "https://example.com/premium.jpg";
+
     /**
      * Live data is true when there are pending network requests.
      */
@@ -47,6 +57,12 @@ public class FakeServerFunctions implements ServerFunctions {
      */
     private final MutableLiveData<List<SubscriptionStatus>> subscriptions = new MutableLiveData<>();
 
+    /**
+     * Results of subscription status requests, with sync cursors.
+     */
+    private final MutableLiveData<SubscriptionStatusList> subscriptionSync =
+            new MutableLiveData<>();
+
     /**
      * The basic content URL.
      */
@@ -57,20 +73,41 @@ public class FakeServerFunctions implements ServerFunctions {
      */
     private final MutableLiveData<ContentResource> premiumContent = new MutableLiveData<>();
 
-    private int fakeDataIndex;
+    private final FakeBackend backend;
+    private final SyncSnapshotStore syncSnapshots = new SyncSnapshotStore();
+    private final OutboxDrainer.UserIdSource userIdSource;
+
     private static volatile FakeServerFunctions INSTANCE;
 
-    public static ServerFunctions getInstance() {
+    /**
+     * @param config       simulated backend, only used when the instance is first created
+     * @param userIdSource the signed-in user. Without one, requests are made as the first
+     *                     simulated user.
+     */
+    public static ServerFunctions getInstance(FakeBackend.Config config,
+                                              OutboxDrainer.UserIdSource userIdSource) {
         if (INSTANCE == null) {
             synchronized (FakeServerFunctions.class) {
                 if (INSTANCE == null) {
-                    INSTANCE = new FakeServerFunctions();
+                    INSTANCE = new FakeServerFunctions(new FakeBackend(config), userIdSource);
                 }
             }
         }
         return INSTANCE;
     }
 
+    /**
+     * Create a fake server outside of the app's component graph, e.g. to run a load scenario.
+     */
+    public FakeServerFunctions(FakeBackend backend, OutboxDrainer.UserIdSource userIdSource) {
+        this.backend = backend;
+        this.userIdSource = userIdSource;
+    }
+
+    public FakeBackend getBackend() {
+        return backend;
+    }
+
     @Override
     public LiveData<Boolean> getLoading() {
         return loading;
@@ -81,6 +118,11 @@ public class FakeServerFunctions implements ServerFunctions {
         return subscriptions;
     }
 
+    @Override
+    public LiveData<SubscriptionStatusList> getSubscriptionSync() {
+        return subscriptionSync;
+    }
+
     @Override
     public LiveData<ContentResource> getBasicContent() {
         return basicContent;
@@ -96,19 +138,21 @@ public class FakeServerFunctions implements ServerFunctions {
      * This will fail if the user does not have a basic subscription.
      */
     @Override
-    public void updateBasicContent() {
-        List<SubscriptionStatus> subs = subscriptions.getValue();
-        if (subs == null || subs.isEmpty()) {
-            basicContent.postValue(null);
-            return;
+    public boolean updateBasicContent(@Nullable String userId) {
+        List<SubscriptionStatus> subs = backend.fetchSubscriptions(getUserId(), false);
+        if (subs == null) {
+            return false;
         }
         // Premium subscriptions also give access to basic content.
-        if (BillingUtilities.isBasicContent(subs.get(0)) ||
-                BillingUtilities.isPremiumContent(subs.get(0))) {
-            basicContent.postValue(new ContentResource("https://example.com/basic.jpg"));
-        } else {
-            basicContent.postValue(null);
+        for (SubscriptionStatus subscription : subs) {
+            if (BillingUtilities.isBasicContent(subscription)
+                    || BillingUtilities.isPremiumContent(subscription)) {
+                basicContent.postValue(new ContentResource(BASIC_CONTENT_URL, userId));
+                return true;
+            }
         }
+        basicContent.postValue(null);
+        return false;
     }
 
     /**
@@ -116,30 +160,35 @@ public class FakeServerFunctions implements ServerFunctions {
      * This will fail if the user does not have a premium subscription.
      */
     @Override
-    public void updatePremiumContent() {
-        List<SubscriptionStatus> subs = subscriptions.getValue();
-        if (subs == null || subs.isEmpty()) {
-            premiumContent.postValue(null);
-            return;
+    public boolean updatePremiumContent(@Nullable String userId) {
+        List<SubscriptionStatus> subs = backend.fetchSubscriptions(getUserId(), false);
+        if (subs == null) {
+            return false;
         }
-        if (BillingUtilities.isPremiumContent(subs.get(0))) {
-            premiumContent.postValue(new ContentResource("https://example.com/premium.jpg"));
-        } else {
-            premiumContent.postValue(null);
+        for (SubscriptionStatus subscription : subs) {
+            if (BillingUtilities.isPremiumContent(subscription)) {
+                premiumContent.postValue(new ContentResource(PREMIUM_CONTENT_URL, userId));
+                return true;
+            }
         }
+        premiumContent.postValue(null);
+        return false;
     }
 
     /**
-     * Fetches fake subscription data and posts successful results to {@link #subscriptions}.
+     * Fetches fake subscription data and posts successful results to {@link #subscriptionSync}.
+     * Like the real server, only the changes since a valid cursor are returned.
      */
     @Override
-    public void updateSubscriptionStatus() {
-        List<SubscriptionStatus> nextSub = new ArrayList<>();
-        SubscriptionStatus subscriptionStatus = nextFakeSubscription();
-        if (subscriptionStatus != null) {
-            nextSub.add(subscriptionStatus);
+    public boolean updateSubscriptionStatus(@Nullable String userId, @Nullable String since) {
+        List<SubscriptionStatus> subs = backend.fetchSubscriptions(getUserId(), true);
+        if (subs == null) {
+            return false;
         }
-        subscriptions.postValue(nextSub);
+        SubscriptionStatusList result = syncSnapshots.diff(getUserId(), since, subs);
+        result.setUserId(userId);
+        subscriptionSync.postValue(result);
+        return true;
     }
 
     /**
@@ -147,200 +196,73 @@ public class FakeServerFunctions implements ServerFunctions {
      * {@link #subscriptions}.
      */
     @Override
-    public void registerSubscription(String sku, String purchaseToken) {
-        // When successful, return subscription results.
-        // When response code is HTTP 409 CONFLICT create an already owned subscription.
-        switch (sku) {
-            case Constants.BASIC_SKU:
-                subscriptions.postValue(Collections.singletonList(createFakeBasicSubscription()));
-                break;
-            case Constants.PREMIUM_SKU:
-                subscriptions.postValue(Collections.singletonList(createFakePremiumSubscription()));
-                break;
-            default:
-                subscriptions.postValue(Collections.singletonList(
-                        createAlreadyOwnedSubscription(sku, purchaseToken)));
-
-        }
+    public boolean registerSubscription(String sku, String purchaseToken) {
+        SubscriptionBatchRequest request = new SubscriptionBatchRequest();
+        request.add(sku, purchaseToken, false);
+        return register(request);
     }
 
     /**
      * Transfer subscription to this account posts successful results to {@link #subscriptions}.
      */
     @Override
-    public void transferSubscription(String sku, String purchaseToken) {
-        SubscriptionStatus subscription = createFakeBasicSubscription();
-        subscription.setSku(sku);
-        subscription.setPurchaseToken(purchaseToken);
-        subscription.setSubAlreadyOwned(false);
-        subscription.setEntitlementActive(true);
-        subscriptions.postValue(Collections.singletonList(subscription));
+    public boolean transferSubscription(String sku, String purchaseToken) {
+        SubscriptionBatchRequest request = new SubscriptionBatchRequest();
+        request.add(sku, purchaseToken, true);
+        return register(request);
+    }
+
+    /**
+     * Register or transfer every purchase and post the combined results to
+     * {@link #subscriptions} once.
+     */
+    @Override
+    public boolean[] registerSubscriptions(SubscriptionBatchRequest request) {
+        boolean[] processed = new boolean[request.size()];
+        Arrays.fill(processed, register(request));
+        return processed;
     }
 
     /**
      * Register Instance ID when the user signs in or the token is refreshed.
      */
     @Override
-    public void registerInstanceId(String instanceId) {
+    public boolean registerInstanceId(String instanceId) {
+        return backend.call(getUserId());
     }
 
     /**
      * Unregister when the user signs out.
      */
     @Override
-    public void unregisterInstanceId(String instanceId) {
+    public boolean unregisterInstanceId(String instanceId) {
+        return backend.call(getUserId());
     }
 
     /**
-     * Create a local record of a subscription that is already owned by someone else.
-     * Created when the server returns HTTP 409 CONFLICT after a subscription registration request.
+     * The fake server does not cache responses.
      */
-    private SubscriptionStatus createAlreadyOwnedSubscription(
-            String sku,
-            String purchaseToken) {
-        SubscriptionStatus subscriptionStatus = new SubscriptionStatus();
-        subscriptionStatus.setSku(sku);
-        subscriptionStatus.setPurchaseToken(purchaseToken);
-        subscriptionStatus.setEntitlementActive(false);
-        subscriptionStatus.setSubAlreadyOwned(true);
-
-        return subscriptionStatus;
+    @Override
+    public void clearCachedResponses() {
     }
 
-    @Nullable
-    private SubscriptionStatus nextFakeSubscription() {
-        SubscriptionStatus subscription;
-        switch (fakeDataIndex) {
-            case 0:
-                subscription = null;
-                break;
-            case 1:
-                subscription = createFakeBasicSubscription();
-                break;
-            case 2:
-                subscription = createFakePremiumSubscription();
-                break;
-            case 3:
-                subscription = createFakeAccountPausedSubscription();
-                break;
-            case 4:
-                subscription = createFakeAccountHoldSubscription();
-                break;
-            case 5:
-                subscription = createFakeGracePeriodSubscription();
-                break;
-            case 6:
-                subscription = createFakeAlreadyOwnedSubscription();
-                break;
-            case 7:
-                subscription = createFakeCanceledBasicSubscription();
-                break;
-            case 8:
-                subscription = createFakeCanceledPremiumSubscription();
-                break;
-            default:
-                // Unknown fake index, just pick one.
-                subscription = null;
-                break;
+    /**
+     * Registrations the backend answers with HTTP 409 CONFLICT come back as already owned
+     * subscriptions, like the ones the real server implementation creates.
+     *
+     * @return false if the request failed and should be sent again
+     */
+    private boolean register(SubscriptionBatchRequest request) {
+        List<SubscriptionStatus> results = backend.register(getUserId(), request);
+        if (results == null) {
+            return false;
         }
-        // Iterate through fake data for testing purposes.
-        fakeDataIndex = (fakeDataIndex + 1) % 8;
-        return subscription;
-    }
-
-    private SubscriptionStatus createFakeBasicSubscription() {
-        SubscriptionStatus subscription = new SubscriptionStatus();
-        subscription.setEntitlementActive(true);
-        subscription.setWillRenew(true);
-        subscription.setSku(Constants.BASIC_SKU);
-        subscription.setAccountHold(false);
-        subscription.setGracePeriod(false);
-        subscription.setPurchaseToken("FAKE_PURCHASE_TOKEN");
-        subscription.setSubAlreadyOwned(false);
-        return subscription;
-    }
-
-    private SubscriptionStatus createFakePremiumSubscription() {
-        SubscriptionStatus subscription = new SubscriptionStatus();
-        subscription.setEntitlementActive(true);
-        subscription.setWillRenew(true);
-        subscription.setSku(Constants.PREMIUM_SKU);
-        subscription.setAccountHold(false);
-        subscription.setGracePeriod(false);
-        subscription.setPurchaseToken("FAKE_PURCHASE_TOKEN");
-        subscription.setSubAlreadyOwned(false);
-        return subscription;
-    }
-
-    private SubscriptionStatus createFakeAccountHoldSubscription() {
-        SubscriptionStatus subscription = new SubscriptionStatus();
-        subscription.setEntitlementActive(false);
-        subscription.setWillRenew(true);
-        subscription.setSku(Constants.PREMIUM_SKU);
-        subscription.setAccountHold(true);
-        subscription.setGracePeriod(false);
-        subscription.setPurchaseToken("FAKE_PURCHASE_TOKEN");
-        subscription.setSubAlreadyOwned(false);
-        return subscription;
-    }
-
-    private SubscriptionStatus createFakeAccountPausedSubscription() {
-        SubscriptionStatus subscription = new SubscriptionStatus();
-        subscription.setEntitlementActive(false);
-        subscription.setWillRenew(true);
-        subscription.setSku(Constants.PREMIUM_SKU);
-        subscription.setPaused(true);
-        subscription.setGracePeriod(false);
-        subscription.setPurchaseToken("FAKE_PURCHASE_TOKEN");
-        subscription.setSubAlreadyOwned(false);
-        return subscription;
-    }
-
-    private SubscriptionStatus createFakeGracePeriodSubscription() {
-        SubscriptionStatus subscription = new SubscriptionStatus();
-        subscription.setEntitlementActive(true);
-        subscription.setWillRenew(true);
-        subscription.setSku(Constants.BASIC_SKU);
-        subscription.setAccountHold(false);
-        subscription.setGracePeriod(true);
-        subscription.setPurchaseToken("FAKE_PURCHASE_TOKEN");
-        subscription.setSubAlreadyOwned(false);
-        return subscription;
-    }
-
-    private SubscriptionStatus createFakeAlreadyOwnedSubscription() {
-        SubscriptionStatus subscription = new SubscriptionStatus();
-        subscription.setEntitlementActive(false);
-        subscription.setWillRenew(true);
-        subscription.setSku(Constants.BASIC_SKU);
-        subscription.setAccountHold(false);
-        subscription.setGracePeriod(false);
-        subscription.setPurchaseToken("FAKE_PURCHASE_TOKEN");
-        subscription.setSubAlreadyOwned(true);
-        return subscription;
-    }
-
-    private SubscriptionStatus createFakeCanceledBasicSubscription() {
-        SubscriptionStatus subscription = new SubscriptionStatus();
-        subscription.setEntitlementActive(true);
-        subscription.setWillRenew(false);
-        subscription.setSku(Constants.BASIC_SKU);
-        subscription.setAccountHold(false);
-        subscription.setGracePeriod(false);
-        subscription.setPurchaseToken("FAKE_PURCHASE_TOKEN");
-        subscription.setSubAlreadyOwned(false);
-        return subscription;
+        subscriptions.postValue(results);
+        return true;
     }
 
-    private SubscriptionStatus createFakeCanceledPremiumSubscription() {
-        SubscriptionStatus subscription = new SubscriptionStatus();
-        subscription.setEntitlementActive(true);
-        subscription.setWillRenew(false);
-        subscription.setSku(Constants.PREMIUM_SKU);
-        subscription.setAccountHold(false);
-        subscription.setGracePeriod(false);
-        subscription.setPurchaseToken("FAKE_PURCHASE_TOKEN");
-        subscription.setSubAlreadyOwned(false);
-        return subscription;
+    private String getUserId() {
+        String userId = userIdSource.getUserId();
+        return userId == null ? FakeBackend.userId(0) : userId;
     }
 }
@@ -1,8 +1,11 @@
 package com.sample.android.classytaxijava.data.network.firebase;
 
+import androidx.annotation.Nullable;
 import androidx.lifecycle.LiveData;
 
+import com.sample.android.classytaxijava.data.SubscriptionBatchRequest;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.SubscriptionStatusList;
 import com.sample.android.classytaxijava.data.ContentResource;
 
 import java.util.List;
@@ -13,6 +16,8 @@ import java.util.List;
  *
  * Use this class by observing the {@link #getSubscriptions} LiveData.
  * Any server updates will be communicated through this LiveData.
+ *
+ * Requests may block until the server responds, so call them from a network thread.
  */
 public interface ServerFunctions {
     /**
@@ -28,52 +33,92 @@ public interface ServerFunctions {
     LiveData<List<SubscriptionStatus>> getSubscriptions();
 
     /**
-     * The basic content URL.
+     * Results of {@link #updateSubscriptionStatus(String, String)}: the full list or a delta,
+     * with the new sync cursor and the user the request was issued for.
+     */
+    LiveData<SubscriptionStatusList> getSubscriptionSync();
+
+    /**
+     * The basic content URL, with the user the request was issued for.
      */
     LiveData<ContentResource> getBasicContent();
 
     /**
-     * The premium content URL.
+     * The premium content URL, with the user the request was issued for.
      */
     LiveData<ContentResource> getPremiumContent();
 
     /**
      * Fetch basic content and post results to {@link #getBasicContent()}.
      * This will fail if the user does not have a basic subscription.
+     *
+     * @param userId the user the request is issued for, passed on with the result
+     * @return true if the server returned the content or reported it unchanged
      */
-    void updateBasicContent();
+    boolean updateBasicContent(@Nullable String userId);
 
     /**
      * Fetch premium content and post results to {@link #getPremiumContent()}.
      * This will fail if the user does not have a premium subscription.
+     *
+     * @param userId the user the request is issued for, passed on with the result
+     * @return true if the server returned the content or reported it unchanged
      */
-    void updatePremiumContent();
+    boolean updatePremiumContent(@Nullable String userId);
 
     /**
      * Fetches subscription data from the server and posts successful results to
-     * {@link #getSubscriptions}.
+     * {@link #getSubscriptionSync}.
+     *
+     * @param userId the user the request is issued for, passed on with the result
+     * @param since sync cursor of the stored subscriptions to only fetch what changed since,
+     *              or null to fetch the full list
+     * @return true if the server returned the subscription status
      */
-    void updateSubscriptionStatus();
+    boolean updateSubscriptionStatus(@Nullable String userId, @Nullable String since);
 
     /**
      * Register a subscription with the server and posts successful results to
      * {@link #getSubscriptions}.
+     *
+     * @return true if the server processed the request, false if it should be sent again
      */
-    void registerSubscription(String sku, String purchaseToken);
+    boolean registerSubscription(String sku, String purchaseToken);
 
     /**
      * Transfer subscription to this account posts successful results to
      * {@link #getSubscriptions}.
+     *
+     * @return true if the server processed the request, false if it should be sent again
      */
-    void transferSubscription(String sku, String purchaseToken);
+    boolean transferSubscription(String sku, String purchaseToken);
+
+    /**
+     * Register or transfer several subscriptions in one request and post the resulting
+     * subscription list to {@link #getSubscriptions}.
+     *
+     * @return one flag per purchase, in request order: true if the server processed the
+     * purchase, false if it should be sent again
+     */
+    boolean[] registerSubscriptions(SubscriptionBatchRequest request);
 
     /**
      * Register Instance ID when the user signs in or the token is refreshed.
+     *
+     * @return true if the server processed the request, false if it should be sent again
      */
-    void registerInstanceId(String instanceId);
+    boolean registerInstanceId(String instanceId);
 
     /**
      * Unregister when the user signs out.
+     *
+     * @return true if the server processed the request, false if it should be sent again
+     */
+    boolean unregisterInstanceId(String instanceId);
+
+    /**
+     * Forget cached responses and clear the content URLs, e.g. when the user changes.
+     * The next requests return full responses instead of "not modified".
      */
-    void unregisterInstanceId(String instanceId);
+    void clearCachedResponses();
 }
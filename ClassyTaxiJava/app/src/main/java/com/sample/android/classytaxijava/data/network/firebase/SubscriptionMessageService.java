@@ -20,8 +20,9 @@ import android.util.Log;
 
 import com.google.firebase.messaging.FirebaseMessagingService;
 import com.google.firebase.messaging.RemoteMessage;
-import com.google.gson.Gson;
+import com.sample.android.classytaxijava.AppContainer;
 import com.sample.android.classytaxijava.SubApp;
+import com.sample.android.classytaxijava.data.DataRepository;
 import com.sample.android.classytaxijava.data.SubscriptionStatusList;
 
 import java.util.Map;
@@ -32,7 +33,6 @@ public class SubscriptionMessageService extends FirebaseMessagingService {
 
     private static final String TAG = "SubscriptionMsgService";
     private static final String REMOTE_MESSAGE_SUBSCRIPTIONS_KEY = "currentStatus";
-    private final Gson gson = new Gson();
 
     @Override
     public void onMessageReceived(@Nullable RemoteMessage remoteMessage) {
@@ -52,11 +52,17 @@ public class SubscriptionMessageService extends FirebaseMessagingService {
             return;
         }
 
-        SubscriptionStatusList result = gson.fromJson(data.get(REMOTE_MESSAGE_SUBSCRIPTIONS_KEY), SubscriptionStatusList.class);
+        final SubscriptionStatusList result =
+                SubscriptionStatusList.fromJsonString(data.get(REMOTE_MESSAGE_SUBSCRIPTIONS_KEY));
         if (result == null) {
             Log.e(TAG, "Received null subscription data");
-        } else {
-            ((SubApp) getApplication()).getRepository().updateSubscriptionsFromNetwork(result.getSubscriptions());
+            return;
         }
+        ((SubApp) getApplication()).getRepository(new AppContainer.RepositoryCallback() {
+            @Override
+            public void onRepositoryReady(DataRepository repository) {
+                repository.updateSubscriptionsFromPush(result.getSubscriptions());
+            }
+        });
     }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import com.sample.android.classytaxijava.utils.Clock;
+
+/**
+ * Stops sending requests to a backend that keeps failing.
+ * <p>
+ * After a number of consecutive failures the breaker opens and requests fail immediately.
+ * Once the open period has passed, a single probe request is let through. If it succeeds the
+ * breaker closes, otherwise it opens again.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final Clock clock;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final ResilienceMetrics metrics;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtMillis;
+    private boolean probeInFlight;
+
+    /**
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param openMillis       time the breaker stays open before a probe is let through
+     */
+    public CircuitBreaker(Clock clock, int failureThreshold, long openMillis,
+                          ResilienceMetrics metrics) {
+        this.clock = clock;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns true if a request may be sent. Every allowed request must be followed by
+     * {@link #onSuccess()}, {@link #onFailure()} or {@link #onNotSent()}.
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN) {
+            if (clock.elapsedRealtime() - openedAtMillis < openMillis) {
+                return false;
+            }
+            setState(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probeInFlight) {
+                return false;
+            }
+            probeInFlight = true;
+        }
+        return true;
+    }
+
+    /**
+     * The backend answered. Client errors count as success, since the backend is healthy.
+     */
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        if (state != State.CLOSED) {
+            setState(State.CLOSED);
+        }
+    }
+
+    /**
+     * The request failed with a connection failure or a server error.
+     */
+    public synchronized void onFailure() {
+        probeInFlight = false;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN
+                || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            openedAtMillis = clock.elapsedRealtime();
+            setState(State.OPEN);
+        }
+    }
+
+    /**
+     * The request was not sent, e.g. because no ID token was available. Does not change the
+     * breaker state.
+     */
+    public synchronized void onNotSent() {
+        probeInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void setState(State newState) {
+        metrics.onBreakerStateChanged(state, newState);
+        state = newState;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * An {@link Interceptor} that applies timeouts per endpoint.
+ * <p>
+ * The endpoint is the last path segment of the request URL, for example
+ * {@link SubscriptionStatusApiCall#SUBSCRIPTION_STATUS}. Endpoints without an entry keep the
+ * timeouts of the client.
+ */
+public class EndpointTimeoutInterceptor implements Interceptor {
+
+    /**
+     * Connect, read and write timeouts for one endpoint.
+     */
+    public static class Timeouts {
+        final int connectMillis;
+        final int readMillis;
+        final int writeMillis;
+
+        public Timeouts(int connectMillis, int readMillis, int writeMillis) {
+            this.connectMillis = connectMillis;
+            this.readMillis = readMillis;
+            this.writeMillis = writeMillis;
+        }
+    }
+
+    private final Map<String, Timeouts> endpointTimeouts;
+
+    public EndpointTimeoutInterceptor(Map<String, Timeouts> endpointTimeouts) {
+        this.endpointTimeouts = Collections.unmodifiableMap(new HashMap<>(endpointTimeouts));
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        List<String> segments = chain.request().url().pathSegments();
+        Timeouts timeouts = endpointTimeouts.get(segments.get(segments.size() - 1));
+        if (timeouts == null) {
+            return chain.proceed(chain.request());
+        }
+        return chain
+                .withConnectTimeout(timeouts.connectMillis, TimeUnit.MILLISECONDS)
+                .withReadTimeout(timeouts.readMillis, TimeUnit.MILLISECONDS)
+                .withWriteTimeout(timeouts.writeMillis, TimeUnit.MILLISECONDS)
+                .proceed(chain.request());
+    }
+}
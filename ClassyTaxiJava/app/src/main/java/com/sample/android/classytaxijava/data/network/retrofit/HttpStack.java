@@ -0,0 +1,226 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Process-wide HTTP stack shared by all Retrofit services.
+ * <p>
+ * Every client created with {@link #newClientBuilder()} shares one connection pool, dispatcher,
+ * HTTP cache and {@link Gson} instance. Sharing the pool lets requests to the same backend
+ * reuse warm connections, and HTTP/2 lets concurrent requests share a single connection.
+ * <p>
+ * The cache stores GET responses on disk and revalidates them with their ETag, so an unchanged
+ * response is served from the cache after an HTTP 304 from the server. A request other than
+ * GET removes the cached response of its own URL only.
+ */
+public class HttpStack {
+    private static final String TAG = "HttpStack";
+
+    /**
+     * Timeouts for endpoints that do not set their own.
+     */
+    private static final int DEFAULT_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Idle connections kept in the pool, and how long they are kept.
+     */
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    /**
+     * Interval for HTTP/2 pings, which keep connections alive and detect broken ones.
+     */
+    private static final long PING_INTERVAL_SECONDS = 30;
+
+    /**
+     * Concurrent asynchronous calls allowed to the backend host. Purchase registrations come
+     * in bursts after a restore, so this is higher than the OkHttp default of 5.
+     */
+    private static final int MAX_REQUESTS_PER_HOST = 10;
+
+    private static final long HTTP_CACHE_SIZE_BYTES = 5 * 1024 * 1024;
+    private static final String HTTP_CACHE_DIRECTORY = "http";
+
+    private static volatile HttpStack INSTANCE = null;
+
+    private final OkHttpClient baseClient;
+    private final Gson gson = new GsonBuilder().create();
+    @Nullable
+    private final Cache cache;
+    private final NetworkTimings timings = new NetworkTimings();
+
+    @VisibleForTesting
+    HttpStack(@Nullable File cacheDirectory) {
+        cache = cacheDirectory == null ? null
+                : new Cache(new File(cacheDirectory, HTTP_CACHE_DIRECTORY), HTTP_CACHE_SIZE_BYTES);
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        baseClient = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(
+                        MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .dispatcher(dispatcher)
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .pingInterval(PING_INTERVAL_SECONDS, TimeUnit.SECONDS)
+                .connectTimeout(DEFAULT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(DEFAULT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .writeTimeout(DEFAULT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .cache(cache)
+                .eventListenerFactory(timings)
+                .build();
+    }
+
+    /**
+     * @param cacheDirectory directory for the on-disk HTTP cache, or null to disable caching.
+     *                       Only used when the stack is first created.
+     */
+    public static HttpStack getInstance(@Nullable File cacheDirectory) {
+        if (INSTANCE == null) {
+            synchronized (HttpStack.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new HttpStack(cacheDirectory);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a builder for a client that shares the connection pool, dispatcher and cache.
+     * Add service specific interceptors to the builder.
+     */
+    public OkHttpClient.Builder newClientBuilder() {
+        return baseClient.newBuilder();
+    }
+
+    public Gson getGson() {
+        return gson;
+    }
+
+    /**
+     * Remove the cached responses of the URLs that start with the prefix, e.g. the base URL
+     * of one service. Responses of other services stay cached.
+     */
+    public void clearCache(String urlPrefix) {
+        if (cache != null) {
+            try {
+                Iterator<String> urls = cache.urls();
+                while (urls.hasNext()) {
+                    if (urls.next().startsWith(urlPrefix)) {
+                        urls.remove();
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to clear the HTTP cache", e);
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the dispatcher and connection pool.
+     */
+    public Stats getStats() {
+        Dispatcher dispatcher = baseClient.dispatcher();
+        ConnectionPool pool = baseClient.connectionPool();
+        return new Stats(dispatcher.queuedCallsCount(), dispatcher.runningCallsCount(),
+                pool.connectionCount(), pool.idleConnectionCount(),
+                timings.getConnectionsOpened(), timings.getConnectionsAcquired());
+    }
+
+    /**
+     * Network phase timings of each endpoint.
+     */
+    public NetworkTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Snapshot of the HTTP stack, used to size the pool and dispatcher.
+     */
+    public static class Stats {
+        /**
+         * Asynchronous calls waiting for the dispatcher.
+         */
+        public final int queuedCalls;
+        /**
+         * Calls in flight, including synchronous calls.
+         */
+        public final int runningCalls;
+        public final int connections;
+        public final int idleConnections;
+        /**
+         * Connections opened since the stack was created.
+         */
+        public final long connectionsOpened;
+        /**
+         * Times a call acquired a connection, new or pooled.
+         */
+        public final long connectionsAcquired;
+
+        Stats(int queuedCalls, int runningCalls, int connections, int idleConnections,
+              long connectionsOpened, long connectionsAcquired) {
+            this.queuedCalls = queuedCalls;
+            this.runningCalls = runningCalls;
+            this.connections = connections;
+            this.idleConnections = idleConnections;
+            this.connectionsOpened = connectionsOpened;
+            this.connectionsAcquired = connectionsAcquired;
+        }
+
+        /**
+         * Fraction of calls that reused a pooled connection instead of opening a new one.
+         */
+        public double getReuseRatio() {
+            if (connectionsAcquired == 0) {
+                return 0;
+            }
+            long reused = Math.max(0, connectionsAcquired - connectionsOpened);
+            return (double) reused / connectionsAcquired;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + queuedCalls
+                    + " running=" + runningCalls
+                    + " connections=" + connections
+                    + " idle=" + idleConnections
+                    + " opened=" + connectionsOpened
+                    + " acquired=" + connectionsAcquired
+                    + " reuse=" + String.format(Locale.US, "%.2f", getReuseRatio());
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Breaks the latency of each endpoint down into network phases.
+ * <p>
+ * Every call gets its own {@link EventListener}, which notes the time of each event without
+ * any locking. When the call ends, the phase durations are added to lock-free
+ * {@link LatencyHistogram}s of the endpoint, so the overhead is a few clock reads and atomic
+ * increments per call. The endpoint is the last path segment of the request URL.
+ * <p>
+ * The phases are:
+ * <ul>
+ * <li>dns: resolving the host name</li>
+ * <li>connect: opening the connection, including TLS</li>
+ * <li>tls: the TLS handshake</li>
+ * <li>ttfb: time to first byte, from sending the request headers until the response
+ * headers are read</li>
+ * <li>body: reading the response body</li>
+ * <li>total: the whole call</li>
+ * </ul>
+ * Calls that reuse a pooled connection have no dns, connect or tls phase.
+ */
+public class NetworkTimings implements EventListener.Factory {
+
+    public static final String DNS = "dns";
+    public static final String CONNECT = "connect";
+    public static final String TLS = "tls";
+    public static final String TTFB = "ttfb";
+    public static final String BODY = "body";
+    public static final String TOTAL = "total";
+
+    private static final long UNSET = -1;
+
+    private final ConcurrentHashMap<String, EndpointTimings> endpoints = new ConcurrentHashMap<>();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsAcquired = new AtomicLong();
+
+    @Override
+    public EventListener create(Call call) {
+        return new CallTimer();
+    }
+
+    /**
+     * Returns the histogram of a phase, or null if the endpoint has not completed a call.
+     */
+    @Nullable
+    public LatencyHistogram getHistogram(String endpoint, String phase) {
+        EndpointTimings timings = endpoints.get(endpoint);
+        if (timings == null) {
+            return null;
+        }
+        switch (phase) {
+            case DNS:
+                return timings.dns;
+            case CONNECT:
+                return timings.connect;
+            case TLS:
+                return timings.tls;
+            case TTFB:
+                return timings.ttfb;
+            case BODY:
+                return timings.body;
+            case TOTAL:
+                return timings.total;
+            default:
+                throw new IllegalArgumentException("Unknown phase " + phase);
+        }
+    }
+
+    /**
+     * Connections opened since the timings were created.
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * Times a call acquired a connection, new or pooled.
+     */
+    public long getConnectionsAcquired() {
+        return connectionsAcquired.get();
+    }
+
+    /**
+     * Returns the timings of every endpoint as text, for logging and debugging.
+     */
+    public String dump() {
+        Map<String, EndpointTimings> sorted = new TreeMap<String, EndpointTimings>(endpoints);
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, EndpointTimings> entry : sorted.entrySet()) {
+            EndpointTimings timings = entry.getValue();
+            sb.append(entry.getKey()).append(":\n")
+                    .append("  ").append(TOTAL).append(' ').append(timings.total).append('\n')
+                    .append("  ").append(DNS).append(' ').append(timings.dns).append('\n')
+                    .append("  ").append(CONNECT).append(' ').append(timings.connect).append('\n')
+                    .append("  ").append(TLS).append(' ').append(timings.tls).append('\n')
+                    .append("  ").append(TTFB).append(' ').append(timings.ttfb).append('\n')
+                    .append("  ").append(BODY).append(' ').append(timings.body).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private EndpointTimings getTimings(String endpoint) {
+        EndpointTimings timings = endpoints.get(endpoint);
+        if (timings == null) {
+            EndpointTimings newTimings = new EndpointTimings();
+            timings = endpoints.putIfAbsent(endpoint, newTimings);
+            if (timings == null) {
+                timings = newTimings;
+            }
+        }
+        return timings;
+    }
+
+    private static class EndpointTimings {
+        final LatencyHistogram dns = new LatencyHistogram();
+        final LatencyHistogram connect = new LatencyHistogram();
+        final LatencyHistogram tls = new LatencyHistogram();
+        final LatencyHistogram ttfb = new LatencyHistogram();
+        final LatencyHistogram body = new LatencyHistogram();
+        final LatencyHistogram total = new LatencyHistogram();
+    }
+
+    /**
+     * Notes the time of each event of one call. OkHttp delivers the events of a call one at a
+     * time, so the fields need no synchronization.
+     */
+    private class CallTimer extends EventListener {
+        private long callStart = UNSET;
+        private long dnsStart = UNSET;
+        private long dnsMillis = UNSET;
+        private long connectStart = UNSET;
+        private long connectMillis = UNSET;
+        private long tlsStart = UNSET;
+        private long tlsMillis = UNSET;
+        private long requestStart = UNSET;
+        private long ttfbMillis = UNSET;
+        private long bodyStart = UNSET;
+        private long bodyMillis = UNSET;
+
+        @Override
+        public void callStart(Call call) {
+            callStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            dnsMillis = since(dnsStart);
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            tlsStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, @Nullable Handshake handshake) {
+            tlsMillis = since(tlsStart);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                               @Nullable Protocol protocol) {
+            connectMillis = since(connectStart);
+            connectionsOpened.incrementAndGet();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            connectionsAcquired.incrementAndGet();
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            requestStart = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersEnd(Call call, Response response) {
+            // OkHttp 3 reports responseHeadersStart before it blocks on the socket, so the
+            // first byte is measured when the headers have been read.
+            ttfbMillis = since(requestStart);
+        }
+
+        @Override
+        public void responseBodyStart(Call call) {
+            bodyStart = System.nanoTime();
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            bodyMillis = since(bodyStart);
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            record(call);
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            record(call);
+        }
+
+        private void record(Call call) {
+            List<String> segments = call.request().url().pathSegments();
+            EndpointTimings timings = getTimings(segments.get(segments.size() - 1));
+            recordIfSet(timings.total, since(callStart));
+            recordIfSet(timings.dns, dnsMillis);
+            recordIfSet(timings.connect, connectMillis);
+            recordIfSet(timings.tls, tlsMillis);
+            recordIfSet(timings.ttfb, ttfbMillis);
+            recordIfSet(timings.body, bodyMillis);
+        }
+
+        private long since(long startNanos) {
+            if (startNanos == UNSET) {
+                return UNSET;
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+
+        private void recordIfSet(LatencyHistogram histogram, long millis) {
+            if (millis != UNSET) {
+                histogram.record(millis);
+            }
+        }
+    }
+}
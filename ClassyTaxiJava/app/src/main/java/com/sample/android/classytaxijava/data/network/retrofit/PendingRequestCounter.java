@@ -18,64 +18,130 @@ package com.sample.android.classytaxijava.data.network.retrofit;
 
 import android.util.Log;
 
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import androidx.annotation.Nullable;
 import androidx.lifecycle.MutableLiveData;
 
 /**
  * Keep track of all pending network requests and set {@link androidx.lifecycle.LiveData} "loading"
  * to true when there remaining pending requests and false when all requests have been responded to.
  *
- * LiveData Object "loading" is used to show a progress bar in the UI.
- *
- * TODO(cassigbe@): Improve Pending requests count according to http/b/199924571.
+ * LiveData Object "loading" is used to show a progress bar in the UI. It is only posted when
+ * the value changes. With a hide delay, "loading" stays true for a moment after the last
+ * request completes, so that back-to-back requests do not make the progress bar flicker.
  *
+ * For each endpoint, the counter also tracks the requests in flight, a latency histogram and
+ * the number of errors.
  */
 public class PendingRequestCounter {
     private static final String TAG = "RequestCounter";
     private final MutableLiveData<Boolean> loading;
 
+    private final Clock clock;
+    @Nullable
+    private final ScheduledExecutorService scheduler;
+    private final long hideDelayMillis;
+
+    private final ConcurrentHashMap<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+
+    private final Object lock = new Object();
     /**
      * Track the number of pending server requests.
      */
-    private AtomicInteger pendingRequestCount = new AtomicInteger();
+    private int pendingRequestCount;
+    private boolean loadingPosted;
+    @Nullable
+    private ScheduledFuture<?> pendingHide;
 
+    private final Runnable hideRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (lock) {
+                pendingHide = null;
+                if (pendingRequestCount == 0) {
+                    setLoadingLocked(false);
+                }
+            }
+        }
+    };
+
+    /**
+     * Counter that clears "loading" as soon as the last request completes.
+     */
     public PendingRequestCounter() {
+        this(Clock.SYSTEM, null, 0);
+    }
+
+    /**
+     * @param scheduler       runs the delayed update of "loading", or null for no delay
+     * @param hideDelayMillis how long "loading" stays true after the last request completes
+     */
+    public PendingRequestCounter(Clock clock, @Nullable ScheduledExecutorService scheduler,
+                                 long hideDelayMillis) {
         loading = new MutableLiveData<>();
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.hideDelayMillis = hideDelayMillis;
     }
 
     /**
-     * Increment request count and update loading value.
-     * Must plan on calling {@link #decrementRequestCount} when the request completes.
+     * Count a new request and update loading value.
+     * Must plan on calling {@link #onRequestFinished} when the request completes.
      *
+     * @return the start time to pass to {@link #onRequestFinished}
      */
-    public void incrementRequestCount() {
-        int newPendingRequestCount = pendingRequestCount.incrementAndGet();
-        Log.i(TAG, "Pending Server Requests: " + newPendingRequestCount);
-        if (newPendingRequestCount <= 0) {
-            Log.w(TAG, "Unexpectedly low request count after new request: "
-                    + newPendingRequestCount);
-            loading.postValue(false);
-        } else {
-            loading.postValue(true);
+    public long onRequestStarted(String endpoint) {
+        getStats(endpoint).inFlight.incrementAndGet();
+        synchronized (lock) {
+            pendingRequestCount++;
+            if (pendingHide != null) {
+                pendingHide.cancel(false);
+                pendingHide = null;
+            }
+            setLoadingLocked(true);
         }
+        return clock.elapsedRealtime();
     }
 
     /**
-     * Decrement request count and update loading value.
-     * Must call {@link #incrementRequestCount()} each time a network call is made.
-     * and call {@link #decrementRequestCount()} when the server responds to the request.
+     * Record the outcome of a request and update loading value.
+     * Must call {@link #onRequestStarted} each time a network call is made,
+     * and call this when the server responds to the request or the call fails.
      *
+     * @param startedAtMillis the value returned by {@link #onRequestStarted}
      */
-    public void decrementRequestCount() {
-        int newPendingRequestCount = pendingRequestCount.decrementAndGet();
-        Log.i(TAG, "Pending Server Requests: " + newPendingRequestCount);
-        if (newPendingRequestCount < 0) {
-            Log.w(TAG, "Unexpectedly negative request count: "
-                    + newPendingRequestCount);
-            loading.postValue(false);
-        } else if (newPendingRequestCount == 0) {
-            loading.postValue(false);
+    public void onRequestFinished(String endpoint, long startedAtMillis, boolean success) {
+        EndpointStats stats = getStats(endpoint);
+        stats.inFlight.decrementAndGet();
+        stats.latency.record(clock.elapsedRealtime() - startedAtMillis);
+        if (!success) {
+            stats.errors.incrementAndGet();
+        }
+        synchronized (lock) {
+            pendingRequestCount--;
+            if (pendingRequestCount < 0) {
+                Log.w(TAG, "Unexpectedly negative request count: " + pendingRequestCount);
+                pendingRequestCount = 0;
+            }
+            if (pendingRequestCount > 0 || !loadingPosted) {
+                return;
+            }
+            if (scheduler == null || hideDelayMillis <= 0) {
+                setLoadingLocked(false);
+            } else if (pendingHide == null) {
+                pendingHide = scheduler.schedule(hideRunnable, hideDelayMillis,
+                        TimeUnit.MILLISECONDS);
+            }
         }
     }
 
@@ -87,4 +153,63 @@ public class PendingRequestCounter {
     public MutableLiveData<Boolean> getLoading() {
         return loading;
     }
+
+    public int getInFlightCount(String endpoint) {
+        EndpointStats stats = endpoints.get(endpoint);
+        return stats == null ? 0 : stats.inFlight.get();
+    }
+
+    public long getErrorCount(String endpoint) {
+        EndpointStats stats = endpoints.get(endpoint);
+        return stats == null ? 0 : stats.errors.get();
+    }
+
+    @Nullable
+    public LatencyHistogram getLatency(String endpoint) {
+        EndpointStats stats = endpoints.get(endpoint);
+        return stats == null ? null : stats.latency;
+    }
+
+    /**
+     * Returns the statistics of every endpoint as text, for logging and debugging.
+     */
+    public String dump() {
+        Map<String, EndpointStats> sorted = new TreeMap<String, EndpointStats>(endpoints);
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, EndpointStats> entry : sorted.entrySet()) {
+            EndpointStats stats = entry.getValue();
+            sb.append(entry.getKey())
+                    .append(": inFlight=").append(stats.inFlight.get())
+                    .append(" errors=").append(stats.errors.get())
+                    .append(' ').append(stats.latency)
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void setLoadingLocked(boolean value) {
+        if (loadingPosted != value) {
+            loadingPosted = value;
+            Log.d(TAG, "Loading: " + value);
+            loading.postValue(value);
+        }
+    }
+
+    private EndpointStats getStats(String endpoint) {
+        EndpointStats stats = endpoints.get(endpoint);
+        if (stats == null) {
+            EndpointStats newStats = new EndpointStats();
+            stats = endpoints.putIfAbsent(endpoint, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    private static class EndpointStats {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong errors = new AtomicLong();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
 }
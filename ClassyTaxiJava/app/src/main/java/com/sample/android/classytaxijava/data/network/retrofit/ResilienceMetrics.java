@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for retries, circuit breaker state changes and rejected calls.
+ */
+public class ResilienceMetrics {
+    private static final String TAG = "ResilienceMetrics";
+
+    private final ConcurrentHashMap<String, AtomicLong> retries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> rejected = new ConcurrentHashMap<>();
+    private final AtomicLong breakerOpened = new AtomicLong();
+    private final AtomicLong breakerHalfOpened = new AtomicLong();
+    private final AtomicLong breakerClosed = new AtomicLong();
+
+    void onRetry(String endpoint) {
+        increment(retries, endpoint);
+    }
+
+    void onRejected(String endpoint) {
+        increment(rejected, endpoint);
+    }
+
+    void onBreakerStateChanged(CircuitBreaker.State from, CircuitBreaker.State to) {
+        Log.w(TAG, "Circuit breaker " + from + " -> " + to);
+        switch (to) {
+            case OPEN:
+                breakerOpened.incrementAndGet();
+                break;
+            case HALF_OPEN:
+                breakerHalfOpened.incrementAndGet();
+                break;
+            case CLOSED:
+                breakerClosed.incrementAndGet();
+                break;
+        }
+    }
+
+    public long getRetryCount(String endpoint) {
+        return get(retries, endpoint);
+    }
+
+    public long getRejectedCount(String endpoint) {
+        return get(rejected, endpoint);
+    }
+
+    public long getBreakerOpenedCount() {
+        return breakerOpened.get();
+    }
+
+    /**
+     * Returns all counters as text, for logging and debugging.
+     */
+    public String dump() {
+        return "retries=" + snapshot(retries)
+                + " rejected=" + snapshot(rejected)
+                + " breakerOpened=" + breakerOpened.get()
+                + " breakerHalfOpened=" + breakerHalfOpened.get()
+                + " breakerClosed=" + breakerClosed.get();
+    }
+
+    private static void increment(ConcurrentHashMap<String, AtomicLong> counters, String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private static long get(Map<String, AtomicLong> counters, String key) {
+        AtomicLong counter = counters.get(key);
+        return counter == null ? 0 : counter.get();
+    }
+
+    private static Map<String, Long> snapshot(Map<String, AtomicLong> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.sample.android.classytaxijava.data.network.retrofit.authentication.IdTokenProvider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Response;
+
+/**
+ * Executes Retrofit calls with retries and a circuit breaker.
+ * <p>
+ * Calls run on the calling thread, and the thread sleeps between attempts. Each endpoint has a
+ * {@link RetryPolicy}. All endpoints share one {@link CircuitBreaker}, since they are served
+ * by the same backend.
+ */
+public class ResilientCallExecutor {
+    private static final String TAG = "ResilientCall";
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    /**
+     * Waits between attempts. Tests replace it to avoid real delays.
+     */
+    public interface Sleeper {
+        Sleeper THREAD = new Sleeper() {
+            @Override
+            public void sleep(long millis) throws InterruptedException {
+                Thread.sleep(millis);
+            }
+        };
+
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    /**
+     * Thrown when the circuit breaker rejects a call without sending it.
+     */
+    public static class CircuitOpenException extends IOException {
+        CircuitOpenException(String endpoint) {
+            super("Circuit breaker is open, " + endpoint + " was not sent");
+        }
+    }
+
+    private final Map<String, RetryPolicy> policies;
+    private final RetryPolicy defaultPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final ResilienceMetrics metrics;
+    private final Sleeper sleeper;
+    private final Random random;
+
+    public ResilientCallExecutor(Map<String, RetryPolicy> policies, RetryPolicy defaultPolicy,
+                                 CircuitBreaker circuitBreaker, ResilienceMetrics metrics,
+                                 Sleeper sleeper, Random random) {
+        this.policies = Collections.unmodifiableMap(new HashMap<>(policies));
+        this.defaultPolicy = defaultPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.metrics = metrics;
+        this.sleeper = sleeper;
+        this.random = random;
+    }
+
+    public ResilienceMetrics getMetrics() {
+        return metrics;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Execute the call, retrying transient failures according to the endpoint's policy.
+     *
+     * @return the last response received
+     * @throws IOException the last connection failure, or {@link CircuitOpenException}
+     */
+    public <T> Response<T> execute(Call<T> call) throws IOException {
+        String endpoint = getEndpoint(call);
+        RetryPolicy policy = getPolicy(endpoint);
+        Call<T> attemptCall = call;
+        for (int attempt = 1; ; attempt++) {
+            if (!circuitBreaker.allowRequest()) {
+                metrics.onRejected(endpoint);
+                throw new CircuitOpenException(endpoint);
+            }
+            boolean lastAttempt = attempt >= policy.getMaxAttempts();
+            long delayMillis;
+            try {
+                Response<T> response = attemptCall.execute();
+                if (isServerFailure(response.code())) {
+                    circuitBreaker.onFailure();
+                } else {
+                    circuitBreaker.onSuccess();
+                }
+                delayMillis = getRetryDelay(policy, attempt, response);
+                if (lastAttempt || delayMillis < 0) {
+                    return response;
+                }
+                Log.i(TAG, endpoint + " failed with " + response.code() + ", retrying");
+                closeQuietly(response.errorBody());
+            } catch (IdTokenProvider.TokenUnavailableException e) {
+                // Nothing reached the backend, and retrying does not help.
+                circuitBreaker.onNotSent();
+                throw e;
+            } catch (IOException e) {
+                circuitBreaker.onFailure();
+                if (lastAttempt || Thread.currentThread().isInterrupted()
+                        || !policy.shouldRetry(e)) {
+                    throw e;
+                }
+                Log.i(TAG, endpoint + " failed: " + e.getMessage() + ", retrying");
+                delayMillis = policy.getDelayMillis(attempt, random);
+            }
+            metrics.onRetry(endpoint);
+            try {
+                sleeper.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry " + endpoint);
+            }
+            attemptCall = attemptCall.clone();
+        }
+    }
+
+    private RetryPolicy getPolicy(String endpoint) {
+        RetryPolicy policy = policies.get(endpoint);
+        return policy == null ? defaultPolicy : policy;
+    }
+
+    /**
+     * Returns the delay before retrying the response, or -1 if it must not be retried.
+     */
+    private long getRetryDelay(RetryPolicy policy, int attempt, Response<?> response) {
+        if (response.isSuccessful() || !policy.shouldRetry(response.code())) {
+            return -1;
+        }
+        long delayMillis = policy.getDelayMillis(attempt, random);
+        Long retryAfterMillis = parseRetryAfter(response.headers().get(HEADER_RETRY_AFTER));
+        if (retryAfterMillis != null) {
+            if (retryAfterMillis > policy.getMaxDelayMillis()) {
+                // The server asked for a longer pause than the caller is willing to wait.
+                return -1;
+            }
+            delayMillis = Math.max(delayMillis, retryAfterMillis);
+        }
+        return delayMillis;
+    }
+
+    @Nullable
+    private static Long parseRetryAfter(@Nullable String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            // HTTP dates are not used by the backend.
+            return null;
+        }
+    }
+
+    /**
+     * Server errors count against the circuit breaker. HTTP 429 does not: the backend is
+     * healthy and only asks this client to slow down, which the retry delay already does.
+     */
+    private static boolean isServerFailure(int httpCode) {
+        return httpCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    private static String getEndpoint(Call<?> call) {
+        List<String> segments = call.request().url().pathSegments();
+        return segments.get(segments.size() - 1);
+    }
+
+    private static void closeQuietly(@Nullable ResponseBody body) {
+        if (body != null) {
+            body.close();
+        }
+    }
+}
@@ -19,6 +19,7 @@ package com.sample.android.classytaxijava.data.network.retrofit;
 import android.util.Log;
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -42,15 +43,20 @@ public abstract class RetrofitResponseHandlerCallback<T> implements Callback<T>
 
     private final String methodName;
     private final PendingRequestCounter pendingRequestCounter;
+    private final long startedAtMillis;
 
     /**
-     * @param methodName for logging success/error
+     * Create the callback right before the call is made. The call counts as pending until
+     * the callback receives a response or a failure.
+     *
+     * @param methodName for logging success/error, and the name the call is tracked under
      * @param pendingRequestCounter pendingRequestCounter for tracking the number of pending network calls
      *
      */
     public RetrofitResponseHandlerCallback(String methodName, PendingRequestCounter pendingRequestCounter) {
         this.methodName = methodName;
         this.pendingRequestCounter = pendingRequestCounter;
+        this.startedAtMillis = pendingRequestCounter.onRequestStarted(methodName);
     }
 
     /**
@@ -61,7 +67,15 @@ public abstract class RetrofitResponseHandlerCallback<T> implements Callback<T>
      */
     @Override
     public final void onResponse(@NonNull Call<T> call, @NonNull Response<T> response) {
-        pendingRequestCounter.decrementRequestCount();
+        boolean notModified = response.code() == HttpURLConnection.HTTP_NOT_MODIFIED;
+        pendingRequestCounter.onRequestFinished(methodName, startedAtMillis,
+                response.isSuccessful() || notModified);
+        if (notModified) {
+            // The body was not sent, so there is nothing to parse or post.
+            Log.i(TAG, methodName + " not modified");
+            onNotModified();
+            return;
+        }
         if (response.isSuccessful()) {
             Log.i(TAG, methodName + " returned successfully");
             onSuccess(response.body());
@@ -90,7 +104,7 @@ public abstract class RetrofitResponseHandlerCallback<T> implements Callback<T>
      */
     @Override
     public final void onFailure(@NonNull Call<T> call, @NonNull Throwable t) {
-        pendingRequestCounter.decrementRequestCount();
+        pendingRequestCounter.onRequestFinished(methodName, startedAtMillis, false);
         onError(NO_HTTP_CODE, t.getMessage());
     }
 
@@ -101,6 +115,15 @@ public abstract class RetrofitResponseHandlerCallback<T> implements Callback<T>
      */
     protected abstract void onSuccess(T response);
 
+    /**
+     * Called when the server answers HTTP 304 NOT MODIFIED to a conditional request.
+     * <p>
+     * The result of the previous request is still valid. The default implementation does
+     * nothing.
+     */
+    protected void onNotModified() {
+    }
+
     /**
      * Called when any error happens such as a connection failure or a 500 server response
      * <p>
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Decides whether a failed request is retried, and how long to wait first.
+ * <p>
+ * Idempotent requests are retried after any connection failure and after server errors.
+ * Other requests are only retried when the server cannot have processed them: when the
+ * connection could not be made, or when the server answered 429 or 503.
+ */
+public class RetryPolicy {
+    /**
+     * Policy that never retries.
+     */
+    public static final RetryPolicy NO_RETRY = new RetryPolicy(1, 0, 0, false);
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final boolean idempotent;
+
+    /**
+     * @param maxAttempts     total number of attempts, including the first one
+     * @param baseDelayMillis delay cap before the first retry, doubled for each further retry
+     * @param maxDelayMillis  upper bound for the delay cap
+     * @param idempotent      true if sending the request twice has the same effect as once
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+                       boolean idempotent) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.idempotent = idempotent;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * Returns true if the response code may change when the request is sent again later:
+     * a timeout, rate limiting or a server error.
+     */
+    public static boolean isTransient(int httpCode) {
+        return httpCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                || httpCode == HTTP_TOO_MANY_REQUESTS
+                || httpCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    /**
+     * Returns true if the response code indicates a transient failure worth retrying.
+     */
+    public boolean shouldRetry(int httpCode) {
+        if (httpCode == HTTP_TOO_MANY_REQUESTS
+                || httpCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+            return true;
+        }
+        return idempotent && (httpCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                || httpCode == HttpURLConnection.HTTP_INTERNAL_ERROR
+                || httpCode == HttpURLConnection.HTTP_BAD_GATEWAY
+                || httpCode == HttpURLConnection.HTTP_GATEWAY_TIMEOUT);
+    }
+
+    /**
+     * Returns true if the connection failure is worth retrying.
+     */
+    public boolean shouldRetry(IOException e) {
+        if (e instanceof ConnectException || e instanceof UnknownHostException) {
+            // The request never reached the server.
+            return true;
+        }
+        return idempotent;
+    }
+
+    /**
+     * Delay before the given retry, using exponential backoff with full jitter.
+     *
+     * @param retry 1 for the first retry, 2 for the second, and so on
+     */
+    public long getDelayMillis(int retry, Random random) {
+        long cap = baseDelayMillis;
+        for (int i = 1; i < retry && cap < maxDelayMillis; i++) {
+            cap *= 2;
+        }
+        cap = Math.min(cap, maxDelayMillis);
+        if (cap <= 0) {
+            return 0;
+        }
+        return (long) (random.nextDouble() * cap);
+    }
+}
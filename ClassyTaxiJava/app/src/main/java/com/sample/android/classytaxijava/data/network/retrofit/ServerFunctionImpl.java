@@ -20,47 +20,161 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.sample.android.classytaxijava.data.ContentResource;
+import com.sample.android.classytaxijava.data.SubscriptionBatchRequest;
+import com.sample.android.classytaxijava.data.SubscriptionBatchResponse;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 import com.sample.android.classytaxijava.data.SubscriptionStatusList;
 import com.sample.android.classytaxijava.data.network.firebase.ServerFunctions;
+import com.sample.android.classytaxijava.data.network.retrofit.authentication.CachingIdTokenProvider;
+import com.sample.android.classytaxijava.data.network.retrofit.authentication.FirebaseTokenSource;
+import com.sample.android.classytaxijava.data.network.retrofit.authentication.IdTokenProvider;
 import com.sample.android.classytaxijava.data.network.retrofit.authentication.RetrofitClient;
+import com.sample.android.classytaxijava.utils.Clock;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
+import retrofit2.Call;
+import retrofit2.Response;
 
 import static com.sample.android.classytaxijava.BuildConfig.SERVER_URL;
 
 
 /**
  * Implementation of Interfaces with Retrofit.
+ * <p>
+ * Requests are executed on the calling thread. {@link
+ * com.sample.android.classytaxijava.data.network.WebDataSource} calls these functions on a
+ * network thread, so each request holds its ordering key until the server responds.
  */
 public class ServerFunctionImpl implements ServerFunctions {
 
     private static final String TAG = "RemoteServerFunction";
+
+    /**
+     * Timeouts for each endpoint. Reads are short so that a stalled refresh fails quickly.
+     * Registration and transfer wait longer because the server verifies the purchase with
+     * Google Play before it responds.
+     */
+    private static final Map<String, EndpointTimeoutInterceptor.Timeouts> ENDPOINT_TIMEOUTS;
+
+    static {
+        EndpointTimeoutInterceptor.Timeouts read =
+                new EndpointTimeoutInterceptor.Timeouts(10_000, 15_000, 10_000);
+        EndpointTimeoutInterceptor.Timeouts purchase =
+                new EndpointTimeoutInterceptor.Timeouts(10_000, 30_000, 10_000);
+        Map<String, EndpointTimeoutInterceptor.Timeouts> timeouts = new HashMap<>();
+        timeouts.put(SubscriptionStatusApiCall.SUBSCRIPTION_STATUS, read);
+        timeouts.put(SubscriptionStatusApiCall.BASIC_CONTENT, read);
+        timeouts.put(SubscriptionStatusApiCall.PREMIUM_CONTENT, read);
+        timeouts.put(SubscriptionStatusApiCall.REGISTER_INSTANCE_ID, read);
+        timeouts.put(SubscriptionStatusApiCall.UNREGISTER_INSTANCE_ID, read);
+        timeouts.put(SubscriptionStatusApiCall.REGISTER_SUBSCRIPTION, purchase);
+        timeouts.put(SubscriptionStatusApiCall.TRANSFER_SUBSCRIPTION, purchase);
+        timeouts.put(SubscriptionStatusApiCall.REGISTER_SUBSCRIPTION_BATCH, purchase);
+        ENDPOINT_TIMEOUTS = Collections.unmodifiableMap(timeouts);
+    }
+
+    /**
+     * Retry policies for each endpoint. Only reads are retried here.
+     * <p>
+     * Mutations are sent by the outbox, see
+     * {@link com.sample.android.classytaxijava.data.network.OutboxDrainer}. It keeps a failed
+     * entry and sends it again with its own backoff. Retrying them here as well would hold a
+     * network thread and its endpoint permit while sleeping, and stack the two backoffs. They
+     * are also not idempotent: a repeated transfer or registration may reach the server after
+     * a later change by another account.
+     */
+    private static final Map<String, RetryPolicy> RETRY_POLICIES;
+
+    static {
+        RetryPolicy read = new RetryPolicy(3, 500, 5_000, true);
+        RetryPolicy mutation = RetryPolicy.NO_RETRY;
+        Map<String, RetryPolicy> policies = new HashMap<>();
+        policies.put(SubscriptionStatusApiCall.SUBSCRIPTION_STATUS, read);
+        policies.put(SubscriptionStatusApiCall.BASIC_CONTENT, read);
+        policies.put(SubscriptionStatusApiCall.PREMIUM_CONTENT, read);
+        policies.put(SubscriptionStatusApiCall.REGISTER_INSTANCE_ID, mutation);
+        policies.put(SubscriptionStatusApiCall.UNREGISTER_INSTANCE_ID, mutation);
+        policies.put(SubscriptionStatusApiCall.REGISTER_SUBSCRIPTION, mutation);
+        policies.put(SubscriptionStatusApiCall.TRANSFER_SUBSCRIPTION, mutation);
+        policies.put(SubscriptionStatusApiCall.REGISTER_SUBSCRIPTION_BATCH, mutation);
+        RETRY_POLICIES = Collections.unmodifiableMap(policies);
+    }
+
+    /**
+     * Consecutive failures that open the circuit breaker, and how long it stays open.
+     */
+    private static final int BREAKER_FAILURE_THRESHOLD = 5;
+    private static final long BREAKER_OPEN_MILLIS = 30_000;
+
+    /**
+     * How long the loading indicator stays visible after the last request completes, so that
+     * requests made back to back show one continuous indicator.
+     */
+    private static final long LOADING_HIDE_DELAY_MILLIS = 300;
+
     private static volatile ServerFunctions INSTANCE = null;
     private final MutableLiveData<List<SubscriptionStatus>> subscriptions = new MutableLiveData<>();
+    private final MutableLiveData<SubscriptionStatusList> subscriptionSync =
+            new MutableLiveData<>();
     private final MutableLiveData<ContentResource> basicContent = new MutableLiveData<>();
     private final MutableLiveData<ContentResource> premiumContent = new MutableLiveData<>();
     private MutableLiveData<Boolean> loading = new MutableLiveData<>();
-    private final RetrofitClient<SubscriptionStatusApiCall> retrofitClient = new RetrofitClient<>(SERVER_URL, SubscriptionStatusApiCall.class);
-    private final PendingRequestCounter pendingRequestCounter = new PendingRequestCounter();
+    private final RetrofitClient<SubscriptionStatusApiCall> retrofitClient;
+    private final PendingRequestCounter pendingRequestCounter;
+    private final ResilientCallExecutor resilientCallExecutor;
+    private final IdTokenProvider tokenProvider;
+
+    private ServerFunctionImpl(File cacheDirectory, ScheduledExecutorService scheduler) {
+        this(SERVER_URL, HttpStack.getInstance(cacheDirectory),
+                new CachingIdTokenProvider(new FirebaseTokenSource()), scheduler);
+    }
 
-    private ServerFunctionImpl() {
+    /**
+     * Create a client for another server, e.g. a local stand-in for the backend in tests.
+     *
+     * @param tokenProvider supplies the ID tokens sent with each request
+     */
+    @VisibleForTesting
+    ServerFunctionImpl(String baseUrl, HttpStack httpStack, IdTokenProvider tokenProvider,
+                       ScheduledExecutorService scheduler) {
+        this.tokenProvider = tokenProvider;
+        pendingRequestCounter =
+                new PendingRequestCounter(Clock.SYSTEM, scheduler, LOADING_HIDE_DELAY_MILLIS);
+        retrofitClient = new RetrofitClient<>(baseUrl, SubscriptionStatusApiCall.class,
+                httpStack, ENDPOINT_TIMEOUTS, tokenProvider);
+        ResilienceMetrics metrics = new ResilienceMetrics();
+        resilientCallExecutor = new ResilientCallExecutor(RETRY_POLICIES, RetryPolicy.NO_RETRY,
+                new CircuitBreaker(Clock.SYSTEM, BREAKER_FAILURE_THRESHOLD, BREAKER_OPEN_MILLIS,
+                        metrics),
+                metrics, ResilientCallExecutor.Sleeper.THREAD, new Random());
     }
 
-    public static ServerFunctions getInstance() {
+    /**
+     * @param cacheDirectory directory for the on-disk HTTP cache
+     * @param scheduler      timer for the delayed update of the loading state
+     */
+    public static ServerFunctions getInstance(File cacheDirectory,
+                                              ScheduledExecutorService scheduler) {
         if (INSTANCE == null) {
             synchronized (ServerFunctionImpl.class) {
                 if (INSTANCE == null) {
-                    INSTANCE = new ServerFunctionImpl();
+                    INSTANCE = new ServerFunctionImpl(cacheDirectory, scheduler);
                 }
             }
         }
@@ -87,6 +201,14 @@ public class ServerFunctionImpl implements ServerFunctions {
         return subscriptions;
     }
 
+    /**
+     * Results of subscription status requests, full lists or deltas with their sync cursor.
+     */
+    @Override
+    public LiveData<SubscriptionStatusList> getSubscriptionSync() {
+        return subscriptionSync;
+    }
+
     /**
      * The basic content URL.
      */
@@ -109,12 +231,11 @@ public class ServerFunctionImpl implements ServerFunctions {
      * This will fail if the user does not have a basic subscription.
      */
     @Override
-    public void updateBasicContent() {
+    public boolean updateBasicContent(@Nullable final String userId) {
         final String method = "updateBasicContent";
-        pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().fetchBasicContent().enqueue(new RetrofitResponseHandlerCallback<ContentResource>(method, pendingRequestCounter) {
+        return execute(retrofitClient.getService().fetchBasicContent(), new RetrofitResponseHandlerCallback<ContentResource>(method, pendingRequestCounter) {
             protected void onSuccess(ContentResource response) {
-                basicContent.postValue(response);
+                basicContent.postValue(new ContentResource(response.url, userId));
             }
         });
     }
@@ -123,27 +244,28 @@ public class ServerFunctionImpl implements ServerFunctions {
      * Fetches premium content and posts results to {@link #premiumContent}.
      * This will fail if the user does not have a premium subscription.
      */
-    public void updatePremiumContent() {
+    public boolean updatePremiumContent(@Nullable final String userId) {
         final String method = "updatePremiumContent";
-        pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().fetchPremiumContent().enqueue(new RetrofitResponseHandlerCallback<ContentResource>(method, pendingRequestCounter) {
+        return execute(retrofitClient.getService().fetchPremiumContent(), new RetrofitResponseHandlerCallback<ContentResource>(method, pendingRequestCounter) {
             @Override
             protected void onSuccess(ContentResource response) {
-                premiumContent.postValue(response);
+                premiumContent.postValue(new ContentResource(response.url, userId));
             }
         });
     }
 
     /**
-     * Fetches the Subscription Status from the server.
+     * Fetches the Subscription Status from the server and posts successful results to
+     * {@link #subscriptionSync}. With a cursor, the server only returns what changed since.
      */
-    public void updateSubscriptionStatus() {
+    public boolean updateSubscriptionStatus(@Nullable final String userId,
+                                            @Nullable String since) {
         final String method = "updateSubscriptionStatus";
-        pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().fetchSubscriptionStatus().enqueue(new RetrofitResponseHandlerCallback<SubscriptionStatusList>(method, pendingRequestCounter) {
+        return execute(retrofitClient.getService().fetchSubscriptionStatus(since), new RetrofitResponseHandlerCallback<SubscriptionStatusList>(method, pendingRequestCounter) {
             @Override
             protected void onSuccess(SubscriptionStatusList response) {
-                onSuccessfulSubscriptionCall(response, subscriptions);
+                response.setUserId(userId);
+                onSuccessfulSubscriptionSync(response);
             }
         });
     }
@@ -155,13 +277,12 @@ public class ServerFunctionImpl implements ServerFunctions {
      * @param sku           the ID of a specific product type
      * @param purchaseToken string that represents a buyer's entitlement to a product on Google Play
      */
-    public void registerSubscription(String sku, String purchaseToken) {
+    public boolean registerSubscription(String sku, String purchaseToken) {
         final String method = "registerSubscription";
         SubscriptionStatus data = new SubscriptionStatus();
         data.setSku(sku);
         data.setPurchaseToken(purchaseToken);
-        pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().registerSubscription(data).enqueue(new RetrofitResponseHandlerCallback<SubscriptionStatusList>(method, pendingRequestCounter) {
+        return executeMutation(retrofitClient.getService().registerSubscription(data), new RetrofitResponseHandlerCallback<SubscriptionStatusList>(method, pendingRequestCounter) {
             @Override
             protected void onSuccess(SubscriptionStatusList response) {
                 onSuccessfulSubscriptionCall(response, subscriptions);
@@ -192,13 +313,12 @@ public class ServerFunctionImpl implements ServerFunctions {
      * @param sku           the ID of a specific product type
      * @param purchaseToken string that represents a buyer's entitlement to a product on Google Play
      */
-    public void transferSubscription(String sku, String purchaseToken) {
+    public boolean transferSubscription(String sku, String purchaseToken) {
         final String method = "transferSubscription";
         SubscriptionStatus data = new SubscriptionStatus();
         data.setSku(sku);
         data.setPurchaseToken(purchaseToken);
-        pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().transferSubscription(data).enqueue(new RetrofitResponseHandlerCallback<SubscriptionStatusList>(method, pendingRequestCounter) {
+        return executeMutation(retrofitClient.getService().transferSubscription(data), new RetrofitResponseHandlerCallback<SubscriptionStatusList>(method, pendingRequestCounter) {
             @Override
             protected void onSuccess(SubscriptionStatusList response) {
                 onSuccessfulSubscriptionCall(response, subscriptions);
@@ -206,6 +326,38 @@ public class ServerFunctionImpl implements ServerFunctions {
         });
     }
 
+    /**
+     * Registers or transfers several subscriptions in one request and posts the resulting
+     * subscription list to {@link #subscriptions}.
+     * <p>
+     * Each purchase gets its own status code, which is handled like the response to a single
+     * registration: HTTP 409 CONFLICT creates an already owned subscription, and only
+     * transient errors leave the purchase unprocessed. A successful response without a result
+     * for every purchase cannot be matched up, so every purchase counts as processed.
+     */
+    @Override
+    public boolean[] registerSubscriptions(final SubscriptionBatchRequest request) {
+        final String method = "registerSubscriptions";
+        final boolean[] processed = new boolean[request.size()];
+        executeMutation(retrofitClient.getService().registerSubscriptions(request), new RetrofitResponseHandlerCallback<SubscriptionBatchResponse>(method, pendingRequestCounter) {
+            @Override
+            protected void onSuccess(SubscriptionBatchResponse response) {
+                onSuccessfulBatchCall(request, response, processed);
+            }
+
+            @Override
+            protected void onError(int errorCode, @Nullable String errorMessage) {
+                // A client error rejects every purchase, as it would reject each one alone.
+                if (errorCode != NO_HTTP_CODE && !RetryPolicy.isTransient(errorCode)
+                        && !isTokenRejected(errorCode)) {
+                    Arrays.fill(processed, true);
+                }
+                super.logError(errorCode, errorMessage);
+            }
+        });
+        return processed;
+    }
+
     /**
      * Registers Instance ID for Firebase Cloud Messaging.
      *
@@ -213,15 +365,14 @@ public class ServerFunctionImpl implements ServerFunctions {
      *                   {@link com.sample.android.classytaxijava.FcmRegistrationTokenService}
      */
     @Override
-    public void registerInstanceId(String instanceId) {
+    public boolean registerInstanceId(String instanceId) {
         final String method = "registerInstanceId";
         Map<String, String> data = new HashMap<>();
         data.put("instanceId", instanceId);
-        pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().registerInstanceID(data).enqueue(new RetrofitResponseHandlerCallback<String>(method, pendingRequestCounter) {
+        return executeMutation(retrofitClient.getService().registerInstanceID(data), new RetrofitResponseHandlerCallback<String>(method, pendingRequestCounter) {
             @Override
             protected void onSuccess(String response) {
-                // A production app may want to track whether registration has been successful to allow for retrying.
+                // Delivery is tracked by the outbox, which retries until the server responds.
             }
         });
     }
@@ -233,21 +384,106 @@ public class ServerFunctionImpl implements ServerFunctions {
      *                   {@link com.sample.android.classytaxijava.FcmRegistrationTokenService}
      */
     @Override
-    public void unregisterInstanceId(String instanceId) {
+    public boolean unregisterInstanceId(String instanceId) {
         final String method = "unregisterInstanceId";
         Map<String, String> data = new HashMap<>();
         data.put("instanceId", instanceId);
-        pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().unregisterInstanceID(data).enqueue(new RetrofitResponseHandlerCallback<String>(method, pendingRequestCounter) {
+        return executeMutation(retrofitClient.getService().unregisterInstanceID(data), new RetrofitResponseHandlerCallback<String>(method, pendingRequestCounter) {
             @Override
             protected void onSuccess(String response) {
-                // A production app may want to track whether un-registration has been successful to allow for retrying.
+                // Sent once, right before sign-out. The caller logs a failure.
             }
         });
     }
 
+    /**
+     * Forget cached responses and clear the content URLs, so that the next requests
+     * return full responses for the current user.
+     */
+    @Override
+    public void clearCachedResponses() {
+        retrofitClient.clearCachedResponses();
+        basicContent.postValue(null);
+        premiumContent.postValue(null);
+    }
+
     // Helper functions
 
+    /**
+     * Counters for retries, circuit breaker state changes and rejected calls.
+     */
+    public ResilienceMetrics getResilienceMetrics() {
+        return resilientCallExecutor.getMetrics();
+    }
+
+    /**
+     * Requests in flight, latency and errors of each call.
+     */
+    public PendingRequestCounter getPendingRequestCounter() {
+        return pendingRequestCounter;
+    }
+
+    /**
+     * Execute the call on the calling thread, retrying transient failures, and deliver the
+     * final result to the callback.
+     *
+     * @return true if the server returned a successful response, or reported that the
+     * previous response is still valid
+     */
+    private <T> boolean execute(Call<T> call, RetrofitResponseHandlerCallback<T> callback) {
+        Response<T> response;
+        try {
+            response = resilientCallExecutor.execute(call);
+        } catch (IOException e) {
+            callback.onFailure(call, e);
+            return false;
+        }
+        callback.onResponse(call, response);
+        return response.isSuccessful()
+                || response.code() == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    /**
+     * Execute a mutation on the calling thread and deliver the final result to the callback.
+     * If the server rejects the ID token, the request is sent once more with a new token.
+     *
+     * @return true if the server processed the request, including client errors such as
+     * HTTP 409 CONFLICT that will not change when the request is sent again. False after a
+     * connection failure, a server error, or when the ID token was rejected.
+     */
+    private <T> boolean executeMutation(Call<T> call,
+                                        RetrofitResponseHandlerCallback<T> callback) {
+        Response<T> response;
+        try {
+            response = resilientCallExecutor.execute(call);
+            if (isTokenRejected(response.code())) {
+                // The token expired or was revoked. The server did not process the request.
+                Log.i(TAG, "ID token rejected with HTTP " + response.code() + ", retrying");
+                if (response.errorBody() != null) {
+                    response.errorBody().close();
+                }
+                tokenProvider.invalidate();
+                call = call.clone();
+                response = resilientCallExecutor.execute(call);
+            }
+        } catch (IOException e) {
+            callback.onFailure(call, e);
+            return false;
+        }
+        callback.onResponse(call, response);
+        return !RetryPolicy.isTransient(response.code()) && !isTokenRejected(response.code());
+    }
+
+    /**
+     * Returns true if the server refused the ID token: HTTP 401 when it is missing, and
+     * HTTP 403 when it is invalid, e.g. expired or revoked. Mutations never return 403
+     * otherwise.
+     */
+    private static boolean isTokenRejected(int httpCode) {
+        return httpCode == HttpURLConnection.HTTP_UNAUTHORIZED
+                || httpCode == HttpURLConnection.HTTP_FORBIDDEN;
+    }
+
     /**
      * Inserts or updates the subscription to the list of existing subscriptions.
      * <p>
@@ -281,6 +517,61 @@ public class ServerFunctionImpl implements ServerFunctions {
         return subscriptionStatuses;
     }
 
+    /**
+     * Fan the results of a batch registration back out to the purchases in the request, and
+     * post the subscription list once.
+     */
+    private void onSuccessfulBatchCall(SubscriptionBatchRequest request,
+                                       SubscriptionBatchResponse response,
+                                       boolean[] processed) {
+        List<SubscriptionBatchResponse.Result> results =
+                response == null ? null : response.getResults();
+        if (results == null || results.size() != request.size()) {
+            // The server accepted the batch, so sending it again would get the same answer
+            // and hold up the entries behind it.
+            Log.e(TAG, "Invalid batch results for " + request.size()
+                    + " purchases, treating them as processed");
+            Arrays.fill(processed, true);
+            return;
+        }
+        List<SubscriptionStatus> newSubscriptions = response.getSubscriptions();
+        for (int i = 0; i < results.size(); i++) {
+            SubscriptionBatchRequest.Purchase purchase = request.getPurchases().get(i);
+            int status = results.get(i).getStatus();
+            processed[i] = !RetryPolicy.isTransient(status);
+            if (status == HttpURLConnection.HTTP_CONFLICT && !purchase.isTransfer()) {
+                Log.w(TAG, "Subscription already exists");
+                newSubscriptions = insertOrUpdateSubscription(newSubscriptions,
+                        SubscriptionStatus.alreadyOwnedSubscription(
+                                purchase.getSku(), purchase.getPurchaseToken()));
+            }
+        }
+        if (newSubscriptions == null || newSubscriptions.isEmpty()) {
+            Log.w(TAG, "Invalid subscription data");
+            return;
+        }
+        subscriptions.postValue(newSubscriptions);
+    }
+
+    /**
+     * Called when a subscription status request succeeds. A delta is valid even if nothing
+     * changed, a full list has the same requirements as other subscription responses.
+     */
+    private void onSuccessfulSubscriptionSync(SubscriptionStatusList subscriptionStatusList) {
+        if (!subscriptionStatusList.isDelta()
+                && (subscriptionStatusList.getSubscriptions() == null
+                || subscriptionStatusList.getSubscriptions().isEmpty())) {
+            Log.w(TAG, "Invalid subscription data");
+            return;
+        }
+        if (subscriptionStatusList.isDelta() && subscriptionStatusList.getCursor() == null) {
+            Log.w(TAG, "Subscription delta without cursor");
+            return;
+        }
+        Log.i(TAG, "Valid subscription data");
+        subscriptionSync.postValue(subscriptionStatusList);
+    }
+
     /**
      * Called when a successful response returns from the server
      * for a {@link SubscriptionStatus} HTTPS call
@@ -17,15 +17,20 @@
 package com.sample.android.classytaxijava.data.network.retrofit;
 
 import com.sample.android.classytaxijava.data.ContentResource;
+import com.sample.android.classytaxijava.data.SubscriptionBatchRequest;
+import com.sample.android.classytaxijava.data.SubscriptionBatchResponse;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 import com.sample.android.classytaxijava.data.SubscriptionStatusList;
 
 import java.util.Map;
 
+import androidx.annotation.Nullable;
+
 import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.GET;
 import retrofit2.http.PUT;
+import retrofit2.http.Query;
 
 /**
  * Retrofit API Interfaces.
@@ -36,6 +41,7 @@ public interface SubscriptionStatusApiCall {
     public static final String SUBSCRIPTION_STATUS = "subscription_status_v2";
     public static final String REGISTER_SUBSCRIPTION = "subscription_register_v2";
     public static final String TRANSFER_SUBSCRIPTION = "subscription_transfer_v2";
+    public static final String REGISTER_SUBSCRIPTION_BATCH = "subscription_register_batch_v2";
     public static final String REGISTER_INSTANCE_ID = "instanceId_register_v2";
     public static final String UNREGISTER_INSTANCE_ID = "instanceId_unregister_v2";
 
@@ -47,9 +53,9 @@ public interface SubscriptionStatusApiCall {
     @GET(PREMIUM_CONTENT)
     Call<ContentResource> fetchPremiumContent();
 
-    // Fetch Subscription Status.
+    // Fetch Subscription Status, only what changed since the cursor if one is given.
     @GET(SUBSCRIPTION_STATUS)
-    Call<SubscriptionStatusList> fetchSubscriptionStatus();
+    Call<SubscriptionStatusList> fetchSubscriptionStatus(@Nullable @Query("since") String since);
 
     // Registers Instance ID for Firebase Cloud Messaging.
     @PUT(REGISTER_INSTANCE_ID)
@@ -66,4 +72,8 @@ public interface SubscriptionStatusApiCall {
     // Transfers subscription status to another account.
     @PUT(TRANSFER_SUBSCRIPTION)
     Call<SubscriptionStatusList> transferSubscription(@Body SubscriptionStatus transferStatus);
+
+    // Registers or transfers several subscriptions in one request.
+    @PUT(REGISTER_SUBSCRIPTION_BATCH)
+    Call<SubscriptionBatchResponse> registerSubscriptions(@Body SubscriptionBatchRequest request);
 }
\ No newline at end of file
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit.authentication;
+
+import androidx.annotation.Nullable;
+
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link IdTokenProvider} that caches the token together with its expiry time.
+ * <p>
+ * A cached token is returned without blocking. Once the token is within the refresh window
+ * of its expiry, a refresh is started in the background and the cached token is still
+ * returned. Callers only wait when there is no usable token, and concurrent callers share a
+ * single refresh.
+ */
+public class CachingIdTokenProvider implements IdTokenProvider {
+
+    /**
+     * Fetches ID tokens, e.g. from Firebase Auth.
+     */
+    public interface TokenSource {
+        /**
+         * The ID of the signed-in user, or null if there is none.
+         */
+        @Nullable
+        String getUserId();
+
+        /**
+         * Fetch a token for the signed-in user and report it to the callback.
+         * Must not block.
+         *
+         * @param forceRefresh fetch a new token even if the source has a valid one
+         */
+        void fetchToken(boolean forceRefresh, TokenCallback callback);
+    }
+
+    /**
+     * Receives the result of {@link TokenSource#fetchToken}.
+     */
+    public interface TokenCallback {
+        void onToken(String token, long expirationTimeMillis);
+
+        void onError(Exception e);
+    }
+
+    /**
+     * Start refreshing this long before the token expires.
+     */
+    public static final long DEFAULT_REFRESH_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Tokens that expire within this margin are not sent, to allow for clock skew and the
+     * time the request takes to reach the server.
+     */
+    private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Maximum time a caller waits for a token.
+     */
+    private static final long TOKEN_TIMEOUT_MILLIS = 30000;
+
+    private final TokenSource tokenSource;
+    private final Clock clock;
+    private final long refreshWindowMillis;
+
+    private final Object lock = new Object();
+    @Nullable
+    private Token token;
+    @Nullable
+    private Refresh refresh;
+    private boolean forceRefresh;
+
+    public CachingIdTokenProvider(TokenSource tokenSource) {
+        this(tokenSource, Clock.SYSTEM, DEFAULT_REFRESH_WINDOW_MILLIS);
+    }
+
+    public CachingIdTokenProvider(TokenSource tokenSource, Clock clock, long refreshWindowMillis) {
+        this.tokenSource = tokenSource;
+        this.clock = clock;
+        this.refreshWindowMillis = refreshWindowMillis;
+    }
+
+    @Override
+    public String getToken() throws IOException {
+        String userId = tokenSource.getUserId();
+        if (userId == null) {
+            throw new TokenUnavailableException("user is null");
+        }
+        while (true) {
+            Refresh pending;
+            synchronized (lock) {
+                long now = clock.currentTimeMillis();
+                if (token != null && !token.userId.equals(userId)) {
+                    // The user changed. Never send the previous user's token.
+                    token = null;
+                }
+                if (token != null
+                        && now < token.expirationTimeMillis - EXPIRY_MARGIN_MILLIS) {
+                    if (now >= token.expirationTimeMillis - refreshWindowMillis) {
+                        startRefreshLocked(userId);
+                    }
+                    return token.value;
+                }
+                pending = startRefreshLocked(userId);
+            }
+            String value = pending.await();
+            if (!pending.invalidated) {
+                return value;
+            }
+            // The token was invalidated while it was being fetched. Fetch a new one.
+        }
+    }
+
+    /**
+     * Drop the cached token and make the next fetch bypass the token source's cache.
+     * A refresh that is already running is abandoned: its token is neither cached nor
+     * returned, and its callers wait for a new one.
+     */
+    @Override
+    public void invalidate() {
+        synchronized (lock) {
+            token = null;
+            forceRefresh = true;
+            if (refresh != null) {
+                refresh.invalidated = true;
+                refresh = null;
+            }
+        }
+    }
+
+    /**
+     * Start a refresh for the user, or join the one that is already running.
+     */
+    private Refresh startRefreshLocked(String userId) {
+        if (refresh != null && refresh.userId.equals(userId)) {
+            return refresh;
+        }
+        final Refresh newRefresh = new Refresh(userId);
+        refresh = newRefresh;
+        boolean force = forceRefresh;
+        forceRefresh = false;
+        tokenSource.fetchToken(force, new TokenCallback() {
+            @Override
+            public void onToken(String value, long expirationTimeMillis) {
+                synchronized (lock) {
+                    if (refresh == newRefresh) {
+                        refresh = null;
+                        token = new Token(newRefresh.userId, value, expirationTimeMillis);
+                    }
+                }
+                newRefresh.complete(value, null);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                synchronized (lock) {
+                    if (refresh == newRefresh) {
+                        refresh = null;
+                    }
+                }
+                newRefresh.complete(null, e);
+            }
+        });
+        return newRefresh;
+    }
+
+    private static class Token {
+        final String userId;
+        final String value;
+        final long expirationTimeMillis;
+
+        Token(String userId, String value, long expirationTimeMillis) {
+            this.userId = userId;
+            this.value = value;
+            this.expirationTimeMillis = expirationTimeMillis;
+        }
+    }
+
+    /**
+     * A token fetch that callers can wait on.
+     */
+    private static class Refresh {
+        final String userId;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String value;
+        private volatile Exception error;
+        /**
+         * Set when the token was invalidated during the fetch. Its result must not be used.
+         */
+        volatile boolean invalidated;
+
+        Refresh(String userId) {
+            this.userId = userId;
+        }
+
+        void complete(@Nullable String value, @Nullable Exception error) {
+            this.value = value;
+            this.error = error;
+            done.countDown();
+        }
+
+        String await() throws IOException {
+            try {
+                if (!done.await(TOKEN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    throw new TokenUnavailableException("Timed out waiting for user ID token");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TokenUnavailableException(
+                        "Interrupted while waiting for user ID token", e);
+            }
+            if (value == null) {
+                throw new TokenUnavailableException("Failed to get new user ID token", error);
+            }
+            return value;
+        }
+    }
+}
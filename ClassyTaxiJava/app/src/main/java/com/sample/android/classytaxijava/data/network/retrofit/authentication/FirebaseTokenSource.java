@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit.authentication;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.auth.GetTokenResult;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link CachingIdTokenProvider.TokenSource} backed by Firebase Auth.
+ */
+public class FirebaseTokenSource implements CachingIdTokenProvider.TokenSource {
+
+    /**
+     * Runs the completion listener on the thread that completes the task, so that the result
+     * does not wait for the main thread.
+     */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Nullable
+    @Override
+    public String getUserId() {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        return user == null ? null : user.getUid();
+    }
+
+    @Override
+    public void fetchToken(boolean forceRefresh,
+                           final CachingIdTokenProvider.TokenCallback callback) {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        if (user == null) {
+            callback.onError(new IOException("user is null"));
+            return;
+        }
+        user.getIdToken(forceRefresh).addOnCompleteListener(DIRECT_EXECUTOR,
+                new OnCompleteListener<GetTokenResult>() {
+                    @Override
+                    public void onComplete(@NonNull Task<GetTokenResult> task) {
+                        if (!task.isSuccessful()) {
+                            callback.onError(task.getException());
+                            return;
+                        }
+                        GetTokenResult result = task.getResult();
+                        String token = result.getToken();
+                        if (token == null) {
+                            callback.onError(new IOException("token is null"));
+                        } else {
+                            // The expiration timestamp is in seconds.
+                            callback.onToken(token, result.getExpirationTimestamp() * 1000);
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit.authentication;
+
+import java.io.IOException;
+
+/**
+ * Supplies the ID token that {@link UserIdTokenInterceptor} adds to each request.
+ */
+public interface IdTokenProvider {
+
+    /**
+     * Thrown when no token is available. The request was not sent to the server.
+     */
+    class TokenUnavailableException extends IOException {
+        public TokenUnavailableException(String message) {
+            super(message);
+        }
+
+        public TokenUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Returns a valid ID token for the signed-in user. May block while a token is fetched.
+     *
+     * @throws TokenUnavailableException if there is no signed-in user or the token could not
+     *                                   be fetched
+     */
+    String getToken() throws IOException;
+
+    /**
+     * Discard the current token, e.g. after the server rejected it.
+     * The next call to {@link #getToken()} fetches a new token.
+     */
+    void invalidate();
+}
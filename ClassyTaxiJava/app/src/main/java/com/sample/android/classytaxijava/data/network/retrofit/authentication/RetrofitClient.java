@@ -16,11 +16,12 @@
 
 package com.sample.android.classytaxijava.data.network.retrofit.authentication;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.sample.android.classytaxijava.data.network.retrofit.EndpointTimeoutInterceptor;
+import com.sample.android.classytaxijava.data.network.retrofit.HttpStack;
 import com.sample.android.classytaxijava.data.network.retrofit.ServerFunctionImpl;
 
-import java.util.concurrent.TimeUnit;
+import java.util.Collections;
+import java.util.Map;
 
 import okhttp3.OkHttpClient;
 import retrofit2.Retrofit;
@@ -31,28 +32,53 @@ import retrofit2.converter.scalars.ScalarsConverterFactory;
  * Creates Retrofit instances that
  * {@link ServerFunctionImpl}
  * uses to make authenticated HTTPS requests.
+ * <p>
+ * Clients share the connection pool, dispatcher, HTTP cache and Gson of the {@link HttpStack}.
+ * GET responses are cached on disk and revalidated with their ETag, so an unchanged response
+ * is read from the cache instead of being downloaded again.
  *
  * @param <S>
  */
 public class RetrofitClient<S> {
     private final S service;
-    private static final int NETWORK_TIMEOUT_SECONDS = 60;
+    private final HttpStack httpStack;
+    private final String baseUrl;
 
     public RetrofitClient(String baseUrl, Class<S> serviceClass) {
-        final OkHttpClient okHttpClient = new OkHttpClient.Builder()
-                .connectTimeout(NETWORK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
-                .readTimeout(NETWORK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
-                .writeTimeout(NETWORK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
-                .addInterceptor(new UserIdTokenInterceptor())
-                .build();
+        this(baseUrl, serviceClass, HttpStack.getInstance(null),
+                Collections.<String, EndpointTimeoutInterceptor.Timeouts>emptyMap());
+    }
 
-        final Gson gson = new GsonBuilder().create();
+    /**
+     * @param httpStack        shared HTTP stack
+     * @param endpointTimeouts timeouts for each endpoint of the service
+     */
+    public RetrofitClient(String baseUrl, Class<S> serviceClass, HttpStack httpStack,
+                          Map<String, EndpointTimeoutInterceptor.Timeouts> endpointTimeouts) {
+        this(baseUrl, serviceClass, httpStack, endpointTimeouts,
+                new CachingIdTokenProvider(new FirebaseTokenSource()));
+    }
+
+    /**
+     * @param httpStack        shared HTTP stack
+     * @param endpointTimeouts timeouts for each endpoint of the service
+     * @param tokenProvider    supplies the ID token sent with each request
+     */
+    public RetrofitClient(String baseUrl, Class<S> serviceClass, HttpStack httpStack,
+                          Map<String, EndpointTimeoutInterceptor.Timeouts> endpointTimeouts,
+                          IdTokenProvider tokenProvider) {
+        this.httpStack = httpStack;
+        this.baseUrl = baseUrl;
+        final OkHttpClient okHttpClient = httpStack.newClientBuilder()
+                .addInterceptor(new EndpointTimeoutInterceptor(endpointTimeouts))
+                .addInterceptor(new UserIdTokenInterceptor(tokenProvider))
+                .build();
 
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl(baseUrl)
                 .client(okHttpClient)
                 .addConverterFactory(ScalarsConverterFactory.create())
-                .addConverterFactory(GsonConverterFactory.create(gson))
+                .addConverterFactory(GsonConverterFactory.create(httpStack.getGson()))
                 .build();
         service = retrofit.create(serviceClass);
     }
@@ -60,4 +86,12 @@ public class RetrofitClient<S> {
     public S getService() {
         return service;
     }
+
+    /**
+     * Remove the cached responses of this service. The next request for each endpoint
+     * returns a full response. Other services keep their cached responses.
+     */
+    public void clearCachedResponses() {
+        httpStack.clearCache(baseUrl);
+    }
 }
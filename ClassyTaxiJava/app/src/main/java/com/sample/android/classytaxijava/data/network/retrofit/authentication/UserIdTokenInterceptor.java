@@ -18,55 +18,46 @@ package com.sample.android.classytaxijava.data.network.retrofit.authentication;
 
 import android.util.Log;
 
-import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
-import com.google.firebase.auth.FirebaseAuth;
-import com.google.firebase.auth.FirebaseUser;
-import com.google.firebase.auth.GetTokenResult;
-
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.net.HttpURLConnection;
 
 import okhttp3.Interceptor;
 import okhttp3.Request;
 
 /**
  * An {@link Interceptor} that adds the Firebase Auth ID token to the retrofit request headers.
+ * <p>
+ * Tokens come from an {@link IdTokenProvider}, which caches them, so most requests go out
+ * without waiting for Firebase Auth.
  */
 public class UserIdTokenInterceptor implements Interceptor {
     // Custom header for passing ID token in the request.
     private static final String X_FIREBASE_ID_TOKEN = "X-FireIDToken";
     private static final String TAG = "Interceptor";
 
+    private final IdTokenProvider tokenProvider;
+
+    public UserIdTokenInterceptor() {
+        this(new CachingIdTokenProvider(new FirebaseTokenSource()));
+    }
+
+    public UserIdTokenInterceptor(IdTokenProvider tokenProvider) {
+        this.tokenProvider = tokenProvider;
+    }
+
     @Override
     public okhttp3.Response intercept(Chain chain) throws IOException {
         Request request = chain.request();
-        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
-        if (user == null) {
-            Log.i(TAG, "user is null");
-            throw new IOException("user is null");
-        } else {
-            Task<GetTokenResult> task = user.getIdToken(false);
-            GetTokenResult Result = null;
-            try {
-                Result = Tasks.await(task, 30000, TimeUnit.MILLISECONDS);
-            } catch (ExecutionException | InterruptedException | TimeoutException e) {
-                throw new IOException("Failed to get new user ID token", e);
-            }
-            String token = Result.getToken();
-            if (token == null) {
-                Log.i(TAG, "token is null");
-                throw new IOException("token is null");
-            } else {
-                Request modifiedRequest = request.newBuilder()
-                        .addHeader(X_FIREBASE_ID_TOKEN, token)
-                        .build();
-                return chain.proceed(modifiedRequest);
-            }
+        String token = tokenProvider.getToken();
+        Request modifiedRequest = request.newBuilder()
+                .addHeader(X_FIREBASE_ID_TOKEN, token)
+                .build();
+        okhttp3.Response response = chain.proceed(modifiedRequest);
+        if (response.code() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            // The token was rejected, e.g. it was revoked. Fetch a new one next time.
+            Log.i(TAG, "ID token rejected, refreshing");
+            tokenProvider.invalidate();
         }
+        return response;
     }
 }
-
-
@@ -22,9 +22,11 @@ import android.util.Log;
 import com.android.billingclient.api.BillingFlowParams;
 import com.android.billingclient.api.Purchase;
 import com.android.billingclient.api.SkuDetails;
+import com.sample.android.classytaxijava.AppContainer;
 import com.sample.android.classytaxijava.Constants;
 import com.sample.android.classytaxijava.SubApp;
 import com.sample.android.classytaxijava.billing.BillingUtilities;
+import com.sample.android.classytaxijava.data.DataRepository;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 
 import java.util.List;
@@ -48,7 +50,7 @@ public class BillingViewModel extends AndroidViewModel {
     private MutableLiveData<Map<String, SkuDetails>> skusWithSkuDetails;
 
     /**
-     * Subscriptions record according to the server.
+     * Subscriptions record according to the server. Null until the repository is ready.
      */
     private MediatorLiveData<List<SubscriptionStatus>> subscriptions;
 
@@ -68,7 +70,21 @@ public class BillingViewModel extends AndroidViewModel {
         SubApp subApp = ((SubApp) application);
         purchases = subApp.getBillingClientLifecycle().purchases;
         skusWithSkuDetails = subApp.getBillingClientLifecycle().skusWithSkuDetails;
-        subscriptions = subApp.getRepository().getSubscriptions();
+        // The repository may still be starting up. Do not wait for it on the main thread.
+        subApp.getRepository(new AppContainer.RepositoryCallback() {
+            @Override
+            public void onRepositoryReady(DataRepository repository) {
+                subscriptions = repository.getSubscriptions();
+            }
+        });
+    }
+
+    /**
+     * The subscriptions according to the server, or null if they are not known yet.
+     */
+    @Nullable
+    private List<SubscriptionStatus> getServerSubscriptions() {
+        return subscriptions == null ? null : subscriptions.getValue();
     }
 
     /**
@@ -103,9 +119,9 @@ public class BillingViewModel extends AndroidViewModel {
      */
     public void openSubscriptionPageOnGooglePlay() {
         boolean isPremiumOnServer = BillingUtilities
-                .serverHasSubscription(subscriptions.getValue(), Constants.PREMIUM_SKU);
+                .serverHasSubscription(getServerSubscriptions(), Constants.PREMIUM_SKU);
         boolean isBasicOnServer = BillingUtilities
-                .serverHasSubscription(subscriptions.getValue(), Constants.BASIC_SKU);
+                .serverHasSubscription(getServerSubscriptions(), Constants.BASIC_SKU);
         if (isPremiumOnServer) {
             openPremiumPlayStoreSubscriptions();
         }
@@ -190,7 +206,7 @@ public class BillingViewModel extends AndroidViewModel {
     private void buy(String sku, @Nullable String oldSku) {
         // First, determine whether the new SKU can be purchased.
         boolean isSkuOnServer = BillingUtilities
-                .serverHasSubscription(subscriptions.getValue(), sku);
+                .serverHasSubscription(getServerSubscriptions(), sku);
         boolean isSkuOnDevice = BillingUtilities
                 .deviceHasGooglePlaySubscription(purchases.getValue(), sku);
         Log.d("Billing", sku + " - isSkuOnServer: " + isSkuOnServer +
@@ -220,7 +236,7 @@ public class BillingViewModel extends AndroidViewModel {
             // If the old SKU cannot be used, set this value to null and ignore it.
 
             String oldSkuToBeReplaced = null;
-            if (isOldSkuReplaceable(subscriptions.getValue(), purchases.getValue(), oldSku)) {
+            if (isOldSkuReplaceable(getServerSubscriptions(), purchases.getValue(), oldSku)) {
                 oldSkuToBeReplaced = oldSku;
             }
 
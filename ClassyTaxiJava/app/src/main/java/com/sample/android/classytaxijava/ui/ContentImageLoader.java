@@ -0,0 +1,90 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.ui;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.widget.ImageView;
+
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.RequestBuilder;
+import com.bumptech.glide.request.RequestOptions;
+import com.bumptech.glide.request.target.Target;
+import com.sample.android.classytaxijava.R;
+import com.sample.android.classytaxijava.data.ContentResource;
+
+/**
+ * Loads subscription content images.
+ * <p>
+ * Prefetching and binding request the same size with the same options, so they share a Glide
+ * memory cache key. Images prefetched in the background are then bound from memory, without
+ * network access or decoding on the bind path.
+ */
+public class ContentImageLoader {
+    private static final String TAG = "ContentImageLoader";
+
+    /**
+     * Download and decode the content image in the background, once the user is entitled to
+     * the content. Call this with the application context, so that the request outlives
+     * the fragments that show the image.
+     */
+    public static void prefetch(Context context, @Nullable ContentResource content) {
+        if (content == null || content.url == null) {
+            return;
+        }
+        Log.d(TAG, "Prefetching content image: " + content.url);
+        request(context, content.url).preload();
+    }
+
+    /**
+     * Show the content image. Rebinding the URL the view already shows does nothing.
+     */
+    public static void bind(ImageView image, String url) {
+        if (url.equals(image.getTag(R.id.content_image_url)) && image.getDrawable() != null) {
+            return;
+        }
+        image.setTag(R.id.content_image_url, url);
+        request(image.getContext(), url).into(image);
+    }
+
+    /**
+     * Clear the content image, e.g. when the user is no longer entitled to it.
+     */
+    public static void clear(ImageView image) {
+        if (image.getTag(R.id.content_image_url) != null) {
+            image.setTag(R.id.content_image_url, null);
+            Glide.with(image.getContext()).clear(image);
+        }
+    }
+
+    /**
+     * Content images are shown at the full width of the screen. The height follows from the
+     * aspect ratio of the image. The image view scales the result, so no transformation is
+     * applied; otherwise the view's scale type would change the cache key.
+     */
+    private static RequestBuilder<Drawable> request(Context context, String url) {
+        int width = context.getResources().getDisplayMetrics().widthPixels;
+        return Glide.with(context)
+                .load(url)
+                .apply(new RequestOptions()
+                        .override(width, Target.SIZE_ORIGINAL)
+                        .dontTransform());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.ui;
+
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.View;
+import android.widget.TextView;
+
+import com.sample.android.classytaxijava.R;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+
+/**
+ * Applies a {@link HomeViewState} to the Home fragment.
+ * <p>
+ * The renderer remembers what it displayed last, and only changes the views whose visibility
+ * or text differ in the new state. Views are looked up once.
+ */
+class HomeViewRenderer {
+    private static final String TAG = "HomeViewRenderer";
+
+    /**
+     * The views of the Home fragment, by ID.
+     */
+    interface Views {
+        void setVisible(int viewId, boolean visible);
+
+        /**
+         * Set the text of a view to a string resource formatted with one argument.
+         */
+        void setText(int viewId, int formatResId, String arg);
+    }
+
+    private final Views views;
+    @Nullable
+    private HomeViewState rendered;
+    // Texts are kept while their message is hidden, so they are tracked separately.
+    @Nullable
+    private String renderedRestoreDate;
+    @Nullable
+    private String renderedAutoResumeDate;
+
+    HomeViewRenderer(Views views) {
+        this.views = views;
+    }
+
+    /**
+     * Returns the renderer of a Home fragment, created on first use and kept in a tag.
+     */
+    @MainThread
+    static HomeViewRenderer forView(View root) {
+        HomeViewRenderer renderer = (HomeViewRenderer) root.getTag(R.id.home_view_renderer);
+        if (renderer == null) {
+            renderer = new HomeViewRenderer(new ViewLookup(root));
+            root.setTag(R.id.home_view_renderer, renderer);
+        }
+        return renderer;
+    }
+
+    @MainThread
+    void render(HomeViewState state) {
+        HomeViewState previous = rendered;
+        if (state.equals(previous)) {
+            return;
+        }
+        Log.d(TAG, "Rendering " + state);
+        boolean all = previous == null;
+        if (state.isRestoreVisible() && state.getRestoreDate() != null
+                && !state.getRestoreDate().equals(renderedRestoreDate)) {
+            views.setText(R.id.home_restore_message, R.string.restore_message_with_date,
+                    state.getRestoreDate());
+            renderedRestoreDate = state.getRestoreDate();
+        }
+        if (state.isAccountPausedVisible() && state.getAutoResumeDate() != null
+                && !state.getAutoResumeDate().equals(renderedAutoResumeDate)) {
+            views.setText(R.id.home_account_paused_message_text,
+                    R.string.account_paused_message_string, state.getAutoResumeDate());
+            renderedAutoResumeDate = state.getAutoResumeDate();
+        }
+        if (all || previous.isPaywallVisible() != state.isPaywallVisible()) {
+            views.setVisible(R.id.home_paywall_message, state.isPaywallVisible());
+        }
+        if (all || previous.isRestoreVisible() != state.isRestoreVisible()) {
+            views.setVisible(R.id.home_restore_message, state.isRestoreVisible());
+        }
+        if (all || previous.isGracePeriodVisible() != state.isGracePeriodVisible()) {
+            views.setVisible(R.id.home_grace_period_message, state.isGracePeriodVisible());
+        }
+        if (all || previous.isTransferVisible() != state.isTransferVisible()) {
+            views.setVisible(R.id.home_transfer_message, state.isTransferVisible());
+        }
+        if (all || previous.isAccountHoldVisible() != state.isAccountHoldVisible()) {
+            views.setVisible(R.id.home_account_hold_message, state.isAccountHoldVisible());
+        }
+        if (all || previous.isAccountPausedVisible() != state.isAccountPausedVisible()) {
+            views.setVisible(R.id.home_account_paused_message, state.isAccountPausedVisible());
+        }
+        if (all || previous.isBasicVisible() != state.isBasicVisible()) {
+            views.setVisible(R.id.home_basic_message, state.isBasicVisible());
+        }
+        rendered = state;
+    }
+
+    /**
+     * Finds each view once and caches it.
+     */
+    private static class ViewLookup implements Views {
+        private final View root;
+        private final SparseArray<View> cache = new SparseArray<>();
+
+        ViewLookup(View root) {
+            this.root = root;
+        }
+
+        private View find(int viewId) {
+            View view = cache.get(viewId);
+            if (view == null) {
+                view = root.findViewById(viewId);
+                cache.put(viewId, view);
+            }
+            return view;
+        }
+
+        @Override
+        public void setVisible(int viewId, boolean visible) {
+            find(viewId).setVisibility(visible ? View.VISIBLE : View.GONE);
+        }
+
+        @Override
+        public void setText(int viewId, int formatResId, String arg) {
+            ((TextView) find(viewId)).setText(root.getResources().getString(formatResId, arg));
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.ui;
+
+import com.sample.android.classytaxijava.Constants;
+import com.sample.android.classytaxijava.billing.BillingUtilities;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * What the Home fragment shows for a list of subscriptions.
+ * <p>
+ * The state is computed once per subscription update, off the main thread, so that binding
+ * only compares it with the previous state instead of evaluating every subscription again.
+ * Instances are immutable and equal when they display the same thing.
+ */
+public final class HomeViewState {
+    /**
+     * Nothing is known about the user's subscriptions: only the paywall is shown.
+     */
+    public static final HomeViewState EMPTY = create(null);
+
+    private final boolean paywallVisible;
+    private final boolean restoreVisible;
+    @Nullable
+    private final String restoreDate;
+    private final boolean gracePeriodVisible;
+    private final boolean transferVisible;
+    private final boolean accountHoldVisible;
+    private final boolean accountPausedVisible;
+    @Nullable
+    private final String autoResumeDate;
+    private final boolean basicVisible;
+
+    private HomeViewState(boolean restoreVisible, @Nullable String restoreDate,
+                          boolean gracePeriodVisible, boolean transferVisible,
+                          boolean accountHoldVisible, boolean accountPausedVisible,
+                          @Nullable String autoResumeDate, boolean basicVisible) {
+        this.restoreVisible = restoreVisible;
+        this.restoreDate = restoreDate;
+        this.gracePeriodVisible = gracePeriodVisible;
+        this.transferVisible = transferVisible;
+        this.accountHoldVisible = accountHoldVisible;
+        this.accountPausedVisible = accountPausedVisible;
+        this.autoResumeDate = autoResumeDate;
+        this.basicVisible = basicVisible;
+        // The paywall is shown unless one of the messages is.
+        this.paywallVisible = !(restoreVisible || gracePeriodVisible || transferVisible
+                || accountHoldVisible || accountPausedVisible || basicVisible);
+    }
+
+    /**
+     * Evaluate the subscriptions. When several subscriptions show the same message, the date
+     * of the last one is displayed.
+     */
+    @WorkerThread
+    public static HomeViewState create(@Nullable List<SubscriptionStatus> subscriptions) {
+        boolean restore = false;
+        String restoreDate = null;
+        boolean gracePeriod = false;
+        boolean transfer = false;
+        boolean accountHold = false;
+        boolean paused = false;
+        String autoResumeDate = null;
+        boolean basic = false;
+        if (subscriptions != null) {
+            for (SubscriptionStatus subscription : subscriptions) {
+                if (BillingUtilities.isSubscriptionRestore(subscription)) {
+                    restore = true;
+                    restoreDate = formatDate(subscription.getActiveUntilMillisec());
+                }
+                if (BillingUtilities.isGracePeriod(subscription)) {
+                    gracePeriod = true;
+                }
+                if (BillingUtilities.isTransferRequired(subscription)
+                        && Constants.BASIC_SKU.equals(subscription.getSku())) {
+                    transfer = true;
+                }
+                if (BillingUtilities.isAccountHold(subscription)) {
+                    accountHold = true;
+                }
+                if (BillingUtilities.isPaused(subscription)) {
+                    paused = true;
+                    autoResumeDate = formatDate(subscription.getAutoResumeTimeMillis());
+                }
+                if (BillingUtilities.isBasicContent(subscription)
+                        || BillingUtilities.isPremiumContent(subscription)) {
+                    basic = true;
+                }
+            }
+        }
+        return new HomeViewState(restore, restoreDate, gracePeriod, transfer, accountHold,
+                paused, autoResumeDate, basic);
+    }
+
+    public boolean isPaywallVisible() {
+        return paywallVisible;
+    }
+
+    public boolean isRestoreVisible() {
+        return restoreVisible;
+    }
+
+    /**
+     * Date until which the subscription to restore is active, if {@link #isRestoreVisible}.
+     */
+    @Nullable
+    public String getRestoreDate() {
+        return restoreDate;
+    }
+
+    public boolean isGracePeriodVisible() {
+        return gracePeriodVisible;
+    }
+
+    public boolean isTransferVisible() {
+        return transferVisible;
+    }
+
+    public boolean isAccountHoldVisible() {
+        return accountHoldVisible;
+    }
+
+    public boolean isAccountPausedVisible() {
+        return accountPausedVisible;
+    }
+
+    /**
+     * Date the paused subscription resumes, if {@link #isAccountPausedVisible}.
+     */
+    @Nullable
+    public String getAutoResumeDate() {
+        return autoResumeDate;
+    }
+
+    public boolean isBasicVisible() {
+        return basicVisible;
+    }
+
+    private static String formatDate(@Nullable Long millis) {
+        return DateFormat.getDateInstance().format(new Date(millis == null ? 0L : millis));
+    }
+
+    private static boolean equal(@Nullable String a, @Nullable String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof HomeViewState)) {
+            return false;
+        }
+        HomeViewState other = (HomeViewState) o;
+        return restoreVisible == other.restoreVisible
+                && gracePeriodVisible == other.gracePeriodVisible
+                && transferVisible == other.transferVisible
+                && accountHoldVisible == other.accountHoldVisible
+                && accountPausedVisible == other.accountPausedVisible
+                && basicVisible == other.basicVisible
+                && equal(restoreDate, other.restoreDate)
+                && equal(autoResumeDate, other.autoResumeDate);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (restoreVisible ? 1 : 0);
+        result = 31 * result + (gracePeriodVisible ? 1 : 0);
+        result = 31 * result + (transferVisible ? 1 : 0);
+        result = 31 * result + (accountHoldVisible ? 1 : 0);
+        result = 31 * result + (accountPausedVisible ? 1 : 0);
+        result = 31 * result + (basicVisible ? 1 : 0);
+        result = 31 * result + (restoreDate == null ? 0 : restoreDate.hashCode());
+        result = 31 * result + (autoResumeDate == null ? 0 : autoResumeDate.hashCode());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "HomeViewState{" +
+                "paywall=" + paywallVisible +
+                ", restore=" + restoreVisible + (restoreVisible ? " " + restoreDate : "") +
+                ", gracePeriod=" + gracePeriodVisible +
+                ", transfer=" + transferVisible +
+                ", accountHold=" + accountHoldVisible +
+                ", paused=" + accountPausedVisible +
+                (accountPausedVisible ? " " + autoResumeDate : "") +
+                ", basic=" + basicVisible +
+                '}';
+    }
+}
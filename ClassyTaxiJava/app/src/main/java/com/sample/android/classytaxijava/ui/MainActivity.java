@@ -22,9 +22,11 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import androidx.fragment.app.Fragment;
@@ -34,6 +36,7 @@ import androidx.lifecycle.Observer;
 import androidx.lifecycle.ViewModelProviders;
 import androidx.viewpager.widget.ViewPager;
 
+import com.android.billingclient.api.BillingClient;
 import com.android.billingclient.api.BillingFlowParams;
 import com.android.billingclient.api.Purchase;
 
@@ -42,10 +45,13 @@ import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
 import com.google.android.material.tabs.TabLayout;
 import com.google.firebase.auth.FirebaseUser;
+import com.sample.android.classytaxijava.BuildConfig;
 import com.sample.android.classytaxijava.Constants;
 import com.sample.android.classytaxijava.R;
 import com.sample.android.classytaxijava.SubApp;
 import com.sample.android.classytaxijava.billing.BillingClientLifecycle;
+import com.sample.android.classytaxijava.data.ContentResource;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -108,9 +114,15 @@ public class MainActivity extends AppCompatActivity {
         billingViewModel.buyEvent.observe(this, new Observer<BillingFlowParams>() {
             @Override
             public void onChanged(BillingFlowParams billingFlowParams) {
-                if (billingFlowParams != null) {
-                    billingClientLifecycle
-                            .launchBillingFlow(MainActivity.this, billingFlowParams);
+                if (billingFlowParams == null) {
+                    return;
+                }
+                int responseCode = billingClientLifecycle
+                        .launchBillingFlow(MainActivity.this, billingFlowParams);
+                if (responseCode == BillingClient.BillingResponseCode.SERVICE_DISCONNECTED) {
+                    // The flow is not queued. The user can tap again once Play is reachable.
+                    Toast.makeText(MainActivity.this, R.string.billing_not_ready,
+                            Toast.LENGTH_SHORT).show();
                 }
             }
         });
@@ -150,6 +162,17 @@ public class MainActivity extends AppCompatActivity {
         };
         authenticationViewModel.firebaseUser.observe(this, fireaseUserObserver);
 
+        // Prefetch content images once the user is entitled to the content, so that
+        // the tabs show them from memory.
+        Observer<ContentResource> contentPrefetcher = new Observer<ContentResource>() {
+            @Override
+            public void onChanged(ContentResource contentResource) {
+                ContentImageLoader.prefetch(getApplicationContext(), contentResource);
+            }
+        };
+        subscriptionViewModel.basicContent.observe(this, contentPrefetcher);
+        subscriptionViewModel.premiumContent.observe(this, contentPrefetcher);
+
         // Update subscription information when user changes.
         authenticationViewModel.userChangeEvent.observe(this, new Observer<Void>() {
             @Override
@@ -167,12 +190,17 @@ public class MainActivity extends AppCompatActivity {
      * Register SKUs and purchase tokens with the server.
      */
     private void registerPurchases(List<Purchase> purchaseList) {
+        List<SubscriptionStatus> subscriptions = new ArrayList<>();
         for (Purchase purchase : purchaseList) {
             String sku = purchase.getSkus().get(0);
             String purchaseToken = purchase.getPurchaseToken();
             Log.d(TAG, "Register purchase with sku: " + sku + ", token: " + purchaseToken);
-            subscriptionViewModel.registerSubscription(sku, purchaseToken);
+            SubscriptionStatus subscription = new SubscriptionStatus();
+            subscription.setSku(sku);
+            subscription.setPurchaseToken(purchaseToken);
+            subscriptions.add(subscription);
         }
+        subscriptionViewModel.registerSubscriptions(subscriptions);
     }
 
     @Override
@@ -189,6 +217,7 @@ public class MainActivity extends AppCompatActivity {
         boolean isSignedIn = authenticationViewModel.isSignedIn();
         menu.findItem(R.id.sign_in).setVisible(!isSignedIn);
         menu.findItem(R.id.sign_out).setVisible(isSignedIn);
+        menu.findItem(R.id.network_stats).setVisible(BuildConfig.DEBUG);
         return true;
     }
 
@@ -207,6 +236,9 @@ public class MainActivity extends AppCompatActivity {
             case R.id.refresh:
                 refreshData();
                 return true;
+            case R.id.network_stats:
+                showNetworkStats();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -217,6 +249,17 @@ public class MainActivity extends AppCompatActivity {
         subscriptionViewModel.manualRefresh();
     }
 
+    /**
+     * Show request latency, phase timings and connection statistics. Debug builds only.
+     */
+    private void showNetworkStats() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.network_stats_menu_text)
+                .setMessage(((SubApp) getApplication()).getNetworkStats())
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
     /**
      * Sign in with FirebaseUI Auth.
      */
@@ -239,15 +282,20 @@ public class MainActivity extends AppCompatActivity {
      * Sign out with FirebaseUI Auth.
      */
     private void triggerSignOut() {
-        subscriptionViewModel.unregisterInstanceId();
-        AuthUI.getInstance().signOut(this)
-                .addOnCompleteListener(new OnCompleteListener<Void>() {
-                    @Override
-                    public void onComplete(@NonNull Task<Void> task) {
-                        Log.d(TAG, "User SIGNED OUT!");
-                        authenticationViewModel.updateFirebaseUser();
-                    }
-                });
+        // Unregistering needs the user's ID token, so sign out once it has completed.
+        subscriptionViewModel.unregisterInstanceId(new Runnable() {
+            @Override
+            public void run() {
+                AuthUI.getInstance().signOut(getApplicationContext())
+                        .addOnCompleteListener(new OnCompleteListener<Void>() {
+                            @Override
+                            public void onComplete(@NonNull Task<Void> task) {
+                                Log.d(TAG, "User SIGNED OUT!");
+                                authenticationViewModel.updateFirebaseUser();
+                            }
+                        });
+            }
+        });
     }
 
     /**
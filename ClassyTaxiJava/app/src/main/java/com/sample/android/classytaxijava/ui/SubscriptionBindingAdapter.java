@@ -23,7 +23,6 @@ import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
-import com.bumptech.glide.Glide;
 import com.sample.android.classytaxijava.Constants;
 import com.sample.android.classytaxijava.R;
 import com.sample.android.classytaxijava.billing.BillingUtilities;
@@ -68,12 +67,11 @@ public class SubscriptionBindingAdapter {
         if (url != null) {
             Log.d(TAG, "Loading image for basic content" + url);
             image.setVisibility(View.VISIBLE);
-            Glide.with(view.getContext())
-                    .load(url)
-                    .into(image);
+            ContentImageLoader.bind(image, url);
 
             textView.setText(view.getResources().getString(R.string.basic_content_text));
         } else {
+            ContentImageLoader.clear(image);
             image.setVisibility(View.GONE);
             textView.setText(view.getResources().getString(R.string.no_basic_content));
         }
@@ -93,11 +91,10 @@ public class SubscriptionBindingAdapter {
         if (url != null) {
             Log.d(TAG, "Loading image for premium content: " + url);
             image.setVisibility(View.VISIBLE);
-            Glide.with(image.getContext())
-                    .load(url)
-                    .into(image);
+            ContentImageLoader.bind(image, url);
             textView.setText(view.getResources().getString(R.string.premium_content_text));
         } else {
+            ContentImageLoader.clear(image);
             image.setVisibility(View.GONE);
             textView.setText(view.getResources().getString(R.string.no_premium_content));
         }
@@ -106,77 +103,13 @@ public class SubscriptionBindingAdapter {
     /**
      * Update subscription views on the Home fragment when the subscription changes.
      * <p>
-     * When the subscription changes, the binding adapter triggers this view in the layout XML.
-     * See the layout XML files for the app:updateHomeViews attribute.
+     * When the view state changes, the binding adapter triggers this view in the layout XML.
+     * See the layout XML files for the app:updateHomeViews attribute. Only the views whose
+     * state differs from the last update are changed.
      */
     @BindingAdapter("updateHomeViews")
-    public static void updateHomeViews(View view, List<SubscriptionStatus> subscriptions) {
-        TextView restoreMsg = view.findViewById(R.id.home_restore_message);
-        View paywallMsg = view.findViewById(R.id.home_paywall_message);
-        View gracePeriodMsg = view.findViewById(R.id.home_grace_period_message);
-        View transferMsg = view.findViewById(R.id.home_transfer_message);
-        View accountHoldMsg = view.findViewById(R.id.home_account_hold_message);
-        View accountPausedMsg = view.findViewById(R.id.home_account_paused_message);
-        TextView accountPausedMsgTxt = view.findViewById(R.id.home_account_paused_message_text);
-        View basicMsg = view.findViewById(R.id.home_basic_message);
-
-        // Set visibility assuming no subscription is available.
-        // If a subscription is found that meets certain criteria,
-        // then the visibility of the paywall will be changed to View.GONE.
-        paywallMsg.setVisibility(View.VISIBLE);
-
-        // The remaining views start hidden. If a subscription is found that meets each criteria,
-        // then the visibility will be changed to View.VISIBLE.
-        restoreMsg.setVisibility(View.GONE);
-        gracePeriodMsg.setVisibility(View.GONE);
-        transferMsg.setVisibility(View.GONE);
-        accountHoldMsg.setVisibility(View.GONE);
-        accountPausedMsg.setVisibility(View.GONE);
-        basicMsg.setVisibility(View.GONE);
-        // Update based on subscription information.
-        if (subscriptions != null) {
-            for (SubscriptionStatus subscription : subscriptions) {
-                if (BillingUtilities.isSubscriptionRestore(subscription)) {
-                    Log.d(TAG, "restore VISIBLE");
-                    restoreMsg.setVisibility(View.VISIBLE);
-                    String expiryDate = getHumanReadableDate(subscription.getActiveUntilMillisec());
-                    restoreMsg.setText(view.getResources()
-                            .getString(R.string.restore_message_with_date, expiryDate));
-                    paywallMsg.setVisibility(View.GONE); // Paywall gone.
-                }
-                if (BillingUtilities.isGracePeriod(subscription)) {
-                    Log.d(TAG, "grace period VISIBLE");
-                    gracePeriodMsg.setVisibility(View.VISIBLE);
-                    paywallMsg.setVisibility(View.GONE); // Paywall gone.
-                }
-                if (BillingUtilities.isTransferRequired(subscription)
-                        && TextUtils.equals(subscription.getSku(), Constants.BASIC_SKU)) {
-                    Log.d(TAG, "transfer VISIBLE");
-                    transferMsg.setVisibility(View.VISIBLE);
-                    paywallMsg.setVisibility(View.GONE); // Paywall gone.
-                }
-                if (BillingUtilities.isAccountHold(subscription)) {
-                    Log.d(TAG, "account hold VISIBLE");
-                    accountHoldMsg.setVisibility(View.VISIBLE);
-                    paywallMsg.setVisibility(View.GONE); // Paywall gone.
-                }
-                if (BillingUtilities.isPaused(subscription)) {
-                    Log.d(TAG, "account paused VISIBLE");
-                    String autoResumeDate = getHumanReadableDate(subscription.getAutoResumeTimeMillis());
-                    String text = view.getResources()
-                            .getString(R.string.account_paused_message_string, autoResumeDate);
-                    accountPausedMsgTxt.setText(text);
-                    accountPausedMsg.setVisibility(View.VISIBLE);
-                    paywallMsg.setVisibility(View.GONE); // Paywall gone.
-                }
-                if (BillingUtilities.isBasicContent(subscription)
-                        || BillingUtilities.isPremiumContent(subscription)) {
-                    Log.d(TAG, "basic VISIBLE");
-                    basicMsg.setVisibility(View.VISIBLE);
-                    paywallMsg.setVisibility(View.GONE); // Paywall gone.
-                }
-            }
-        }
+    public static void updateHomeViews(View view, @Nullable HomeViewState state) {
+        HomeViewRenderer.forView(view).render(state == null ? HomeViewState.EMPTY : state);
     }
 
     /**
@@ -17,28 +17,33 @@
 package com.sample.android.classytaxijava.ui;
 
 import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.iid.FirebaseInstanceId;
+import com.sample.android.classytaxijava.AppContainer;
+import com.sample.android.classytaxijava.PriorityExecutor.Priority;
 import com.sample.android.classytaxijava.SubApp;
 import com.sample.android.classytaxijava.data.ContentResource;
 import com.sample.android.classytaxijava.data.DataRepository;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MediatorLiveData;
+import androidx.lifecycle.Observer;
 
 public class SubscriptionStatusViewModel extends AndroidViewModel {
 
     private static final String TAG = "SubViewModel";
 
-    /**
-     * Data repository.
-     */
-    private DataRepository repository;
-
     /**
      * True when there are pending network requests
      */
@@ -49,6 +54,11 @@ public class SubscriptionStatusViewModel extends AndroidViewModel {
      */
     public LiveData<List<SubscriptionStatus>> subscriptions;
 
+    /**
+     * What the Home fragment shows for the subscriptions. Only changes when the display does.
+     */
+    public LiveData<HomeViewState> homeViewState;
+
     public LiveData<ContentResource> basicContent;
 
     public LiveData<ContentResource> premiumContent;
@@ -59,47 +69,163 @@ public class SubscriptionStatusViewModel extends AndroidViewModel {
      */
     private String instanceIdToken = null;
 
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
     public SubscriptionStatusViewModel(Application application) {
         super(application);
-        repository = ((SubApp) application).getRepository();
-        loading = repository.getLoading();
-        subscriptions = repository.getSubscriptions();
-        basicContent = repository.getBasicContent();
-        premiumContent = repository.getPremiumContent();
+        final MediatorLiveData<Boolean> loading = new MediatorLiveData<>();
+        final MediatorLiveData<List<SubscriptionStatus>> subscriptions = new MediatorLiveData<>();
+        final MediatorLiveData<ContentResource> basicContent = new MediatorLiveData<>();
+        final MediatorLiveData<ContentResource> premiumContent = new MediatorLiveData<>();
+        this.loading = loading;
+        this.subscriptions = subscriptions;
+        this.basicContent = basicContent;
+        this.premiumContent = premiumContent;
+        homeViewState = computeHomeViewState(subscriptions, ((SubApp) application).getExecutors()
+                .computation.forPriority(Priority.USER_VISIBLE, "homeViewState"));
+        // The repository may still be starting up. Do not wait for it on the main thread.
+        withRepository(new AppContainer.RepositoryCallback() {
+            @Override
+            public void onRepositoryReady(DataRepository repository) {
+                forward(repository.getLoading(), loading);
+                forward(repository.getSubscriptions(), subscriptions);
+                forward(repository.getBasicContent(), basicContent);
+                forward(repository.getPremiumContent(), premiumContent);
+            }
+        });
+    }
+
+    /**
+     * Give the target the values of the source while the target is observed.
+     */
+    private static <T> void forward(LiveData<T> source, final MediatorLiveData<T> target) {
+        target.addSource(source, new Observer<T>() {
+            @Override
+            public void onChanged(T value) {
+                target.setValue(value);
+            }
+        });
     }
 
-    public void unregisterInstanceId() {
+    /**
+     * Run the callback on the main thread once the repository is ready. Callbacks run in the
+     * order in which they were passed in.
+     */
+    private void withRepository(AppContainer.RepositoryCallback callback) {
+        ((SubApp) getApplication()).getRepository(callback);
+    }
+
+    /**
+     * Compute the Home view state on the executor each time the subscriptions change. A
+     * computation that a newer update supersedes is skipped, and a state equal to the last one
+     * is not posted.
+     */
+    private static LiveData<HomeViewState> computeHomeViewState(
+            LiveData<List<SubscriptionStatus>> subscriptions, final Executor executor) {
+        final MediatorLiveData<HomeViewState> result = new MediatorLiveData<>();
+        final AtomicInteger generation = new AtomicInteger();
+        result.addSource(subscriptions, new Observer<List<SubscriptionStatus>>() {
+            private HomeViewState posted;
+
+            @Override
+            public void onChanged(final List<SubscriptionStatus> subscriptionStatuses) {
+                final int current = generation.incrementAndGet();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation.get() != current) {
+                            return;
+                        }
+                        HomeViewState state = HomeViewState.create(subscriptionStatuses);
+                        // The executor runs one task at a time, so posted is not shared.
+                        if (generation.get() == current && !state.equals(posted)) {
+                            posted = state;
+                            result.postValue(state);
+                        }
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Unregister the current Instance ID, then run onComplete on the main thread.
+     */
+    public void unregisterInstanceId(final Runnable onComplete) {
         // Unregister current Instance ID before the user signs out.
         // This is an authenticated call, so you cannot do this after the sign-out has completed.
-        if (instanceIdToken != null) {
-            repository.unregisterInstanceId(instanceIdToken);
+        if (instanceIdToken == null) {
+            onComplete.run();
+            return;
         }
+        final String token = instanceIdToken;
+        instanceIdToken = null;
+        withRepository(new AppContainer.RepositoryCallback() {
+            @Override
+            public void onRepositoryReady(DataRepository repository) {
+                repository.unregisterInstanceId(token, new Runnable() {
+                    @Override
+                    public void run() {
+                        mainHandler.post(onComplete);
+                    }
+                });
+            }
+        });
     }
 
     public void userChanged() {
-        repository.deleteLocalUserData();
-        String token = FirebaseInstanceId.getInstance().getToken();
+        // Show the new user's last known state while it is refreshed.
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        final String userId = user == null ? null : user.getUid();
+        final String token = FirebaseInstanceId.getInstance().getToken();
         if (token != null) {
-            registerInstanceId(token);
+            // Keep track of the Instance ID so that it can be unregistered.
+            instanceIdToken = token;
         }
-        repository.fetchSubscriptions();
+        withRepository(new AppContainer.RepositoryCallback() {
+            @Override
+            public void onRepositoryReady(DataRepository repository) {
+                repository.setUser(userId);
+                if (token != null) {
+                    repository.registerInstanceId(token);
+                }
+                repository.refreshSubscriptions();
+            }
+        });
     }
 
     public void manualRefresh() {
-        repository.fetchSubscriptions();
+        withRepository(new AppContainer.RepositoryCallback() {
+            @Override
+            public void onRepositoryReady(DataRepository repository) {
+                repository.refreshSubscriptions();
+            }
+        });
     }
 
-    private void registerInstanceId(String token) {
-        repository.registerInstanceId(token);
-        // Keep track of the Instance ID so that it can be unregistered.
-        instanceIdToken = token;
+    /**
+     * Register a new subscription.
+     */
+    public void registerSubscription(final String sku, final String purchaseToken) {
+        withRepository(new AppContainer.RepositoryCallback() {
+            @Override
+            public void onRepositoryReady(DataRepository repository) {
+                repository.registerSubscription(sku, purchaseToken);
+            }
+        });
     }
 
     /**
-     * Register a new subscription.
+     * Register several new subscriptions with one request.
      */
-    public void registerSubscription(String sku, String purchaseToken) {
-        repository.registerSubscription(sku, purchaseToken);
+    public void registerSubscriptions(final List<SubscriptionStatus> subscriptions) {
+        withRepository(new AppContainer.RepositoryCallback() {
+            @Override
+            public void onRepositoryReady(DataRepository repository) {
+                repository.registerSubscriptions(subscriptions);
+            }
+        });
     }
 
     /**
@@ -107,15 +233,14 @@ public class SubscriptionStatusViewModel extends AndroidViewModel {
      */
     public void transferSubscriptions() {
         Log.d(TAG, "transferSubscriptions");
-        List<SubscriptionStatus> subs = subscriptions.getValue();
+        final List<SubscriptionStatus> subs = subscriptions.getValue();
         if (subs != null) {
-            for (SubscriptionStatus subscription : subs) {
-                String sku = subscription.getSku();
-                String purchaseToken = subscription.getPurchaseToken();
-                if (sku != null && purchaseToken != null) {
-                    repository.transferSubscription(sku, purchaseToken);
+            withRepository(new AppContainer.RepositoryCallback() {
+                @Override
+                public void onRepositoryReady(DataRepository repository) {
+                    repository.transferSubscriptions(subs);
                 }
-            }
+            });
         }
     }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.utils;
+
+/**
+ * Source of time. Classes that make timing decisions take a Clock so that tests can use a
+ * fake one.
+ */
+public interface Clock {
+    /**
+     * Clock backed by the system time.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return System.nanoTime() / 1_000_000L;
+        }
+    };
+
+    /**
+     * Wall clock time in milliseconds since the epoch.
+     * Use this to compare with server timestamps such as expiry times.
+     */
+    long currentTimeMillis();
+
+    /**
+     * Monotonic time in milliseconds. Use this to measure intervals.
+     */
+    long elapsedRealtime();
+}
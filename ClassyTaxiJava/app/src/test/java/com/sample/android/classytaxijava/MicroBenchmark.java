@@ -0,0 +1,224 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small harness for JVM microbenchmarks, run from JUnit tests.
+ * <p>
+ * Like JMH in average time mode, each benchmark runs warmup iterations and then measurement
+ * iterations of a fixed duration. Each iteration calls the body in a loop and reports the mean
+ * time per call. Values returned by the body are consumed, so that the JIT cannot remove the
+ * work.
+ * <p>
+ * Benchmarks only run when the {@value #ENABLED_PROPERTY} system property is true, which the
+ * build sets for {@code ./gradlew testDebugUnitTest -Pbenchmark}. Results are written in the
+ * JSON format of JMH, one file per suite, to the directory in {@value #OUTPUT_PROPERTY}, so
+ * that a nightly job can compare them with earlier runs.
+ */
+public class MicroBenchmark {
+    public static final String ENABLED_PROPERTY = "classytaxi.benchmark";
+    public static final String OUTPUT_PROPERTY = "classytaxi.benchmark.output";
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+    private static final long ITERATION_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /**
+     * Student's t quantiles for a 99.9% confidence interval, by degrees of freedom - 1. The
+     * score error is reported with the same confidence as JMH.
+     */
+    private static final double[] T_999 = {636.6, 31.60, 12.92, 8.610, 6.869, 5.959, 5.408,
+            5.041, 4.781, 4.587, 4.437, 4.318, 4.221, 4.140, 4.073};
+
+    /**
+     * The work measured by a benchmark.
+     */
+    public interface Body {
+        /**
+         * @return a result of the work, which is consumed by the harness
+         */
+        Object run() throws Exception;
+    }
+
+    /**
+     * Mean time per call in each measurement iteration.
+     */
+    public static class Result {
+        private final String benchmark;
+        private final double[] nanosPerOp;
+        private final long operations;
+
+        Result(String benchmark, double[] nanosPerOp, long operations) {
+            this.benchmark = benchmark;
+            this.nanosPerOp = nanosPerOp;
+            this.operations = operations;
+        }
+
+        public String getBenchmark() {
+            return benchmark;
+        }
+
+        public double getScore() {
+            double sum = 0;
+            for (double value : nanosPerOp) {
+                sum += value;
+            }
+            return sum / nanosPerOp.length;
+        }
+
+        /**
+         * Half width of the 99.9% confidence interval of the score.
+         */
+        public double getScoreError() {
+            int n = nanosPerOp.length;
+            if (n < 2) {
+                return Double.NaN;
+            }
+            double mean = getScore();
+            double squares = 0;
+            for (double value : nanosPerOp) {
+                squares += (value - mean) * (value - mean);
+            }
+            double t = T_999[Math.min(n - 2, T_999.length - 1)];
+            return t * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-50s %12.1f +- %10.1f ns/op  (%d ops)",
+                    benchmark, getScore(), getScoreError(), operations);
+        }
+    }
+
+    private final String suite;
+    private final List<Result> results = new ArrayList<>();
+    private volatile int sink;
+
+    /**
+     * @param suite name of the result file, usually the benchmark class
+     */
+    public MicroBenchmark(String suite) {
+        this.suite = suite;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * Measure the body and add the result to the suite.
+     */
+    public Result measure(String name, Body body) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(body);
+        }
+        double[] nanosPerOp = new double[MEASUREMENT_ITERATIONS];
+        long operations = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long[] iteration = runIteration(body);
+            nanosPerOp[i] = (double) iteration[0] / iteration[1];
+            operations += iteration[1];
+        }
+        Result result = new Result(suite + "." + name, nanosPerOp, operations);
+        results.add(result);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Call the body until the iteration time is used up.
+     *
+     * @return the elapsed nanoseconds and the number of calls
+     */
+    private long[] runIteration(Body body) throws Exception {
+        int consumed = 0;
+        long calls = 0;
+        long batch = 1;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (long i = 0; i < batch; i++) {
+                Object value = body.run();
+                consumed += value == null ? 0 : System.identityHashCode(value);
+            }
+            calls += batch;
+            // Grow the batch so that reading the clock does not dominate fast bodies.
+            batch = Math.min(batch * 2, 1 << 16);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        sink += consumed;
+        return new long[]{elapsed, calls};
+    }
+
+    /**
+     * Write the results of the suite as JMH JSON, if an output directory is configured.
+     */
+    public void writeResults() throws IOException {
+        String directory = System.getProperty(OUTPUT_PROPERTY);
+        if (directory == null || results.isEmpty()) {
+            return;
+        }
+        List<Map<String, Object>> json = new ArrayList<>();
+        for (Result result : results) {
+            Map<String, Object> metric = new LinkedHashMap<>();
+            metric.put("score", result.getScore());
+            metric.put("scoreError", result.getScoreError());
+            metric.put("scoreUnit", "ns/op");
+            List<double[]> rawData = new ArrayList<>();
+            rawData.add(result.nanosPerOp);
+            metric.put("rawData", rawData);
+
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("benchmark", result.getBenchmark());
+            entry.put("mode", "avgt");
+            entry.put("threads", 1);
+            entry.put("forks", 0);
+            entry.put("warmupIterations", WARMUP_ITERATIONS);
+            entry.put("warmupTime", TimeUnit.NANOSECONDS.toMillis(ITERATION_NANOS) + " ms");
+            entry.put("measurementIterations", MEASUREMENT_ITERATIONS);
+            entry.put("measurementTime",
+                    TimeUnit.NANOSECONDS.toMillis(ITERATION_NANOS) + " ms");
+            entry.put("primaryMetric", metric);
+            json.add(entry);
+        }
+        File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        Gson gson = new GsonBuilder().setPrettyPrinting().serializeSpecialFloatingPointValues()
+                .create();
+        try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(new File(dir, suite + ".json")), "UTF-8")) {
+            gson.toJson(json, writer);
+        }
+    }
+}
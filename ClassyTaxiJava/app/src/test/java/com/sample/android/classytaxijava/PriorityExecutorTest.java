@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava;
+
+import com.sample.android.classytaxijava.PriorityExecutor.Priority;
+import com.sample.android.classytaxijava.PriorityExecutor.RejectionPolicy;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PriorityExecutorTest {
+    private final List<String> log = new CopyOnWriteArrayList<>();
+    private PriorityExecutor executor;
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void urgentLanesRunFirst() throws InterruptedException {
+        executor = new PriorityExecutor("test", 1, Clock.SYSTEM);
+        CountDownLatch release = block(Priority.BACKGROUND);
+
+        executor.execute(Priority.BACKGROUND, "refresh", record("refresh"));
+        executor.execute(Priority.USER_VISIBLE, "load", record("load"));
+        executor.execute(Priority.USER_BLOCKING, "register", record("register-1"));
+        executor.execute(Priority.USER_BLOCKING, "register", record("register-2"));
+        release.countDown();
+        awaitIdle();
+
+        assertEquals("register-1", log.get(0));
+        assertEquals("register-2", log.get(1));
+        assertEquals("load", log.get(2));
+        assertEquals("refresh", log.get(3));
+    }
+
+    @Test
+    public void backgroundLaneLeavesAThreadFree() throws InterruptedException {
+        executor = new PriorityExecutor("test", 2, Clock.SYSTEM);
+        executor.setLaneLimits(Priority.BACKGROUND, 10, RejectionPolicy.ABORT, 1);
+        CountDownLatch release = block(Priority.BACKGROUND);
+        executor.execute(Priority.BACKGROUND, "refresh", record("refresh"));
+
+        CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(Priority.USER_BLOCKING, "register", countDown(ran));
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(log.isEmpty());
+        release.countDown();
+        awaitIdle();
+        assertEquals(1, log.size());
+    }
+
+    @Test
+    public void fullLaneRejectsOrRunsOnCaller() throws InterruptedException {
+        executor = new PriorityExecutor("test", 1, Clock.SYSTEM);
+        executor.setLaneLimits(Priority.BACKGROUND, 1, RejectionPolicy.ABORT, 1);
+        executor.setLaneLimits(Priority.USER_VISIBLE, 1, RejectionPolicy.CALLER_RUNS, 1);
+        CountDownLatch release = block(Priority.USER_BLOCKING);
+
+        executor.execute(Priority.BACKGROUND, "refresh", record("refresh-1"));
+        try {
+            executor.execute(Priority.BACKGROUND, "refresh", record("refresh-2"));
+            fail("Expected the full lane to reject the task");
+        } catch (RejectedExecutionException expected) {
+        }
+
+        executor.execute(Priority.USER_VISIBLE, "load", record("load-1"));
+        executor.execute(Priority.USER_VISIBLE, "load", record("load-2"));
+        assertEquals("load-2", log.get(0));
+
+        release.countDown();
+        awaitIdle();
+        assertEquals(3, log.size());
+        assertTrue(executor.dump().contains("refresh count=1"));
+        assertTrue(executor.dump().contains("load count=2"));
+    }
+
+    @Test
+    public void failingTaskIsCountedAndTheThreadCarriesOn() throws InterruptedException {
+        executor = new PriorityExecutor("test", 1, Clock.SYSTEM);
+
+        executor.execute(Priority.USER_VISIBLE, "write", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("disk full");
+            }
+        });
+        executor.execute(Priority.USER_VISIBLE, "load", record("load"));
+        awaitIdle();
+
+        assertEquals(1, log.size());
+        assertTrue(executor.dump().contains("rejected=0 failed=1"));
+    }
+
+    /**
+     * Occupy a thread until the returned latch is released.
+     */
+    private CountDownLatch block(Priority priority) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(priority, "block", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        while (true) {
+            try {
+                executor.execute(Priority.BACKGROUND, "idle", countDown(done));
+                break;
+            } catch (RejectedExecutionException e) {
+                // A small background lane stays full until its queued task starts.
+                Thread.sleep(10);
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}
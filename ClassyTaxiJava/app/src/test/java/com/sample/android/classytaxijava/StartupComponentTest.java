@@ -0,0 +1,192 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava;
+
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Startup order of the {@link AppContainer}: components created in the background, and the
+ * repository created on the main thread once they are ready.
+ */
+public class StartupComponentTest {
+    private final List<String> log = new CopyOnWriteArrayList<>();
+    private final CountDownLatch releaseDependency = new CountDownLatch(1);
+    private final ExecutorService background = Executors.newFixedThreadPool(2);
+    private final ExecutorService main = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "main");
+        }
+    });
+
+    private final StartupComponent<String> dependency = new StartupComponent<>("dependency",
+            new Callable<String>() {
+                @Override
+                public String call() throws InterruptedException {
+                    releaseDependency.await();
+                    log.add("dependency");
+                    return "dependency";
+                }
+            }, Clock.SYSTEM);
+
+    private final StartupComponent<String> repository = new StartupComponent<>("repository",
+            new Callable<String>() {
+                @Override
+                public String call() {
+                    log.add("repository needs " + dependency.get());
+                    return "repository";
+                }
+            }, Clock.SYSTEM);
+
+    @After
+    public void tearDown() {
+        releaseDependency.countDown();
+        background.shutdownNow();
+        main.shutdownNow();
+    }
+
+    @Test
+    public void mainThreadDoesNotWaitForTheRepository() throws Exception {
+        start();
+
+        // Like MainActivity.onCreate(), ask for the repository while its dependency is
+        // still being created.
+        Future<?> onCreate = main.submit(new Runnable() {
+            @Override
+            public void run() {
+                repository.whenReady(main, record("first"));
+                repository.whenReady(main, record("second"));
+                log.add("onCreate done");
+            }
+        });
+        onCreate.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("onCreate done"), log);
+
+        releaseDependency.countDown();
+        awaitReady();
+
+        assertEquals(Arrays.asList("onCreate done", "dependency",
+                "repository needs dependency", "first: repository on main",
+                "second: repository on main"), log);
+        assertEquals("main", repository.threadName);
+    }
+
+    @Test
+    public void callbacksAddedAfterCreationRunAfterEarlierOnes() throws Exception {
+        start();
+        repository.whenReady(main, record("early"));
+        releaseDependency.countDown();
+        awaitReady();
+
+        repository.whenReady(main, record("late"));
+        awaitReady();
+
+        assertEquals(Arrays.asList("dependency", "repository needs dependency",
+                "early: repository on main", "late: repository on main"), log);
+    }
+
+    @Test
+    public void whenReadyDoesNotCreateTheComponent() throws Exception {
+        repository.whenReady(main, record("callback"));
+        releaseDependency.countDown();
+
+        // Nothing has started the component, so the callback waits.
+        Future<?> idle = main.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        idle.get(5, TimeUnit.SECONDS);
+        assertEquals(-1, repository.startedAtMillis);
+        assertTrue(log.isEmpty());
+
+        start();
+        awaitReady();
+        assertEquals("callback: repository on main", log.get(2));
+    }
+
+    @Test
+    public void componentThatIsNotReadyDoesNotBlockOtherMainThreadWork() throws Exception {
+        start();
+        repository.whenReady(main, record("callback"));
+
+        Future<?> other = main.submit(new Runnable() {
+            @Override
+            public void run() {
+                log.add("other work");
+            }
+        });
+        other.get(5, TimeUnit.SECONDS);
+        assertFalse(repository.task.isDone());
+        assertEquals(Arrays.asList("other work"), log);
+    }
+
+    /**
+     * Start the components the way {@link AppContainer#start()} does.
+     */
+    private void start() {
+        background.execute(dependency.task);
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                dependency.get();
+                main.execute(repository.task);
+            }
+        });
+    }
+
+    /**
+     * Wait until the callbacks that were added so far have run.
+     */
+    private void awaitReady() throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(1);
+        repository.whenReady(main, new StartupComponent.Callback<String>() {
+            @Override
+            public void onReady(String component) {
+                ready.countDown();
+            }
+        });
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+    }
+
+    private StartupComponent.Callback<String> record(final String name) {
+        return new StartupComponent.Callback<String>() {
+            @Override
+            public void onReady(String component) {
+                log.add(name + ": " + component + " on " + Thread.currentThread().getName());
+            }
+        };
+    }
+}
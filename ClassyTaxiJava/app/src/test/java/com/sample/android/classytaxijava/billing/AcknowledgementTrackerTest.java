@@ -0,0 +1,129 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.billing;
+
+import com.android.billingclient.api.BillingClient;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AcknowledgementTrackerTest {
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor();
+    private final FakeAcknowledger acknowledger = new FakeAcknowledger();
+    private final AcknowledgementTracker tracker =
+            new AcknowledgementTracker(acknowledger, scheduler, 2, 3, 1);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void acknowledgedTokensAreNotSentAgain() throws InterruptedException {
+        tracker.acknowledge(Collections.singletonList("token-1"));
+        acknowledger.next().onResult(BillingClient.BillingResponseCode.OK);
+        assertTrue(tracker.isAcknowledged("token-1"));
+
+        tracker.acknowledge(Collections.singletonList("token-1"));
+
+        assertEquals(1, acknowledger.sent.size());
+    }
+
+    @Test
+    public void parallelismIsBounded() throws InterruptedException {
+        tracker.acknowledge(Arrays.asList("token-1", "token-2", "token-3"));
+        // A token that is in flight is not sent twice.
+        tracker.acknowledge(Collections.singletonList("token-1"));
+        assertEquals(Arrays.asList("token-1", "token-2"), acknowledger.sent);
+
+        acknowledger.next().onResult(BillingClient.BillingResponseCode.OK);
+
+        assertEquals(Arrays.asList("token-1", "token-2", "token-3"), acknowledger.sent);
+    }
+
+    @Test
+    public void transientFailuresAreRetried() throws InterruptedException {
+        tracker.acknowledge(Collections.singletonList("token-1"));
+        acknowledger.next().onResult(BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+        acknowledger.next().onResult(BillingClient.BillingResponseCode.ERROR);
+        acknowledger.next().onResult(BillingClient.BillingResponseCode.SERVICE_TIMEOUT);
+
+        // After the last attempt the token is forgotten, so a later update can try again.
+        assertNull(acknowledger.pending.poll(50, TimeUnit.MILLISECONDS));
+        assertFalse(tracker.isAcknowledged("token-1"));
+        tracker.acknowledge(Collections.singletonList("token-1"));
+        assertEquals(4, acknowledger.sent.size());
+    }
+
+    @Test
+    public void disconnectionsDoNotUseUpAttempts() throws InterruptedException {
+        tracker.acknowledge(Collections.singletonList("token-1"));
+        for (int i = 0; i < 5; i++) {
+            acknowledger.next().onResult(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED);
+        }
+        acknowledger.next().onResult(BillingClient.BillingResponseCode.OK);
+
+        assertTrue(tracker.isAcknowledged("token-1"));
+        assertEquals(6, acknowledger.sent.size());
+    }
+
+    @Test
+    public void permanentFailuresAreNotRetried() throws InterruptedException {
+        tracker.acknowledge(Collections.singletonList("token-1"));
+        acknowledger.next().onResult(BillingClient.BillingResponseCode.DEVELOPER_ERROR);
+
+        assertNull(acknowledger.pending.poll(50, TimeUnit.MILLISECONDS));
+        assertEquals(1, acknowledger.sent.size());
+    }
+
+    private static class FakeAcknowledger implements AcknowledgementTracker.Acknowledger {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        final LinkedBlockingQueue<AcknowledgementTracker.ResultListener> pending =
+                new LinkedBlockingQueue<>();
+
+        @Override
+        public void acknowledge(String purchaseToken,
+                                AcknowledgementTracker.ResultListener listener) {
+            sent.add(purchaseToken);
+            pending.add(listener);
+        }
+
+        AcknowledgementTracker.ResultListener next() throws InterruptedException {
+            AcknowledgementTracker.ResultListener listener =
+                    pending.poll(1, TimeUnit.SECONDS);
+            if (listener == null) {
+                throw new AssertionError("No acknowledgement was sent");
+            }
+            return listener;
+        }
+    }
+}
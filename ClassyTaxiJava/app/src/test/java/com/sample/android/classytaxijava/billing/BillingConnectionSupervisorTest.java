@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.billing;
+
+import com.android.billingclient.api.BillingClient;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BillingConnectionSupervisorTest {
+    private static final long INITIAL_DELAY_MILLIS = 1_000;
+    private static final long MAX_DELAY_MILLIS = 4_000;
+
+    private final FakeClock clock = new FakeClock();
+    private final List<String> log = new ArrayList<>();
+    private ScheduledThreadPoolExecutor scheduler;
+    private BillingConnectionSupervisor supervisor;
+    private int connects;
+
+    @Before
+    public void setUp() {
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        supervisor = new BillingConnectionSupervisor(new BillingConnectionSupervisor.Connector() {
+            @Override
+            public void connect() {
+                connects++;
+            }
+        }, scheduler, clock, new Random() {
+            @Override
+            public double nextDouble() {
+                return 0.999;
+            }
+        }, INITIAL_DELAY_MILLIS, MAX_DELAY_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void operationsWaitForTheConnection() {
+        supervisor.start();
+        assertFalse(supervisor.execute("a", operation("a")));
+        assertTrue(log.isEmpty());
+
+        clock.now += 250;
+        supervisor.onSetupFinished(BillingClient.BillingResponseCode.OK);
+        assertEquals(1, connects);
+        assertEquals(1, log.size());
+        assertTrue(supervisor.dump().contains("lastTimeToReadyMs=250"));
+
+        assertTrue(supervisor.execute("b", operation("b")));
+        assertEquals(2, log.size());
+    }
+
+    @Test
+    public void queuedOperationsWithTheSameKeyCollapse() {
+        supervisor.start();
+        supervisor.execute("purchases", operation("purchases-1"));
+        supervisor.execute("details", operation("details"));
+        supervisor.execute("purchases", operation("purchases-2"));
+        for (int i = 0; i < 10; i++) {
+            supervisor.execute("ack-" + i, operation("ack-" + i));
+        }
+
+        supervisor.onSetupFinished(BillingClient.BillingResponseCode.OK);
+
+        // Nothing is dropped, and the newer operation keeps the first one's place.
+        assertEquals(12, log.size());
+        assertEquals("purchases-2", log.get(0));
+        assertEquals("details", log.get(1));
+        assertEquals("ack-9", log.get(11));
+        assertTrue(supervisor.dump().contains("collapsed=1"));
+    }
+
+    @Test
+    public void reconnectDelayGrowsAndIsCapped() {
+        supervisor.start();
+        supervisor.onSetupFinished(BillingClient.BillingResponseCode.OK);
+        clock.now += 5_000;
+
+        supervisor.onDisconnected();
+        assertFalse(supervisor.isReady());
+        assertTrue(supervisor.dump().contains("uptimeMs=5000"));
+        long previous = nextReconnectDelay();
+        assertTrue(previous <= INITIAL_DELAY_MILLIS);
+        for (int i = 0; i < 4; i++) {
+            supervisor.reconnectNow();
+            supervisor.onSetupFinished(BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+            long delay = nextReconnectDelay();
+            assertTrue(delay >= previous - 50);
+            assertTrue(delay <= MAX_DELAY_MILLIS);
+            previous = delay;
+        }
+        assertEquals(5, connects);
+
+        // A successful connection resets the backoff.
+        supervisor.reconnectNow();
+        supervisor.onSetupFinished(BillingClient.BillingResponseCode.OK);
+        supervisor.onDisconnected();
+        assertTrue(nextReconnectDelay() <= INITIAL_DELAY_MILLIS);
+    }
+
+    @Test
+    public void stoppedSupervisorDoesNotReconnect() {
+        supervisor.start();
+        supervisor.onSetupFinished(BillingClient.BillingResponseCode.OK);
+        supervisor.stop();
+
+        supervisor.onDisconnected();
+
+        assertTrue(scheduler.getQueue().isEmpty());
+        assertEquals(1, connects);
+    }
+
+    private long nextReconnectDelay() {
+        Delayed next = (Delayed) scheduler.getQueue().peek();
+        return next.getDelay(TimeUnit.MILLISECONDS);
+    }
+
+    private Runnable operation(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    private static class FakeClock implements Clock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.billing;
+
+import com.sample.android.classytaxijava.Constants;
+import com.sample.android.classytaxijava.MicroBenchmark;
+import com.sample.android.classytaxijava.data.SubscriptionFixtures;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Cost of the subscription predicates that the binding adapters evaluate on every update.
+ */
+public class BillingUtilitiesBenchmark {
+    private static final MicroBenchmark benchmark =
+            new MicroBenchmark("BillingUtilitiesBenchmark");
+
+    @Before
+    public void setUp() {
+        assumeTrue(MicroBenchmark.isEnabled());
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException {
+        benchmark.writeResults();
+    }
+
+    @Test
+    public void predicates() throws Exception {
+        measurePredicates("predicates_2", SubscriptionFixtures.subscriptions(2));
+        measurePredicates("predicates_50", SubscriptionFixtures.subscriptions(50));
+    }
+
+    @Test
+    public void subscriptionForSku() throws Exception {
+        final List<SubscriptionStatus> subscriptions = SubscriptionFixtures.subscriptions(50);
+        benchmark.measure("getSubscriptionForSku_50", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return BillingUtilities.getSubscriptionForSku(
+                        subscriptions, Constants.PREMIUM_SKU);
+            }
+        });
+    }
+
+    /**
+     * Every predicate for every subscription, as the Home and Premium screens evaluate them.
+     */
+    private static void measurePredicates(String name,
+                                          final List<SubscriptionStatus> subscriptions)
+            throws Exception {
+        benchmark.measure(name, new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                int matches = 0;
+                for (SubscriptionStatus subscription : subscriptions) {
+                    boolean[] shown = {
+                            BillingUtilities.isSubscriptionRestore(subscription),
+                            BillingUtilities.isGracePeriod(subscription),
+                            BillingUtilities.isTransferRequired(subscription),
+                            BillingUtilities.isAccountHold(subscription),
+                            BillingUtilities.isPaused(subscription),
+                            BillingUtilities.isBasicContent(subscription),
+                            BillingUtilities.isPremiumContent(subscription)};
+                    for (boolean match : shown) {
+                        if (match) {
+                            matches++;
+                        }
+                    }
+                }
+                return matches;
+            }
+        });
+    }
+}
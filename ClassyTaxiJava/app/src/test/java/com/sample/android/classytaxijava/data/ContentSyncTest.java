@@ -0,0 +1,143 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.sample.android.classytaxijava.Constants;
+import com.sample.android.classytaxijava.data.disk.ContentRecord;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContentSyncTest {
+    private static final long MAX_AGE_MILLIS = 60_000;
+    private static final long RETRY_MILLIS = 1_000;
+
+    private final FakeClock clock = new FakeClock();
+    private final List<String> fetched = new ArrayList<>();
+    private final List<String> cleared = new ArrayList<>();
+    private ContentSync contentSync;
+
+    @Before
+    public void setUp() {
+        contentSync = new ContentSync(clock, MAX_AGE_MILLIS, RETRY_MILLIS,
+                new ContentSync.Fetcher() {
+                    @Override
+                    public void fetch(String tier) {
+                        fetched.add(tier);
+                    }
+
+                    @Override
+                    public void clear(String tier) {
+                        cleared.add(tier);
+                    }
+                });
+    }
+
+    @Test
+    public void unchangedEntitlementsReuseStoredContent() {
+        List<SubscriptionStatus> premium = Collections.singletonList(
+                subscription(Constants.PREMIUM_SKU, true));
+        contentSync.onSubscriptionsChanged(premium);
+        assertEquals(Arrays.asList(ContentRecord.BASIC, ContentRecord.PREMIUM), fetched);
+
+        completeFetch(ContentRecord.BASIC);
+        completeFetch(ContentRecord.PREMIUM);
+        fetched.clear();
+        contentSync.onSubscriptionsChanged(premium);
+        contentSync.onSubscriptionsChanged(premium);
+
+        assertTrue(fetched.isEmpty());
+        assertTrue(cleared.isEmpty());
+    }
+
+    @Test
+    public void expiredContentIsFetchedAgain() {
+        List<SubscriptionStatus> basic = Collections.singletonList(
+                subscription(Constants.BASIC_SKU, true));
+        contentSync.onSubscriptionsChanged(basic);
+        completeFetch(ContentRecord.BASIC);
+        fetched.clear();
+
+        clock.now += MAX_AGE_MILLIS;
+        contentSync.onSubscriptionsChanged(basic);
+
+        assertEquals(Collections.singletonList(ContentRecord.BASIC), fetched);
+    }
+
+    @Test
+    public void requestInFlightIsNotRepeated() {
+        List<SubscriptionStatus> basic = Collections.singletonList(
+                subscription(Constants.BASIC_SKU, true));
+        contentSync.onSubscriptionsChanged(basic);
+        contentSync.onSubscriptionsChanged(basic);
+        assertEquals(1, fetched.size());
+
+        // A request that never completed stops blocking after the retry time.
+        clock.now += RETRY_MILLIS;
+        contentSync.onSubscriptionsChanged(basic);
+        assertEquals(2, fetched.size());
+    }
+
+    @Test
+    public void lostEntitlementClearsContent() {
+        contentSync.onSubscriptionsChanged(Collections.singletonList(
+                subscription(Constants.PREMIUM_SKU, true)));
+        completeFetch(ContentRecord.BASIC);
+        completeFetch(ContentRecord.PREMIUM);
+
+        contentSync.onSubscriptionsChanged(Collections.singletonList(
+                subscription(Constants.PREMIUM_SKU, false)));
+
+        assertEquals(Arrays.asList(ContentRecord.BASIC, ContentRecord.PREMIUM), cleared);
+    }
+
+    private void completeFetch(String tier) {
+        contentSync.onFetchCompleted(tier);
+        contentSync.onContentStored(tier, clock.now);
+    }
+
+    private static SubscriptionStatus subscription(String sku, boolean entitlementActive) {
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        subscription.setSku(sku);
+        subscription.setPurchaseToken("token");
+        subscription.setEntitlementActive(entitlementActive);
+        return subscription;
+    }
+
+    private static class FakeClock implements Clock {
+        long now = 1_000_000;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+    }
+}
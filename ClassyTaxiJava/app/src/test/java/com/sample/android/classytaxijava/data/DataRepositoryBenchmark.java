@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.android.billingclient.api.Purchase;
+import com.sample.android.classytaxijava.MicroBenchmark;
+
+import org.json.JSONException;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Cost of merging server subscriptions with the purchases on the device, which runs on the
+ * main thread for every subscription and purchase update.
+ */
+public class DataRepositoryBenchmark {
+    private static final MicroBenchmark benchmark =
+            new MicroBenchmark("DataRepositoryBenchmark");
+
+    @Before
+    public void setUp() {
+        assumeTrue(MicroBenchmark.isEnabled());
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException {
+        benchmark.writeResults();
+    }
+
+    @Test
+    public void mergeSubscriptionsAndPurchases() throws Exception {
+        measureMerge("mergeSubscriptionsAndPurchases_2", 2);
+        measureMerge("mergeSubscriptionsAndPurchases_50", 50);
+    }
+
+    @Test
+    public void updateLocalPurchaseTokens() throws Exception {
+        measureUpdate("updateLocalPurchaseTokens_2", 2);
+        measureUpdate("updateLocalPurchaseTokens_50", 50);
+    }
+
+    private static void measureMerge(String name, int count) throws Exception {
+        final List<SubscriptionStatus> oldSubscriptions = SubscriptionFixtures.subscriptions(count);
+        final List<SubscriptionStatus> newSubscriptions =
+                new ArrayList<>(oldSubscriptions.subList(0, count / 2));
+        final List<Purchase> purchases = purchasesFor(oldSubscriptions);
+        benchmark.measure(name, new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return DataRepository.mergeSubscriptionsAndPurchases(
+                        oldSubscriptions, newSubscriptions, purchases);
+            }
+        });
+    }
+
+    /**
+     * Alternates between all purchases and none, so that every call changes the flags.
+     */
+    private static void measureUpdate(String name, int count) throws Exception {
+        final List<SubscriptionStatus> subscriptions = SubscriptionFixtures.subscriptions(count);
+        final List<Purchase> purchases = purchasesFor(subscriptions);
+        final List<Purchase> noPurchases = new ArrayList<>();
+        benchmark.measure(name, new MicroBenchmark.Body() {
+            private boolean local;
+
+            @Override
+            public Object run() {
+                local = !local;
+                return DataRepository.updateLocalPurchaseTokens(
+                        subscriptions, local ? purchases : noPurchases);
+            }
+        });
+    }
+
+    private static List<Purchase> purchasesFor(List<SubscriptionStatus> subscriptions)
+            throws JSONException {
+        List<Purchase> purchases = new ArrayList<>();
+        for (SubscriptionStatus subscription : subscriptions) {
+            purchases.add(new Purchase("{\"productId\":\"" + subscription.getSku()
+                    + "\",\"purchaseToken\":\"" + subscription.getPurchaseToken()
+                    + "\",\"purchaseState\":1,\"acknowledged\":true}", "signature"));
+        }
+        return purchases;
+    }
+}
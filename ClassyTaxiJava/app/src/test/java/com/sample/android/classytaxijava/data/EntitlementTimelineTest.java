@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.sample.android.classytaxijava.Constants;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EntitlementTimelineTest {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private final FakeClock clock = new FakeClock();
+    private final List<List<SubscriptionStatus>> changes = new ArrayList<>();
+    private ScheduledThreadPoolExecutor scheduler;
+    private EntitlementTimeline timeline;
+    private int confirmations;
+
+    @Before
+    public void setUp() {
+        clock.now = 1_000_000;
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        timeline = new EntitlementTimeline(clock, scheduler, new EntitlementTimeline.Listener() {
+            @Override
+            public void onEntitlementsChanged(List<SubscriptionStatus> subscriptions) {
+                changes.add(subscriptions);
+            }
+
+            @Override
+            public void onConfirmationNeeded() {
+                confirmations++;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void timerIsSetForTheEarliestTransition() {
+        SubscriptionStatus basic = active(Constants.BASIC_SKU, clock.now + 2 * HOUR, false);
+        SubscriptionStatus premium = paused(Constants.PREMIUM_SKU, clock.now + HOUR);
+
+        timeline.onSubscriptionsChanged(Arrays.asList(basic, premium));
+
+        assertEquals(Long.valueOf(clock.now + HOUR), timeline.getNextTransitionMillis());
+        assertEquals(1, scheduler.getQueue().size());
+    }
+
+    @Test
+    public void expiryEndsEntitlementAndAsksForConfirmation() {
+        SubscriptionStatus basic = active(Constants.BASIC_SKU, clock.now + HOUR, false);
+        timeline.onSubscriptionsChanged(Arrays.asList(basic));
+
+        clock.now += HOUR;
+        timeline.applyDueTransitions();
+
+        assertEquals(1, changes.size());
+        assertFalse(changes.get(0).get(0).isEntitlementActive());
+        assertEquals(1, confirmations);
+        assertNull(timeline.getNextTransitionMillis());
+    }
+
+    @Test
+    public void expiryDoesNotChangeTheSubscriptionsThatAreShown() {
+        SubscriptionStatus basic = active(Constants.BASIC_SKU, clock.now + HOUR, false);
+        timeline.onSubscriptionsChanged(Arrays.asList(basic));
+
+        clock.now += HOUR;
+        timeline.applyDueTransitions();
+
+        assertTrue(basic.isEntitlementActive());
+        assertNotSame(basic, changes.get(0).get(0));
+        assertEquals(basic.getPurchaseToken(), changes.get(0).get(0).getPurchaseToken());
+    }
+
+    @Test
+    public void renewingSubscriptionOnlyAsksForConfirmationOnce() {
+        SubscriptionStatus basic = active(Constants.BASIC_SKU, clock.now + HOUR, true);
+        timeline.onSubscriptionsChanged(Arrays.asList(basic));
+
+        clock.now += HOUR;
+        timeline.applyDueTransitions();
+        // The server has not renewed the subscription yet and sends the same state.
+        timeline.onSubscriptionsChanged(Arrays.asList(
+                active(Constants.BASIC_SKU, clock.now, true)));
+        timeline.applyDueTransitions();
+
+        assertTrue(changes.isEmpty());
+        assertEquals(1, confirmations);
+        assertNull(timeline.getNextTransitionMillis());
+    }
+
+    @Test
+    public void autoResumeAsksForConfirmation() {
+        timeline.onSubscriptionsChanged(Arrays.asList(
+                paused(Constants.PREMIUM_SKU, clock.now + HOUR)));
+
+        clock.now += HOUR - 1;
+        timeline.applyDueTransitions();
+        assertEquals(0, confirmations);
+
+        clock.now += 1;
+        timeline.applyDueTransitions();
+        assertEquals(1, confirmations);
+        assertTrue(changes.isEmpty());
+    }
+
+    private static SubscriptionStatus active(String sku, long activeUntil, boolean willRenew) {
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        subscription.setSku(sku);
+        subscription.setPurchaseToken(sku + "-token");
+        subscription.setEntitlementActive(true);
+        subscription.setWillRenew(willRenew);
+        subscription.setActiveUntilMillisec(activeUntil);
+        return subscription;
+    }
+
+    private static SubscriptionStatus paused(String sku, long autoResume) {
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        subscription.setSku(sku);
+        subscription.setPurchaseToken(sku + "-token");
+        subscription.setPaused(true);
+        subscription.setAutoResumeTimeMillis(autoResume);
+        return subscription;
+    }
+
+    private static class FakeClock implements Clock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+    }
+}
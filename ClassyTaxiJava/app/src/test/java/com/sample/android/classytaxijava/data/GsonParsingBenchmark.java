@@ -0,0 +1,78 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sample.android.classytaxijava.MicroBenchmark;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Cost of parsing server responses, with the Gson configuration of the HTTP stack.
+ */
+public class GsonParsingBenchmark {
+    private static final MicroBenchmark benchmark = new MicroBenchmark("GsonParsingBenchmark");
+
+    private final Gson gson = new GsonBuilder().create();
+
+    @Before
+    public void setUp() {
+        assumeTrue(MicroBenchmark.isEnabled());
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException {
+        benchmark.writeResults();
+    }
+
+    @Test
+    public void subscriptionStatusList() throws Exception {
+        measureSubscriptionStatusList("subscriptionStatusList_2", 2);
+        measureSubscriptionStatusList("subscriptionStatusList_50", 50);
+    }
+
+    @Test
+    public void contentResource() throws Exception {
+        final String json = gson.toJson(new ContentResource("https://example.com/basic.jpg"));
+        benchmark.measure("contentResource", new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return gson.fromJson(json, ContentResource.class);
+            }
+        });
+    }
+
+    private void measureSubscriptionStatusList(String name, int count) throws Exception {
+        SubscriptionStatusList list = new SubscriptionStatusList();
+        list.setSubscriptions(SubscriptionFixtures.subscriptions(count));
+        list.setCursor(SyncCursor.create(list.getSubscriptions()));
+        final String json = gson.toJson(list);
+        benchmark.measure(name, new MicroBenchmark.Body() {
+            @Override
+            public Object run() {
+                return gson.fromJson(json, SubscriptionStatusList.class);
+            }
+        });
+    }
+}
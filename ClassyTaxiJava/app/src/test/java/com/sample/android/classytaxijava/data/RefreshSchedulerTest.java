@@ -0,0 +1,143 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.sample.android.classytaxijava.Constants;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RefreshSchedulerTest {
+    private final FakeClock clock = new FakeClock();
+    private final List<Long> scheduled = new ArrayList<>();
+    private int cancelled;
+    private RefreshScheduler refreshScheduler;
+
+    @Before
+    public void setUp() {
+        refreshScheduler = new RefreshScheduler(clock, new RefreshPolicy(),
+                new RefreshScheduler.WorkScheduler() {
+                    @Override
+                    public void schedule(long delayMillis) {
+                        scheduled.add(delayMillis);
+                    }
+
+                    @Override
+                    public void cancel() {
+                        cancelled++;
+                    }
+                });
+    }
+
+    @Test
+    public void delayFollowsTheMostUrgentSubscription() {
+        RefreshPolicy policy = new RefreshPolicy();
+        SubscriptionStatus stable = subscription(Constants.BASIC_SKU);
+        SubscriptionStatus grace = subscription(Constants.PREMIUM_SKU);
+        grace.setGracePeriod(true);
+        SubscriptionStatus hold = subscription(Constants.PREMIUM_SKU);
+        hold.setEntitlementActive(false);
+        hold.setAccountHold(true);
+
+        assertEquals(RefreshPolicy.STABLE_MILLIS,
+                policy.getRefreshDelayMillis(Collections.<SubscriptionStatus>emptyList()));
+        assertEquals(RefreshPolicy.STABLE_MILLIS,
+                policy.getRefreshDelayMillis(Arrays.asList(stable)));
+        assertEquals(RefreshPolicy.GRACE_PERIOD_MILLIS,
+                policy.getRefreshDelayMillis(Arrays.asList(stable, grace)));
+        assertEquals(RefreshPolicy.ACCOUNT_HOLD_MILLIS,
+                policy.getRefreshDelayMillis(Arrays.asList(stable, grace, hold)));
+    }
+
+    @Test
+    public void manualRefreshPushesTheScheduledRefreshBack() {
+        SubscriptionStatus grace = subscription(Constants.BASIC_SKU);
+        grace.setGracePeriod(true);
+        refreshScheduler.onSubscriptionsChanged(Arrays.asList(grace));
+        assertEquals(Long.valueOf(RefreshPolicy.GRACE_PERIOD_MILLIS), scheduled.get(0));
+
+        // A refresh moments later does not reschedule the work.
+        clock.now += 1_000;
+        refreshScheduler.onRefreshed();
+        assertEquals(1, scheduled.size());
+
+        clock.now += RefreshPolicy.GRACE_PERIOD_MILLIS / 2;
+        refreshScheduler.onRefreshed();
+        assertEquals(2, scheduled.size());
+        assertEquals(Long.valueOf(RefreshPolicy.GRACE_PERIOD_MILLIS), scheduled.get(1));
+        assertEquals(clock.now + RefreshPolicy.GRACE_PERIOD_MILLIS,
+                refreshScheduler.getNextRefreshMillis());
+    }
+
+    @Test
+    public void runningRefreshIsNotReplaced() {
+        refreshScheduler.onSubscriptionsChanged(Arrays.asList(subscription(Constants.BASIC_SKU)));
+        clock.now += RefreshPolicy.STABLE_MILLIS;
+        refreshScheduler.onWorkStarted();
+        refreshScheduler.onRefreshed();
+        assertEquals(1, scheduled.size());
+
+        refreshScheduler.onWorkFinished(true);
+        assertEquals(2, scheduled.size());
+        assertEquals(Long.valueOf(RefreshPolicy.STABLE_MILLIS), scheduled.get(1));
+    }
+
+    @Test
+    public void failedRefreshIsLeftToTheWorkBackoff() {
+        refreshScheduler.onSubscriptionsChanged(Arrays.asList(subscription(Constants.BASIC_SKU)));
+        clock.now += RefreshPolicy.STABLE_MILLIS;
+        refreshScheduler.onWorkStarted();
+        refreshScheduler.onWorkFinished(false);
+        assertEquals(1, scheduled.size());
+
+        refreshScheduler.reset();
+        assertEquals(1, cancelled);
+        assertTrue(refreshScheduler.getNextRefreshMillis() < 0);
+    }
+
+    private static SubscriptionStatus subscription(String sku) {
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        subscription.setSku(sku);
+        subscription.setPurchaseToken(sku + "-token");
+        subscription.setEntitlementActive(true);
+        subscription.setWillRenew(true);
+        return subscription;
+    }
+
+    private static class FakeClock implements Clock {
+        long now = 1_000_000;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+    }
+}
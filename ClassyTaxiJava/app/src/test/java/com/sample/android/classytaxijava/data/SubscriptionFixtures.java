@@ -0,0 +1,77 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.sample.android.classytaxijava.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Subscription lists for benchmarks, with a fixed mix of states.
+ */
+public class SubscriptionFixtures {
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long NOW_MILLIS = 1_600_000_000_000L;
+
+    private SubscriptionFixtures() {
+    }
+
+    /**
+     * Returns subscriptions alternating between the basic and premium SKU, in active,
+     * canceled, grace period, account hold, paused and already owned states. The same count
+     * always returns equal lists.
+     */
+    public static List<SubscriptionStatus> subscriptions(int count) {
+        Random random = new Random(count);
+        List<SubscriptionStatus> subscriptions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            SubscriptionStatus subscription = new SubscriptionStatus();
+            subscription.setSku(i % 2 == 0 ? Constants.BASIC_SKU : Constants.PREMIUM_SKU);
+            subscription.setPurchaseToken("purchase-token-" + i + "-" + random.nextInt());
+            subscription.setActiveUntilMillisec(NOW_MILLIS + random.nextInt(30) * DAY_MILLIS);
+            switch (i % 6) {
+                case 0:
+                    subscription.setEntitlementActive(true);
+                    subscription.setWillRenew(true);
+                    break;
+                case 1:
+                    subscription.setEntitlementActive(true);
+                    break;
+                case 2:
+                    subscription.setEntitlementActive(true);
+                    subscription.setGracePeriod(true);
+                    break;
+                case 3:
+                    subscription.setAccountHold(true);
+                    break;
+                case 4:
+                    subscription.setPaused(true);
+                    subscription.setAutoResumeTimeMillis(NOW_MILLIS + DAY_MILLIS);
+                    break;
+                default:
+                    subscription = SubscriptionStatus.alreadyOwnedSubscription(
+                            subscription.getSku(), subscription.getPurchaseToken());
+                    subscription.setLocalPurchase(true);
+                    break;
+            }
+            subscriptions.add(subscription);
+        }
+        return subscriptions;
+    }
+}
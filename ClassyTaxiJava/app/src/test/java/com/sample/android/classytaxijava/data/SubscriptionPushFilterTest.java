@@ -0,0 +1,74 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionPushFilterTest {
+    private final SubscriptionPushFilter filter = new SubscriptionPushFilter();
+    private final List<SubscriptionStatus> listA = SubscriptionFixtures.subscriptions(3);
+    private final List<SubscriptionStatus> listB = SubscriptionFixtures.subscriptions(4);
+
+    @Test
+    public void pushRepeatingTheStoredListIsSkipped() {
+        filter.onStored("user1", listA);
+
+        assertTrue(filter.isRepeat("user1", SubscriptionFixtures.subscriptions(3)));
+    }
+
+    @Test
+    public void pushInTheBackgroundIsComparedWithTheLastStoredList() {
+        // The app was started in the background by the push, so nothing was stored yet.
+        assertFalse(filter.isRepeat("user1", listA));
+
+        // A was pushed, then B was fetched while nothing observed the repository, then A was
+        // pushed again. The second A is a change, not a repeat of the first one.
+        filter.onStored("user1", listA);
+        filter.onStored("user1", listB);
+        assertFalse(filter.isRepeat("user1", listA));
+    }
+
+    @Test
+    public void pushAfterAnUntrackedChangeIsStored() {
+        filter.onStored("user1", listA);
+        filter.reset();
+
+        assertFalse(filter.isRepeat("user1", listA));
+    }
+
+    @Test
+    public void pushForAnotherUserIsStored() {
+        filter.onStored("user1", listA);
+
+        assertFalse(filter.isRepeat("user2", listA));
+        assertFalse(filter.isRepeat(null, listA));
+    }
+
+    @Test
+    public void storedListIsNotChangedByItsCaller() {
+        List<SubscriptionStatus> stored = SubscriptionFixtures.subscriptions(3);
+        filter.onStored("user1", stored);
+        stored.remove(0);
+
+        assertTrue(filter.isRepeat("user1", listA));
+    }
+}
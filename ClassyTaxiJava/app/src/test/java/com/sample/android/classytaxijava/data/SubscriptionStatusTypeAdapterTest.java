@@ -0,0 +1,94 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionStatusTypeAdapterTest {
+    private static final String PAYLOAD = "{\"subscriptions\":["
+            + "{\"sku\":\"basic_subscription\",\"purchaseToken\":\"token-1\","
+            + "\"isEntitlementActive\":true,\"willRenew\":true,"
+            + "\"activeUntilMillisec\":1600000000000,\"isFreeTrial\":false,"
+            + "\"isGracePeriod\":false,\"isAccountHold\":false,\"isPaused\":false,"
+            + "\"autoResumeTimeMillis\":null,\"unknownField\":{\"nested\":[1,2]}},"
+            + "{\"sku\":\"premium_subscription\",\"purchaseToken\":\"token-2\","
+            + "\"isEntitlementActive\":false,\"willRenew\":false,"
+            + "\"activeUntilMillisec\":1500000000000,\"isFreeTrial\":true,"
+            + "\"isGracePeriod\":true,\"isAccountHold\":true,\"isPaused\":true,"
+            + "\"autoResumeTimeMillis\":1700000000000}]}";
+
+    @Test
+    public void parsesServerPayload() {
+        SubscriptionStatusList list = SubscriptionStatusList.fromJsonString(PAYLOAD);
+
+        List<SubscriptionStatus> subscriptions = list.getSubscriptions();
+        assertEquals(2, subscriptions.size());
+        SubscriptionStatus basic = subscriptions.get(0);
+        assertEquals("basic_subscription", basic.getSku());
+        assertEquals("token-1", basic.getPurchaseToken());
+        assertTrue(basic.isEntitlementActive());
+        assertEquals(Long.valueOf(1600000000000L), basic.getActiveUntilMillisec());
+        assertNull(basic.getAutoResumeTimeMillis());
+        SubscriptionStatus premium = subscriptions.get(1);
+        assertTrue(premium.isFreeTrial());
+        assertTrue(premium.isAccountHold());
+        assertTrue(premium.isPaused());
+        assertEquals(Long.valueOf(1700000000000L), premium.getAutoResumeTimeMillis());
+    }
+
+    @Test
+    public void writtenJsonReadsBackTheSameRemoteFields() {
+        SubscriptionStatusList list = SubscriptionStatusList.fromJsonString(PAYLOAD);
+
+        String json = new Gson().toJson(list);
+        SubscriptionStatusList parsed = SubscriptionStatusList.fromJsonString(json);
+
+        assertTrue(SubscriptionStatus.haveSameRemoteFields(
+                list.getSubscriptions(), parsed.getSubscriptions()));
+    }
+
+    @Test
+    public void malformedPayloadReturnsNull() {
+        assertNull(SubscriptionStatusList.fromJsonString("{\"subscriptions\":[{\"sku\":"));
+        assertNull(SubscriptionStatusList.fromJsonString("[]"));
+        assertNull(SubscriptionStatusList.fromJsonString(
+                "{\"subscriptions\":[{\"activeUntilMillisec\":\"soon\"}]}"));
+    }
+
+    @Test
+    public void remoteFieldComparisonIgnoresLocalFields() {
+        List<SubscriptionStatus> first =
+                SubscriptionStatusList.fromJsonString(PAYLOAD).getSubscriptions();
+        List<SubscriptionStatus> second =
+                SubscriptionStatusList.fromJsonString(PAYLOAD).getSubscriptions();
+        second.get(0).setLocalPurchase(true);
+        second.get(0).setPrimaryKey(7);
+        assertTrue(SubscriptionStatus.haveSameRemoteFields(first, second));
+
+        second.get(1).setWillRenew(true);
+        assertFalse(SubscriptionStatus.haveSameRemoteFields(first, second));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncCursorTest {
+    private final SyncSnapshotStore store = new SyncSnapshotStore();
+
+    @Test
+    public void missingOrInvalidCursorReturnsFullList() {
+        List<SubscriptionStatus> current = Arrays.asList(
+                subscription("basic_subscription", "token-1", true),
+                subscription("premium_subscription", "token-2", true));
+
+        String unknown = SyncCursor.create(Collections.singletonList(
+                subscription("basic_subscription", "token-1", false)));
+        for (String since : Arrays.asList(null, "", "1:abc=def", unknown)) {
+            SubscriptionStatusList result = store.diff("user", since, current);
+            assertFalse(result.isDelta());
+            assertEquals(2, result.getSubscriptions().size());
+            assertEquals(SyncCursor.create(current), result.getCursor());
+        }
+    }
+
+    @Test
+    public void deltaContainsOnlyChangedAndRemovedEntries() {
+        SubscriptionStatus basic = subscription("basic_subscription", "token-1", true);
+        SubscriptionStatus premium = subscription("premium_subscription", "token-2", true);
+        String cursor = store.diff("user", null, Arrays.asList(basic, premium)).getCursor();
+
+        SubscriptionStatus canceledBasic = subscription("basic_subscription", "token-1", false);
+        SubscriptionStatus newPremium = subscription("premium_subscription", "token-3", true);
+        SubscriptionStatusList result =
+                store.diff("user", cursor, Arrays.asList(canceledBasic, newPremium));
+
+        assertTrue(result.isDelta());
+        assertEquals(Arrays.asList(canceledBasic, newPremium), result.getSubscriptions());
+        assertEquals(Collections.singletonList(SyncCursor.tokenId("token-2")),
+                result.getRemoved());
+    }
+
+    @Test
+    public void unchangedSubscriptionsGiveEmptyDelta() {
+        List<SubscriptionStatus> current = Collections.singletonList(
+                subscription("basic_subscription", "token-1", true));
+        String cursor = store.diff("user", null, current).getCursor();
+
+        SubscriptionStatusList result = store.diff("user", cursor,
+                Collections.singletonList(subscription("basic_subscription", "token-1", true)));
+
+        assertTrue(result.isDelta());
+        assertTrue(result.getSubscriptions().isEmpty());
+        assertTrue(result.getRemoved().isEmpty());
+        assertEquals(cursor, result.getCursor());
+    }
+
+    @Test
+    public void cursorHasAFixedSize() {
+        List<SubscriptionStatus> many = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            many.add(subscription("basic_subscription", "token-" + i, true));
+        }
+
+        assertEquals(SyncCursor.create(Collections.<SubscriptionStatus>emptyList()).length(),
+                SyncCursor.create(many).length());
+    }
+
+    @Test
+    public void cursorOfAnotherUserReturnsFullList() {
+        List<SubscriptionStatus> current = Collections.singletonList(
+                subscription("basic_subscription", "token-1", true));
+        String cursor = store.diff("user", null, current).getCursor();
+
+        assertFalse(store.diff("other-user", cursor, current).isDelta());
+    }
+
+    @Test
+    public void deltaSurvivesJsonRoundTrip() {
+        String cursor = store.diff("user", null, Collections.singletonList(
+                subscription("basic_subscription", "token-1", true))).getCursor();
+        SubscriptionStatusList delta =
+                store.diff("user", cursor, Collections.<SubscriptionStatus>emptyList());
+
+        SubscriptionStatusList parsed = SubscriptionStatusList.fromJsonString(
+                new SubscriptionStatusListTypeAdapter().toJson(delta));
+
+        assertTrue(parsed.isDelta());
+        assertEquals(SyncCursor.create(Collections.<SubscriptionStatus>emptyList()),
+                parsed.getCursor());
+        assertEquals(delta.getRemoved(), parsed.getRemoved());
+    }
+
+    private static SubscriptionStatus subscription(String sku, String purchaseToken,
+                                                   boolean willRenew) {
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        subscription.setSku(sku);
+        subscription.setPurchaseToken(purchaseToken);
+        subscription.setEntitlementActive(true);
+        subscription.setWillRenew(willRenew);
+        return subscription;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.sample.android.classytaxijava.data.disk;
+
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the migrations of {@link AppDatabase} on an in-memory SQLite database.
+ * <p>
+ * Room needs an Android device, so the migrations are given a database that passes
+ * {@link SupportSQLiteDatabase#execSQL(String)} to JDBC, which is all that they use.
+ */
+public class AppDatabaseMigrationTest {
+    private static final String OUTBOX_V5 = "CREATE TABLE outbox ("
+            + "id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, operation TEXT NOT NULL, "
+            + "sku TEXT NOT NULL, purchaseToken TEXT NOT NULL, userId TEXT NOT NULL, "
+            + "createdAtMillis INTEGER NOT NULL)";
+    private static final String OUTBOX_INDEX_V5 = "CREATE UNIQUE INDEX "
+            + "index_outbox_operation_sku_purchaseToken "
+            + "ON outbox (operation, sku, purchaseToken)";
+    private static final String INSERT_OUTBOX = "INSERT OR REPLACE INTO outbox "
+            + "(operation, sku, purchaseToken, userId, createdAtMillis) VALUES "
+            + "('register_subscription', 'basic', 'token', '%s', 0)";
+
+    private static final String[] SCHEMA_V4 = {
+            "CREATE TABLE subscriptions (primaryKey INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "subscriptionStatusJson TEXT, subAlreadyOwned INTEGER NOT NULL, "
+                    + "isLocalPurchase INTEGER NOT NULL, sku TEXT, purchaseToken TEXT, "
+                    + "isEntitlementActive INTEGER NOT NULL, willRenew INTEGER NOT NULL, "
+                    + "activeUntilMillisec INTEGER, isFreeTrial INTEGER NOT NULL, "
+                    + "isGracePeriod INTEGER NOT NULL, isAccountHold INTEGER NOT NULL, "
+                    + "isPaused INTEGER NOT NULL, autoResumeTimeMillis INTEGER)",
+            "CREATE TABLE sync_state (name TEXT NOT NULL, cursor TEXT, PRIMARY KEY(name))",
+            "CREATE TABLE content (tier TEXT NOT NULL, url TEXT NOT NULL, "
+                    + "fetchedAtMillis INTEGER NOT NULL, PRIMARY KEY(tier))",
+            OUTBOX_V5,
+            OUTBOX_INDEX_V5,
+    };
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void migration5To6KeepsTheOutboxEntriesOfEachUser() throws SQLException {
+        execute(OUTBOX_V5, OUTBOX_INDEX_V5, String.format(INSERT_OUTBOX, "user-a"));
+        // Before the migration, the entry of user B replaces the entry of user A.
+        execute(String.format(INSERT_OUTBOX, "user-b"));
+        assertEquals(1, count("SELECT COUNT(*) FROM outbox"));
+        execute(String.format(INSERT_OUTBOX, "user-a"));
+
+        migrate(AppDatabase.MIGRATION_5_6);
+
+        assertEquals(1, count("SELECT COUNT(*) FROM outbox WHERE userId = 'user-a'"));
+        execute(String.format(INSERT_OUTBOX, "user-b"));
+        assertEquals(2, count("SELECT COUNT(*) FROM outbox"));
+        assertEquals(1, count("SELECT COUNT(*) FROM outbox WHERE userId = 'user-a'"));
+        // The same user still replaces a pending entry.
+        execute(String.format(INSERT_OUTBOX, "user-b"));
+        assertEquals(2, count("SELECT COUNT(*) FROM outbox"));
+        assertEquals(0, count("SELECT COUNT(*) FROM sqlite_master "
+                + "WHERE name = 'index_outbox_operation_sku_purchaseToken'"));
+    }
+
+    @Test
+    public void migration4To5DropsTheDataOfUnknownUsersAndKeepsTheOutbox()
+            throws SQLException {
+        execute(SCHEMA_V4);
+        execute("INSERT INTO subscriptions (subAlreadyOwned, isLocalPurchase, sku, "
+                        + "purchaseToken, isEntitlementActive, willRenew, isFreeTrial, "
+                        + "isGracePeriod, isAccountHold, isPaused) "
+                        + "VALUES (0, 1, 'basic', 'token', 1, 1, 0, 0, 0, 0)",
+                "INSERT INTO sync_state (name, cursor) VALUES ('subscriptions', 'cursor')",
+                "INSERT INTO content (tier, url, fetchedAtMillis) VALUES ('basic', 'url', 1)",
+                String.format(INSERT_OUTBOX, "user-a"));
+
+        migrate(AppDatabase.MIGRATION_4_5);
+
+        assertEquals(0, count("SELECT COUNT(*) FROM subscriptions"));
+        assertEquals(0, count("SELECT COUNT(*) FROM sync_state"));
+        assertEquals(0, count("SELECT COUNT(*) FROM content"));
+        assertEquals(0, count("SELECT COUNT(*) FROM user_partitions"));
+        assertEquals(1, count("SELECT COUNT(*) FROM outbox WHERE userId = 'user-a'"));
+        // The tables are keyed by user, so two users can store the same tier and cursor.
+        execute("INSERT INTO subscriptions (userId, subAlreadyOwned, isLocalPurchase, sku, "
+                        + "purchaseToken, isEntitlementActive, willRenew, isFreeTrial, "
+                        + "isGracePeriod, isAccountHold, isPaused) "
+                        + "VALUES ('user-a', 0, 1, 'basic', 'token', 1, 1, 0, 0, 0, 0)",
+                "INSERT INTO sync_state (userId, name, cursor) "
+                        + "VALUES ('user-a', 'subscriptions', 'a')",
+                "INSERT INTO sync_state (userId, name, cursor) "
+                        + "VALUES ('user-b', 'subscriptions', 'b')",
+                "INSERT INTO content (userId, tier, url, fetchedAtMillis) "
+                        + "VALUES ('user-a', 'basic', 'url', 1)",
+                "INSERT INTO content (userId, tier, url, fetchedAtMillis) "
+                        + "VALUES ('user-b', 'basic', 'url', 1)",
+                "INSERT INTO user_partitions (userId, lastActiveMillis) VALUES ('user-a', 1)");
+        assertEquals(1, count("SELECT COUNT(*) FROM subscriptions WHERE userId = 'user-a'"));
+        assertEquals(2, count("SELECT COUNT(*) FROM sync_state"));
+        assertEquals(2, count("SELECT COUNT(*) FROM content"));
+        assertEquals(1, count("SELECT COUNT(*) FROM sqlite_master "
+                + "WHERE name = 'index_subscriptions_userId'"));
+
+        // The outbox then migrates to version 6 as before.
+        migrate(AppDatabase.MIGRATION_5_6);
+        assertEquals(1, count("SELECT COUNT(*) FROM outbox WHERE userId = 'user-a'"));
+    }
+
+    private void migrate(Migration migration) {
+        migration.migrate((SupportSQLiteDatabase) Proxy.newProxyInstance(
+                SupportSQLiteDatabase.class.getClassLoader(),
+                new Class<?>[]{SupportSQLiteDatabase.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws SQLException {
+                        if (!"execSQL".equals(method.getName()) || args.length != 1) {
+                            fail("Migration called " + method);
+                        }
+                        execute((String) args[0]);
+                        return null;
+                    }
+                }));
+    }
+
+    private void execute(String... statements) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    private int count(String query) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery(query)) {
+            rows.next();
+            return rows.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.disk;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.room.DatabaseConfiguration;
+import androidx.room.InvalidationTracker;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+
+import com.sample.android.classytaxijava.PriorityExecutor;
+import com.sample.android.classytaxijava.PriorityExecutor.Priority;
+import com.sample.android.classytaxijava.data.SubscriptionFixtures;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link LocalDataSource} on a single disk thread, like the app, against in-memory DAOs.
+ */
+public class LocalDataSourceTest {
+    @Rule
+    public InstantTaskExecutorRule instantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private final FakeClock clock = new FakeClock();
+    private final PriorityExecutor executor = new PriorityExecutor("disk", 1, clock);
+    private final FakeDatabase database = new FakeDatabase();
+    private final LocalDataSource localDataSource =
+            new LocalDataSource(executor, database, clock);
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void dataIsStoredPerUser() throws InterruptedException {
+        setUserAndStore("user1", 3, "cursor1");
+        setUserAndStore("user2", 4, "cursor2");
+
+        assertEquals(3, database.subscriptionsOf("user1").size());
+        assertEquals(4, database.subscriptionsOf("user2").size());
+        assertEquals("cursor1", localDataSource.getSyncCursor("user1"));
+        assertEquals("cursor2", localDataSource.getSyncCursor("user2"));
+        assertTrue(database.content.containsKey("user1/" + ContentRecord.BASIC));
+        assertTrue(database.content.containsKey("user2/" + ContentRecord.BASIC));
+    }
+
+    @Test
+    public void leastRecentlyActiveUsersAreEvicted() throws InterruptedException {
+        for (int i = 1; i <= LocalDataSource.MAX_CACHED_USERS; i++) {
+            setUserAndStore("user" + i, 2, "cursor" + i);
+        }
+        // Switching back to the first user makes the second one the least recently active.
+        localDataSource.setUser("user1");
+        awaitIdle();
+        assertEquals(LocalDataSource.MAX_CACHED_USERS, database.partitions.size());
+
+        setUserAndStore("user4", 2, "cursor4");
+
+        assertUserEvicted("user2");
+        assertEquals(2, database.subscriptionsOf("user1").size());
+        assertEquals("cursor3", localDataSource.getSyncCursor("user3"));
+        assertEquals(2, database.subscriptionsOf("user4").size());
+        assertEquals(LocalDataSource.MAX_CACHED_USERS, database.partitions.size());
+    }
+
+    @Test
+    public void lateWritesOfAnEvictedUserDoNotRecreateItsData() throws InterruptedException {
+        setUserAndStore("user1", 2, "cursor1");
+        CountDownLatch release = blockDisk();
+        // Responses for user1 arrive while the disk thread is busy, and the user changes
+        // before they are written.
+        localDataSource.replaceSubscriptions("user1", SubscriptionFixtures.subscriptions(3),
+                "late-cursor");
+        localDataSource.saveContent("user1", ContentRecord.PREMIUM, "late-url", 0);
+        for (int i = 2; i <= LocalDataSource.MAX_CACHED_USERS + 1; i++) {
+            clock.now += 1000;
+            localDataSource.setUser("user" + i);
+        }
+        release.countDown();
+        awaitIdle();
+
+        assertUserEvicted("user1");
+        for (int i = 2; i <= LocalDataSource.MAX_CACHED_USERS + 1; i++) {
+            assertTrue(database.subscriptionsOf("user" + i).isEmpty());
+        }
+        assertTrue(database.content.isEmpty());
+    }
+
+    @Test
+    public void writeForAPreviousUserIsDropped() throws InterruptedException {
+        setUserAndStore("user1", 2, "cursor1");
+        CountDownLatch release = blockDisk();
+        localDataSource.replaceSubscriptions("user1", SubscriptionFixtures.subscriptions(3),
+                "late-cursor");
+        localDataSource.markContentFetched("user1", ContentRecord.BASIC, 42);
+        localDataSource.setUser("user2");
+        release.countDown();
+        awaitIdle();
+
+        // The previous user keeps the data stored while it was current.
+        assertEquals(2, database.subscriptionsOf("user1").size());
+        assertEquals("cursor1", localDataSource.getSyncCursor("user1"));
+        assertEquals(0, database.content.get("user1/" + ContentRecord.BASIC)
+                .getFetchedAtMillis());
+        assertTrue(database.subscriptionsOf("user2").isEmpty());
+    }
+
+    private void setUserAndStore(String userId, int subscriptions, String cursor)
+            throws InterruptedException {
+        clock.now += 1000;
+        localDataSource.setUser(userId);
+        localDataSource.replaceSubscriptions(userId,
+                SubscriptionFixtures.subscriptions(subscriptions), cursor);
+        localDataSource.saveContent(userId, ContentRecord.BASIC, "url-" + userId, 0);
+        awaitIdle();
+    }
+
+    private void assertUserEvicted(String userId) {
+        assertTrue(database.subscriptionsOf(userId).isEmpty());
+        assertNull(localDataSource.getSyncCursor(userId));
+        for (String key : database.content.keySet()) {
+            assertTrue(key, !key.startsWith(userId + "/"));
+        }
+        assertTrue(!database.partitions.containsKey(userId));
+    }
+
+    /**
+     * Occupies the disk thread until the returned latch is released.
+     */
+    private CountDownLatch blockDisk() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(Priority.USER_BLOCKING, "block", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    /**
+     * Waits for the tasks queued so far. Background tasks run last, in order.
+     */
+    private void awaitIdle() throws InterruptedException {
+        final CountDownLatch idle = new CountDownLatch(1);
+        executor.execute(Priority.BACKGROUND, "idle", new Runnable() {
+            @Override
+            public void run() {
+                idle.countDown();
+            }
+        });
+        assertTrue(idle.await(5, TimeUnit.SECONDS));
+    }
+
+    private static class FakeClock implements Clock {
+        volatile long now = 1_000_000L;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+    }
+
+    /**
+     * Tables in memory. The DAOs are only used on the disk thread, so transactions just run.
+     */
+    private static class FakeDatabase extends AppDatabase {
+        final List<SubscriptionStatus> subscriptions =
+                Collections.synchronizedList(new ArrayList<SubscriptionStatus>());
+        final Map<String, String> cursors = Collections.synchronizedMap(
+                new HashMap<String, String>());
+        final Map<String, ContentRecord> content = Collections.synchronizedMap(
+                new HashMap<String, ContentRecord>());
+        final Map<String, Long> partitions = Collections.synchronizedMap(
+                new HashMap<String, Long>());
+
+        List<SubscriptionStatus> subscriptionsOf(String userId) {
+            List<SubscriptionStatus> result = new ArrayList<>();
+            synchronized (subscriptions) {
+                for (SubscriptionStatus subscription : subscriptions) {
+                    if (userId.equals(subscription.getUserId())) {
+                        result.add(subscription);
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void runInTransaction(Runnable body) {
+            body.run();
+        }
+
+        @Override
+        public SubscriptionStatusDao subscriptionStatusDao() {
+            return new SubscriptionStatusDao() {
+                @Override
+                public LiveData<List<SubscriptionStatus>> getAll(String userId) {
+                    return new MutableLiveData<>();
+                }
+
+                @Override
+                public List<SubscriptionStatus> loadAll(String userId) {
+                    return subscriptionsOf(userId);
+                }
+
+                @Override
+                public void insertAll(List<SubscriptionStatus> comments) {
+                    subscriptions.addAll(comments);
+                }
+
+                @Override
+                public void deleteAll(String userId) {
+                    subscriptions.removeAll(subscriptionsOf(userId));
+                }
+
+                @Override
+                public void deleteByPurchaseTokens(String userId, List<String> purchaseTokens) {
+                    for (SubscriptionStatus subscription : subscriptionsOf(userId)) {
+                        if (purchaseTokens.contains(subscription.getPurchaseToken())) {
+                            subscriptions.remove(subscription);
+                        }
+                    }
+                }
+
+                @Override
+                public void deleteUsers(List<String> userIds) {
+                    for (String userId : userIds) {
+                        deleteAll(userId);
+                    }
+                }
+            };
+        }
+
+        @Override
+        OutboxDao outboxDao() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        SyncStateDao syncStateDao() {
+            return new SyncStateDao() {
+                @Override
+                public String getCursor(String userId, String name) {
+                    return cursors.get(userId + "/" + name);
+                }
+
+                @Override
+                public void insert(SyncState state) {
+                    cursors.put(state.getUserId() + "/" + state.getName(), state.getCursor());
+                }
+
+                @Override
+                public void delete(String userId, String name) {
+                    cursors.remove(userId + "/" + name);
+                }
+
+                @Override
+                public void deleteUsers(List<String> userIds) {
+                    removeUsers(cursors, userIds);
+                }
+            };
+        }
+
+        @Override
+        ContentRecordDao contentRecordDao() {
+            return new ContentRecordDao() {
+                @Override
+                public LiveData<ContentRecord> get(String userId, String tier) {
+                    return new MutableLiveData<>();
+                }
+
+                @Override
+                public void insert(ContentRecord record) {
+                    content.put(record.getUserId() + "/" + record.getTier(), record);
+                }
+
+                @Override
+                public void setFetchedAt(String userId, String tier, long fetchedAtMillis) {
+                    ContentRecord record = content.get(userId + "/" + tier);
+                    if (record != null) {
+                        record.setFetchedAtMillis(fetchedAtMillis);
+                    }
+                }
+
+                @Override
+                public void delete(String userId, String tier) {
+                    content.remove(userId + "/" + tier);
+                }
+
+                @Override
+                public void deleteUsers(List<String> userIds) {
+                    removeUsers(content, userIds);
+                }
+            };
+        }
+
+        @Override
+        UserPartitionDao userPartitionDao() {
+            return new UserPartitionDao() {
+                @Override
+                public void insert(UserPartition partition) {
+                    partitions.put(partition.getUserId(), partition.getLastActiveMillis());
+                }
+
+                @Override
+                public List<String> getLeastRecentlyActive(int keep) {
+                    List<Map.Entry<String, Long>> entries =
+                            new ArrayList<>(partitions.entrySet());
+                    Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+                        @Override
+                        public int compare(Map.Entry<String, Long> first,
+                                           Map.Entry<String, Long> second) {
+                            return second.getValue().compareTo(first.getValue());
+                        }
+                    });
+                    List<String> userIds = new ArrayList<>();
+                    for (int i = keep; i < entries.size(); i++) {
+                        userIds.add(entries.get(i).getKey());
+                    }
+                    return userIds;
+                }
+
+                @Override
+                public void delete(List<String> userIds) {
+                    partitions.keySet().removeAll(userIds);
+                }
+            };
+        }
+
+        @Override
+        protected SupportSQLiteOpenHelper createOpenHelper(DatabaseConfiguration config) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected InvalidationTracker createInvalidationTracker() {
+            return null;
+        }
+
+        @Override
+        public void clearAllTables() {
+            throw new UnsupportedOperationException();
+        }
+
+        private static void removeUsers(Map<String, ?> table, List<String> userIds) {
+            synchronized (table) {
+                Iterator<String> keys = table.keySet().iterator();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    if (userIds.contains(key.substring(0, key.indexOf('/')))) {
+                        keys.remove();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.disk;
+
+import com.sample.android.classytaxijava.MicroBenchmark;
+import com.sample.android.classytaxijava.data.SubscriptionFixtures;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Cost of the write patterns of {@link LocalDataSource}, on an in-memory SQLite database.
+ * <p>
+ * Room needs an Android device, so the statements that the DAOs generate are run through
+ * JDBC against the same tables. Like Room, each row is written with a compiled statement, and
+ * the writes that {@link LocalDataSource} groups are run in one transaction.
+ */
+public class LocalDataSourceWriteBenchmark {
+    private static final MicroBenchmark benchmark =
+            new MicroBenchmark("LocalDataSourceWriteBenchmark");
+
+    private static final String USER_ID = "benchmark-user";
+    private static final int SUBSCRIPTION_COUNT = 20;
+    private static final int OUTBOX_BATCH_SIZE = 20;
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE subscriptions (primaryKey INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "userId TEXT NOT NULL, subscriptionStatusJson TEXT, "
+                    + "subAlreadyOwned INTEGER NOT NULL, isLocalPurchase INTEGER NOT NULL, "
+                    + "sku TEXT, purchaseToken TEXT, isEntitlementActive INTEGER NOT NULL, "
+                    + "willRenew INTEGER NOT NULL, activeUntilMillisec INTEGER, "
+                    + "isFreeTrial INTEGER NOT NULL, isGracePeriod INTEGER NOT NULL, "
+                    + "isAccountHold INTEGER NOT NULL, isPaused INTEGER NOT NULL, "
+                    + "autoResumeTimeMillis INTEGER)",
+            "CREATE INDEX index_subscriptions_userId ON subscriptions (userId)",
+            "CREATE TABLE outbox (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "operation TEXT NOT NULL, sku TEXT NOT NULL, purchaseToken TEXT NOT NULL, "
+                    + "userId TEXT NOT NULL, createdAtMillis INTEGER NOT NULL)",
+            "CREATE UNIQUE INDEX index_outbox_userId_operation_sku_purchaseToken "
+                    + "ON outbox (userId, operation, sku, purchaseToken)",
+            "CREATE TABLE content (userId TEXT NOT NULL, tier TEXT NOT NULL, "
+                    + "url TEXT NOT NULL, fetchedAtMillis INTEGER NOT NULL, "
+                    + "PRIMARY KEY(userId, tier))",
+    };
+
+    private static final String INSERT_SUBSCRIPTION = "INSERT OR REPLACE INTO subscriptions "
+            + "(userId, subscriptionStatusJson, subAlreadyOwned, isLocalPurchase, sku, "
+            + "purchaseToken, isEntitlementActive, willRenew, activeUntilMillisec, isFreeTrial, "
+            + "isGracePeriod, isAccountHold, isPaused, autoResumeTimeMillis) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private Connection connection;
+    private List<SubscriptionStatus> subscriptions;
+
+    @Before
+    public void setUp() throws SQLException {
+        assumeTrue(MicroBenchmark.isEnabled());
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : SCHEMA) {
+                statement.execute(sql);
+            }
+        }
+        subscriptions = SubscriptionFixtures.subscriptions(SUBSCRIPTION_COUNT);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException {
+        benchmark.writeResults();
+    }
+
+    /**
+     * {@link LocalDataSource#replaceSubscriptions}: delete the user's rows and insert the new
+     * list, in one transaction and, for comparison, with every statement committed alone.
+     */
+    @Test
+    public void replaceSubscriptions() throws Exception {
+        benchmark.measure("replaceSubscriptions_transaction", new MicroBenchmark.Body() {
+            @Override
+            public Object run() throws SQLException {
+                inTransaction(new SqlRunnable() {
+                    @Override
+                    public void run() throws SQLException {
+                        replaceSubscriptionRows();
+                    }
+                });
+                return null;
+            }
+        });
+        benchmark.measure("replaceSubscriptions_autocommit", new MicroBenchmark.Body() {
+            @Override
+            public Object run() throws SQLException {
+                replaceSubscriptionRows();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@link LocalDataSource#applySubscriptionChanges}: read the user's rows, delete the
+     * changed and removed purchase tokens and insert the changed subscriptions.
+     */
+    @Test
+    public void applySubscriptionChanges() throws Exception {
+        inTransaction(new SqlRunnable() {
+            @Override
+            public void run() throws SQLException {
+                replaceSubscriptionRows();
+            }
+        });
+        final List<SubscriptionStatus> changed = subscriptions.subList(0, 2);
+        benchmark.measure("applySubscriptionChanges", new MicroBenchmark.Body() {
+            @Override
+            public Object run() throws SQLException {
+                inTransaction(new SqlRunnable() {
+                    @Override
+                    public void run() throws SQLException {
+                        List<String> tokens = new ArrayList<>();
+                        try (PreparedStatement select = connection.prepareStatement(
+                                "SELECT purchaseToken FROM subscriptions WHERE userId = ?")) {
+                            select.setString(1, USER_ID);
+                            try (ResultSet rows = select.executeQuery()) {
+                                while (rows.next()) {
+                                    tokens.add(rows.getString(1));
+                                }
+                            }
+                        }
+                        try (PreparedStatement delete = connection.prepareStatement(
+                                "DELETE FROM subscriptions "
+                                        + "WHERE userId = ? AND purchaseToken IN (?, ?)")) {
+                            delete.setString(1, USER_ID);
+                            delete.setString(2, changed.get(0).getPurchaseToken());
+                            delete.setString(3, changed.get(1).getPurchaseToken());
+                            delete.executeUpdate();
+                        }
+                        insertSubscriptions(changed);
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@link LocalDataSource#addToOutbox} followed by the drainer reading the batch and
+     * removing the delivered entries.
+     */
+    @Test
+    public void outboxAppendAndDrain() throws Exception {
+        benchmark.measure("outboxAppendAndDrain", new MicroBenchmark.Body() {
+            private long now;
+
+            @Override
+            public Object run() throws SQLException {
+                now++;
+                inTransaction(new SqlRunnable() {
+                    @Override
+                    public void run() throws SQLException {
+                        try (PreparedStatement insert = connection.prepareStatement(
+                                "INSERT OR REPLACE INTO outbox (operation, sku, purchaseToken, "
+                                        + "userId, createdAtMillis) VALUES (?, ?, ?, ?, ?)")) {
+                            for (int i = 0; i < OUTBOX_BATCH_SIZE; i++) {
+                                SubscriptionStatus subscription = subscriptions.get(i);
+                                insert.setString(1, OutboxEntry.REGISTER_SUBSCRIPTION);
+                                insert.setString(2, subscription.getSku());
+                                insert.setString(3, subscription.getPurchaseToken());
+                                insert.setString(4, USER_ID);
+                                insert.setLong(5, now);
+                                insert.executeUpdate();
+                            }
+                        }
+                    }
+                });
+                List<Long> ids = new ArrayList<>();
+                try (PreparedStatement select = connection.prepareStatement(
+                        "SELECT * FROM outbox WHERE userId = ? ORDER BY id LIMIT ?")) {
+                    select.setString(1, USER_ID);
+                    select.setInt(2, OUTBOX_BATCH_SIZE);
+                    try (ResultSet rows = select.executeQuery()) {
+                        while (rows.next()) {
+                            ids.add(rows.getLong("id"));
+                        }
+                    }
+                }
+                inTransaction(new SqlRunnable() {
+                    @Override
+                    public void run() throws SQLException {
+                        try (PreparedStatement delete = connection.prepareStatement(
+                                "DELETE FROM outbox WHERE id = ?")) {
+                            for (long id : ids) {
+                                delete.setLong(1, id);
+                                delete.executeUpdate();
+                            }
+                        }
+                    }
+                });
+                return ids;
+            }
+        });
+    }
+
+    /**
+     * {@link LocalDataSource#saveContent}: replace the content record of a tier.
+     */
+    @Test
+    public void saveContent() throws Exception {
+        benchmark.measure("saveContent", new MicroBenchmark.Body() {
+            private long now;
+
+            @Override
+            public Object run() throws SQLException {
+                try (PreparedStatement insert = connection.prepareStatement(
+                        "INSERT OR REPLACE INTO content (userId, tier, url, fetchedAtMillis) "
+                                + "VALUES (?, ?, ?, ?)")) {
+                    insert.setString(1, USER_ID);
+                    insert.setString(2, ContentRecord.BASIC);
+                    insert.setString(3, "https://example.com/basic.jpg");
+                    insert.setLong(4, ++now);
+                    return insert.executeUpdate();
+                }
+            }
+        });
+    }
+
+    private interface SqlRunnable {
+        void run() throws SQLException;
+    }
+
+    /**
+     * Like {@code RoomDatabase.runInTransaction}.
+     */
+    private void inTransaction(SqlRunnable runnable) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            runnable.run();
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private void replaceSubscriptionRows() throws SQLException {
+        try (PreparedStatement delete = connection.prepareStatement(
+                "DELETE FROM subscriptions WHERE userId = ?")) {
+            delete.setString(1, USER_ID);
+            delete.executeUpdate();
+        }
+        insertSubscriptions(subscriptions);
+    }
+
+    private void insertSubscriptions(List<SubscriptionStatus> rows) throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(INSERT_SUBSCRIPTION)) {
+            for (SubscriptionStatus subscription : rows) {
+                insert.setString(1, USER_ID);
+                insert.setNull(2, Types.VARCHAR);
+                insert.setBoolean(3, subscription.isSubAlreadyOwned());
+                insert.setBoolean(4, subscription.isLocalPurchase());
+                insert.setString(5, subscription.getSku());
+                insert.setString(6, subscription.getPurchaseToken());
+                insert.setBoolean(7, subscription.isEntitlementActive());
+                insert.setBoolean(8, subscription.isWillRenew());
+                setLong(insert, 9, subscription.getActiveUntilMillisec());
+                insert.setBoolean(10, subscription.isFreeTrial());
+                insert.setBoolean(11, subscription.isGracePeriod());
+                insert.setBoolean(12, subscription.isAccountHold());
+                insert.setBoolean(13, subscription.isPaused());
+                setLong(insert, 14, subscription.getAutoResumeTimeMillis());
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    private static void setLong(PreparedStatement statement, int index, Long value)
+            throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.INTEGER);
+        } else {
+            statement.setLong(index, value);
+        }
+    }
+}
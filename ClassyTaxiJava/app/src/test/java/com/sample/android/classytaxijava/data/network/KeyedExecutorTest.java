@@ -0,0 +1,315 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network;
+
+import com.sample.android.classytaxijava.PriorityExecutor;
+import com.sample.android.classytaxijava.PriorityExecutor.Priority;
+import com.sample.android.classytaxijava.PriorityExecutor.RejectionPolicy;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link KeyedExecutor} against a local stand-in HTTP server that takes a fixed time to
+ * answer each request.
+ */
+public class KeyedExecutorTest {
+    private static final long RESPONSE_DELAY_MILLIS = 200;
+    private static final int THREAD_COUNT = 3;
+
+    private final AtomicInteger serverInFlight = new AtomicInteger();
+    private final AtomicInteger serverMaxInFlight = new AtomicInteger();
+    private final AtomicInteger statusInFlight = new AtomicInteger();
+    private final AtomicInteger statusMaxInFlight = new AtomicInteger();
+    private final OkHttpClient client = new OkHttpClient();
+    private MockWebServer server;
+    private ExecutorService networkIO;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                boolean isStatus = "/status".equals(request.getPath());
+                updateMax(serverMaxInFlight, serverInFlight.incrementAndGet());
+                if (isStatus) {
+                    updateMax(statusMaxInFlight, statusInFlight.incrementAndGet());
+                }
+                Thread.sleep(RESPONSE_DELAY_MILLIS);
+                if (isStatus) {
+                    statusInFlight.decrementAndGet();
+                }
+                serverInFlight.decrementAndGet();
+                return new MockResponse().setBody("{}");
+            }
+        });
+        server.start();
+        networkIO = Executors.newFixedThreadPool(THREAD_COUNT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        networkIO.shutdownNow();
+        server.shutdown();
+    }
+
+    @Test
+    public void differentKeysRunInParallel() throws InterruptedException {
+        KeyedExecutor executor = new KeyedExecutor(networkIO);
+        int requestCount = THREAD_COUNT * 2;
+        CountDownLatch done = new CountDownLatch(requestCount);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requestCount; i++) {
+            executor.execute("subscription_register_v2", "sku" + i, request("/" + i, done, null));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // Two rounds of parallel requests, well below six serial round trips.
+        assertTrue("Elapsed " + elapsedMillis + "ms",
+                elapsedMillis < RESPONSE_DELAY_MILLIS * requestCount / 2 + RESPONSE_DELAY_MILLIS);
+        assertEquals(THREAD_COUNT, serverMaxInFlight.get());
+    }
+
+    @Test
+    public void sameKeyStaysOrdered() throws InterruptedException {
+        KeyedExecutor executor = new KeyedExecutor(networkIO);
+        int requestCount = 4;
+        CountDownLatch done = new CountDownLatch(requestCount);
+        List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+
+        for (int i = 0; i < requestCount; i++) {
+            executor.execute("subscription_register_v2", "basic_subscription",
+                    request("/" + i, done, recordOrder(completed, i)));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(1, serverMaxInFlight.get());
+        assertEquals(requestCount, completed.size());
+        for (int i = 0; i < requestCount; i++) {
+            assertEquals(Integer.valueOf(i), completed.get(i));
+        }
+    }
+
+    @Test
+    public void endpointLimitIsRespected() throws InterruptedException {
+        KeyedExecutor executor = new KeyedExecutor(networkIO);
+        executor.setEndpointLimit("subscription_status_v2", 1);
+        int requestCount = 3;
+        CountDownLatch done = new CountDownLatch(requestCount * 2);
+
+        for (int i = 0; i < requestCount; i++) {
+            executor.execute("subscription_status_v2", "status" + i, request("/status", done, null));
+        }
+        // Other endpoints keep using the remaining threads.
+        for (int i = 0; i < requestCount; i++) {
+            executor.execute("instanceId_register_v2", "id" + i, request("/id", done, null));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(1, statusMaxInFlight.get());
+        assertEquals(THREAD_COUNT, serverMaxInFlight.get());
+    }
+
+    @Test
+    public void raisingLimitStartsWaitingTasks() throws InterruptedException {
+        KeyedExecutor executor = new KeyedExecutor(networkIO);
+        executor.setEndpointLimit("content_basic_v2", 1);
+        CountDownLatch done = new CountDownLatch(2);
+
+        executor.execute("content_basic_v2", "a", request("/a", done, null));
+        executor.execute("content_basic_v2", "b", request("/b", done, null));
+        executor.setEndpointLimit("content_basic_v2", 2);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(2, serverMaxInFlight.get());
+    }
+
+    @Test
+    public void rejectedTaskIsReportedAndReleasesItsKey() throws InterruptedException {
+        PriorityExecutor lanes = new PriorityExecutor("test", 1, Clock.SYSTEM);
+        try {
+            lanes.setLaneLimits(Priority.BACKGROUND, 1, RejectionPolicy.ABORT, 1);
+            KeyedExecutor executor = new KeyedExecutor(lanes);
+            executor.setEndpointExecutor("content_basic_v2",
+                    lanes.forPriority(Priority.BACKGROUND, "content_basic_v2"));
+            CountDownLatch release = block(lanes);
+            // Fill the lane.
+            CountDownLatch fillerRan = new CountDownLatch(1);
+            lanes.execute(Priority.BACKGROUND, "filler", countDown(fillerRan));
+
+            AtomicInteger ran = new AtomicInteger();
+            AtomicInteger rejected = new AtomicInteger();
+            executor.execute("content_basic_v2", "a", count(ran), count(rejected));
+            executor.execute("content_basic_v2", "a", count(ran), count(rejected));
+            assertEquals(2, rejected.get());
+            assertEquals(0, executor.getInFlightCount("content_basic_v2"));
+
+            release.countDown();
+            // The lane has room again only once the filler has been taken off it.
+            assertTrue(fillerRan.await(5, TimeUnit.SECONDS));
+            CountDownLatch done = new CountDownLatch(1);
+            executor.execute("content_basic_v2", "a", countDown(done), count(rejected));
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(0, ran.get());
+            assertEquals(2, rejected.get());
+        } finally {
+            lanes.shutdown();
+        }
+    }
+
+    @Test
+    public void taskRejectedWhenStartedLaterIsReported() throws InterruptedException {
+        final PriorityExecutor lanes = new PriorityExecutor("test", 1, Clock.SYSTEM);
+        try {
+            lanes.setLaneLimits(Priority.BACKGROUND, 1, RejectionPolicy.ABORT, 1);
+            KeyedExecutor executor = new KeyedExecutor(lanes);
+            executor.setEndpointLimit("content_basic_v2", 1);
+            executor.setEndpointExecutor("content_basic_v2",
+                    lanes.forPriority(Priority.BACKGROUND, "content_basic_v2"));
+            final CountDownLatch fillerDone = new CountDownLatch(1);
+            final CountDownLatch rejected = new CountDownLatch(1);
+            final CountDownLatch bSubmitted = new CountDownLatch(1);
+
+            // The first task fills the lane before it finishes, so the task waiting for the
+            // endpoint permit is refused when it is started.
+            executor.execute("content_basic_v2", "a", new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        bSubmitted.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    lanes.execute(Priority.BACKGROUND, "filler", countDown(fillerDone));
+                }
+            }, null);
+            executor.execute("content_basic_v2", "b", new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, countDown(rejected));
+            bSubmitted.countDown();
+
+            assertTrue(rejected.await(5, TimeUnit.SECONDS));
+            assertTrue(fillerDone.await(5, TimeUnit.SECONDS));
+            assertEquals(0, executor.getInFlightCount("content_basic_v2"));
+        } finally {
+            lanes.shutdown();
+        }
+    }
+
+    /**
+     * Occupy the only thread of the executor until the returned latch is released.
+     */
+    private static CountDownLatch block(PriorityExecutor lanes) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        lanes.execute(Priority.USER_BLOCKING, "block", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private static Runnable count(final AtomicInteger counter) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                counter.incrementAndGet();
+            }
+        };
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private Runnable request(final String path, final CountDownLatch done,
+                             final Runnable onComplete) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                Request request = new Request.Builder().url(server.url(path)).build();
+                try (Response response = client.newCall(request).execute()) {
+                    response.body().string();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    if (onComplete != null) {
+                        onComplete.run();
+                    }
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        do {
+            current = max.get();
+        } while (value > current && !max.compareAndSet(current, value));
+    }
+
+    private static Runnable recordOrder(final List<Integer> completed, final int index) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                completed.add(index);
+            }
+        };
+    }
+}
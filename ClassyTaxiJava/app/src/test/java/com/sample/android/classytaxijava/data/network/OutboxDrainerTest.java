@@ -0,0 +1,306 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.sample.android.classytaxijava.data.network;
+
+import com.sample.android.classytaxijava.PriorityExecutor;
+import com.sample.android.classytaxijava.PriorityExecutor.Priority;
+import com.sample.android.classytaxijava.PriorityExecutor.RejectionPolicy;
+import com.sample.android.classytaxijava.data.SubscriptionBatchRequest;
+import com.sample.android.classytaxijava.data.disk.OutboxEntry;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link OutboxDrainer} against an in-memory outbox and a server that processes every
+ * request except the one that a test makes fail.
+ */
+public class OutboxDrainerTest {
+    private static final String USER = "user-1";
+
+    private final FakeStore store = new FakeStore();
+    private final FakeTransport transport = new FakeTransport();
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    private final OutboxDrainer.UserIdSource userIdSource = new OutboxDrainer.UserIdSource() {
+        @Override
+        public String getUserId() {
+            return USER;
+        }
+    };
+    private final OutboxDrainer drainer = new OutboxDrainer(store, transport, new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }, scheduler, Clock.SYSTEM, userIdSource);
+    private PriorityExecutor lanes;
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        if (lanes != null) {
+            lanes.shutdown();
+        }
+    }
+
+    @Test
+    public void entriesAreDeliveredInOrder() {
+        add(OutboxEntry.REGISTER_SUBSCRIPTION, "basic", "token-1");
+        add(OutboxEntry.TRANSFER_SUBSCRIPTION, "premium", "token-2");
+        add(OutboxEntry.REGISTER_INSTANCE_ID, "", "id-1");
+        add(OutboxEntry.REGISTER_SUBSCRIPTION, "basic", "token-3");
+
+        drainer.drain();
+
+        assertEquals(Arrays.asList(
+                "register_subscription basic token-1",
+                "transfer_subscription premium token-2",
+                "register_instance_id id-1",
+                "register_subscription basic token-3"), transport.sent);
+        assertTrue(store.entries.isEmpty());
+        assertTrue(scheduler.getQueue().isEmpty());
+    }
+
+    @Test
+    public void deliveryStopsAtTheFirstUnprocessedEntry() {
+        add(OutboxEntry.REGISTER_INSTANCE_ID, "", "id-1");
+        add(OutboxEntry.REGISTER_INSTANCE_ID, "", "id-2");
+        add(OutboxEntry.REGISTER_INSTANCE_ID, "", "id-3");
+        transport.failing = "register_instance_id id-2";
+
+        drainer.drain();
+
+        assertEquals(Arrays.asList("register_instance_id id-1", "register_instance_id id-2"),
+                transport.sent);
+        assertEquals(2, store.entries.size());
+        assertEquals("id-2", store.entries.get(0).getPurchaseToken());
+        assertEquals(1, scheduler.getQueue().size());
+    }
+
+    @Test
+    public void entriesOfOtherUsersAreNotDelivered() {
+        store.add(Collections.singletonList(OutboxEntry.create(
+                OutboxEntry.REGISTER_INSTANCE_ID, "", "id-other", "user-2", 0)), null);
+        add(OutboxEntry.REGISTER_INSTANCE_ID, "", "id-1");
+
+        drainer.drain();
+
+        assertEquals(Collections.singletonList("register_instance_id id-1"), transport.sent);
+        assertEquals(1, store.entries.size());
+    }
+
+    @Test
+    public void unregisterIsSentRightAwayAndNotStored() {
+        final List<String> completed = new ArrayList<>();
+        transport.failing = "unregister_instance_id id-1";
+
+        drainer.unregisterInstanceId("id-1", new Runnable() {
+            @Override
+            public void run() {
+                completed.add("unregistered");
+            }
+        });
+
+        // A failure is not retried: the user signs out next, and the ID token is gone.
+        assertEquals(Collections.singletonList("unregister_instance_id id-1"), transport.sent);
+        assertEquals(Collections.singletonList("unregistered"), completed);
+        assertTrue(store.entries.isEmpty());
+        assertTrue(scheduler.getQueue().isEmpty());
+    }
+
+    @Test
+    public void retryDelayBacksOffAndResetsWhenANetworkConnects() {
+        add(OutboxEntry.REGISTER_INSTANCE_ID, "", "id-1");
+        transport.failing = "register_instance_id id-1";
+        long[] expectedSeconds = {30, 60, 120, 240, 480, 900, 900};
+
+        for (long expected : expectedSeconds) {
+            drainer.drain();
+            assertRetryDelay(TimeUnit.SECONDS.toMillis(expected));
+        }
+
+        drainer.onNetworkAvailable();
+        assertRetryDelay(TimeUnit.SECONDS.toMillis(30));
+        assertEquals(expectedSeconds.length + 1, transport.sent.size());
+
+        transport.failing = null;
+        drainer.onNetworkAvailable();
+        assertTrue(store.entries.isEmpty());
+        assertTrue(scheduler.getQueue().isEmpty());
+    }
+
+    @Test
+    public void drainRefusedByAFullLaneIsRetried() throws InterruptedException {
+        lanes = new PriorityExecutor("test", 1, Clock.SYSTEM);
+        lanes.setLaneLimits(Priority.USER_BLOCKING, 1, RejectionPolicy.ABORT, 1);
+        OutboxDrainer drainer = new OutboxDrainer(store, transport,
+                lanes.forPriority(Priority.USER_BLOCKING, "outbox"), scheduler, Clock.SYSTEM,
+                userIdSource);
+        store.add(Collections.singletonList(OutboxEntry.create(
+                OutboxEntry.REGISTER_INSTANCE_ID, "", "id-1", USER, 0)), null);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        lanes.execute(Priority.USER_BLOCKING, "block", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        final CountDownLatch fillerDone = new CountDownLatch(1);
+        lanes.execute(Priority.USER_BLOCKING, "filler", new Runnable() {
+            @Override
+            public void run() {
+                fillerDone.countDown();
+            }
+        });
+
+        drainer.drain();
+        assertEquals(1, scheduler.getQueue().size());
+        release.countDown();
+        assertTrue(fillerDone.await(5, TimeUnit.SECONDS));
+
+        // The refused pass does not block later ones.
+        drainer.drain();
+        assertTrue(transport.delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("register_instance_id id-1"), transport.sent);
+    }
+
+    private void add(String operation, String sku, String purchaseToken) {
+        store.add(Collections.singletonList(
+                OutboxEntry.create(operation, sku, purchaseToken, USER, 0)), null);
+    }
+
+    /**
+     * Check the delay of the scheduled retry, then cancel it so that the next failure
+     * schedules another one.
+     */
+    private void assertRetryDelay(long expectedMillis) {
+        assertEquals(1, scheduler.getQueue().size());
+        Runnable retry = scheduler.getQueue().peek();
+        long delayMillis = ((Delayed) retry).getDelay(TimeUnit.MILLISECONDS);
+        assertTrue("Delay " + delayMillis + " ms",
+                delayMillis <= expectedMillis && delayMillis > expectedMillis - 5_000);
+        ((Future<?>) retry).cancel(false);
+        scheduler.remove(retry);
+    }
+
+    private static class FakeStore implements OutboxDrainer.Store {
+        final List<OutboxEntry> entries = Collections.synchronizedList(
+                new ArrayList<OutboxEntry>());
+        private long nextId = 1;
+
+        @Override
+        public void add(List<OutboxEntry> added, Runnable onAdded) {
+            for (OutboxEntry entry : added) {
+                entry.setId(nextId++);
+                entries.add(entry);
+            }
+            if (onAdded != null) {
+                onAdded.run();
+            }
+        }
+
+        @Override
+        public List<OutboxEntry> getPending(String userId, int limit) {
+            List<OutboxEntry> pending = new ArrayList<>();
+            synchronized (entries) {
+                for (OutboxEntry entry : entries) {
+                    if (entry.getUserId().equals(userId) && pending.size() < limit) {
+                        pending.add(entry);
+                    }
+                }
+            }
+            return pending;
+        }
+
+        @Override
+        public void remove(List<OutboxEntry> removed) {
+            entries.removeAll(removed);
+        }
+    }
+
+    private static class FakeTransport implements OutboxDrainer.Transport {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch delivered = new CountDownLatch(1);
+        /**
+         * The request that the server fails to process, or null.
+         */
+        volatile String failing;
+
+        @Override
+        public boolean registerSubscriptionSync(String sku, String purchaseToken) {
+            return record("register_subscription " + sku + " " + purchaseToken);
+        }
+
+        @Override
+        public boolean transferSubscriptionSync(String sku, String purchaseToken) {
+            return record("transfer_subscription " + sku + " " + purchaseToken);
+        }
+
+        @Override
+        public boolean[] registerSubscriptionsSync(SubscriptionBatchRequest request) {
+            List<SubscriptionBatchRequest.Purchase> purchases = request.getPurchases();
+            boolean[] result = new boolean[purchases.size()];
+            for (int i = 0; i < result.length; i++) {
+                SubscriptionBatchRequest.Purchase purchase = purchases.get(i);
+                result[i] = purchase.isTransfer()
+                        ? transferSubscriptionSync(purchase.getSku(), purchase.getPurchaseToken())
+                        : registerSubscriptionSync(purchase.getSku(), purchase.getPurchaseToken());
+            }
+            return result;
+        }
+
+        @Override
+        public boolean registerInstanceIdSync(String instanceId) {
+            return record("register_instance_id " + instanceId);
+        }
+
+        @Override
+        public boolean unregisterInstanceIdSync(String instanceId) {
+            return record("unregister_instance_id " + instanceId);
+        }
+
+        private boolean record(String request) {
+            sent.add(request);
+            delivered.countDown();
+            return !request.equals(failing);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.sample.android.classytaxijava.data.network;
+
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link RequestCoalescer} by hand: scheduled debounce tasks and sent requests only
+ * run when the test says so.
+ */
+public class RequestCoalescerTest {
+    // Long enough that the scheduler thread never runs a debounce task on its own.
+    private static final long DEBOUNCE_MILLIS = 60_000;
+    private static final long FRESHNESS_MILLIS = 30_000;
+
+    private final FakeClock clock = new FakeClock();
+    private final ManualExecutor executor = new ManualExecutor();
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    private final List<Boolean> results = new ArrayList<>();
+    private int sent;
+    private boolean nextResult = true;
+
+    private final RequestCoalescer coalescer = new RequestCoalescer(scheduler, executor, clock,
+            DEBOUNCE_MILLIS, FRESHNESS_MILLIS, new RequestCoalescer.Request() {
+        @Override
+        public boolean run() {
+            sent++;
+            return nextResult;
+        }
+    });
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void triggersWithinTheDebounceWindowSendOneRequest() {
+        coalescer.request(false, callback());
+        coalescer.request(false, callback());
+        coalescer.request(true, callback());
+        assertEquals(1, scheduler.getQueue().size());
+        assertTrue(coalescer.isPending());
+
+        runScheduled();
+        executor.runAll();
+
+        assertEquals(1, sent);
+        assertEquals(3, results.size());
+        assertFalse(results.contains(false));
+        assertFalse(coalescer.isPending());
+    }
+
+    @Test
+    public void triggersWhileInFlightJoinTheRequest() {
+        coalescer.request(false, callback());
+        runScheduled();
+        assertTrue(coalescer.isPending());
+
+        coalescer.request(true, callback());
+        assertTrue(scheduler.getQueue().isEmpty());
+
+        nextResult = false;
+        executor.runAll();
+
+        assertEquals(1, sent);
+        assertEquals(2, results.size());
+        assertFalse(results.contains(true));
+    }
+
+    @Test
+    public void freshResultAnswersNonForcedTriggers() {
+        coalescer.request(false, callback());
+        runScheduled();
+        executor.runAll();
+        assertEquals(clock.now, coalescer.getLastSuccessMillis());
+
+        clock.now += FRESHNESS_MILLIS - 1;
+        coalescer.request(false, callback());
+        assertTrue(scheduler.getQueue().isEmpty());
+        assertEquals(2, results.size());
+        assertEquals(1, sent);
+
+        clock.now += 1;
+        coalescer.request(false, callback());
+        runScheduled();
+        executor.runAll();
+        assertEquals(2, sent);
+        assertEquals(3, results.size());
+    }
+
+    @Test
+    public void failedRequestIsNotFresh() {
+        nextResult = false;
+        coalescer.request(false, callback());
+        runScheduled();
+        executor.runAll();
+        assertEquals(-1, coalescer.getLastSuccessMillis());
+
+        coalescer.request(false, callback());
+        assertEquals(1, scheduler.getQueue().size());
+    }
+
+    @Test
+    public void forceBypassesTheFreshnessWindow() {
+        coalescer.request(false, callback());
+        runScheduled();
+        executor.runAll();
+
+        coalescer.request(true, callback());
+        runScheduled();
+        executor.runAll();
+
+        assertEquals(2, sent);
+    }
+
+    @Test
+    public void invalidateDropsFreshnessAndStopsJoining() {
+        coalescer.request(false, callback());
+        runScheduled();
+        executor.runAll();
+
+        coalescer.invalidate();
+        assertEquals(-1, coalescer.getLastSuccessMillis());
+        coalescer.request(false, callback());
+        runScheduled();
+        // The request for the old state is in flight; invalidate it.
+        coalescer.invalidate();
+
+        coalescer.request(false, callback());
+        assertEquals(1, scheduler.getQueue().size());
+        runScheduled();
+        assertEquals(2, executor.size());
+
+        executor.runAll();
+        assertEquals(3, sent);
+        assertEquals(3, results.size());
+        // Only the request sent after the invalidation counts as fresh.
+        assertEquals(clock.now, coalescer.getLastSuccessMillis());
+        assertFalse(coalescer.isPending());
+    }
+
+    @Test
+    public void invalidatedRequestDoesNotRecordFreshness() {
+        coalescer.request(false, callback());
+        runScheduled();
+        coalescer.invalidate();
+        executor.runAll();
+
+        assertEquals(1, results.size());
+        assertEquals(-1, coalescer.getLastSuccessMillis());
+    }
+
+    @Test
+    public void rejectedRequestFailsItsCallers() {
+        executor.rejecting = true;
+        coalescer.request(false, callback());
+        coalescer.request(false, callback());
+        runScheduled();
+
+        assertEquals(0, sent);
+        assertEquals(2, results.size());
+        assertFalse(results.contains(true));
+        assertFalse(coalescer.isPending());
+
+        // The next trigger sends a new request instead of waiting for the refused one.
+        executor.rejecting = false;
+        coalescer.request(false, callback());
+        runScheduled();
+        executor.runAll();
+        assertEquals(1, sent);
+        assertEquals(Boolean.TRUE, results.get(2));
+    }
+
+    @Test
+    public void requestRefusedAfterDispatchFailsItsCallers() {
+        final List<Runnable> refused = new ArrayList<>();
+        RequestCoalescer queued = new RequestCoalescer(scheduler,
+                new RequestCoalescer.Dispatcher() {
+                    @Override
+                    public void dispatch(Runnable task, Runnable onRejected) {
+                        refused.add(onRejected);
+                    }
+                }, clock, DEBOUNCE_MILLIS, FRESHNESS_MILLIS, new RequestCoalescer.Request() {
+            @Override
+            public boolean run() {
+                sent++;
+                return true;
+            }
+        });
+        queued.request(false, callback());
+        runScheduled();
+        assertTrue(queued.isPending());
+
+        refused.get(0).run();
+        assertEquals(1, results.size());
+        assertFalse(results.get(0));
+        assertFalse(queued.isPending());
+    }
+
+    private RequestCoalescer.Callback callback() {
+        return new RequestCoalescer.Callback() {
+            @Override
+            public void onComplete(boolean success) {
+                results.add(success);
+            }
+        };
+    }
+
+    /**
+     * Run the debounce tasks that are waiting on the scheduler.
+     */
+    private void runScheduled() {
+        // drainTo() only takes expired tasks, so remove them one by one instead.
+        for (Runnable task : scheduler.getQueue().toArray(new Runnable[0])) {
+            if (scheduler.remove(task)) {
+                task.run();
+            }
+        }
+    }
+
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+        boolean rejecting;
+
+        @Override
+        public void execute(Runnable command) {
+            if (rejecting) {
+                throw new RejectedExecutionException("Lane is full");
+            }
+            tasks.add(command);
+        }
+
+        int size() {
+            return tasks.size();
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private static class FakeClock implements Clock {
+        long now = 1_000;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.firebase;
+
+import com.sample.android.classytaxijava.Constants;
+import com.sample.android.classytaxijava.data.SubscriptionBatchRequest;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.network.retrofit.ResilientCallExecutor;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FakeBackendTest {
+    private static final FakeBackend.Config LOAD = new FakeBackend.Config.Builder()
+            .setSeed(42)
+            .setUserCount(100)
+            .setSubscriptionsPerUser(3)
+            .setLatencyMillis(20, 200)
+            .setErrorRate(0.1)
+            .setConflictRate(0.05)
+            .setChurnRate(0.5)
+            .build();
+
+    private final FakeClock clock = new FakeClock();
+
+    @Test
+    public void sameSeedReproducesResponsesAndLatencies() {
+        RecordingSleeper firstSleeps = new RecordingSleeper();
+        RecordingSleeper secondSleeps = new RecordingSleeper();
+        FakeBackend first = new FakeBackend(LOAD, clock, firstSleeps);
+        FakeBackend second = new FakeBackend(LOAD, clock, secondSleeps);
+
+        for (int i = 0; i < 20; i++) {
+            String userId = FakeBackend.userId(i % 7);
+            assertEquals(describe(first.fetchSubscriptions(userId, true)),
+                    describe(second.fetchSubscriptions(userId, true)));
+        }
+        assertEquals(firstSleeps.sleeps, secondSleeps.sleeps);
+    }
+
+    @Test
+    public void usersDoNotAffectEachOther() {
+        FakeBackend alone = new FakeBackend(LOAD, clock, new RecordingSleeper());
+        FakeBackend interleaved = new FakeBackend(LOAD, clock, new RecordingSleeper());
+
+        String expected = describe(alone.fetchSubscriptions(FakeBackend.userId(2), true));
+        interleaved.fetchSubscriptions(FakeBackend.userId(1), true);
+        interleaved.fetchSubscriptions(FakeBackend.userId(3), true);
+
+        assertEquals(expected,
+                describe(interleaved.fetchSubscriptions(FakeBackend.userId(2), true)));
+    }
+
+    @Test
+    public void purchaseOwnedByAnotherUserConflictsUntilTransferred() {
+        FakeBackend backend = new FakeBackend(new FakeBackend.Config.Builder()
+                .setUserCount(2)
+                .build(), clock, new RecordingSleeper());
+        String owner = FakeBackend.userId(0);
+        String other = FakeBackend.userId(1);
+        String purchaseToken = backend.fetchSubscriptions(owner, false).get(0).getPurchaseToken();
+
+        SubscriptionStatus conflict = register(backend, other, purchaseToken, false);
+        assertTrue(conflict.isSubAlreadyOwned());
+
+        SubscriptionStatus transferred = register(backend, other, purchaseToken, true);
+        assertFalse(transferred.isSubAlreadyOwned());
+        assertTrue(transferred.isEntitlementActive());
+        assertTrue(backend.fetchSubscriptions(owner, false).isEmpty());
+        assertTrue(register(backend, owner, purchaseToken, false).isSubAlreadyOwned());
+    }
+
+    @Test
+    public void stateMixFollowsWeights() {
+        FakeBackend backend = new FakeBackend(new FakeBackend.Config.Builder()
+                .setSeed(7)
+                .setUserCount(2000)
+                .setStateWeight(FakeBackend.State.ACTIVE, 1)
+                .setStateWeight(FakeBackend.State.NOT_RENEWING, 0)
+                .setStateWeight(FakeBackend.State.GRACE_PERIOD, 0)
+                .setStateWeight(FakeBackend.State.ACCOUNT_HOLD, 1)
+                .setStateWeight(FakeBackend.State.PAUSED, 0)
+                .setStateWeight(FakeBackend.State.EXPIRED, 0)
+                .build(), clock, new RecordingSleeper());
+        int active = 0;
+        for (int i = 0; i < 2000; i++) {
+            SubscriptionStatus subscription =
+                    backend.fetchSubscriptions(FakeBackend.userId(i), false).get(0);
+            if (subscription.isEntitlementActive()) {
+                active++;
+            } else {
+                assertTrue(subscription.isAccountHold());
+            }
+        }
+        assertTrue("active " + active, active > 900 && active < 1100);
+    }
+
+    @Test
+    public void errorsAndLatencyAreInjected() {
+        RecordingSleeper sleeper = new RecordingSleeper();
+        FakeBackend backend = new FakeBackend(LOAD, clock, sleeper);
+        int failures = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (backend.fetchSubscriptions(FakeBackend.userId(i % 100), true) == null) {
+                failures++;
+            }
+        }
+        assertTrue("failures " + failures, failures > 50 && failures < 150);
+        assertEquals(1000, sleeper.sleeps.size());
+        for (long sleep : sleeper.sleeps) {
+            assertTrue("latency " + sleep, sleep >= 20 && sleep <= 200);
+        }
+    }
+
+    private static SubscriptionStatus register(FakeBackend backend, String userId,
+                                               String purchaseToken, boolean transfer) {
+        SubscriptionBatchRequest request = new SubscriptionBatchRequest();
+        request.add(Constants.BASIC_SKU, purchaseToken, transfer);
+        List<SubscriptionStatus> results = backend.register(userId, request);
+        assertNotNull(results);
+        return results.get(0);
+    }
+
+    private static String describe(List<SubscriptionStatus> subscriptions) {
+        if (subscriptions == null) {
+            return "error";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (SubscriptionStatus subscription : subscriptions) {
+            sb.append(subscription.getPurchaseToken()).append(' ')
+                    .append(subscription.getSku()).append(' ')
+                    .append(subscription.isEntitlementActive())
+                    .append(subscription.isWillRenew())
+                    .append(subscription.isGracePeriod())
+                    .append(subscription.isAccountHold())
+                    .append(subscription.isPaused()).append(' ')
+                    .append(subscription.getActiveUntilMillisec()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static class RecordingSleeper implements ResilientCallExecutor.Sleeper {
+        final List<Long> sleeps = new ArrayList<>();
+
+        @Override
+        public void sleep(long millis) {
+            sleeps.add(millis);
+        }
+    }
+
+    private static class FakeClock implements Clock {
+        long now = 1_600_000_000_000L;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs the HTTP cache of {@link HttpStack} against a local stand-in server that serves ETags
+ * and answers matching If-None-Match headers with HTTP 304, like the backend does.
+ */
+public class HttpCacheTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private HttpStack httpStack;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (!"GET".equals(request.getMethod())) {
+                    return new MockResponse().setBody("{}");
+                }
+                String etag = "\"" + request.getPath() + "\"";
+                if (etag.equals(request.getHeader("If-None-Match"))) {
+                    return new MockResponse()
+                            .setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED)
+                            .setHeader("ETag", etag);
+                }
+                return new MockResponse()
+                        .setHeader("ETag", etag)
+                        .setBody("body of " + request.getPath());
+            }
+        });
+        server.start();
+        httpStack = new HttpStack(temporaryFolder.newFolder());
+        client = httpStack.newClientBuilder().build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void unchangedResponseIsServedFromTheCache() throws Exception {
+        assertEquals("body of /v1/content", get("/v1/content"));
+        server.takeRequest();
+
+        try (Response response = client.newCall(request("/v1/content")).execute()) {
+            assertEquals(HttpURLConnection.HTTP_OK, response.code());
+            assertEquals("body of /v1/content", response.body().string());
+            assertNotNull(response.cacheResponse());
+            assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, response.networkResponse().code());
+        }
+        assertEquals("\"/v1/content\"", server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void mutationInvalidatesOnlyItsOwnUrl() throws Exception {
+        get("/v1/status");
+        get("/v1/content");
+        try (Response response = client.newCall(request("/v1/status").newBuilder()
+                .put(RequestBody.create(MediaType.parse("application/json"), "{}"))
+                .build()).execute()) {
+            assertEquals(HttpURLConnection.HTTP_OK, response.code());
+        }
+        skipRequests(3);
+
+        get("/v1/content");
+        assertNotNull(server.takeRequest().getHeader("If-None-Match"));
+        get("/v1/status");
+        assertNull(server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void clearingAServiceKeepsTheResponsesOfOthers() throws Exception {
+        get("/a/content");
+        get("/b/content");
+        skipRequests(2);
+
+        httpStack.clearCache(server.url("/a/").toString());
+
+        get("/a/content");
+        assertNull(server.takeRequest().getHeader("If-None-Match"));
+        get("/b/content");
+        assertNotNull(server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    private String get(String path) throws IOException {
+        try (Response response = client.newCall(request(path)).execute()) {
+            return response.body().string();
+        }
+    }
+
+    private Request request(String path) {
+        return new Request.Builder().url(server.url(path)).build();
+    }
+
+    private void skipRequests(int count) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            server.takeRequest();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpStackTest {
+    private MockWebServer server;
+    private final HttpStack httpStack = new HttpStack(null);
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void clientsShareConnections() throws IOException {
+        server.enqueue(new MockResponse().setBody("a"));
+        server.enqueue(new MockResponse().setBody("b"));
+        HttpStack.Stats before = httpStack.getStats();
+
+        // Two services built from the stack reuse the same pooled connection.
+        get(httpStack.newClientBuilder().build(), "/a");
+        get(httpStack.newClientBuilder().build(), "/b");
+
+        HttpStack.Stats after = httpStack.getStats();
+        assertEquals(1, after.connectionsOpened - before.connectionsOpened);
+        assertEquals(2, after.connectionsAcquired - before.connectionsAcquired);
+        assertEquals(0, after.runningCalls);
+    }
+
+    @Test
+    public void endpointTimeoutIsApplied() throws IOException {
+        OkHttpClient client = httpStack.newClientBuilder()
+                .addInterceptor(new EndpointTimeoutInterceptor(Collections.singletonMap(
+                        "subscription_status_v2",
+                        new EndpointTimeoutInterceptor.Timeouts(1000, 100, 1000))))
+                .build();
+        server.enqueue(new MockResponse().setBody("slow")
+                .setHeadersDelay(500, TimeUnit.MILLISECONDS));
+        server.enqueue(new MockResponse().setBody("slow")
+                .setHeadersDelay(500, TimeUnit.MILLISECONDS));
+
+        try {
+            get(client, "/subscription_status_v2");
+            fail("Expected the endpoint read timeout");
+        } catch (SocketTimeoutException expected) {
+        }
+        // Other endpoints keep the default timeouts.
+        assertEquals("slow", get(client, "/content_basic_v2"));
+    }
+
+    @Test
+    public void phasesAreTimedPerEndpoint() throws IOException {
+        server.enqueue(new MockResponse().setBody("ok")
+                .setHeadersDelay(200, TimeUnit.MILLISECONDS));
+
+        get(httpStack.newClientBuilder().build(), "/v1/content_premium_v2");
+
+        NetworkTimings timings = httpStack.getTimings();
+        LatencyHistogram ttfb = timings.getHistogram("content_premium_v2", NetworkTimings.TTFB);
+        assertEquals(1, ttfb.getCount());
+        assertTrue(ttfb.getPercentile(50) >= 200);
+        assertEquals(1, timings.getHistogram("content_premium_v2", NetworkTimings.CONNECT)
+                .getCount());
+        assertEquals(0, timings.getHistogram("content_premium_v2", NetworkTimings.TLS)
+                .getCount());
+        assertEquals(1, timings.getHistogram("content_premium_v2", NetworkTimings.TOTAL)
+                .getCount());
+    }
+
+    private String get(OkHttpClient client, String path) throws IOException {
+        Request request = new Request.Builder().url(server.url(path)).build();
+        try (Response response = client.newCall(request).execute()) {
+            return response.body().string();
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.sample.android.classytaxijava.Constants;
+import com.sample.android.classytaxijava.data.ContentResource;
+import com.sample.android.classytaxijava.data.SubscriptionBatchRequest;
+import com.sample.android.classytaxijava.data.SubscriptionBatchResponse;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.SubscriptionStatusList;
+import com.sample.android.classytaxijava.data.SyncSnapshotStore;
+import com.sample.android.classytaxijava.data.network.firebase.FakeBackend;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.Nullable;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * In-process stand-in for the ClassyTaxi backend, for JVM tests of the Retrofit client.
+ * <p>
+ * Serves every {@link SubscriptionStatusApiCall} endpoint with the response shapes and error
+ * codes of the ClassyTaxiServer functions, from the state of a {@link FakeBackend}. Requests
+ * must carry an X-FireIDToken header issued by {@link LocalTokenSource}. GET responses have an
+ * ETag and are answered with HTTP 304 when it matches, like the Cloud Functions runtime does.
+ * <p>
+ * Each connection is served on its own thread, so concurrent clients are answered
+ * concurrently and the backend's simulated latency overlaps like real requests.
+ */
+class LocalClassyTaxiServer {
+    private static final String ID_TOKEN_HEADER = "X-FireIDToken";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Maximum number of purchases in a batch, as on the server.
+     */
+    private static final int MAX_BATCH_SIZE = 50;
+
+    private static final String BASIC_CONTENT_URL = "https://example.com/basic.jpg";
+    private static final String PREMIUM_CONTENT_URL = "https://example.com/premium.jpg";
+
+    private final MockWebServer server = new MockWebServer();
+    private final FakeBackend backend;
+    private final Gson gson = new Gson();
+    private final SyncSnapshotStore syncSnapshots = new SyncSnapshotStore();
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+
+    LocalClassyTaxiServer(FakeBackend backend) {
+        this.backend = backend;
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return handle(request);
+            }
+        });
+    }
+
+    void start() throws IOException {
+        server.start();
+    }
+
+    void shutdown() throws IOException {
+        server.shutdown();
+    }
+
+    /**
+     * Base URL for the Retrofit client.
+     */
+    String getBaseUrl() {
+        return server.url("/").toString();
+    }
+
+    FakeBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Number of requests received for an endpoint, see {@link SubscriptionStatusApiCall}.
+     */
+    long getRequestCount(String endpoint) {
+        AtomicLong count = requestCounts.get(endpoint);
+        return count == null ? 0 : count.get();
+    }
+
+    private MockResponse handle(RecordedRequest request) {
+        List<String> segments = request.getRequestUrl().pathSegments();
+        String endpoint = segments.get(segments.size() - 1);
+        AtomicLong count = requestCounts.get(endpoint);
+        if (count == null) {
+            requestCounts.putIfAbsent(endpoint, new AtomicLong());
+            count = requestCounts.get(endpoint);
+        }
+        count.incrementAndGet();
+
+        String token = request.getHeader(ID_TOKEN_HEADER);
+        if (token == null || token.isEmpty()) {
+            return error(HttpURLConnection.HTTP_UNAUTHORIZED, "unauthenticated",
+                    "No valid header X-FireIDToken");
+        }
+        String userId = LocalTokenSource.userId(token);
+        if (userId == null) {
+            return error(HttpURLConnection.HTTP_FORBIDDEN, "permission-denied",
+                    "Invalid ID Token: " + token);
+        }
+        try {
+            switch (endpoint) {
+                case SubscriptionStatusApiCall.SUBSCRIPTION_STATUS:
+                    return subscriptionStatus(request, userId);
+                case SubscriptionStatusApiCall.BASIC_CONTENT:
+                    return content(request, userId, BASIC_CONTENT_URL,
+                            Constants.BASIC_SKU, Constants.PREMIUM_SKU);
+                case SubscriptionStatusApiCall.PREMIUM_CONTENT:
+                    return content(request, userId, PREMIUM_CONTENT_URL, Constants.PREMIUM_SKU);
+                case SubscriptionStatusApiCall.REGISTER_SUBSCRIPTION:
+                    return registerOrTransfer(request, userId, false);
+                case SubscriptionStatusApiCall.TRANSFER_SUBSCRIPTION:
+                    return registerOrTransfer(request, userId, true);
+                case SubscriptionStatusApiCall.REGISTER_SUBSCRIPTION_BATCH:
+                    return registerBatch(request, userId);
+                case SubscriptionStatusApiCall.REGISTER_INSTANCE_ID:
+                    return instanceId(request, userId, "Instance Id registration successful.");
+                case SubscriptionStatusApiCall.UNREGISTER_INSTANCE_ID:
+                    return instanceId(request, userId,
+                            "Instance Id un-registration successful.");
+                default:
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_FOUND);
+            }
+        } catch (JsonParseException | IllegalStateException e) {
+            return error(HttpURLConnection.HTTP_BAD_REQUEST, "invalid-argument", e.getMessage());
+        }
+    }
+
+    /**
+     * subscription_status_v2: the full list, or the changes since the "since" cursor.
+     */
+    private MockResponse subscriptionStatus(RecordedRequest request, String userId) {
+        List<SubscriptionStatus> subscriptions = backend.fetchSubscriptions(userId, true);
+        if (subscriptions == null) {
+            return internalError();
+        }
+        String since = request.getRequestUrl().queryParameter("since");
+        return conditional(request, gson.toJson(syncSnapshots.diff(userId, since, subscriptions)));
+    }
+
+    /**
+     * content_basic_v2 and content_premium_v2: the content URL if the user has an active
+     * subscription to one of the SKUs.
+     */
+    private MockResponse content(RecordedRequest request, String userId, String url,
+                                 String... skus) {
+        List<SubscriptionStatus> subscriptions = backend.fetchSubscriptions(userId, false);
+        if (subscriptions == null) {
+            return internalError();
+        }
+        for (SubscriptionStatus subscription : subscriptions) {
+            if (subscription.isEntitlementActive()
+                    && Arrays.asList(skus).contains(subscription.getSku())) {
+                return conditional(request, gson.toJson(new ContentResource(url)));
+            }
+        }
+        return error(HttpURLConnection.HTTP_FORBIDDEN, "permission-denied",
+                "Valid subscription not found");
+    }
+
+    /**
+     * subscription_register_v2 and subscription_transfer_v2: the user's subscriptions after
+     * the change, or HTTP 409 if the purchase is registered to another user.
+     */
+    private MockResponse registerOrTransfer(RecordedRequest request, String userId,
+                                            boolean transfer) {
+        JsonObject body = gson.fromJson(request.getBody().readUtf8(), JsonObject.class);
+        SubscriptionBatchRequest purchases = new SubscriptionBatchRequest();
+        purchases.add(body.get("sku").getAsString(), body.get("purchaseToken").getAsString(),
+                transfer);
+        List<SubscriptionStatus> results = backend.register(userId, purchases);
+        if (results == null) {
+            return internalError();
+        }
+        if (results.get(0).isSubAlreadyOwned()) {
+            return error(HttpURLConnection.HTTP_CONFLICT, "already-exists",
+                    "Purchase is registered to another user");
+        }
+        SubscriptionStatusList data = new SubscriptionStatusList();
+        data.setSubscriptions(backend.getSubscriptions(userId));
+        return json(HttpURLConnection.HTTP_OK, gson.toJson(data));
+    }
+
+    /**
+     * subscription_register_batch_v2: one status code per purchase, in request order, and the
+     * user's subscriptions after all purchases were processed.
+     */
+    private MockResponse registerBatch(RecordedRequest request, String userId) {
+        SubscriptionBatchRequest purchases = gson.fromJson(request.getBody().readUtf8(),
+                SubscriptionBatchRequest.class);
+        if (purchases == null || purchases.size() > MAX_BATCH_SIZE) {
+            return error(HttpURLConnection.HTTP_BAD_REQUEST, "invalid-argument",
+                    "Expected at most " + MAX_BATCH_SIZE + " purchases");
+        }
+        // Purchases without a SKU or purchase token get 400 and are not registered.
+        SubscriptionBatchRequest valid = new SubscriptionBatchRequest();
+        for (SubscriptionBatchRequest.Purchase purchase : purchases.getPurchases()) {
+            if (isValid(purchase)) {
+                valid.add(purchase.getSku(), purchase.getPurchaseToken(), purchase.isTransfer());
+            }
+        }
+        List<SubscriptionStatus> registered = backend.register(userId, valid);
+        if (registered == null) {
+            return internalError();
+        }
+        List<SubscriptionBatchResponse.Result> results = new ArrayList<>();
+        int registeredIndex = 0;
+        for (SubscriptionBatchRequest.Purchase purchase : purchases.getPurchases()) {
+            SubscriptionBatchResponse.Result result = new SubscriptionBatchResponse.Result();
+            if (purchase != null) {
+                result.setSku(purchase.getSku());
+                result.setPurchaseToken(purchase.getPurchaseToken());
+            }
+            if (!isValid(purchase)) {
+                result.setStatus(HttpURLConnection.HTTP_BAD_REQUEST);
+            } else if (registered.get(registeredIndex++).isSubAlreadyOwned()) {
+                result.setStatus(HttpURLConnection.HTTP_CONFLICT);
+            } else {
+                result.setStatus(HttpURLConnection.HTTP_OK);
+            }
+            results.add(result);
+        }
+        SubscriptionBatchResponse data = new SubscriptionBatchResponse();
+        data.setResults(results);
+        data.setSubscriptions(backend.getSubscriptions(userId));
+        return json(HttpURLConnection.HTTP_OK, gson.toJson(data));
+    }
+
+    private static boolean isValid(SubscriptionBatchRequest.Purchase purchase) {
+        return purchase != null
+                && purchase.getSku() != null && !purchase.getSku().isEmpty()
+                && purchase.getPurchaseToken() != null && !purchase.getPurchaseToken().isEmpty();
+    }
+
+    /**
+     * instanceId_register_v2 and instanceId_unregister_v2.
+     */
+    private MockResponse instanceId(RecordedRequest request, String userId, String message) {
+        JsonObject body = gson.fromJson(request.getBody().readUtf8(), JsonObject.class);
+        if (body == null || !body.has("instanceId")
+                || body.get("instanceId").getAsString().isEmpty()) {
+            return error(HttpURLConnection.HTTP_BAD_REQUEST, "invalid-argument",
+                    "Must provide valid Instance ID");
+        }
+        if (!backend.call(userId)) {
+            return internalError();
+        }
+        return json(HttpURLConnection.HTTP_OK,
+                gson.toJson(Collections.singletonMap("message", message)));
+    }
+
+    /**
+     * A GET response with an ETag, or HTTP 304 if the client already has it.
+     */
+    private static MockResponse conditional(RecordedRequest request, String body) {
+        String etag = etag(body);
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            return new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED)
+                    .setHeader("ETag", etag);
+        }
+        return json(HttpURLConnection.HTTP_OK, body).setHeader("ETag", etag);
+    }
+
+    private static MockResponse internalError() {
+        return error(HttpURLConnection.HTTP_INTERNAL_ERROR, "internal", "Internal server error");
+    }
+
+    /**
+     * The error body the server sends for an HttpsError.
+     */
+    private static MockResponse error(int code, String error, String message) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("status", code);
+        data.put("error", error);
+        data.put("message", message);
+        return json(code, new Gson().toJson(data));
+    }
+
+    private static MockResponse json(int code, String body) {
+        return new MockResponse().setResponseCode(code)
+                .setHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody(body);
+    }
+
+    /**
+     * A weak ETag derived from the body, in the format Express uses.
+     */
+    private static String etag(String body) {
+        try {
+            byte[] bytes = body.getBytes(UTF_8);
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 14; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return "W/\"" + Integer.toHexString(bytes.length) + "-" + sb + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import com.sample.android.classytaxijava.Constants;
+import com.sample.android.classytaxijava.data.ContentResource;
+import com.sample.android.classytaxijava.data.SubscriptionBatchRequest;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.SubscriptionStatusList;
+import com.sample.android.classytaxijava.data.network.firebase.FakeBackend;
+import com.sample.android.classytaxijava.data.network.retrofit.authentication.CachingIdTokenProvider;
+import com.sample.android.classytaxijava.data.network.retrofit.authentication.IdTokenProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocalClassyTaxiServerTest {
+    private static final int LOAD_USERS = 8;
+    private static final int LOAD_REQUESTS_PER_USER = 50;
+
+    @Rule
+    public InstantTaskExecutorRule instantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private LocalClassyTaxiServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalClassyTaxiServer(new FakeBackend(new FakeBackend.Config.Builder()
+                .setSeed(7)
+                .setUserCount(LOAD_USERS)
+                .setSubscriptionsPerUser(2)
+                .setChurnRate(0)
+                .build()));
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void subscriptionStatusIsFullThenDelta() {
+        ServerFunctionImpl client = newClient(0);
+
+        assertTrue(client.updateSubscriptionStatus(FakeBackend.userId(0), null));
+        SubscriptionStatusList full = client.getSubscriptionSync().getValue();
+        assertNotNull(full);
+        assertFalse(full.isDelta());
+        // The result names the user the request was issued for.
+        assertEquals(FakeBackend.userId(0), full.getUserId());
+        assertEquals(2, full.getSubscriptions().size());
+        assertNotNull(full.getCursor());
+
+        assertTrue(client.updateSubscriptionStatus(FakeBackend.userId(0), full.getCursor()));
+        SubscriptionStatusList delta = client.getSubscriptionSync().getValue();
+        assertTrue(delta.isDelta());
+        assertTrue(delta.getSubscriptions() == null || delta.getSubscriptions().isEmpty());
+        assertEquals(2, server.getRequestCount(SubscriptionStatusApiCall.SUBSCRIPTION_STATUS));
+    }
+
+    @Test
+    public void contentRequiresAnActiveSubscription() {
+        ServerFunctionImpl client = newClient(1);
+        assertTrue(client.registerSubscription(Constants.BASIC_SKU, "basic-token"));
+
+        assertTrue(client.updateBasicContent(FakeBackend.userId(1)));
+        ContentResource basic = client.getBasicContent().getValue();
+        assertNotNull(basic);
+        assertNotNull(basic.url);
+        assertEquals(FakeBackend.userId(1), basic.userId);
+        // Repeating the request succeeds, and the content is posted again.
+        assertTrue(client.updateBasicContent(FakeBackend.userId(1)));
+
+        boolean premium = false;
+        for (SubscriptionStatus subscription :
+                server.getBackend().getSubscriptions(FakeBackend.userId(1))) {
+            premium |= subscription.isEntitlementActive()
+                    && Constants.PREMIUM_SKU.equals(subscription.getSku());
+        }
+        assertEquals(premium, client.updatePremiumContent(FakeBackend.userId(1)));
+    }
+
+    @Test
+    public void purchaseOfAnotherUserConflictsUntilTransferred() {
+        ServerFunctionImpl owner = newClient(2);
+        ServerFunctionImpl other = newClient(3);
+        assertTrue(owner.registerSubscription(Constants.PREMIUM_SKU, "shared-token"));
+
+        // HTTP 409 is processed, and reported as a subscription owned by another account.
+        other.registerSubscription(Constants.PREMIUM_SKU, "shared-token");
+        assertTrue(findByToken(other.getSubscriptions().getValue(), "shared-token")
+                .isSubAlreadyOwned());
+
+        assertTrue(other.transferSubscription(Constants.PREMIUM_SKU, "shared-token"));
+        assertFalse(findByToken(other.getSubscriptions().getValue(), "shared-token")
+                .isSubAlreadyOwned());
+        assertNull(findByToken(server.getBackend().getSubscriptions(FakeBackend.userId(2)),
+                "shared-token"));
+    }
+
+    @Test
+    public void batchRegistrationAndInstanceId() {
+        ServerFunctionImpl owner = newClient(4);
+        ServerFunctionImpl client = newClient(5);
+        assertTrue(owner.registerSubscription(Constants.BASIC_SKU, "taken-token"));
+
+        SubscriptionBatchRequest request = new SubscriptionBatchRequest();
+        request.add(Constants.PREMIUM_SKU, "new-token", false);
+        request.add(Constants.BASIC_SKU, "taken-token", false);
+        request.add(Constants.BASIC_SKU, "", false);
+        // A conflict and an invalid purchase are permanent, so neither is retried.
+        assertArrayEquals(new boolean[]{true, true, true}, client.registerSubscriptions(request));
+        assertTrue(findByToken(client.getSubscriptions().getValue(), "taken-token")
+                .isSubAlreadyOwned());
+        assertNotNull(findByToken(client.getSubscriptions().getValue(), "new-token"));
+
+        assertTrue(client.registerInstanceId("instance-id"));
+        assertTrue(client.unregisterInstanceId("instance-id"));
+    }
+
+    @Test
+    public void mutationWithARevokedTokenIsSentAgainWithANewToken() {
+        ServerFunctionImpl client = newClient(new RevokedTokenProvider(6, 1));
+
+        assertTrue(client.registerSubscription(Constants.PREMIUM_SKU, "fresh-token"));
+        assertEquals(2, server.getRequestCount(SubscriptionStatusApiCall.REGISTER_SUBSCRIPTION));
+        assertNotNull(findByToken(client.getSubscriptions().getValue(), "fresh-token"));
+    }
+
+    @Test
+    public void mutationIsNotProcessedWhileTheTokenIsRejected() {
+        ServerFunctionImpl client = newClient(new RevokedTokenProvider(6, Integer.MAX_VALUE));
+
+        // The outbox keeps these and sends them again on its next drain.
+        assertFalse(client.registerSubscription(Constants.PREMIUM_SKU, "fresh-token"));
+        assertFalse(client.transferSubscription(Constants.PREMIUM_SKU, "fresh-token"));
+        SubscriptionBatchRequest request = new SubscriptionBatchRequest();
+        request.add(Constants.PREMIUM_SKU, "fresh-token", false);
+        request.add(Constants.BASIC_SKU, "other-token", true);
+        assertArrayEquals(new boolean[]{false, false}, client.registerSubscriptions(request));
+        assertFalse(client.registerInstanceId("instance-id"));
+        assertFalse(client.unregisterInstanceId("instance-id"));
+    }
+
+    @Test
+    public void malformedBatchResponseDoesNotHoldUpTheOutbox() throws IOException {
+        MockWebServer malformed = new MockWebServer();
+        malformed.enqueue(new MockResponse().setBody("{}"));
+        malformed.enqueue(new MockResponse().setBody("{\"results\":[{\"status\":200}]}"));
+        malformed.start();
+        try {
+            ServerFunctionImpl client = new ServerFunctionImpl(malformed.url("/").toString(),
+                    HttpStack.getInstance(null),
+                    new CachingIdTokenProvider(new LocalTokenSource(FakeBackend.userId(7))),
+                    scheduler);
+            SubscriptionBatchRequest request = new SubscriptionBatchRequest();
+            request.add(Constants.PREMIUM_SKU, "first-token", false);
+            request.add(Constants.BASIC_SKU, "second-token", false);
+
+            // Sending the batch again would get the same answer, so it is not kept.
+            assertArrayEquals(new boolean[]{true, true}, client.registerSubscriptions(request));
+            assertArrayEquals(new boolean[]{true, true}, client.registerSubscriptions(request));
+            assertEquals(2, malformed.getRequestCount());
+        } finally {
+            malformed.shutdown();
+        }
+    }
+
+    @Test
+    public void requestsWithoutTokenAreRejected() throws IOException {
+        Request request = new Request.Builder()
+                .url(server.getBaseUrl() + SubscriptionStatusApiCall.SUBSCRIPTION_STATUS)
+                .build();
+        Response response = new OkHttpClient().newCall(request).execute();
+        assertEquals(401, response.code());
+        assertTrue(response.body().string().contains("unauthenticated"));
+
+        response = new OkHttpClient().newCall(request.newBuilder()
+                .header("X-FireIDToken", "firebase-token").build()).execute();
+        assertEquals(403, response.code());
+        response.close();
+    }
+
+    /**
+     * Several users request their status and content at the same time. Reports throughput
+     * and the latency distribution seen by the client.
+     */
+    @Test
+    public void concurrentLoad() throws InterruptedException {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < LOAD_USERS; i++) {
+            final ServerFunctionImpl client = newClient(i);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < LOAD_REQUESTS_PER_USER; n++) {
+                        long start = System.nanoTime();
+                        boolean success = n % 2 == 0
+                                ? client.updateSubscriptionStatus(null, null)
+                                : client.registerInstanceId("instance-id");
+                        latencies.record((System.nanoTime() - start) / 1_000_000);
+                        if (!success) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+        assertEquals(0, failures.get());
+        assertEquals(LOAD_USERS * LOAD_REQUESTS_PER_USER, latencies.getCount());
+        System.out.println("LocalClassyTaxiServer: " + latencies.getCount() + " requests in "
+                + elapsedMillis + " ms, "
+                + latencies.getCount() * 1000 / elapsedMillis + " requests/s, " + latencies);
+    }
+
+    private ServerFunctionImpl newClient(int user) {
+        return newClient(
+                new CachingIdTokenProvider(new LocalTokenSource(FakeBackend.userId(user))));
+    }
+
+    private ServerFunctionImpl newClient(IdTokenProvider tokenProvider) {
+        return new ServerFunctionImpl(server.getBaseUrl(), HttpStack.getInstance(null),
+                tokenProvider, scheduler);
+    }
+
+    private static SubscriptionStatus findByToken(List<SubscriptionStatus> subscriptions,
+                                                  String purchaseToken) {
+        for (SubscriptionStatus subscription : subscriptions) {
+            if (purchaseToken.equals(subscription.getPurchaseToken())) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hands out a token that the server rejects until it has been invalidated the given
+     * number of times, like a token that expired or was revoked.
+     */
+    private static class RevokedTokenProvider implements IdTokenProvider {
+        private final IdTokenProvider valid;
+        private int revoked;
+
+        RevokedTokenProvider(int user, int revoked) {
+            this.valid = new CachingIdTokenProvider(
+                    new LocalTokenSource(FakeBackend.userId(user)));
+            this.revoked = revoked;
+        }
+
+        @Override
+        public synchronized String getToken() throws IOException {
+            return revoked > 0 ? "revoked-token" : valid.getToken();
+        }
+
+        @Override
+        public synchronized void invalidate() {
+            if (revoked > 0 && revoked < Integer.MAX_VALUE) {
+                revoked--;
+            }
+            valid.invalidate();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import com.sample.android.classytaxijava.data.network.retrofit.authentication.CachingIdTokenProvider;
+import com.sample.android.classytaxijava.utils.Clock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Test-mode token source for the X-FireIDToken header. Issues tokens for a fixed user that
+ * {@link LocalClassyTaxiServer} accepts instead of Firebase Auth ID tokens.
+ */
+class LocalTokenSource implements CachingIdTokenProvider.TokenSource {
+    private static final String PREFIX = "local-token:";
+    private static final long TOKEN_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final String userId;
+    private final Clock clock;
+    private final AtomicLong fetchCount = new AtomicLong();
+
+    LocalTokenSource(String userId) {
+        this(userId, Clock.SYSTEM);
+    }
+
+    LocalTokenSource(String userId, Clock clock) {
+        this.userId = userId;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the user a token was issued for, or null if it is not a local token.
+     */
+    @Nullable
+    static String userId(@Nullable String token) {
+        if (token == null || !token.startsWith(PREFIX)) {
+            return null;
+        }
+        int end = token.lastIndexOf(':');
+        return end <= PREFIX.length() ? null : token.substring(PREFIX.length(), end);
+    }
+
+    /**
+     * Number of tokens issued, so tests can check how often the client asked for one.
+     */
+    long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    @Nullable
+    @Override
+    public String getUserId() {
+        return userId;
+    }
+
+    @Override
+    public void fetchToken(boolean forceRefresh, CachingIdTokenProvider.TokenCallback callback) {
+        long serial = fetchCount.incrementAndGet();
+        callback.onToken(PREFIX + userId + ":" + serial,
+                clock.currentTimeMillis() + TOKEN_LIFETIME_MILLIS);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.scalars.ScalarsConverterFactory;
+import retrofit2.http.GET;
+import retrofit2.http.PUT;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResilientCallExecutorTest {
+    private static final long BREAKER_OPEN_MILLIS = 10_000;
+
+    interface Api {
+        @GET("subscription_status_v2")
+        Call<String> fetchSubscriptionStatus();
+
+        @PUT("subscription_register_v2")
+        Call<String> registerSubscription();
+    }
+
+    private final List<Long> sleeps = new ArrayList<>();
+    private final FakeClock clock = new FakeClock();
+    private final ResilienceMetrics metrics = new ResilienceMetrics();
+    private MockWebServer server;
+    private Api api;
+    private ResilientCallExecutor executor;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        api = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .addConverterFactory(ScalarsConverterFactory.create())
+                .build()
+                .create(Api.class);
+        Map<String, RetryPolicy> policies = new HashMap<>();
+        policies.put("subscription_status_v2", new RetryPolicy(3, 100, 1_000, true));
+        policies.put("subscription_register_v2", new RetryPolicy(3, 100, 1_000, false));
+        executor = new ResilientCallExecutor(policies, RetryPolicy.NO_RETRY,
+                new CircuitBreaker(clock, 3, BREAKER_OPEN_MILLIS, metrics), metrics,
+                new ResilientCallExecutor.Sleeper() {
+                    @Override
+                    public void sleep(long millis) {
+                        sleeps.add(millis);
+                    }
+                }, new Random(42));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void transientErrorsAreRetried() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(500));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        Response<String> response = executor.execute(api.fetchSubscriptionStatus());
+
+        assertEquals("ok", response.body());
+        assertEquals(3, server.getRequestCount());
+        assertEquals(2, metrics.getRetryCount("subscription_status_v2"));
+        assertEquals(2, sleeps.size());
+        assertTrue(sleeps.get(0) <= 100);
+        assertTrue(sleeps.get(1) <= 200);
+    }
+
+    @Test
+    public void retriesStopAtMaxAttempts() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setResponseCode(502));
+        }
+
+        Response<String> response = executor.execute(api.fetchSubscriptionStatus());
+
+        assertEquals(502, response.code());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void clientErrorsAreNotRetried() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(409));
+
+        Response<String> response = executor.execute(api.registerSubscription());
+
+        assertEquals(409, response.code());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void nonIdempotentRequestOnlyRetriesUnprocessedErrors() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(500));
+        assertEquals(500, executor.execute(api.registerSubscription()).code());
+        assertEquals(1, server.getRequestCount());
+
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody("ok"));
+        assertEquals("ok", executor.execute(api.registerSubscription()).body());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void longRetryAfterIsNotWaitedFor() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "60"));
+
+        assertEquals(503, executor.execute(api.fetchSubscriptionStatus()).code());
+        assertEquals(1, server.getRequestCount());
+        assertTrue(sleeps.isEmpty());
+    }
+
+    @Test
+    public void breakerOpensAndRecovers() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setResponseCode(500));
+        }
+        executor.execute(api.fetchSubscriptionStatus());
+        assertEquals(CircuitBreaker.State.OPEN, executor.getCircuitBreaker().getState());
+
+        try {
+            executor.execute(api.fetchSubscriptionStatus());
+            fail("Expected the open breaker to reject the call");
+        } catch (ResilientCallExecutor.CircuitOpenException expected) {
+        }
+        assertEquals(3, server.getRequestCount());
+        assertEquals(1, metrics.getRejectedCount("subscription_status_v2"));
+
+        // After the open period a probe is let through, and its success closes the breaker.
+        clock.now += BREAKER_OPEN_MILLIS;
+        server.enqueue(new MockResponse().setBody("ok"));
+        assertEquals("ok", executor.execute(api.fetchSubscriptionStatus()).body());
+        assertEquals(CircuitBreaker.State.CLOSED, executor.getCircuitBreaker().getState());
+        assertEquals(1, metrics.getBreakerOpenedCount());
+    }
+
+    @Test
+    public void rateLimitingDoesNotOpenTheBreaker() throws IOException {
+        for (int i = 0; i < 6; i++) {
+            server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "0"));
+        }
+
+        assertEquals(429, executor.execute(api.fetchSubscriptionStatus()).code());
+        assertEquals(429, executor.execute(api.fetchSubscriptionStatus()).code());
+
+        assertEquals(6, server.getRequestCount());
+        assertEquals(CircuitBreaker.State.CLOSED, executor.getCircuitBreaker().getState());
+        assertEquals(0, metrics.getBreakerOpenedCount());
+    }
+
+    @Test
+    public void backoffGrowsAndIsCapped() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1_000, true);
+        Random random = new Random(1);
+        for (int retry = 1; retry <= 10; retry++) {
+            long cap = Math.min(1_000, 100L << (retry - 1));
+            long delay = policy.getDelayMillis(retry, random);
+            assertTrue("retry " + retry + " delay " + delay, delay >= 0 && delay <= cap);
+        }
+    }
+
+    private static class FakeClock implements Clock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+    }
+}
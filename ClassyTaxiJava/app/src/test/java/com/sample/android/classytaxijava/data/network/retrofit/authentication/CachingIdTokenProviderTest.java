@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit.authentication;
+
+import com.sample.android.classytaxijava.utils.Clock;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CachingIdTokenProviderTest {
+    private static final long TOKEN_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long REFRESH_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final FakeClock clock = new FakeClock();
+    private final FakeTokenSource tokenSource = new FakeTokenSource();
+    private final CachingIdTokenProvider provider =
+            new CachingIdTokenProvider(tokenSource, clock, REFRESH_WINDOW_MILLIS);
+
+    @Test
+    public void cachedTokenIsReturnedWithoutFetching() throws IOException {
+        tokenSource.completeImmediately = true;
+
+        assertEquals("token1", provider.getToken());
+        assertEquals("token1", provider.getToken());
+        assertEquals(1, tokenSource.fetchCount);
+    }
+
+    @Test
+    public void concurrentCallersShareOneFetch() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return provider.getToken();
+                }
+            }));
+        }
+        // Give the callers time to start waiting.
+        Thread.sleep(200);
+        tokenSource.completePending();
+
+        for (Future<String> result : results) {
+            assertEquals("token1", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, tokenSource.fetchCount);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void tokenNearExpiryIsRefreshedInBackground() throws IOException {
+        tokenSource.completeImmediately = true;
+        provider.getToken();
+        tokenSource.completeImmediately = false;
+
+        clock.now += TOKEN_LIFETIME_MILLIS - REFRESH_WINDOW_MILLIS + 1;
+        // The old token is still valid, so it is returned while the refresh runs.
+        assertEquals("token1", provider.getToken());
+        assertEquals("token1", provider.getToken());
+        assertEquals(2, tokenSource.fetchCount);
+
+        tokenSource.completePending();
+        assertEquals("token2", provider.getToken());
+        assertEquals(2, tokenSource.fetchCount);
+    }
+
+    @Test
+    public void userChangeDiscardsToken() throws IOException {
+        tokenSource.completeImmediately = true;
+        provider.getToken();
+
+        tokenSource.userId = "user2";
+        assertEquals("token2", provider.getToken());
+        assertEquals(2, tokenSource.fetchCount);
+    }
+
+    @Test
+    public void invalidateForcesRefresh() throws IOException {
+        tokenSource.completeImmediately = true;
+        provider.getToken();
+
+        provider.invalidate();
+        assertEquals("token2", provider.getToken());
+        assertTrue(tokenSource.lastForceRefresh);
+        assertEquals("token2", provider.getToken());
+        assertEquals(2, tokenSource.fetchCount);
+    }
+
+    @Test
+    public void invalidateDuringRefreshDiscardsItsToken() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<String> result = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                return provider.getToken();
+            }
+        });
+        // Give the caller time to start waiting.
+        Thread.sleep(200);
+        assertEquals(1, tokenSource.fetchCount);
+
+        provider.invalidate();
+        tokenSource.completeImmediately = true;
+        tokenSource.completePending();
+
+        // The caller gets a newly fetched token, not the one of the abandoned refresh.
+        assertEquals("token2", result.get(5, TimeUnit.SECONDS));
+        assertTrue(tokenSource.lastForceRefresh);
+        assertEquals("token2", provider.getToken());
+        assertEquals(2, tokenSource.fetchCount);
+        executor.shutdownNow();
+    }
+
+    @Test(expected = IOException.class)
+    public void signedOutUserFails() throws IOException {
+        tokenSource.userId = null;
+        provider.getToken();
+    }
+
+    private static class FakeClock implements Clock {
+        volatile long now = 1_000_000L;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+    }
+
+    private class FakeTokenSource implements CachingIdTokenProvider.TokenSource {
+        volatile String userId = "user1";
+        volatile boolean completeImmediately;
+        volatile boolean lastForceRefresh;
+        int fetchCount;
+        private final List<CachingIdTokenProvider.TokenCallback> pending = new ArrayList<>();
+
+        @Override
+        public String getUserId() {
+            return userId;
+        }
+
+        @Override
+        public synchronized void fetchToken(boolean forceRefresh,
+                                            CachingIdTokenProvider.TokenCallback callback) {
+            fetchCount++;
+            lastForceRefresh = forceRefresh;
+            if (completeImmediately) {
+                callback.onToken("token" + fetchCount, clock.now + TOKEN_LIFETIME_MILLIS);
+            } else {
+                pending.add(callback);
+            }
+        }
+
+        void completePending() {
+            List<CachingIdTokenProvider.TokenCallback> callbacks;
+            String token;
+            synchronized (this) {
+                callbacks = new ArrayList<>(pending);
+                pending.clear();
+                token = "token" + fetchCount;
+            }
+            for (CachingIdTokenProvider.TokenCallback callback : callbacks) {
+                callback.onToken(token, clock.now + TOKEN_LIFETIME_MILLIS);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.ui;
+
+import com.sample.android.classytaxijava.Constants;
+import com.sample.android.classytaxijava.R;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HomeViewRendererTest {
+    private static final int HOME_VIEW_COUNT = 7;
+
+    private final CountingViews views = new CountingViews();
+    private HomeViewRenderer renderer;
+
+    @Before
+    public void setUp() {
+        renderer = new HomeViewRenderer(views);
+    }
+
+    @Test
+    public void firstRenderSetsEveryView() {
+        renderer.render(HomeViewState.EMPTY);
+
+        assertEquals(HOME_VIEW_COUNT, views.mutations);
+        assertTrue(views.visible.get(R.id.home_paywall_message));
+        assertFalse(views.visible.get(R.id.home_basic_message));
+    }
+
+    @Test
+    public void unchangedStateTouchesNoViews() {
+        List<SubscriptionStatus> subscriptions =
+                Collections.singletonList(active(Constants.BASIC_SKU, true));
+        renderer.render(HomeViewState.create(subscriptions));
+        views.mutations = 0;
+
+        // A new list with the same display, e.g. after a refresh that changed nothing.
+        renderer.render(HomeViewState.create(
+                Collections.singletonList(active(Constants.BASIC_SKU, true))));
+
+        assertEquals(0, views.mutations);
+    }
+
+    @Test
+    public void onlyChangedViewsAreTouched() {
+        renderer.render(HomeViewState.EMPTY);
+        views.mutations = 0;
+
+        SubscriptionStatus gracePeriod = active(Constants.BASIC_SKU, true);
+        gracePeriod.setGracePeriod(true);
+        renderer.render(HomeViewState.create(Collections.singletonList(gracePeriod)));
+
+        // Grace period and basic messages shown, paywall hidden.
+        assertEquals(3, views.mutations);
+        assertFalse(views.visible.get(R.id.home_paywall_message));
+        assertTrue(views.visible.get(R.id.home_grace_period_message));
+        assertTrue(views.visible.get(R.id.home_basic_message));
+    }
+
+    @Test
+    public void restoreTextIsSetOnlyWhenTheDateChanges() {
+        renderer.render(HomeViewState.create(
+                Collections.singletonList(restore(1_600_000_000_000L))));
+        assertEquals(1, views.texts);
+
+        renderer.render(HomeViewState.create(
+                Collections.singletonList(restore(1_600_000_000_000L))));
+        assertEquals(1, views.texts);
+
+        views.mutations = 0;
+        renderer.render(HomeViewState.create(
+                Collections.singletonList(restore(1_700_000_000_000L))));
+        assertEquals(2, views.texts);
+        assertEquals(1, views.mutations);
+    }
+
+    @Test
+    public void stateMatchesSubscriptionPredicates() {
+        SubscriptionStatus transfer = SubscriptionStatus.alreadyOwnedSubscription(
+                Constants.BASIC_SKU, "owned-token");
+        SubscriptionStatus hold = new SubscriptionStatus();
+        hold.setSku(Constants.PREMIUM_SKU);
+        hold.setAccountHold(true);
+        HomeViewState state = HomeViewState.create(Arrays.asList(transfer, hold));
+
+        assertFalse(state.isPaywallVisible());
+        assertTrue(state.isTransferVisible());
+        assertTrue(state.isAccountHoldVisible());
+        assertFalse(state.isBasicVisible());
+        assertEquals(HomeViewState.EMPTY,
+                HomeViewState.create(new ArrayList<SubscriptionStatus>()));
+    }
+
+    private static SubscriptionStatus active(String sku, boolean willRenew) {
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        subscription.setSku(sku);
+        subscription.setEntitlementActive(true);
+        subscription.setWillRenew(willRenew);
+        return subscription;
+    }
+
+    private static SubscriptionStatus restore(long activeUntilMillis) {
+        SubscriptionStatus subscription = active(Constants.PREMIUM_SKU, false);
+        subscription.setActiveUntilMillisec(activeUntilMillis);
+        return subscription;
+    }
+
+    /**
+     * Records the last value of each view and counts the changes.
+     */
+    private static class CountingViews implements HomeViewRenderer.Views {
+        final Map<Integer, Boolean> visible = new HashMap<>();
+        int mutations;
+        int texts;
+
+        @Override
+        public void setVisible(int viewId, boolean isVisible) {
+            visible.put(viewId, isVisible);
+            mutations++;
+        }
+
+        @Override
+        public void setText(int viewId, int formatResId, String arg) {
+            texts++;
+            mutations++;
+        }
+    }
+}
@@ -15,9 +15,10 @@
  */
 
 import * as firebase from 'firebase-admin'
+import * as crypto from 'crypto';
 import * as functions from 'firebase-functions';
 import { SkuType, PurchaseUpdateError, DeveloperNotification, NotificationType } from "../../play-billing";
-import { playBilling, verifyAuthentication, PACKAGE_NAME, instanceIdManager, sendHttpsError, verifyFirebaseAuthIdToken, logAndThrowHttpsError } from '../shared'
+import { playBilling, verifyAuthentication, PACKAGE_NAME, instanceIdManager, syncSnapshotManager, sendHttpsError, verifyFirebaseAuthIdToken, logAndThrowHttpsError } from '../shared'
 import { SubscriptionStatus } from '../../model/SubscriptionStatus';
 
 /* This file contains implementation of functions related to linking subscription purchase with user account
@@ -103,6 +104,53 @@ export const subscription_register_v2 = functions.https.onRequest(async (request
     });
 });
 
+// Maximum number of purchases accepted by subscription_register_batch_v2
+const MAX_BATCH_SIZE = 50;
+
+/* HTTPS request that registers or transfers several subscriptions
+ * purchased in Android app via Google Play Billing to an user.
+ *
+ * The body is { purchases: [{ sku, purchaseToken, transfer }] }.
+ * Each purchase is handled like subscription_register_v2, or like
+ * subscription_transfer_v2 when transfer is true. The response has one result
+ * per purchase, in request order, with the HTTP status code the single
+ * request would have returned, and the subscriptions of the user after all
+ * purchases were processed. Purchases without a SKU or purchase token get 400.
+ *
+ * @param {Request} request
+ * @param {Response} response
+ */
+export const subscription_register_batch_v2 = functions.https.onRequest(async (request, response) => {
+  return verifyFirebaseAuthIdToken(request, response)
+    .then(async (decodedToken) => {
+      const uid = decodedToken.uid;
+      const purchases = request.body.purchases;
+
+      if (!Array.isArray(purchases) || purchases.length > MAX_BATCH_SIZE) {
+        logAndThrowHttpsError('invalid-argument',
+          'Expected at most ' + MAX_BATCH_SIZE + ' purchases');
+      }
+
+      const results = await Promise.all(purchases.map(async (purchase) => {
+        if (!isValidBatchPurchase(purchase)) {
+          return {
+            sku: purchase ? purchase.sku : undefined,
+            purchaseToken: purchase ? purchase.purchaseToken : undefined,
+            status: 400
+          };
+        }
+        const status = await registerOrTransferPurchase(purchase.sku, purchase.purchaseToken,
+          purchase.transfer === true, uid);
+        return { sku: purchase.sku, purchaseToken: purchase.purchaseToken, status: status };
+      }));
+
+      const data = await getSubscriptionsResponseObject(uid);
+      response.send(Object.assign({ results: results }, data));
+    }).catch((error: functions.https.HttpsError) => {
+      sendHttpsError(error, response);
+    });
+});
+
 /* Register a subscription purchased in Android app via Google Play Billing to an user.
  * It only works with all active subscriptions, no matter if it's registered or not.
  */
@@ -161,6 +209,9 @@ export const subscription_transfer_v2 = functions.https.onRequest(async (request
         );
       } catch (err) {
         switch (err.name) {
+          case PurchaseUpdateError.CONFLICT: {
+            logAndThrowHttpsError('already-exists', err.message);
+          }
           case PurchaseUpdateError.INVALID_TOKEN: {
             logAndThrowHttpsError('not-found', err.message);
           }
@@ -198,6 +249,15 @@ export const subscription_status = functions.https.onCall((data, context) => {
  * so it's useful that client app know about them and show
  * an appropriate message to the user.
  *
+ * Every response carries a sync cursor. When the client sends its cursor back
+ * as the "since" query parameter, only the subscriptions that changed since are
+ * returned, with the token IDs of removed ones, and "delta" is set to true.
+ * A missing or unknown cursor returns the full list.
+ *
+ * The cursor is opaque and has a fixed size: a hash of the subscription states.
+ * The states behind recent cursors are kept by the SyncSnapshotManager, and the
+ * delta is computed from them here.
+ *
  * @param {Request} request
  * @param {Response} response
  */
@@ -206,7 +266,12 @@ export const subscription_status_v2 = functions.https.onRequest(async (request,
     .then(async decodedToken => {
       const uid = decodedToken.uid;
       const responseData = await getSubscriptionsResponseObject(uid)
-      response.send(responseData);
+      const since = typeof request.query.since === 'string' ? request.query.since : undefined;
+      const current = getSyncCursorEntries(responseData.subscriptions);
+      const cursor = getSyncCursor(current);
+      const previous = await syncSnapshotManager.getSnapshot(uid, since);
+      await syncSnapshotManager.saveSnapshot(uid, cursor, current);
+      response.send(getSubscriptionsDelta(responseData.subscriptions, current, cursor, previous));
     }).catch((error: functions.https.HttpsError) => {
       sendHttpsError(error, response);
     });
@@ -232,9 +297,44 @@ export const realtime_notification_listener = functions.pubsub.topic('play-subs'
   }
 })
 
+// Util method to check that a purchase of a batch has a SKU and a purchase token.
+// Invalid purchases get status 400 without reaching Google Play.
+function isValidBatchPurchase(purchase: any): boolean {
+  return !!purchase && typeof purchase === 'object'
+    && typeof purchase.sku === 'string' && purchase.sku.length > 0
+    && typeof purchase.purchaseToken === 'string' && purchase.purchaseToken.length > 0;
+}
+
+// Util method to register or transfer one purchase of a batch.
+// Returns the HTTP status code that the single purchase request would have returned.
+async function registerOrTransferPurchase(sku: string, token: string, transfer: boolean,
+  userId: string): Promise<number> {
+  try {
+    if (transfer) {
+      await playBilling.purchases().transferToUserAccount(PACKAGE_NAME, sku, token, SkuType.SUBS, userId);
+    } else {
+      await playBilling.purchases().registerToUserAccount(PACKAGE_NAME, sku, token, SkuType.SUBS, userId);
+    }
+    return 200;
+  } catch (err) {
+    console.error('Server error: ' + err.message);
+    switch (err.name) {
+      case PurchaseUpdateError.CONFLICT: {
+        return 409;
+      }
+      case PurchaseUpdateError.INVALID_TOKEN: {
+        return 404;
+      }
+      default: {
+        return 500;
+      }
+    }
+  }
+}
+
 // Util method to get a list of subscriptions belong to an user, in the format that can be returned to client app
 // It also handles library internal error and convert it to an HTTP error to return to client.
-async function getSubscriptionsResponseObject(userId: string): Promise<Object> {
+async function getSubscriptionsResponseObject(userId: string): Promise<{ subscriptions: SubscriptionStatus[] }> {
   try {
     // Fetch purchase list from purchase records
     const purchaseList = await playBilling.users().queryCurrentSubscriptions(userId);
@@ -248,6 +348,50 @@ async function getSubscriptionsResponseObject(userId: string): Promise<Object> {
   }
 }
 
+// Version prefix of sync cursors. Cursors of other versions get a full list.
+const SYNC_CURSOR_VERSION = '2:';
+
+// Util method to compute a short stable hash, the first 16 hex digits of SHA-256.
+// Clients compute token IDs the same way to match removed subscriptions.
+function syncHash(value: string): string {
+  return crypto.createHash('sha256').update(value, 'utf8').digest('hex').substring(0, 16);
+}
+
+// Util method to get the sync cursor entries of a list of subscriptions,
+// as a map from token ID to a hash of the subscription state.
+function getSyncCursorEntries(subscriptions: SubscriptionStatus[]): Map<string, string> {
+  const entries = new Map<string, string>();
+  for (const subscription of subscriptions) {
+    entries.set(syncHash(subscription.purchaseToken), syncHash(JSON.stringify(subscription)));
+  }
+  return entries;
+}
+
+// Util method to get the cursor of a list of subscriptions from its sync cursor entries:
+// a hash of the sorted entries, so that its size does not depend on the subscriptions.
+function getSyncCursor(entries: Map<string, string>): string {
+  return SYNC_CURSOR_VERSION + syncHash(Array.from(entries.entries())
+    .map(([tokenId, stateHash]) => tokenId + '=' + stateHash)
+    .sort()
+    .join(','));
+}
+
+// Util method to build the subscription status response for a client that last synced at a
+// cursor: the full list if the entries behind that cursor are unknown, otherwise only what
+// changed since.
+function getSubscriptionsDelta(subscriptions: SubscriptionStatus[], current: Map<string, string>,
+  cursor: string, previous: Map<string, string> | undefined): Object {
+  if (!previous) {
+    return { subscriptions: subscriptions, cursor: cursor };
+  }
+  const changed = subscriptions.filter(subscription => {
+    const tokenId = syncHash(subscription.purchaseToken);
+    return previous.get(tokenId) !== current.get(tokenId);
+  });
+  const removed = Array.from(previous.keys()).filter(tokenId => !current.has(tokenId));
+  return { subscriptions: changed, removed: removed, delta: true, cursor: cursor };
+}
+
 // Util method to send updated list of SubscriptionPurchase to client app via FCM
 async function sendSubscriptionStatusUpdateToClient(userId: string, notificationType: NotificationType): Promise<void> {
   // Fetch updated subscription list of the user
@@ -21,6 +21,7 @@ import { PlayBilling } from "../play-billing";
 import * as serviceAccountPlay from '../service-account.json'
 import { InstanceIdManager } from '../model/InstanceIdManager';
 import { ContentManager } from '../model/ContentManager';
+import { SyncSnapshotManager } from '../model/SyncSnapshotManager';
 import { FunctionsErrorCode } from 'firebase-functions/lib/providers/https';
 
 /*
@@ -34,6 +35,7 @@ export const PACKAGE_NAME = functions.config().app.package_name;
 export const playBilling = PlayBilling.fromServiceAccount(serviceAccountPlay, firebase.app());
 export const instanceIdManager = new InstanceIdManager(firebase.app());
 export const contentManager = new ContentManager();
+export const syncSnapshotManager = new SyncSnapshotManager(firebase.app());
 
 // Shared verification functions
 // Verify if the user making the call has signed in
@@ -139,6 +141,8 @@ export function sendHttpsError(error: functions.https.HttpsError, response: func
     code = 401;
   } else if (error.code === 'permission-denied') {
     code = 403;
+  } else if (error.code === 'not-found') {
+    code = 404;
   } else if (error.code === 'already-exists') {
     code = 409;
   }
@@ -18,7 +18,7 @@ import * as firebase from 'firebase-admin';
 firebase.initializeApp();
 
 import { content_basic, content_premium, content_basic_v2, content_premium_v2  } from './controller/functions/content'
-import { subscription_register, subscription_register_v2, subscription_status, subscription_status_v2, subscription_transfer, subscription_transfer_v2, realtime_notification_listener } from './controller/functions/subscription'
+import { subscription_register, subscription_register_v2, subscription_status, subscription_status_v2, subscription_transfer, subscription_transfer_v2, subscription_register_batch_v2, realtime_notification_listener } from './controller/functions/subscription'
 import { instanceId_register, instanceId_register_v2, instanceId_unregister, instanceId_unregister_v2 } from './controller/functions/instance_id'
 
 /*
@@ -86,4 +86,8 @@ if (!process.env.FUNCTION_NAME || process.env.FUNCTION_NAME === 'subscription_tr
 
 if (!process.env.FUNCTION_NAME || process.env.FUNCTION_NAME === 'subscription_status_v2') {
   exports.subscription_status_v2 = subscription_status_v2;
-}
\ No newline at end of file
+}
+
+if (!process.env.FUNCTION_NAME || process.env.FUNCTION_NAME === 'subscription_register_batch_v2') {
+  exports.subscription_register_batch_v2 = subscription_register_batch_v2;
+}
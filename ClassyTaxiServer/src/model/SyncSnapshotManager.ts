@@ -0,0 +1,76 @@
+/**
+ * Copyright 2018 Google LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import * as firebase from "firebase-admin";
+
+const FIRESTORE_SYNC_SNAPSHOTS_COLLECTION = 'sync_snapshots'
+
+// Snapshots kept per user. A client whose cursor has been evicted gets the full list.
+const MAX_SNAPSHOTS_PER_USER = 4
+
+/* SyncSnapshotManager is part of Model layer.
+ * It remembers which subscriptions stand behind the sync cursors recently sent to a user,
+ * as a map from token ID to state hash, so that the cursors themselves stay opaque and small.
+ */
+export class SyncSnapshotManager {
+  private snapshotsCollectionReference: FirebaseFirestore.CollectionReference;
+
+  constructor(firebaseApp: firebase.app.App) {
+    this.snapshotsCollectionReference = firebaseApp.firestore().collection(FIRESTORE_SYNC_SNAPSHOTS_COLLECTION)
+  }
+
+  /* Get the entries behind a cursor sent to the user, or undefined if the cursor is
+   * missing or unknown.
+   */
+  async getSnapshot(userId: string, cursor: string | undefined): Promise<Map<string, string> | undefined> {
+    if (!cursor) {
+      return undefined;
+    }
+    const snapshots = await this.getSnapshots(userId);
+    const snapshot = snapshots.find(candidate => candidate.cursor === cursor);
+    if (!snapshot) {
+      return undefined;
+    }
+    const entries = new Map<string, string>();
+    for (const tokenId of Object.keys(snapshot.entries)) {
+      entries.set(tokenId, snapshot.entries[tokenId]);
+    }
+    return entries;
+  }
+
+  /* Remember the entries behind a cursor sent to the user, evicting the oldest ones.
+   */
+  async saveSnapshot(userId: string, cursor: string, entries: Map<string, string>): Promise<void> {
+    const saved = await this.getSnapshots(userId);
+    if (saved.length > 0 && saved[saved.length - 1].cursor === cursor) {
+      // Nothing changed since the last response, so the snapshot is already the newest.
+      return;
+    }
+    const snapshots = saved.filter(snapshot => snapshot.cursor !== cursor);
+    const entriesObject: { [tokenId: string]: string } = {};
+    entries.forEach((stateHash, tokenId) => {
+      entriesObject[tokenId] = stateHash;
+    });
+    snapshots.push({ cursor: cursor, entries: entriesObject });
+    await this.snapshotsCollectionReference.doc(userId)
+      .set({ snapshots: snapshots.slice(-MAX_SNAPSHOTS_PER_USER) });
+  }
+
+  private async getSnapshots(userId: string): Promise<Array<{ cursor: string, entries: { [tokenId: string]: string } }>> {
+    const snapshotDocument = await this.snapshotsCollectionReference.doc(userId).get();
+    return snapshotDocument.exists && snapshotDocument.data().snapshots ? snapshotDocument.data().snapshots : [];
+  }
+}